@@ -0,0 +1,79 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.bench;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.pdfbox.exceptions.COSVisitorException;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.edit.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+
+/**
+ * Generates the PDFs used by the benchmarks. The content is always the same for the same parameters, so results are
+ * comparable between runs.
+ *
+ * @since 10.10
+ */
+public class BenchPdfs {
+
+    private BenchPdfs() {
+    }
+
+    /**
+     * @param inPages
+     * @param inLinesPerPage drives the size of the file
+     * @return a temporary PDF, deleted on exit
+     * @throws IOException
+     */
+    public static File create(int inPages, int inLinesPerPage) throws IOException {
+
+        File file = File.createTempFile("bench-" + inPages + "-" + inLinesPerPage + "-", ".pdf");
+        file.deleteOnExit();
+
+        PDDocument doc = new PDDocument();
+        try {
+            for (int p = 0; p < inPages; p++) {
+                PDPage page = new PDPage();
+                doc.addPage(page);
+                PDPageContentStream content = new PDPageContentStream(doc, page);
+                content.beginText();
+                content.setFont(PDType1Font.HELVETICA, 10);
+                content.moveTextPositionByAmount(40, 750);
+                for (int l = 0; l < inLinesPerPage; l++) {
+                    content.drawString("Page " + (p + 1) + ", line " + (l + 1)
+                            + ": the quick brown fox jumps over the lazy dog");
+                    content.moveTextPositionByAmount(0, -12);
+                }
+                content.endText();
+                content.close();
+            }
+            doc.save(file);
+        } catch (COSVisitorException e) {
+            throw new IOException(e);
+        } finally {
+            doc.close();
+        }
+
+        return file;
+    }
+
+}
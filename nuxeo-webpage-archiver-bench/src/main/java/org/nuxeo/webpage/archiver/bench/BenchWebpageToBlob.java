@@ -0,0 +1,67 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.bench;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.exec.CommandLine;
+import org.nuxeo.webpage.archiver.WebpageToBlob;
+import org.nuxeo.webpage.archiver.governor.ProcessLimits;
+import org.nuxeo.webpage.archiver.governor.RenderGovernor;
+import org.nuxeo.webpage.archiver.pool.RendererPool;
+
+/**
+ * Gives the benchmarks access to the steps of a conversion, which need no Nuxeo runtime
+ *
+ * @since 10.10
+ */
+public class BenchWebpageToBlob extends WebpageToBlob {
+
+    public BenchWebpageToBlob(int inTimeout) {
+        super(inTimeout);
+    }
+
+    public String fileName(String inUrl) throws IOException {
+        return computeFileName(inUrl, null);
+    }
+
+    public int forked(CommandLine inCmdLine) throws IOException {
+        return runForked(inCmdLine);
+    }
+
+    public int pooled(RendererPool inPool, CommandLine inCmdLine) throws IOException {
+        return runInPool(inPool, inCmdLine);
+    }
+
+    public boolean valid(File inPdf) {
+        return pdfLooksValid(inPdf);
+    }
+
+    @Override
+    protected RenderGovernor getRenderGovernor() {
+        return null;
+    }
+
+    @Override
+    protected ProcessLimits getProcessLimits() {
+        return null;
+    }
+
+}
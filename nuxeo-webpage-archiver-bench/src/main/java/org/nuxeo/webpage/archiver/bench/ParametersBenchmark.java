@@ -0,0 +1,104 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.bench;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.nuxeo.webpage.archiver.CommandLineParameters;
+import org.nuxeo.webpage.archiver.CommandTemplate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building the parameters of a conversion, and the name of its file, from the URL.
+ * <p>
+ * The command lines are the ones of the default contribution (with and without cookie jar), registered without the
+ * CommandLineExecutorService. <code>arguments</code> is what a conversion runs, <code>buildParameterString</code>
+ * what it ran before the contributions were compiled (see CommandTemplate).
+ *
+ * @since 10.10
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParametersBenchmark {
+
+    protected static final String COMMAND = "bench-wkhtmlToPdf";
+
+    protected static final String COMMAND_AUTHENTICATED = "bench-wkhtmlToPdf-authenticated";
+
+    @Param({ "https://www.nuxeo.com",
+            "https://doc.nuxeo.com/nxdoc/automation-chains/?utm_source=newsletter&utm_medium=email&utm_campaign=2016-10" })
+    public String url;
+
+    protected BenchWebpageToBlob webpageToBlob;
+
+    protected Map<String, String> values;
+
+    @Setup
+    public void setup() {
+        CommandLineParameters.register(new CommandTemplate(COMMAND, "wkhtmltopdf",
+                "-q --load-media-error-handling ignore --load-error-handling ignore \"#{url}\" \"#{targetFilePath}\""));
+        CommandLineParameters.register(new CommandTemplate(COMMAND_AUTHENTICATED, "wkhtmltopdf",
+                "-q --cookie-jar \"#{cookieJar}\" --load-media-error-handling ignore --load-error-handling ignore "
+                        + "\"#{url}\" \"#{targetFilePath}\""));
+        webpageToBlob = new BenchWebpageToBlob(30000);
+        values = new HashMap<>();
+        values.put(CommandLineParameters.COOKIE_JAR, "/tmp/nxbin/cookiejar.txt");
+        values.put(CommandLineParameters.URL, url);
+        values.put(CommandLineParameters.TARGET_FILE_PATH, "/tmp/nxbin/webpage.pdf");
+    }
+
+    @Benchmark
+    public String buildParameterString() {
+        return CommandLineParameters.buildParameterString(COMMAND, null, url, "/tmp/nxbin/webpage.pdf");
+    }
+
+    @Benchmark
+    public String buildParameterStringWithCookieJar() {
+        return CommandLineParameters.buildParameterString(COMMAND_AUTHENTICATED, "/tmp/nxbin/cookiejar.txt", url,
+                "/tmp/nxbin/webpage.pdf");
+    }
+
+    @Benchmark
+    public String[] arguments() {
+        return CommandLineParameters.getTemplate(COMMAND_AUTHENTICATED).toArguments(values);
+    }
+
+    @Benchmark
+    public String fileName() throws IOException {
+        return webpageToBlob.fileName(url);
+    }
+
+}
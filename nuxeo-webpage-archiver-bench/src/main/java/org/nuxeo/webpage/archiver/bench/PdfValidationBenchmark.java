@@ -0,0 +1,93 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.nuxeo.webpage.archiver.pdf.PdfValidator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Checking the PDF written by the renderer, on PDFs of different page counts and sizes.
+ * <p>
+ * <code>fullLoad</code> is the reference: what the check cost when the whole document was parsed.
+ *
+ * @since 10.10
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PdfValidationBenchmark {
+
+    @Param({ "1", "20", "200" })
+    public int pages;
+
+    @Param({ "5", "60" })
+    public int linesPerPage;
+
+    protected File pdf;
+
+    protected BenchWebpageToBlob webpageToBlob;
+
+    @Setup
+    public void setup() throws IOException {
+        pdf = BenchPdfs.create(pages, linesPerPage);
+        webpageToBlob = new BenchWebpageToBlob(30000);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pdf.delete();
+    }
+
+    @Benchmark
+    public boolean pdfLooksValid() {
+        return webpageToBlob.valid(pdf);
+    }
+
+    @Benchmark
+    public int pageCount() {
+        return PdfValidator.getPageCount(pdf);
+    }
+
+    @Benchmark
+    public int fullLoad() throws IOException {
+        try (PDDocument doc = PDDocument.load(pdf)) {
+            return doc.getNumberOfPages();
+        }
+    }
+
+}
@@ -0,0 +1,145 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.exec.CommandLine;
+import org.nuxeo.webpage.archiver.pool.RendererPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A conversion with the stub renderer (see {@link StubRenderer}), so only what the plug-in adds is measured: one
+ * process per conversion or a warm process of the pool, then the check of the PDF.
+ * <p>
+ * To compare both modes with the real renderer on a server, give its path
+ * (<code>-p renderer=/usr/bin/wkhtmltopdf</code>): it then converts a local HTML file of about <code>pages</code>
+ * pages, so no network is involved.
+ * <p>
+ * Needs <code>/bin/sh</code>.
+ *
+ * @since 10.10
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RenderDispatchBenchmark {
+
+    @Param({ "1", "200" })
+    public int pages;
+
+    // Path of wkhtmltopdf, empty for the stub renderer
+    @Param({ "" })
+    public String renderer;
+
+    protected File template;
+
+    protected String executable;
+
+    protected String url = "https://www.nuxeo.com";
+
+    protected File stub;
+
+    protected File target;
+
+    protected RendererPool pool;
+
+    protected BenchWebpageToBlob webpageToBlob;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        if (renderer.isEmpty()) {
+            template = BenchPdfs.create(pages, 60);
+            stub = StubRenderer.create(template);
+            executable = stub.getAbsolutePath();
+        } else {
+            template = createHtml(pages);
+            executable = renderer;
+            url = template.toURI().toString();
+        }
+        target = File.createTempFile("bench-target-", ".pdf");
+        if (stub != null) {
+            StubRenderer.checkPooled(stub, target);
+        }
+        pool = new RendererPool(executable, 1, Integer.MAX_VALUE);
+        webpageToBlob = new BenchWebpageToBlob(30000);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+        target.delete();
+        if (stub != null) {
+            stub.delete();
+        }
+        template.delete();
+    }
+
+    protected static File createHtml(int inPages) throws IOException {
+
+        File html = File.createTempFile("bench-page-", ".html");
+        StringBuilder content = new StringBuilder("<html><body><h1>Benchmark</h1>");
+        for (int i = 0; i < inPages * 40; i++) {
+            content.append("<p>Paragraph ").append(i).append(" of the benchmark page.</p>");
+        }
+        content.append("</body></html>");
+        Files.write(html.toPath(), content.toString().getBytes(StandardCharsets.UTF_8));
+        return html;
+    }
+
+    protected CommandLine newCommandLine() {
+        CommandLine cmdLine = new CommandLine(executable);
+        cmdLine.addArgument("-q");
+        cmdLine.addArgument(url);
+        cmdLine.addArgument(target.getAbsolutePath());
+        return cmdLine;
+    }
+
+    @Benchmark
+    public boolean forked() throws IOException {
+        webpageToBlob.forked(newCommandLine());
+        return webpageToBlob.valid(target);
+    }
+
+    @Benchmark
+    public boolean pooled() throws IOException {
+        webpageToBlob.pooled(pool, newCommandLine());
+        return webpageToBlob.valid(target);
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.nuxeo.webpage.archiver.pool.PooledRenderer;
+
+/**
+ * A shell script standing for wkhtmltopdf: it copies a template PDF to its last argument, with no page to load. Used
+ * to measure what the plug-in adds around the renderer (process start, dispatch to a pooled process, checks), with no
+ * network and no WebKit.
+ * <p>
+ * Supports both modes: one conversion per process, and <code>--read-args-from-stdin</code> (see PooledRenderer). In
+ * the latter, each conversion writes a progress line before "Done", as wkhtmltopdf does: the pool reads a "Done" with
+ * no progress line before it as a late line of the previous conversion.
+ *
+ * @since 10.10
+ */
+public class StubRenderer {
+
+    public static final int CHECK_JOBS = 3;
+
+    protected static final int CHECK_TIMEOUT = 5000;
+
+    private StubRenderer() {
+    }
+
+    /**
+     * @param inTemplate the PDF copied at each conversion
+     * @return the executable script, deleted on exit
+     * @throws IOException
+     */
+    public static File create(File inTemplate) throws IOException {
+
+        File script = File.createTempFile("stub-wkhtmltopdf-", ".sh");
+        script.deleteOnExit();
+
+        String template = inTemplate.getAbsolutePath().replace("'", "'\\''");
+        String content = "#!/bin/sh\n" //
+                + "TEMPLATE='" + template + "'\n" //
+                + "if [ \"$1\" = \"--read-args-from-stdin\" ]; then\n" //
+                + "  while read -r line; do\n" //
+                + "    eval \"set -- $line\"\n" //
+                + "    for last; do :; done\n" //
+                + "    echo 'Loading pages (1/6)' >&2\n" //
+                + "    cp \"$TEMPLATE\" \"$last\"\n" //
+                + "    echo Done >&2\n" //
+                + "  done\n" //
+                + "else\n" //
+                + "  for last; do :; done\n" //
+                + "  cp \"$TEMPLATE\" \"$last\"\n" //
+                + "fi\n";
+        Files.write(script.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        if (!script.setExecutable(true)) {
+            throw new IOException("Cannot make " + script + " executable");
+        }
+
+        return script;
+    }
+
+    /**
+     * Runs {@link #CHECK_JOBS} consecutive conversions in one pooled process, so a benchmark does not measure timeouts
+     * and restarts of the process instead of conversions.
+     *
+     * @param inScript as returned by {@link #create(File)}
+     * @param inTarget the PDF written by the conversions
+     * @throws IOException if a conversion does not succeed
+     */
+    public static void checkPooled(File inScript, File inTarget) throws IOException {
+
+        PooledRenderer renderer = new PooledRenderer(inScript.getAbsolutePath());
+        try {
+            for (int i = 1; i <= CHECK_JOBS; i++) {
+                long start = System.currentTimeMillis();
+                int exitValue = renderer.render(Arrays.asList("https://www.nuxeo.com", inTarget.getAbsolutePath()),
+                        CHECK_TIMEOUT);
+                if (exitValue != 0) {
+                    throw new IOException("Pooled conversion " + i + " of the stub renderer exited with " + exitValue
+                            + " after " + (System.currentTimeMillis() - start) + "ms");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } finally {
+            renderer.destroy();
+        }
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.nuxeo.webpage.archiver.WebpageToBlobWork;
+import org.nuxeo.webpage.archiver.pending.PendingArchives;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What is done for each archive request before it is queued: building the work (its id is used by the WorkManager to
+ * deduplicate) and counting the request as pending. The counters are the in-memory ones (no KeyValueStore), with
+ * several threads requesting the same documents.
+ *
+ * @since 10.10
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class WorkDedupBenchmark {
+
+    @Param({ "1", "1000" })
+    public int documents;
+
+    protected PendingArchives pendingArchives;
+
+    protected String[] docIds;
+
+    @State(Scope.Thread)
+    public static class Counter {
+        protected int next;
+    }
+
+    @Setup
+    public void setup() {
+        pendingArchives = new PendingArchives(null);
+        docIds = new String[documents];
+        for (int i = 0; i < documents; i++) {
+            docIds[i] = String.format("0000%04d-3c41-4a3e-9d0e-5f5d2a1c%04d", i, i);
+        }
+    }
+
+    @Benchmark
+    public String newWork(Counter inCounter) {
+        String docId = docIds[inCounter.next++ % documents];
+        return new WebpageToBlobWork("wkhtmlToPdf", "https://www.nuxeo.com", "default", docId, "file:content",
+                null, null).getId();
+    }
+
+    @Benchmark
+    public long addedAndDone(Counter inCounter) {
+        String key = PendingArchives.computeKey("default", docIds[inCounter.next++ % documents],
+                "https://www.nuxeo.com");
+        pendingArchives.added(key);
+        return pendingArchives.done(key);
+    }
+
+}
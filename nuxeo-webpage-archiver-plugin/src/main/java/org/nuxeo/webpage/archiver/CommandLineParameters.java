@@ -18,8 +18,9 @@
  */
 package org.nuxeo.webpage.archiver;
 
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.lang.StringUtils;
 import org.nuxeo.ecm.core.api.Blob;
@@ -34,6 +35,9 @@ import org.nuxeo.ecm.platform.commandline.executor.service.CommandLineExecutorCo
  * (waiting for a timeout to be implemented in the Service)
  * <p>
  * Basically, we ensure the parameters are quoted, so we avoid security problems when the URL is set from a client.
+ * <p>
+ * Each contribution is compiled once into a {@link CommandTemplate}. A template is compiled again when the
+ * contribution it was compiled from is replaced (hot reload), and all of them are dropped when the component stops.
  * 
  * @since 7.10
  */
@@ -49,54 +53,95 @@ public class CommandLineParameters {
 
     public static final String TARGET_FILE_PATH = "targetFilePath";
 
+    /**
+     * Several pages rendered in one PDF (see {@link WebpageToBlob#toPdf(String, List, String, Blob, boolean)}): the
+     * argument is replaced by one argument per URL
+     *
+     * @since 10.10
+     */
+    public static final String URLS = "urls";
+
+    public static final String URLS_EXP = "#{urls}";
+
     public static final String TARGET_FILE_PATH_EXP = "#{targetFilePath}";
 
-    protected static Map<String, Boolean> commandLinesAndCheck = new HashMap<String, Boolean>();
-
-    protected static Map<String, String> commandLinesParamString = new HashMap<String, String>();
-
-    protected static String LOCK = "Mutex";
-
-    private static boolean checkDefinition(String inCommandLine) {
-
-        Boolean ok = commandLinesAndCheck.get(inCommandLine);
-        if (ok == null) {
-            synchronized (LOCK) {
-                ok = commandLinesAndCheck.get(inCommandLine);
-                if (ok == null) {
-                    ok = false;
-                    CommandLineDescriptor desc = CommandLineExecutorComponent.getCommandDescriptor(inCommandLine);
-                    if (desc != null) {
-                        String cleanedUp = desc.getParametersString();
-
-                        // Replace all occurrences of quoted parameters
-                        cleanedUp = StringUtils.replace(cleanedUp, "\"" + COOKIE_JAR_EXP + "\"", "");
-                        cleanedUp = StringUtils.replace(cleanedUp, "'" + COOKIE_JAR_EXP + "'", "");
-                        cleanedUp = StringUtils.replace(cleanedUp, "\"" + URL_EXP + "\"", "");
-                        cleanedUp = StringUtils.replace(cleanedUp, "'" + URL_EXP + "'", "");
-                        cleanedUp = StringUtils.replace(cleanedUp, "\"" + TARGET_FILE_PATH_EXP + "\"", "");
-                        cleanedUp = StringUtils.replace(cleanedUp, "'" + TARGET_FILE_PATH_EXP + "'", "");
-
-                        // Must not find the non-quoted params.
-                        if (cleanedUp.indexOf(COOKIE_JAR_EXP) < 0 && cleanedUp.indexOf(URL_EXP) < 0
-                                && cleanedUp.indexOf(TARGET_FILE_PATH_EXP) < 0) {
-                            ok = true;
-                            commandLinesParamString.put(inCommandLine, desc.getParametersString());
-                        }
-                    }
-                    commandLinesAndCheck.put(inCommandLine, ok);
-                }
+    protected static final Map<String, CommandTemplate> templates = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the compiled template of the command line contribution.
+     * <p>
+     * If at least one parameter is not quoted in the definition, throws a NuxeoException.
+     *
+     * @param inCommandLine
+     * @return the template
+     * @throws RenderException ({@link RenderException.Kind#COMMAND_NOT_AVAILABLE}) if there is no such contribution
+     * @throws NuxeoException
+     * @since 10.10
+     */
+    public static CommandTemplate getTemplate(String inCommandLine) throws NuxeoException {
+
+        CommandTemplate template = templates.get(inCommandLine);
+        // Registered with no contribution (tests, benchmarks): not checked against the contributions
+        if (template == null || !template.isCompiledFrom(null)) {
+            CommandLineDescriptor desc = CommandLineExecutorComponent.getCommandDescriptor(inCommandLine);
+            if (desc == null) {
+                templates.remove(inCommandLine);
+                throw new RenderException(RenderException.Kind.COMMAND_NOT_AVAILABLE,
+                        "No command line contribution named " + inCommandLine);
+            }
+            if (template == null || !template.isCompiledFrom(desc)) {
+                template = new CommandTemplate(inCommandLine, desc.getCommand(), desc.getParametersString(), desc);
+                templates.put(inCommandLine, template);
             }
         }
 
-        return ok.booleanValue();
+        if (!template.isHandledParametersQuoted()) {
+            throw new NuxeoException("The command line contribution \"" + inCommandLine
+                    + "\" has unquoted parameters and cannot be run");
+        }
+
+        return template;
+    }
+
+    /**
+     * Returns true if the name is a command line contribution, or a registered template. Cheaper than
+     * {@link #getTemplate(String)}: nothing is compiled nor checked.
+     *
+     * @param inCommandLine
+     * @return true if a template can be returned for this name
+     * @since 10.10
+     */
+    public static boolean isKnown(String inCommandLine) {
+        return templates.containsKey(inCommandLine)
+                || CommandLineExecutorComponent.getCommandDescriptor(inCommandLine) != null;
+    }
+
+    /**
+     * Registers a template compiled from no contribution
+     *
+     * @param inTemplate
+     * @since 10.10
+     */
+    public static void register(CommandTemplate inTemplate) {
+        templates.put(inTemplate.getName(), inTemplate);
+    }
 
+    /**
+     * Drops all the compiled templates
+     *
+     * @since 10.10
+     */
+    public static void clear() {
+        templates.clear();
     }
 
     /**
      * Get the parameter string for the command line and replaces the values.
      * <p>
      * If at least one parameter is not quoted in the deinifition, throws a NuxeoException.
+     * <p>
+     * The result is for display only: to run the command, use the arguments built by {@link #getTemplate(String)}, a
+     * value containing quotes or spaces would not survive parsing this string.
      * 
      * @param inCommandLine
      * @param inCookieJar
@@ -109,13 +154,7 @@ public class CommandLineParameters {
     public static String buildParameterString(String inCommandLine, Blob inCookieJar, String inUrl, Blob inTargetFile)
             throws NuxeoException {
 
-        if (!checkDefinition(inCommandLine)) {
-            throw new NuxeoException("The command line contribution \"" + inCommandLine
-                    + "\" has unquoted parameters and cannot be run");
-        }
-
-        String paramString = commandLinesParamString.get(commandLinesParamString);
-        ;
+        String paramString = getTemplate(inCommandLine).getParameterString();
 
         if (inCookieJar != null) {
             paramString = StringUtils.replace(paramString, COOKIE_JAR_EXP, inCookieJar.getFile().getAbsolutePath());
@@ -136,6 +175,8 @@ public class CommandLineParameters {
      * Get the parameter string for the command line and replaces the values.
      * <p>
      * If at least one parameter is not quoted in the definition, throws a NuxeoException.
+     * <p>
+     * For display only, see {@link #buildParameterString(String, Blob, String, Blob)}.
      * 
      * @param inCommandLine
      * @param inCookieJarPath
@@ -148,13 +189,7 @@ public class CommandLineParameters {
     public static String buildParameterString(String inCommandLine, String inCookieJarPath, String inUrl,
             String inTargetFilePath) throws NuxeoException {
 
-        if (!checkDefinition(inCommandLine)) {
-            throw new NuxeoException("The command line contribution \"" + inCommandLine
-                    + "\" has unquoted parameter(s)and cannot be run");
-        }
-
-        String paramString = commandLinesParamString.get(inCommandLine);
-        ;
+        String paramString = getTemplate(inCommandLine).getParameterString();
 
         if (StringUtils.isNotBlank(inCookieJarPath)) {
             paramString = StringUtils.replace(paramString, COOKIE_JAR_EXP, inCookieJarPath);
@@ -179,7 +214,8 @@ public class CommandLineParameters {
      */
     public static boolean isHandledParameter(String inParamName) {
 
-        return inParamName.equals(COOKIE_JAR) || inParamName.equals(URL) || inParamName.equals(TARGET_FILE_PATH);
+        return inParamName.equals(COOKIE_JAR) || inParamName.equals(URL) || inParamName.equals(TARGET_FILE_PATH)
+                || inParamName.equals(URLS);
 
     }
 
@@ -0,0 +1,315 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.exec.CommandLine;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * A command line contribution compiled once into its executable and its list of arguments, each argument being a
+ * sequence of literal parts and <code>#{name}</code> parameters.
+ * <p>
+ * The parameter string is split into arguments the way commons-exec does (white spaces, single or double quotes), but
+ * before the values are set. A value is then always one part of one argument, whatever it contains (spaces, quotes,
+ * ...): the arguments are built in one pass and passed as is to the process, they are never parsed again.
+ * <p>
+ * The only exception is an argument made of the <code>#{urls}</code> parameter alone: it is replaced by as many
+ * arguments as there are URLs (see {@link #toArguments(Map, List)}).
+ * <p>
+ * Immutable. See {@link CommandLineParameters#getTemplate(String)}.
+ *
+ * @since 10.10
+ */
+public class CommandTemplate {
+
+    protected static final String PARAM_START = "#{";
+
+    protected static final String PARAM_END = "}";
+
+    protected static final String[] HANDLED_PARAMETERS = { CommandLineParameters.COOKIE_JAR,
+            CommandLineParameters.URL, CommandLineParameters.TARGET_FILE_PATH, CommandLineParameters.URLS };
+
+    protected final String name;
+
+    protected final String executable;
+
+    protected final String parameterString;
+
+    // The contribution this template was compiled from (null if not compiled from a contribution)
+    protected final Object source;
+
+    // For each argument: literal parts are Strings, parameters are Param
+    protected final List<Object[]> arguments;
+
+    protected final boolean handledParametersQuoted;
+
+    protected static final class Param {
+
+        protected final String name;
+
+        protected final String expression;
+
+        protected Param(String inName) {
+            name = inName;
+            expression = PARAM_START + inName + PARAM_END;
+        }
+    }
+
+    public CommandTemplate(String inName, String inExecutable, String inParameterString) {
+        this(inName, inExecutable, inParameterString, null);
+    }
+
+    protected CommandTemplate(String inName, String inExecutable, String inParameterString, Object inSource) {
+        name = inName;
+        executable = inExecutable;
+        parameterString = StringUtils.defaultString(inParameterString);
+        source = inSource;
+        handledParametersQuoted = checkHandledParametersQuoted(parameterString);
+
+        List<Object[]> args = new ArrayList<>();
+        for (String token : tokenize(parameterString)) {
+            args.add(compileArgument(token));
+        }
+        arguments = Collections.unmodifiableList(args);
+    }
+
+    /**
+     * Builds the arguments, without the executable. A parameter with no value (null or blank) is left as is.
+     *
+     * @param inValues the values of the parameters, by name
+     * @return the arguments
+     * @since 10.10
+     */
+    public String[] toArguments(Map<String, String> inValues) {
+        return toArguments(inValues, null);
+    }
+
+    /**
+     * Builds the arguments, without the executable. The argument <code>#{urls}</code> is replaced by one argument per
+     * item of <code>inUrls</code>. A parameter with no value (null or blank) is left as is.
+     *
+     * @param inValues the values of the parameters, by name
+     * @param inUrls the values of <code>#{urls}</code>, or null
+     * @return the arguments
+     * @since 10.10
+     */
+    public String[] toArguments(Map<String, String> inValues, List<String> inUrls) {
+
+        List<String> result = new ArrayList<>(arguments.size());
+        StringBuilder arg = new StringBuilder();
+        for (Object[] parts : arguments) {
+            if (parts.length == 1 && parts[0] instanceof String) {
+                result.add((String) parts[0]);
+                continue;
+            }
+            if (inUrls != null && !inUrls.isEmpty() && parts.length == 1
+                    && CommandLineParameters.URLS.equals(((Param) parts[0]).name)) {
+                result.addAll(inUrls);
+                continue;
+            }
+            arg.setLength(0);
+            for (Object part : parts) {
+                if (part instanceof Param) {
+                    String value = inValues.get(((Param) part).name);
+                    arg.append(StringUtils.isBlank(value) ? ((Param) part).expression : value);
+                } else {
+                    arg.append((String) part);
+                }
+            }
+            result.add(arg.toString());
+        }
+
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * Builds the command line to run. The arguments are added with no quoting: they are passed as is to the process.
+     *
+     * @param inValues the values of the parameters, by name
+     * @return the command line
+     * @since 10.10
+     */
+    public CommandLine toCommandLine(Map<String, String> inValues) {
+        return toCommandLine(inValues, null);
+    }
+
+    /**
+     * Builds the command line to run, the argument <code>#{urls}</code> being replaced by one argument per URL.
+     *
+     * @param inValues the values of the parameters, by name
+     * @param inUrls the values of <code>#{urls}</code>, or null
+     * @return the command line
+     * @since 10.10
+     */
+    public CommandLine toCommandLine(Map<String, String> inValues, List<String> inUrls) {
+
+        CommandLine cmdLine = new CommandLine(executable);
+        for (String arg : toArguments(inValues, inUrls)) {
+            cmdLine.addArgument(arg, false);
+        }
+        return cmdLine;
+    }
+
+    /**
+     * A readable form of the resolved command (executable and arguments), for logs and cache keys. Not to be run.
+     *
+     * @param inValues
+     * @return the command
+     * @since 10.10
+     */
+    public String toString(Map<String, String> inValues) {
+
+        StringBuilder str = new StringBuilder(executable);
+        for (String arg : toArguments(inValues)) {
+            str.append(' ').append(arg);
+        }
+        return str.toString();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getExecutable() {
+        return executable;
+    }
+
+    public String getParameterString() {
+        return parameterString;
+    }
+
+    /**
+     * @param inName
+     * @return true if the parameter is used in the arguments
+     * @since 10.10
+     */
+    public boolean usesParameter(String inName) {
+
+        for (Object[] parts : arguments) {
+            for (Object part : parts) {
+                if (part instanceof Param && ((Param) part).name.equals(inName)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the parameters set from the clients (cookie jar, URL, target file) are all quoted in the
+     *         contribution
+     */
+    public boolean isHandledParametersQuoted() {
+        return handledParametersQuoted;
+    }
+
+    protected boolean isCompiledFrom(Object inSource) {
+        return source == inSource;
+    }
+
+    protected static Object[] compileArgument(String inToken) {
+
+        List<Object> parts = new ArrayList<>();
+        int pos = 0;
+        while (pos < inToken.length()) {
+            int start = inToken.indexOf(PARAM_START, pos);
+            int end = start < 0 ? -1 : inToken.indexOf(PARAM_END, start + PARAM_START.length());
+            if (start < 0 || end < 0) {
+                parts.add(inToken.substring(pos));
+                break;
+            }
+            if (start > pos) {
+                parts.add(inToken.substring(pos, start));
+            }
+            parts.add(new Param(inToken.substring(start + PARAM_START.length(), end)));
+            pos = end + PARAM_END.length();
+        }
+        if (parts.isEmpty()) {
+            parts.add("");
+        }
+
+        return parts.toArray();
+    }
+
+    /*
+     * Same rules as CommandLine.parse() of commons-exec: arguments are separated by white spaces, unless quoted by
+     * single or double quotes, which are removed.
+     */
+    protected static List<String> tokenize(String inParameterString) {
+
+        List<String> tokens = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        char quote = 0;
+        boolean quoted = false;
+        for (int i = 0; i < inParameterString.length(); i++) {
+            char c = inParameterString.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                } else {
+                    current.append(c);
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+                quoted = true;
+            } else if (Character.isWhitespace(c)) {
+                if (current.length() > 0 || quoted) {
+                    tokens.add(current.toString());
+                    current.setLength(0);
+                    quoted = false;
+                }
+            } else {
+                current.append(c);
+            }
+        }
+        if (quote != 0) {
+            throw new IllegalArgumentException("Unbalanced quotes in " + inParameterString);
+        }
+        if (current.length() > 0 || quoted) {
+            tokens.add(current.toString());
+        }
+
+        return tokens;
+    }
+
+    /*
+     * Must not find the handled parameters once their quoted occurrences are removed
+     */
+    protected static boolean checkHandledParametersQuoted(String inParameterString) {
+
+        String cleanedUp = inParameterString;
+        for (String param : HANDLED_PARAMETERS) {
+            String exp = PARAM_START + param + PARAM_END;
+            cleanedUp = StringUtils.replace(cleanedUp, "\"" + exp + "\"", "");
+            cleanedUp = StringUtils.replace(cleanedUp, "'" + exp + "'", "");
+        }
+        for (String param : HANDLED_PARAMETERS) {
+            if (cleanedUp.indexOf(PARAM_START + param + PARAM_END) > -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
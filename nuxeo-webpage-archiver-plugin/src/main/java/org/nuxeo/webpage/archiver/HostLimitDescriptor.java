@@ -0,0 +1,131 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver;
+
+import org.nuxeo.common.xmap.annotation.XNode;
+import org.nuxeo.common.xmap.annotation.XObject;
+
+/**
+ * Politeness limits for the distant hosts, contributed to the <code>hostLimits</code> extension point of
+ * <code>org.nuxeo.webpage.archiver.service</code>:
+ *
+ * <pre>
+ * &lt;hostLimit host="*" maxConcurrent="2" minDelay="0" /&gt;
+ * &lt;hostLimit host="*.example.com" maxConcurrent="1" minDelay="2000" byDomain="true" /&gt;
+ * </pre>
+ *
+ * <code>host</code> is an exact host name, <code>*.domain</code> for the domain and all its sub domains, or
+ * <code>*</code> for any host with no specific contribution. A contribution for a host already declared overrides
+ * only the values it sets.
+ *
+ * @since 10.10
+ */
+@XObject("hostLimit")
+public class HostLimitDescriptor {
+
+    public static final String ANY_HOST = "*";
+
+    @XNode("@host")
+    protected String host;
+
+    /*
+     * Renders in progress at the same time for the host (or the domain)
+     */
+    @XNode("@maxConcurrent")
+    protected Integer maxConcurrent;
+
+    /*
+     * In milliseconds, between the start of two renders of the same host (or domain)
+     */
+    @XNode("@minDelay")
+    protected Long minDelay;
+
+    /*
+     * Limits apply to the registrable domain (www.example.com and static.example.com share the same limits) instead of
+     * each host
+     */
+    @XNode("@byDomain")
+    protected Boolean byDomain;
+
+    public HostLimitDescriptor() {
+    }
+
+    public HostLimitDescriptor(String inHost, int inMaxConcurrent, long inMinDelay) {
+        host = inHost;
+        maxConcurrent = Integer.valueOf(inMaxConcurrent);
+        minDelay = Long.valueOf(inMinDelay);
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * @return the max. number of renders, 0 for no limit
+     */
+    public int getMaxConcurrent() {
+        return maxConcurrent == null ? 0 : Math.max(0, maxConcurrent.intValue());
+    }
+
+    public long getMinDelay() {
+        return minDelay == null ? 0 : Math.max(0, minDelay.longValue());
+    }
+
+    public boolean isByDomain() {
+        return byDomain != null && byDomain.booleanValue();
+    }
+
+    /**
+     * Returns true if the contribution applies to this host
+     *
+     * @param inHost lower case host name
+     * @return true if it matches
+     * @since 10.10
+     */
+    public boolean matches(String inHost) {
+
+        if (ANY_HOST.equals(host)) {
+            return true;
+        }
+        if (host.startsWith("*.")) {
+            String domain = host.substring(2);
+            return inHost.equals(domain) || inHost.endsWith("." + domain);
+        }
+        return host.equals(inHost);
+    }
+
+    /**
+     * Returns a new descriptor holding the values of this one, overridden by the ones set in <code>inOther</code>
+     *
+     * @param inOther
+     * @return the merged descriptor
+     * @since 10.10
+     */
+    public HostLimitDescriptor merge(HostLimitDescriptor inOther) {
+
+        HostLimitDescriptor merged = new HostLimitDescriptor();
+        merged.host = host;
+        merged.maxConcurrent = inOther.maxConcurrent != null ? inOther.maxConcurrent : maxConcurrent;
+        merged.minDelay = inOther.minDelay != null ? inOther.minDelay : minDelay;
+        merged.byDomain = inOther.byDomain != null ? inOther.byDomain : byDomain;
+
+        return merged;
+    }
+
+}
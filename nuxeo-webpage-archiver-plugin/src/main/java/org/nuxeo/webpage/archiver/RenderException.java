@@ -0,0 +1,201 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.platform.commandline.executor.api.CommandNotAvailable;
+
+/**
+ * A failed rendering, with the kind of failure, so callers can tell if trying again later makes sense.
+ *
+ * @since 10.10
+ */
+public class RenderException extends NuxeoException {
+
+    private static final long serialVersionUID = 1L;
+
+    public enum Kind {
+
+        /** The renderer was stopped after the timeout (exit value 143) */
+        TIMEOUT(true),
+
+        /** The pooled renderer died during the conversion */
+        CRASHED(true),
+
+        /** The renderer failed with no PDF, for a reason we cannot tell */
+        NO_PDF(true),
+
+        /** The distant host refused or did not answer the connection */
+        CONNECTION_FAILED(true),
+
+        /** The politeness limits of the distant host did not allow the rendering in time */
+        HOST_BUSY(true),
+
+        /** Too many renders in progress on the node (see RenderGovernor) */
+        OVERLOADED(true),
+
+        /** The distant host does not exist (DNS) */
+        UNKNOWN_HOST(false),
+
+        /** The renderer exited normally but the PDF is not valid */
+        INVALID_PDF(false),
+
+        /**
+         * A page of a multi-page render could not be loaded (HTTP error, ...): the renderer ignored it, wrote a PDF and
+         * exited with an error
+         */
+        LOAD_FAILED(false),
+
+        /** The URL cannot be parsed */
+        INVALID_URL(false),
+
+        /** The command line is not declared or its executable is not installed */
+        COMMAND_NOT_AVAILABLE(false),
+
+        /**
+         * The cookie jar passed to the work is not in the TransientStore anymore, and the work has no login command to
+         * log in again (see CookieJars)
+         */
+        COOKIE_JAR_EXPIRED(false);
+
+        protected final boolean isTransient;
+
+        Kind(boolean inTransient) {
+            isTransient = inTransient;
+        }
+
+        /**
+         * @return true if the same rendering may succeed later
+         */
+        public boolean isTransient() {
+            return isTransient;
+        }
+    }
+
+    // Used to diagnose a network failure, after the renderer failed
+    protected static final int DIAGNOSE_TIMEOUT = 3000;
+
+    protected final Kind kind;
+
+    public RenderException(Kind inKind, String inMessage) {
+        super(inMessage);
+        kind = inKind;
+    }
+
+    /**
+     * @param inKind
+     * @param inMessage
+     * @param inStatusCode the HTTP status returned to a REST caller
+     * @since 10.10
+     */
+    public RenderException(Kind inKind, String inMessage, int inStatusCode) {
+        super(inMessage, inStatusCode);
+        kind = inKind;
+    }
+
+    public RenderException(Kind inKind, String inMessage, Throwable inCause) {
+        super(inMessage, inCause);
+        kind = inKind;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public boolean isTransient() {
+        return kind.isTransient();
+    }
+
+    /**
+     * Returns the kind of failure of any exception thrown while rendering.
+     *
+     * @param inThrowable
+     * @return the kind, never null
+     * @since 10.10
+     */
+    public static Kind classify(Throwable inThrowable) {
+
+        if (inThrowable instanceof RenderException) {
+            return ((RenderException) inThrowable).getKind();
+        }
+        if (inThrowable instanceof CommandNotAvailable) {
+            return Kind.COMMAND_NOT_AVAILABLE;
+        }
+        if (inThrowable instanceof MalformedURLException || inThrowable instanceof IllegalArgumentException) {
+            return Kind.INVALID_URL;
+        }
+        if (inThrowable instanceof UnknownHostException) {
+            return Kind.UNKNOWN_HOST;
+        }
+        // Process could not be started or was interrupted, other unexpected errors
+        return Kind.NO_PDF;
+    }
+
+    /**
+     * The renderer does not tell why it failed (its output is not parsed). When it failed with no PDF, this checks if
+     * the distant host can be resolved and connected to.
+     *
+     * @param inUrl
+     * @return {@link Kind#UNKNOWN_HOST}, {@link Kind#CONNECTION_FAILED}, or {@link Kind#NO_PDF} if the host is
+     *         reachable (or if there is no host to check)
+     * @since 10.10
+     */
+    public static Kind diagnose(String inUrl) {
+
+        if (inUrl == null) {
+            return Kind.NO_PDF;
+        }
+        String host;
+        int port;
+        try {
+            URI uri = new URI(inUrl.trim());
+            host = uri.getHost();
+            if (host == null) {
+                return Kind.NO_PDF;
+            }
+            port = uri.getPort() != -1 ? uri.getPort() : "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+        } catch (URISyntaxException e) {
+            return Kind.INVALID_URL;
+        }
+
+        InetAddress address;
+        try {
+            address = InetAddress.getByName(host);
+        } catch (UnknownHostException e) {
+            return Kind.UNKNOWN_HOST;
+        }
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(address, port), DIAGNOSE_TIMEOUT);
+        } catch (IOException e) {
+            return Kind.CONNECTION_FAILED;
+        }
+
+        return Kind.NO_PDF;
+    }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver;
+
+import org.nuxeo.common.xmap.annotation.XNode;
+import org.nuxeo.common.xmap.annotation.XObject;
+import org.nuxeo.webpage.archiver.pdf.PdfOptimizer;
+
+/**
+ * Options for one command line contribution (matched by name), contributed to the <code>renderingOptions</code>
+ * extension point of <code>org.nuxeo.webpage.archiver.service</code>:
+ *
+ * <pre>
+ * &lt;renderingOptions command="wkhtmlToPdf" pooled="true" cacheTtl="600" /&gt;
+ * </pre>
+ *
+ * For a login command line (see {@link WebpageToBlob#login(String)}), the options tell how long its cookie jar can be
+ * reused (see {@link org.nuxeo.webpage.archiver.login.LoginSessions}):
+ *
+ * <pre>
+ * &lt;renderingOptions command="wkhtmlToPdf-login-mysite" sessionTtl="1800" loginPage=".*&#47;login.*" /&gt;
+ * </pre>
+ *
+ * The rendered PDFs can be made smaller (see {@link PdfOptimizer}), with images downsampled to <code>imageDpi</code>
+ * (150 by default, 0 to keep their resolution) and re-encoded with the JPEG quality <code>imageQuality</code> (0.75 by
+ * default):
+ *
+ * <pre>
+ * &lt;renderingOptions command="wkhtmlToPdf" optimize="true" imageDpi="150" imageQuality="0.75" /&gt;
+ * </pre>
+ *
+ * A contribution for a command already declared overrides only the values it sets.
+ *
+ * @since 10.10
+ */
+@XObject("renderingOptions")
+public class RenderingOptionsDescriptor {
+
+    @XNode("@command")
+    protected String command;
+
+    /*
+     * The command can be run by a long-lived "wkhtmltopdf --read-args-from-stdin" process. Only for command lines
+     * whose executable is wkhtmltopdf and whose parameters are all per-conversion ones.
+     */
+    @XNode("@pooled")
+    protected Boolean pooled;
+
+    /*
+     * In seconds. When > 0, the PDF of a URL is cached and reused during this time (see RenderCache)
+     */
+    @XNode("@cacheTtl")
+    protected Long cacheTtl;
+
+    /*
+     * For a login command. In seconds, how long the cookie jar it returns is reused
+     */
+    @XNode("@sessionTtl")
+    protected Long sessionTtl;
+
+    /*
+     * For a login command. Regular expression matching the URL of the login page of the site: a page redirecting to
+     * it means the session expired
+     */
+    @XNode("@loginPage")
+    protected String loginPage;
+
+    /*
+     * Run the PdfOptimizer on the rendered PDF
+     */
+    @XNode("@optimize")
+    protected Boolean optimize;
+
+    @XNode("@imageDpi")
+    protected Integer imageDpi;
+
+    @XNode("@imageQuality")
+    protected Float imageQuality;
+
+    public RenderingOptionsDescriptor() {
+    }
+
+    public RenderingOptionsDescriptor(String inCommand) {
+        command = inCommand;
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    public boolean isPooled() {
+        return pooled != null && pooled.booleanValue();
+    }
+
+    public long getCacheTtl() {
+        return cacheTtl == null ? 0 : cacheTtl.longValue();
+    }
+
+    /**
+     * @return the TTL in seconds, 0 if not set
+     * @since 10.10
+     */
+    public long getSessionTtl() {
+        return sessionTtl == null ? 0 : sessionTtl.longValue();
+    }
+
+    public String getLoginPage() {
+        return loginPage;
+    }
+
+    /**
+     * @since 10.10
+     */
+    public boolean isOptimize() {
+        return optimize != null && optimize.booleanValue();
+    }
+
+    /**
+     * @return the target resolution of the images, 0 to keep their resolution
+     * @since 10.10
+     */
+    public int getImageDpi() {
+        return imageDpi == null ? PdfOptimizer.DPI_DEFAULT : imageDpi.intValue();
+    }
+
+    /**
+     * @return the JPEG quality of the re-encoded images, from 0 to 1
+     * @since 10.10
+     */
+    public float getImageQuality() {
+        return imageQuality == null ? PdfOptimizer.QUALITY_DEFAULT : imageQuality.floatValue();
+    }
+
+    /**
+     * Returns a new descriptor holding the values of this one, overridden by the ones set in <code>inOther</code>
+     *
+     * @param inOther
+     * @return the merged descriptor
+     * @since 10.10
+     */
+    public RenderingOptionsDescriptor merge(RenderingOptionsDescriptor inOther) {
+
+        RenderingOptionsDescriptor merged = new RenderingOptionsDescriptor(command);
+        merged.pooled = inOther.pooled != null ? inOther.pooled : pooled;
+        merged.cacheTtl = inOther.cacheTtl != null ? inOther.cacheTtl : cacheTtl;
+        merged.sessionTtl = inOther.sessionTtl != null ? inOther.sessionTtl : sessionTtl;
+        merged.loginPage = inOther.loginPage != null ? inOther.loginPage : loginPage;
+        merged.optimize = inOther.optimize != null ? inOther.optimize : optimize;
+        merged.imageDpi = inOther.imageDpi != null ? inOther.imageDpi : imageDpi;
+        merged.imageQuality = inOther.imageQuality != null ? inOther.imageQuality : imageQuality;
+
+        return merged;
+    }
+
+}
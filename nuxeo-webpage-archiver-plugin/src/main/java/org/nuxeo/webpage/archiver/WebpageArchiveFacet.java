@@ -0,0 +1,163 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver;
+
+import java.util.Calendar;
+
+import org.apache.commons.lang.StringUtils;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.webpage.archiver.pdf.PdfFingerprint;
+import org.nuxeo.webpage.archiver.probe.PageProbe;
+
+/**
+ * The <code>WebpageArchive</code> facet (schema <code>webpagearchive</code>, prefix <code>wpa</code>) stores, next to
+ * the archived PDF, the URL and the HTTP validators returned by the server, so a later archive of the same URL can
+ * first check if the page changed (see {@link PageProbe}).
+ * <p>
+ * It also stores the fingerprint of the content of the archive (see {@link PdfFingerprint}), so a page rendered again
+ * with the same content is not saved again.
+ *
+ * @since 10.10
+ */
+public class WebpageArchiveFacet {
+
+    public static final String FACET = "WebpageArchive";
+
+    public static final String XPATH_URL = "wpa:url";
+
+    public static final String XPATH_ETAG = "wpa:etag";
+
+    public static final String XPATH_LAST_MODIFIED = "wpa:lastModified";
+
+    public static final String XPATH_ARCHIVED = "wpa:archived";
+
+    // The text of the archived PDF, when extracted by the work (see PdfTextExtractor)
+    public static final String XPATH_TEXT = "wpa:text";
+
+    public static final String XPATH_FINGERPRINT = "wpa:fingerprint";
+
+    private WebpageArchiveFacet() {
+    }
+
+    /**
+     * Returns true if the document already holds an archive of this URL, and validators to check it against.
+     *
+     * @param inDoc
+     * @param inUrl
+     * @param inXPath the field holding the archived PDF
+     * @return true if the stored validators can be sent to the server
+     * @since 10.10
+     */
+    public static boolean hasValidators(DocumentModel inDoc, String inUrl, String inXPath) {
+
+        if (!inDoc.hasFacet(FACET) || inDoc.getPropertyValue(inXPath) == null) {
+            return false;
+        }
+        if (!StringUtils.equals(inUrl, (String) inDoc.getPropertyValue(XPATH_URL))) {
+            return false;
+        }
+        return StringUtils.isNotBlank(getEtag(inDoc)) || StringUtils.isNotBlank(getLastModified(inDoc));
+    }
+
+    /**
+     * Returns true if the document already holds an archive of this URL with the same content.
+     *
+     * @param inDoc
+     * @param inUrl
+     * @param inXPath the field holding the archived PDF
+     * @param inFingerprint the fingerprint of the new archive, null if it could not be computed
+     * @return true if the new archive does not need to be saved
+     * @since 10.10
+     */
+    public static boolean hasSameContent(DocumentModel inDoc, String inUrl, String inXPath, String inFingerprint) {
+
+        if (inFingerprint == null || !inDoc.hasFacet(FACET) || inDoc.getPropertyValue(inXPath) == null) {
+            return false;
+        }
+        return StringUtils.equals(inUrl, (String) inDoc.getPropertyValue(XPATH_URL))
+                && inFingerprint.equals(inDoc.getPropertyValue(XPATH_FINGERPRINT));
+    }
+
+    public static String getEtag(DocumentModel inDoc) {
+        return inDoc.hasFacet(FACET) ? (String) inDoc.getPropertyValue(XPATH_ETAG) : null;
+    }
+
+    public static String getLastModified(DocumentModel inDoc) {
+        return inDoc.hasFacet(FACET) ? (String) inDoc.getPropertyValue(XPATH_LAST_MODIFIED) : null;
+    }
+
+    /**
+     * Stores the URL and the validators of a new archive, adding the facet if needed. Does not save the document.
+     *
+     * @param inDoc
+     * @param inUrl
+     * @param inProbe the probe sent before rendering, or null if none was sent (validators are then cleared)
+     * @since 10.10
+     */
+    public static void setArchived(DocumentModel inDoc, String inUrl, PageProbe.Result inProbe) {
+
+        if (!inDoc.hasFacet(FACET)) {
+            inDoc.addFacet(FACET);
+        }
+        inDoc.setPropertyValue(XPATH_URL, inUrl);
+        inDoc.setPropertyValue(XPATH_ETAG, inProbe == null ? null : inProbe.getEtag());
+        inDoc.setPropertyValue(XPATH_LAST_MODIFIED, inProbe == null ? null : inProbe.getLastModified());
+        inDoc.setPropertyValue(XPATH_ARCHIVED, Calendar.getInstance());
+    }
+
+    /**
+     * Stores the validators returned by the probe when the new archive is not saved because its content did not change
+     * (see {@link #hasSameContent(DocumentModel, String, String, String)}), so the next probe can be answered "not
+     * modified". Does not save the document.
+     *
+     * @param inDoc
+     * @param inProbe the probe sent before rendering, or null if none was sent (nothing is changed then)
+     * @return true if the stored validators changed
+     * @since 10.10
+     */
+    public static boolean setValidators(DocumentModel inDoc, PageProbe.Result inProbe) {
+
+        if (inProbe == null || !inDoc.hasFacet(FACET)) {
+            return false;
+        }
+        if (StringUtils.equals(inProbe.getEtag(), getEtag(inDoc))
+                && StringUtils.equals(inProbe.getLastModified(), getLastModified(inDoc))) {
+            return false;
+        }
+        inDoc.setPropertyValue(XPATH_ETAG, inProbe.getEtag());
+        inDoc.setPropertyValue(XPATH_LAST_MODIFIED, inProbe.getLastModified());
+        return true;
+    }
+
+    /**
+     * Stores the fingerprint of the new archive, adding the facet if needed. Does not save the document.
+     *
+     * @param inDoc
+     * @param inFingerprint null if it could not be computed (the next archive is then always saved)
+     * @since 10.10
+     */
+    public static void setFingerprint(DocumentModel inDoc, String inFingerprint) {
+
+        if (!inDoc.hasFacet(FACET)) {
+            inDoc.addFacet(FACET);
+        }
+        inDoc.setPropertyValue(XPATH_FINGERPRINT, inFingerprint);
+    }
+
+}
@@ -0,0 +1,487 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.work.api.Work;
+import org.nuxeo.ecm.core.work.api.WorkManager;
+import org.nuxeo.ecm.core.work.api.WorkManager.Scheduling;
+import org.nuxeo.ecm.platform.commandline.executor.service.CommandLineDescriptor;
+import org.nuxeo.ecm.platform.commandline.executor.service.CommandLineExecutorComponent;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.model.ComponentContext;
+import org.nuxeo.runtime.model.ComponentInstance;
+import org.nuxeo.runtime.model.DefaultComponent;
+import org.nuxeo.webpage.archiver.async.AsyncRenders;
+import org.nuxeo.webpage.archiver.cache.RenderCache;
+import org.nuxeo.webpage.archiver.governor.ProcessLimits;
+import org.nuxeo.webpage.archiver.governor.RenderGovernor;
+import org.nuxeo.webpage.archiver.host.HostThrottle;
+import org.nuxeo.webpage.archiver.login.LoginSessions;
+import org.nuxeo.webpage.archiver.metrics.ArchiverMetrics;
+import org.nuxeo.webpage.archiver.pending.PendingArchives;
+import org.nuxeo.webpage.archiver.pool.RendererPool;
+
+/**
+ * Implementation of {@link WebpageArchiverService}.
+ * <p>
+ * The pool can be tuned in nuxeo.conf:
+ * <ul>
+ * <li><code>nuxeo.webpage.archiver.pool.enabled</code>: <code>false</code> forces one process per conversion for
+ * every command line (default <code>true</code>)</li>
+ * <li><code>nuxeo.webpage.archiver.pool.size</code>: number of warm processes per executable (default 2)</li>
+ * <li><code>nuxeo.webpage.archiver.pool.maxJobsPerProcess</code>: a process is recycled after this number of
+ * conversions (default 100)</li>
+ * </ul>
+ * And the render cache:
+ * <ul>
+ * <li><code>nuxeo.webpage.archiver.cache.maxEntries</code>: entries kept in memory (default 1000)</li>
+ * <li><code>nuxeo.webpage.archiver.cache.maxSizeMB</code>: total size of the PDFs referenced by the entries kept in
+ * memory (default 1024)</li>
+ * <li><code>nuxeo.webpage.archiver.cache.blobProvider</code>: where the cached PDFs are stored (default
+ * "default")</li>
+ * <li><code>nuxeo.webpage.archiver.cache.keyValueStore</code>: the store sharing the entries between the nodes of a
+ * cluster (default "webpagearchiver")</li>
+ * </ul>
+ * The counters of pending archives are shared in the store set by
+ * <code>nuxeo.webpage.archiver.pending.keyValueStore</code> (default "webpagearchiver", empty to keep them in
+ * memory).
+ * <p>
+ * The asynchronous renders are bounded by <code>nuxeo.webpage.archiver.async.maxConcurrent</code> (default 4) and
+ * <code>nuxeo.webpage.archiver.async.maxQueued</code> (default 100).
+ * <p>
+ * The metrics (see {@link ArchiverMetrics}) are timed per distant host when
+ * <code>nuxeo.webpage.archiver.metrics.perHost</code> is <code>true</code> (default <code>false</code>), for at most
+ * <code>nuxeo.webpage.archiver.metrics.maxHosts</code> hosts (default 50).
+ * <p>
+ * The renderer processes running at the same time on the node are limited (see {@link RenderGovernor}) by
+ * <code>nuxeo.webpage.archiver.governor.maxRenders</code> (default: the number of cores), a render waiting at most
+ * <code>nuxeo.webpage.archiver.governor.maxWait</code> ms for its turn (default 30000). Each process can also be
+ * limited (see {@link ProcessLimits}) with <code>nuxeo.webpage.archiver.limits.maxMemoryMB</code> and
+ * <code>nuxeo.webpage.archiver.limits.maxCpuSeconds</code> (default: no limit).
+ *
+ * @since 10.10
+ */
+public class WebpageArchiverComponent extends DefaultComponent implements WebpageArchiverService {
+
+    private static final Log log = LogFactory.getLog(WebpageArchiverComponent.class);
+
+    public static final String XP_RENDERING_OPTIONS = "renderingOptions";
+
+    public static final String XP_HOST_LIMITS = "hostLimits";
+
+    public static final String POOL_ENABLED_PROPERTY = "nuxeo.webpage.archiver.pool.enabled";
+
+    public static final String POOL_SIZE_PROPERTY = "nuxeo.webpage.archiver.pool.size";
+
+    public static final String POOL_MAX_JOBS_PROPERTY = "nuxeo.webpage.archiver.pool.maxJobsPerProcess";
+
+    public static final String CACHE_MAX_ENTRIES_PROPERTY = "nuxeo.webpage.archiver.cache.maxEntries";
+
+    public static final String CACHE_MAX_SIZE_PROPERTY = "nuxeo.webpage.archiver.cache.maxSizeMB";
+
+    public static final String CACHE_BLOB_PROVIDER_PROPERTY = "nuxeo.webpage.archiver.cache.blobProvider";
+
+    public static final String CACHE_KV_STORE_PROPERTY = "nuxeo.webpage.archiver.cache.keyValueStore";
+
+    public static final String PENDING_KV_STORE_PROPERTY = "nuxeo.webpage.archiver.pending.keyValueStore";
+
+    public static final String ASYNC_MAX_CONCURRENT_PROPERTY = "nuxeo.webpage.archiver.async.maxConcurrent";
+
+    public static final String ASYNC_MAX_QUEUED_PROPERTY = "nuxeo.webpage.archiver.async.maxQueued";
+
+    public static final String TRANSIENT_STORE = "webpageArchiver";
+
+    public static final String COOKIE_JARS_TRANSIENT_STORE = "webpageArchiverCookieJars";
+
+    public static final String METRICS_PER_HOST_PROPERTY = "nuxeo.webpage.archiver.metrics.perHost";
+
+    public static final String METRICS_MAX_HOSTS_PROPERTY = "nuxeo.webpage.archiver.metrics.maxHosts";
+
+    public static final String GOVERNOR_MAX_RENDERS_PROPERTY = "nuxeo.webpage.archiver.governor.maxRenders";
+
+    public static final String GOVERNOR_MAX_WAIT_PROPERTY = "nuxeo.webpage.archiver.governor.maxWait";
+
+    public static final String LIMITS_MAX_MEMORY_PROPERTY = "nuxeo.webpage.archiver.limits.maxMemoryMB";
+
+    public static final String LIMITS_MAX_CPU_PROPERTY = "nuxeo.webpage.archiver.limits.maxCpuSeconds";
+
+    public static final int POOL_SIZE_DEFAULT = 2;
+
+    public static final int POOL_MAX_JOBS_DEFAULT = 100;
+
+    public static final int CACHE_MAX_ENTRIES_DEFAULT = 1000;
+
+    public static final int CACHE_MAX_SIZE_DEFAULT = 1024;
+
+    public static final String KV_STORE_DEFAULT = "webpagearchiver";
+
+    public static final int ASYNC_MAX_CONCURRENT_DEFAULT = 4;
+
+    public static final int ASYNC_MAX_QUEUED_DEFAULT = 100;
+
+    public static final int GOVERNOR_MAX_WAIT_DEFAULT = 30000;
+
+    protected List<RenderingOptionsDescriptor> contributions = new ArrayList<>();
+
+    protected volatile Map<String, RenderingOptionsDescriptor> renderingOptions = new ConcurrentHashMap<>();
+
+    // One pool per executable, whatever the command line contribution using it
+    protected final Map<String, RendererPool> pools = new ConcurrentHashMap<>();
+
+    protected volatile RenderCache renderCache;
+
+    protected List<HostLimitDescriptor> hostLimitContributions = new ArrayList<>();
+
+    protected volatile HostThrottle hostThrottle = new HostThrottle(new ArrayList<>());
+
+    protected volatile ScheduledExecutorService scheduler;
+
+    // The works waiting in the scheduler, enqueued right away when the service stops
+    protected final Map<DelayedWork, Boolean> delayedWorks = new ConcurrentHashMap<>();
+
+    protected volatile PendingArchives pendingArchives;
+
+    protected volatile AsyncRenders asyncRenders;
+
+    protected final LoginSessions loginSessions = new LoginSessions();
+
+    protected volatile RenderGovernor renderGovernor;
+
+    protected volatile ProcessLimits processLimits = new ProcessLimits(0, 0);
+
+    /*
+     * Enqueued once, by the first of its delay or of a wake up by the host throttle
+     */
+    protected class DelayedWork implements Runnable, HostThrottle.Waiter {
+
+        protected final Work work;
+
+        protected volatile ScheduledFuture<?> future;
+
+        protected DelayedWork(Work inWork) {
+            work = inWork;
+        }
+
+        @Override
+        public void run() {
+            if (delayedWorks.remove(this) != null) {
+                ScheduledFuture<?> current = future;
+                if (current != null) {
+                    current.cancel(false);
+                }
+                enqueue(work);
+            }
+        }
+
+        @Override
+        public boolean isWaiting() {
+            return delayedWorks.containsKey(this);
+        }
+
+        @Override
+        public void wake(long inDelay) {
+            ScheduledExecutorService current = scheduler;
+            if (inDelay <= 0 || current == null) {
+                run();
+                return;
+            }
+            try {
+                current.schedule(this, inDelay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Stopping: enqueued with the others
+            }
+        }
+    }
+
+    @Override
+    public void registerContribution(Object contribution, String extensionPoint, ComponentInstance contributor) {
+        if (XP_RENDERING_OPTIONS.equals(extensionPoint)) {
+            synchronized (contributions) {
+                contributions.add((RenderingOptionsDescriptor) contribution);
+                computeRenderingOptions();
+            }
+        } else if (XP_HOST_LIMITS.equals(extensionPoint)) {
+            synchronized (hostLimitContributions) {
+                hostLimitContributions.add((HostLimitDescriptor) contribution);
+                computeHostThrottle();
+            }
+        }
+    }
+
+    @Override
+    public void unregisterContribution(Object contribution, String extensionPoint, ComponentInstance contributor) {
+        if (XP_RENDERING_OPTIONS.equals(extensionPoint)) {
+            synchronized (contributions) {
+                contributions.remove(contribution);
+                computeRenderingOptions();
+            }
+        } else if (XP_HOST_LIMITS.equals(extensionPoint)) {
+            synchronized (hostLimitContributions) {
+                hostLimitContributions.remove(contribution);
+                computeHostThrottle();
+            }
+        }
+    }
+
+    protected void computeRenderingOptions() {
+
+        Map<String, RenderingOptionsDescriptor> computed = new ConcurrentHashMap<>();
+        for (RenderingOptionsDescriptor desc : contributions) {
+            RenderingOptionsDescriptor existing = computed.get(desc.getCommand());
+            computed.put(desc.getCommand(), existing == null ? desc : existing.merge(desc));
+        }
+        renderingOptions = computed;
+    }
+
+    protected void computeHostThrottle() {
+
+        Map<String, HostLimitDescriptor> computed = new LinkedHashMap<>();
+        for (HostLimitDescriptor desc : hostLimitContributions) {
+            String host = desc.getHost().trim().toLowerCase(Locale.ROOT);
+            HostLimitDescriptor existing = computed.get(host);
+            computed.put(host, existing == null ? desc : existing.merge(desc));
+        }
+        hostThrottle = new HostThrottle(computed.values());
+    }
+
+    @Override
+    public void start(ComponentContext context) {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "webpage-archiver-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // The delay of a work woken up by the host throttle is cancelled
+        executor.setRemoveOnCancelPolicy(true);
+        scheduler = executor;
+        asyncRenders = new AsyncRenders(TRANSIENT_STORE,
+                getIntProperty(ASYNC_MAX_CONCURRENT_PROPERTY, ASYNC_MAX_CONCURRENT_DEFAULT),
+                getIntProperty(ASYNC_MAX_QUEUED_PROPERTY, ASYNC_MAX_QUEUED_DEFAULT));
+        renderGovernor = new RenderGovernor(
+                getIntProperty(GOVERNOR_MAX_RENDERS_PROPERTY, Runtime.getRuntime().availableProcessors()),
+                getIntProperty(GOVERNOR_MAX_WAIT_PROPERTY, GOVERNOR_MAX_WAIT_DEFAULT));
+        processLimits = new ProcessLimits(getIntProperty(LIMITS_MAX_MEMORY_PROPERTY, 0),
+                getIntProperty(LIMITS_MAX_CPU_PROPERTY, 0));
+        registerMetrics();
+    }
+
+    protected void registerMetrics() {
+
+        ArchiverMetrics metrics = ArchiverMetrics.get();
+        metrics.configure(Boolean.parseBoolean(Framework.getProperty(METRICS_PER_HOST_PROPERTY, "false")),
+                getIntProperty(METRICS_MAX_HOSTS_PROPERTY, ArchiverMetrics.MAX_HOSTS_DEFAULT));
+        metrics.registerGauge("cache.hits", () -> renderCache == null ? 0L : renderCache.getHits());
+        metrics.registerGauge("cache.misses", () -> renderCache == null ? 0L : renderCache.getMisses());
+        metrics.registerGauge("cache.entries", () -> renderCache == null ? 0 : renderCache.getEntriesCount());
+        metrics.registerGauge("async.active", () -> asyncRenders == null ? 0 : asyncRenders.getActiveCount());
+        metrics.registerGauge("async.queued", () -> asyncRenders == null ? 0 : asyncRenders.getQueuedCount());
+        metrics.registerGauge("login.count", loginSessions::getLoginCount);
+        metrics.registerGauge("governor.active", () -> renderGovernor == null ? 0 : renderGovernor.getActiveCount());
+        metrics.registerGauge("governor.waiting", () -> renderGovernor == null ? 0 : renderGovernor.getWaitingCount());
+        metrics.registerGauge("governor.rejected",
+                () -> renderGovernor == null ? 0L : renderGovernor.getRejectedCount());
+    }
+
+    @Override
+    public void stop(ComponentContext context) throws InterruptedException {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+            enqueueDelayedWorks();
+        }
+        if (asyncRenders != null) {
+            asyncRenders.shutdown();
+            asyncRenders = null;
+        }
+        for (RendererPool pool : pools.values()) {
+            pool.shutdown();
+        }
+        pools.clear();
+        renderCache = null;
+        pendingArchives = null;
+        renderGovernor = null;
+        loginSessions.clear();
+        // The contributions may change before the next start (hot reload)
+        CommandLineParameters.clear();
+    }
+
+    @Override
+    public RenderingOptionsDescriptor getRenderingOptions(String inCommandLine) {
+
+        RenderingOptionsDescriptor desc = renderingOptions.get(inCommandLine);
+        return desc == null ? new RenderingOptionsDescriptor(inCommandLine) : desc;
+    }
+
+    @Override
+    public RendererPool getRendererPool(String inCommandLine) {
+
+        if (!getRenderingOptions(inCommandLine).isPooled()
+                || !Boolean.parseBoolean(Framework.getProperty(POOL_ENABLED_PROPERTY, "true"))) {
+            return null;
+        }
+
+        CommandLineDescriptor desc = CommandLineExecutorComponent.getCommandDescriptor(inCommandLine);
+        if (desc == null || StringUtils.isBlank(desc.getCommand())) {
+            return null;
+        }
+
+        return pools.computeIfAbsent(desc.getCommand(), executable -> {
+            int size = getIntProperty(POOL_SIZE_PROPERTY, POOL_SIZE_DEFAULT);
+            int maxJobs = getIntProperty(POOL_MAX_JOBS_PROPERTY, POOL_MAX_JOBS_DEFAULT);
+            log.info("Creating a pool of " + size + " \"" + executable + "\" renderer(s)");
+            return new RendererPool(executable, size, maxJobs, processLimits);
+        });
+    }
+
+    @Override
+    public RenderCache getRenderCache() {
+
+        if (renderCache == null) {
+            synchronized (this) {
+                if (renderCache == null) {
+                    renderCache = new RenderCache(Framework.getProperty(CACHE_BLOB_PROVIDER_PROPERTY, "default"),
+                            Framework.getProperty(CACHE_KV_STORE_PROPERTY, KV_STORE_DEFAULT),
+                            getIntProperty(CACHE_MAX_ENTRIES_PROPERTY, CACHE_MAX_ENTRIES_DEFAULT),
+                            getIntProperty(CACHE_MAX_SIZE_PROPERTY, CACHE_MAX_SIZE_DEFAULT) * 1024L * 1024L);
+                }
+            }
+        }
+        return renderCache;
+    }
+
+    @Override
+    public PendingArchives getPendingArchives() {
+
+        if (pendingArchives == null) {
+            synchronized (this) {
+                if (pendingArchives == null) {
+                    pendingArchives = new PendingArchives(
+                            Framework.getProperty(PENDING_KV_STORE_PROPERTY, KV_STORE_DEFAULT));
+                }
+            }
+        }
+        return pendingArchives;
+    }
+
+    @Override
+    public HostThrottle getHostThrottle() {
+        return hostThrottle;
+    }
+
+    @Override
+    public HostThrottle.Waiter scheduleLater(Work inWork, long inDelay) {
+
+        ScheduledExecutorService current = scheduler;
+        if (current == null) {
+            throw new IllegalStateException("Service not started, cannot schedule " + inWork.getId());
+        }
+        DelayedWork delayed = new DelayedWork(inWork);
+        delayedWorks.put(delayed, Boolean.TRUE);
+        delayed.future = current.schedule(delayed, inDelay, TimeUnit.MILLISECONDS);
+        return delayed;
+    }
+
+    protected void enqueue(Work inWork) {
+
+        WorkManager workManager = Framework.getService(WorkManager.class);
+        if (workManager != null) {
+            // Always enqueued: the work still holds its pending request (see PendingArchives)
+            workManager.schedule(inWork, Scheduling.ENQUEUE);
+        }
+    }
+
+    /*
+     * The scheduler does not survive a restart: the works are given to the WorkManager now, whose queues may be
+     * persistent. A work started before its time schedules itself later again (see WebpageToBlobWork)
+     */
+    protected void enqueueDelayedWorks() {
+
+        int count = 0;
+        for (DelayedWork delayed : new ArrayList<>(delayedWorks.keySet())) {
+            if (delayedWorks.remove(delayed) == null) {
+                continue;
+            }
+            try {
+                enqueue(delayed.work);
+                count++;
+            } catch (RuntimeException e) {
+                log.warn("Cannot enqueue the delayed work " + delayed.work.getId() + ", it is lost", e);
+            }
+        }
+        if (count > 0) {
+            log.info(count + " delayed work(s) enqueued before their time, the service is stopping");
+        }
+    }
+
+    @Override
+    public AsyncRenders getAsyncRenders() {
+
+        AsyncRenders current = asyncRenders;
+        if (current == null) {
+            throw new IllegalStateException("Service not started, cannot render asynchronously");
+        }
+        return current;
+    }
+
+    @Override
+    public LoginSessions getLoginSessions() {
+        return loginSessions;
+    }
+
+    @Override
+    public RenderGovernor getRenderGovernor() {
+        return renderGovernor;
+    }
+
+    @Override
+    public ProcessLimits getProcessLimits() {
+        return processLimits;
+    }
+
+    protected static int getIntProperty(String inName, int inDefault) {
+
+        String value = Framework.getProperty(inName);
+        if (StringUtils.isBlank(value)) {
+            return inDefault;
+        }
+        try {
+            int i = Integer.parseInt(value.trim());
+            return i > 0 ? i : inDefault;
+        } catch (NumberFormatException e) {
+            log.warn("Invalid value for " + inName + ": \"" + value + "\", using " + inDefault);
+            return inDefault;
+        }
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver;
+
+import org.nuxeo.ecm.core.work.api.Work;
+import org.nuxeo.webpage.archiver.async.AsyncRenders;
+import org.nuxeo.webpage.archiver.cache.RenderCache;
+import org.nuxeo.webpage.archiver.governor.ProcessLimits;
+import org.nuxeo.webpage.archiver.governor.RenderGovernor;
+import org.nuxeo.webpage.archiver.host.HostThrottle;
+import org.nuxeo.webpage.archiver.login.LoginSessions;
+import org.nuxeo.webpage.archiver.pending.PendingArchives;
+import org.nuxeo.webpage.archiver.pool.RendererPool;
+
+/**
+ * Node-wide state shared by the operations and the workers: options declared per command line contribution and the
+ * long-lived resources (renderer pools, ...) built from them.
+ * <p>
+ * The command lines themselves are still declared and handled by the CommandLineExecutorService (see
+ * {@link WebpageToBlob}). This service only adds what the CommandLineExecutorService cannot express.
+ *
+ * @since 10.10
+ */
+public interface WebpageArchiverService {
+
+    /**
+     * Returns the options contributed for this command line, or an empty descriptor if nothing was contributed.
+     *
+     * @param inCommandLine
+     * @return the options, never null
+     * @since 10.10
+     */
+    RenderingOptionsDescriptor getRenderingOptions(String inCommandLine);
+
+    /**
+     * Returns the pool of warm renderer processes to use for this command line, or null if the command line must be
+     * run with one process per conversion (not declared as pooled, or pooling disabled in the configuration).
+     *
+     * @param inCommandLine
+     * @return the pool or null
+     * @since 10.10
+     */
+    RendererPool getRendererPool(String inCommandLine);
+
+    /**
+     * Returns the cache of rendered PDFs. Only used for command lines declaring a <code>cacheTtl</code>
+     *
+     * @return the cache
+     * @since 10.10
+     */
+    RenderCache getRenderCache();
+
+    /**
+     * Returns the counters of archive requests pending for each document and URL
+     *
+     * @return the counters
+     * @since 10.10
+     */
+    PendingArchives getPendingArchives();
+
+    /**
+     * Returns the politeness limits of the distant hosts, as contributed to the <code>hostLimits</code> extension
+     * point
+     *
+     * @return the throttle
+     * @since 10.10
+     */
+    HostThrottle getHostThrottle();
+
+    /**
+     * Schedules the work in the WorkManager after a delay, without holding a thread of its queue in the meantime.
+     * <p>
+     * The delay is kept in memory. When the service stops, the works still waiting are given to the WorkManager right
+     * away, and a work started before its time must schedule itself later again (see
+     * {@link WebpageToBlobWork#setNotBefore(long)}).
+     *
+     * @param inWork
+     * @param inDelay in milliseconds
+     * @return a waiter enqueuing the work before its delay when woken up (see {@link HostThrottle})
+     * @since 10.10
+     */
+    HostThrottle.Waiter scheduleLater(Work inWork, long inDelay);
+
+    /**
+     * Returns the bounded executor of the asynchronous renders (see <code>WebpageToPdf.Async</code>)
+     *
+     * @return the executor
+     * @since 10.10
+     */
+    AsyncRenders getAsyncRenders();
+
+    /**
+     * Returns the cookie jars of the login command lines, reused until their session expires
+     *
+     * @return the sessions
+     * @since 10.10
+     */
+    LoginSessions getLoginSessions();
+
+    /**
+     * Returns the node-wide limit of the renders running at the same time
+     *
+     * @return the governor, null if the service is not started
+     * @since 10.10
+     */
+    RenderGovernor getRenderGovernor();
+
+    /**
+     * Returns the memory and CPU time limits applied to each renderer process
+     *
+     * @return the limits, never null
+     * @since 10.10
+     */
+    ProcessLimits getProcessLimits();
+
+}
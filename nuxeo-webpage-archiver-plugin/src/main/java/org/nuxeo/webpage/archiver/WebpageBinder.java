@@ -0,0 +1,218 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.platform.commandline.executor.api.CommandNotAvailable;
+import org.nuxeo.webpage.archiver.pdf.PdfMerger;
+
+/**
+ * Renders an ordered list of URLs into one PDF (a "binder"), paying the start of the renderer once per group of
+ * pages instead of once per page.
+ * <p>
+ * The URLs are rendered by chunks of <code>chunkSize</code>, each chunk in a single wkhtmltopdf process (see
+ * {@link WebpageToBlob#toPdf(String, List, String, Blob, boolean)}), and the PDFs of the chunks are concatenated (see
+ * {@link PdfMerger}). The timeout of a process is the timeout of one page multiplied by the number of pages of its
+ * chunk.
+ * <p>
+ * With <code>toc</code>, all the URLs are rendered in one process, so the table of contents lists all the pages.
+ * <p>
+ * When a chunk fails (no valid PDF, or a page that could not be loaded: the renderer exits with an error, see
+ * {@link RenderException.Kind#LOAD_FAILED}), its URLs are rendered one by one to find the failing ones. A URL that
+ * cannot be rendered is left out of the binder and reported in the result, unless <code>failOnError</code> is set. The table of contents is then
+ * lost (the outlines of the pages are kept).
+ *
+ * @since 10.10
+ */
+public class WebpageBinder {
+
+    private static final Log log = LogFactory.getLog(WebpageBinder.class);
+
+    public static final int CHUNK_SIZE_DEFAULT = 10;
+
+    /**
+     * The binder, and the URLs left out
+     */
+    public static class Result {
+
+        protected final Blob pdf;
+
+        protected final Map<String, String> failures;
+
+        public Result(Blob inPdf, Map<String, String> inFailures) {
+            pdf = inPdf;
+            failures = inFailures;
+        }
+
+        public Blob getPdf() {
+            return pdf;
+        }
+
+        /**
+         * @return the error of each URL left out, in the order of the list
+         */
+        public Map<String, String> getFailures() {
+            return Collections.unmodifiableMap(failures);
+        }
+    }
+
+    protected int timeout = WebpageToBlob.TIMEOUT_DEFAULT;
+
+    protected int chunkSize = CHUNK_SIZE_DEFAULT;
+
+    protected boolean toc = false;
+
+    protected boolean failOnError = false;
+
+    public WebpageBinder() {
+    }
+
+    /**
+     * @param inTimeout for one page, in ms. 0 for the default
+     */
+    public WebpageBinder(int inTimeout) {
+        timeout = inTimeout > 0 ? inTimeout : WebpageToBlob.TIMEOUT_DEFAULT;
+    }
+
+    /**
+     * @param inCommandLine a command line using <code>"#{urls}"</code>, or null for the default one
+     * @param inUrls
+     * @param inFileName the file name of the binder, or null
+     * @param inCookieJar or null
+     * @return the result
+     * @throws IOException
+     * @throws CommandNotAvailable
+     * @throws NuxeoException a RenderException if no page at all could be rendered, or, with
+     *             <code>failOnError</code>, if one could not
+     * @since 10.10
+     */
+    public Result bind(String inCommandLine, List<String> inUrls, String inFileName, Blob inCookieJar)
+            throws IOException, CommandNotAvailable, NuxeoException {
+
+        if (inUrls == null || inUrls.isEmpty()) {
+            throw new NuxeoException("No URL to render");
+        }
+
+        List<Blob> parts = new ArrayList<>();
+        Map<String, String> failures = new LinkedHashMap<>();
+        RenderException firstFailure = null;
+        // Left out before rendering, so they do not fail a whole chunk
+        List<String> urls = new ArrayList<>();
+        for (String url : inUrls) {
+            String trimmed = StringUtils.trimToNull(url);
+            if (WebpageToBlob.isPageUrl(trimmed)) {
+                urls.add(trimmed);
+            } else {
+                RenderException e = new RenderException(RenderException.Kind.INVALID_URL,
+                        "Not an absolute http(s) URL");
+                failures.put(url, e.getMessage());
+                firstFailure = firstFailure == null ? e : firstFailure;
+            }
+        }
+
+        int size = toc ? urls.size() : chunkSize;
+        for (int start = 0; start < urls.size(); start += size) {
+            List<String> chunk = urls.subList(start, Math.min(start + size, urls.size()));
+            try {
+                parts.add(render(inCommandLine, chunk, inCookieJar, toc));
+                continue;
+            } catch (RenderException e) {
+                if (chunk.size() == 1) {
+                    failures.put(chunk.get(0), e.getMessage());
+                    firstFailure = firstFailure == null ? e : firstFailure;
+                    continue;
+                }
+                log.debug("Failed to render " + chunk.size() + " pages at once, rendering them one by one", e);
+            }
+            for (String url : chunk) {
+                try {
+                    parts.add(render(inCommandLine, Collections.singletonList(url), inCookieJar, false));
+                } catch (RenderException e) {
+                    failures.put(url, e.getMessage());
+                    firstFailure = firstFailure == null ? e : firstFailure;
+                }
+            }
+        }
+
+        if (firstFailure != null && (failOnError || parts.isEmpty())) {
+            throw firstFailure;
+        }
+        for (Map.Entry<String, String> failure : failures.entrySet()) {
+            log.warn("\"" + failure.getKey() + "\" left out of the binder: " + failure.getValue());
+        }
+
+        Blob pdf;
+        if (parts.size() == 1) {
+            pdf = parts.get(0);
+        } else {
+            List<File> files = new ArrayList<>();
+            for (Blob part : parts) {
+                files.add(part.getFile());
+            }
+            pdf = Blobs.createBlobWithExtension(".pdf");
+            PdfMerger.merge(files, pdf.getFile());
+            pdf.setMimeType("application/pdf");
+        }
+        pdf.setFilename(StringUtils.isNotBlank(inFileName) ? inFileName
+                : new WebpageToBlob().computeFileName(urls.get(0), null));
+
+        return new Result(pdf, failures);
+    }
+
+    protected Blob render(String inCommandLine, List<String> inUrls, Blob inCookieJar, boolean inToc)
+            throws IOException, CommandNotAvailable, NuxeoException {
+
+        long chunkTimeout = Math.min((long) timeout * inUrls.size(), Integer.MAX_VALUE);
+        return new WebpageToBlob((int) chunkTimeout).toPdf(inCommandLine, inUrls, null, inCookieJar, inToc);
+    }
+
+    /**
+     * @param newValue the pages rendered by each process, ignored with a table of contents
+     * @since 10.10
+     */
+    public void setChunkSize(int newValue) {
+        chunkSize = newValue > 0 ? newValue : CHUNK_SIZE_DEFAULT;
+    }
+
+    public void setToc(boolean newValue) {
+        toc = newValue;
+    }
+
+    /**
+     * @param newValue true to fail when one URL cannot be rendered, instead of leaving it out
+     * @since 10.10
+     */
+    public void setFailOnError(boolean newValue) {
+        failOnError = newValue;
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver;
+
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentSecurityException;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.api.security.SecurityConstants;
+import org.nuxeo.ecm.core.work.api.WorkManager;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.webpage.archiver.crawl.CrawlScope;
+import org.nuxeo.webpage.archiver.crawl.WebpageCrawlWork;
+import org.nuxeo.webpage.archiver.login.CookieJars;
+
+/**
+ * Asynchronously archives a section of a site in the input folder: the page at <code>url</code>, then the pages it
+ * links to, up to <code>maxDepth</code> links away and at most <code>maxPages</code> pages. Each page is saved in a
+ * new child document (see {@link WebpageCrawlWork}).
+ * <p>
+ * Only the links to the host of <code>url</code> are followed, unless <code>sameHost</code> is false. When
+ * <code>prefix</code> is set, only the links starting with it are followed (see {@link CrawlScope}).
+ * <p>
+ * The documents are created by the work in a system session: the caller must be allowed to add children to the
+ * folder.
+ * <p>
+ * Other parameters are the same as {@link WebpageToDocumentsOp}.
+ *
+ * @since 10.10
+ */
+@Operation(id = WebpageCrawlOp.ID, category = Constants.CAT_CONVERSION, label = "Webpage Crawl to Folder", description = "Archive the page at url and the pages it links to, each one as a pdf in a new child document (of type docType, in its xpath field) of the input folder (the caller must be allowed to add children to it). The links are followed up to maxDepth links away from url (0 archives only url), and at most maxPages pages are archived. Only the links to the host of url are followed, unless sameHost is false, and only the ones starting with prefix when it is set. This is always an asynchronous operation: the pages are rendered at most parallelism at a time and the documents are created by groups of transactionSize, firing one webpagesArchived event per group. Returns the input folder (unchanged)")
+public class WebpageCrawlOp {
+
+    public static final String ID = "WebpageCrawl";
+
+    @Context
+    protected CoreSession session;
+
+    @Param(name = "commandLine", required = false)
+    protected String commandLine;
+
+    @Param(name = "url", required = true)
+    protected String url;
+
+    @Param(name = "maxDepth", required = false)
+    protected Integer maxDepth;
+
+    @Param(name = "maxPages", required = false)
+    protected Integer maxPages;
+
+    @Param(name = "sameHost", required = false)
+    protected boolean sameHost = true;
+
+    @Param(name = "prefix", required = false)
+    protected String prefix;
+
+    @Param(name = "docType", required = false, values = { "File" })
+    protected String docType = WebpageCrawlWork.DEFAULT_DOC_TYPE;
+
+    @Param(name = "xpath", required = false, values = { "file:content" })
+    protected String xpath = WebpageCrawlWork.DEFAULT_XPATH;
+
+    @Param(name = "cookieJar", required = false)
+    protected Blob cookieJar;
+
+    @Param(name = "timeout", required = false)
+    protected Long timeout;
+
+    @Param(name = "parallelism", required = false)
+    protected Integer parallelism;
+
+    @Param(name = "transactionSize", required = false)
+    protected Integer transactionSize;
+
+    @OperationMethod
+    public DocumentModel run(DocumentModel inFolder) {
+
+        if (!inFolder.isFolder()) {
+            throw new NuxeoException("Document " + inFolder.getId() + " is not a folder");
+        }
+        if (!session.hasPermission(inFolder.getRef(), SecurityConstants.ADD_CHILDREN)) {
+            throw new DocumentSecurityException("Privilege '" + SecurityConstants.ADD_CHILDREN + "' is not granted to '"
+                    + session.getPrincipal().getName() + "' on folder " + inFolder.getId() + ", nothing crawled");
+        }
+        if (CrawlScope.toAbsolute(null, url) == null) {
+            throw new NuxeoException("Invalid URL: " + url);
+        }
+
+        WebpageCrawlWork work = new WebpageCrawlWork(commandLine, url.trim(), inFolder.getRepositoryName(),
+                inFolder.getId(), CookieJars.store(cookieJar));
+        if (timeout != null && timeout.longValue() != 0) {
+            work.setTimeout(timeout.intValue());
+        }
+        if (maxDepth != null) {
+            work.setMaxDepth(maxDepth.intValue());
+        }
+        if (maxPages != null) {
+            work.setMaxPages(maxPages.intValue());
+        }
+        work.setSameHost(sameHost);
+        work.setPrefix(prefix);
+        work.setDocType(docType);
+        work.setXPath(xpath);
+        if (parallelism != null) {
+            work.setParallelism(parallelism.intValue());
+        }
+        if (transactionSize != null) {
+            work.setTransactionSize(transactionSize.intValue());
+        }
+        work.setQueuedTime(System.currentTimeMillis());
+        Framework.getService(WorkManager.class).schedule(work, true);
+
+        return inFolder;
+    }
+
+}
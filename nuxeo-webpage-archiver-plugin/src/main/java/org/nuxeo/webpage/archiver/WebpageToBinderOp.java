@@ -0,0 +1,96 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.nuxeo.ecm.automation.OperationContext;
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.automation.core.util.StringList;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.platform.commandline.executor.api.CommandNotAvailable;
+
+/**
+ * Converts several distant URLs to one PDF, the pages in the order of <code>urls</code>, and returns the blob (see
+ * {@link WebpageBinder}). WARNING: This runs <i>synchronously</i>.
+ * <p>
+ * The command line must use <code>"#{urls}"</code> (default is <code>wkhtmlToPdf-binder</code>, or
+ * <code>wkhtmlToPdf-binder-authenticated</code> when a <code>cookieJar</code> is passed). <code>timeout</code> is
+ * for one page.
+ * <p>
+ * The URLs left out of the PDF are set in the {@link #CTX_FAILED_URLS} context variable.
+ *
+ * @since 10.10
+ */
+@Operation(id = WebpageToBinderOp.ID, category = Constants.CAT_CONVERSION, label = "Webpages to Pdf Binder", description = "Read the distant web pages and save them in one pdf, in the order of urls. The pages are rendered by chunks of chunkSize pages, each chunk in a single wkhtmltopdf process, and the chunks are concatenated. If toc is true, the pdf starts with a table of contents (all the pages are then rendered in one process). A page that cannot be rendered is left out, unless failOnError is true: the list of URLs left out is set in the WebpageBinderFailedUrls context variable. Default timeout is 30000ms per page. For authenticated pages, pass the cookieJar returned by WebpageToBlob.Login.")
+public class WebpageToBinderOp {
+
+    public static final String ID = "WebpageToPdf.Binder";
+
+    public static final String CTX_FAILED_URLS = "WebpageBinderFailedUrls";
+
+    @Context
+    protected OperationContext ctx;
+
+    @Param(name = "commandLine", required = false)
+    protected String commandLine;
+
+    @Param(name = "urls", required = true)
+    protected StringList urls;
+
+    @Param(name = "fileName", required = false)
+    protected String fileName;
+
+    @Param(name = "cookieJar", required = false)
+    protected Blob cookieJar;
+
+    @Param(name = "timeout", required = false)
+    protected Long timeout;
+
+    @Param(name = "toc", required = false)
+    protected boolean toc = false;
+
+    @Param(name = "chunkSize", required = false)
+    protected Integer chunkSize;
+
+    @Param(name = "failOnError", required = false)
+    protected boolean failOnError = false;
+
+    @OperationMethod
+    public Blob run() throws IOException, CommandNotAvailable, NuxeoException {
+
+        WebpageBinder binder = new WebpageBinder(timeout == null ? 0 : timeout.intValue());
+        binder.setToc(toc);
+        binder.setFailOnError(failOnError);
+        if (chunkSize != null) {
+            binder.setChunkSize(chunkSize.intValue());
+        }
+        WebpageBinder.Result result = binder.bind(commandLine, urls, fileName, cookieJar);
+        ctx.put(CTX_FAILED_URLS, new ArrayList<>(result.getFailures().keySet()));
+
+        return result.getPdf();
+    }
+
+}
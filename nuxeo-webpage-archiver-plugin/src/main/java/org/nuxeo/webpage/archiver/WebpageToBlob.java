@@ -21,6 +21,10 @@ package org.nuxeo.webpage.archiver;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
@@ -31,7 +35,6 @@ import org.apache.commons.exec.ExecuteWatchdog;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.pdfbox.pdmodel.PDDocument;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.Blobs;
 import org.nuxeo.ecm.core.api.NuxeoException;
@@ -40,9 +43,18 @@ import org.nuxeo.ecm.platform.commandline.executor.api.CmdParameters.ParameterVa
 import org.nuxeo.ecm.platform.commandline.executor.api.CommandAvailability;
 import org.nuxeo.ecm.platform.commandline.executor.api.CommandLineExecutorService;
 import org.nuxeo.ecm.platform.commandline.executor.api.CommandNotAvailable;
-import org.nuxeo.ecm.platform.commandline.executor.service.CommandLineDescriptor;
-import org.nuxeo.ecm.platform.commandline.executor.service.CommandLineExecutorComponent;
 import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.webpage.archiver.cache.RenderCache;
+import org.nuxeo.webpage.archiver.crawl.CrawlScope;
+import org.nuxeo.webpage.archiver.governor.ProcessLimits;
+import org.nuxeo.webpage.archiver.governor.RenderGovernor;
+import org.nuxeo.webpage.archiver.image.Screenshots;
+import org.nuxeo.webpage.archiver.login.LoginSessions;
+import org.nuxeo.webpage.archiver.metrics.ArchiverMetrics;
+import org.nuxeo.webpage.archiver.pdf.PdfOptimizer;
+import org.nuxeo.webpage.archiver.pdf.PdfValidator;
+import org.nuxeo.webpage.archiver.pool.PooledRenderer;
+import org.nuxeo.webpage.archiver.pool.RendererPool;
 
 /**
  * Use the <code>wkhtmltopdf</code>
@@ -80,11 +92,47 @@ import org.nuxeo.runtime.api.Framework;
  * need, or user/pwd are saved server-side, and pass the command line name to the {@link login} method. This way no
  * exchange with a browser for example. See {@link login} for more information
  * <p>
+ * Instead of running the login before each page, {@link #toPdfWithLogin(String, String, String, String)} reuses the
+ * cookie jar of the login command until its session expires (see {@link LoginSessions}).
+ * <p>
  * <b>NOTICE</b>
  * <ul>
  * <li>In all cases, the command line <i>must</i> use "#{url}" and "#{targetFilePath}" (the later is handled by the
  * plug-in)</li>
  * <li>We strongly recommend to use the <code>-q</code> option as a minimum</li>
+ * </ul>
+ * <b>Pooled Renderers<b>
+ * <p>
+ * When a command line is declared as <code>pooled</code> (see {@link RenderingOptionsDescriptor}), conversions are
+ * sent to warm <code>wkhtmltopdf --read-args-from-stdin</code> processes (see {@link RendererPool}) instead of forking
+ * a new process each time. The result is checked the same way.
+ * <p>
+ * <b>Render Cache<b>
+ * <p>
+ * When a command line declares a <code>cacheTtl</code> (see {@link RenderingOptionsDescriptor}), the PDF is kept in
+ * the {@link RenderCache} and the same URL, rendered with the same command line and cookie jar, is not rendered again
+ * until the TTL expires.
+ * <p>
+ * <b>Optimization<b>
+ * <p>
+ * When a command line declares <code>optimize</code> (see {@link RenderingOptionsDescriptor}), the valid PDF is made
+ * smaller by the {@link PdfOptimizer} (images downsampled, duplicates removed) before being returned and cached.
+ * <p>
+ * <b>Screenshots<b>
+ * <p>
+ * {@link #toImage(String, String, String, Blob)} takes a PNG screenshot of the page with <code>wkhtmltoimage</code>
+ * (the <code>wkhtmlToImage</code> command lines). It is another process, limited the same way as the PDF renders.
+ * <p>
+ * <b>Several Pages<b>
+ * <p>
+ * {@link #toPdf(String, List, String, Blob, boolean)} renders several pages in one PDF, in a single wkhtmltopdf
+ * process: the command line uses <code>"#{urls}"</code> instead of <code>"#{url}"</code> (the
+ * <code>wkhtmlToPdf-binder</code> command lines). See {@link WebpageBinder}.
+ * <p>
+ * <b>Failures<b>
+ * <p>
+ * When no valid PDF is generated, a {@link RenderException} is thrown, telling the kind of failure (timeout, distant
+ * host unknown or not reachable, ...) and if it is worth trying again later.
  * 
  * @since 7.10HF05
  */
@@ -97,11 +145,24 @@ public class WebpageToBlob {
 
     public static final String COMMANDLINE_DEFAULT_wkhtmltopdf_AUTHENTICATED = "wkhtmlToPdf-authenticated";
 
+    public static final String COMMANDLINE_DEFAULT_wkhtmltoimage = "wkhtmlToImage";
+
+    public static final String COMMANDLINE_DEFAULT_wkhtmltoimage_AUTHENTICATED = "wkhtmlToImage-authenticated";
+
+    public static final String COMMANDLINE_DEFAULT_BINDER = "wkhtmlToPdf-binder";
+
+    public static final String COMMANDLINE_DEFAULT_BINDER_AUTHENTICATED = "wkhtmlToPdf-binder-authenticated";
+
+    // The wkhtmltopdf object inserting a table of contents, built from the headings of the pages
+    protected static final String TOC = "toc";
+
     // 30s timeout by default
     public static final int TIMEOUT_DEFAULT = 30000;
 
     protected int timeout = TIMEOUT_DEFAULT;
 
+    protected boolean usePool = true;
+
     public WebpageToBlob() {
         this(0);
     }
@@ -169,6 +230,188 @@ public class WebpageToBlob {
 
     }
 
+    /**
+     * Converts the distant URL to PDF, returns the blob of the PDF.
+     * <p>
+     * The page requires authentication: the cookie jar of <code>inLoginCommand</code> is reused if its session is
+     * still valid, else the login is run first (see {@link LoginSessions}).
+     * <p>
+     * If <code>inCommandLine</code> is empty, the default authenticated command is called.
+     *
+     * @param inCommandLine
+     * @param inUrl
+     * @param inFileName
+     * @param inLoginCommand
+     * @return a Blob holding the pdf
+     * @throws IOException
+     * @throws CommandNotAvailable
+     * @throws NuxeoException
+     * @since 10.10
+     */
+    public Blob toPdfWithLogin(String inCommandLine, String inUrl, String inFileName, String inLoginCommand)
+            throws IOException, CommandNotAvailable, NuxeoException {
+
+        WebpageArchiverService service = Framework.getService(WebpageArchiverService.class);
+        Blob cookieJar = service.getLoginSessions().getCookieJar(inLoginCommand, inUrl, timeout);
+        if (StringUtils.isBlank(inCommandLine)) {
+            inCommandLine = COMMANDLINE_DEFAULT_wkhtmltopdf_AUTHENTICATED;
+        }
+        return run(inCommandLine, inUrl, inFileName, cookieJar);
+    }
+
+    /**
+     * Renders several distant URLs in one PDF, in a single process, the pages in the order of the list. The command
+     * line must use <code>"#{urls}"</code> (one argument replaced by all the URLs) and <code>#{targetFilePath}</code>,
+     * and <code>#{cookieJar}</code> for authenticated pages. The result is never cached nor pooled.
+     * <p>
+     * The timeout applies to the whole process: give it enough time for all the pages. If
+     * <code>inCommandLine</code> is empty, the default binder command is called (the authenticated one when a cookie
+     * jar is passed).
+     *
+     * @param inCommandLine
+     * @param inUrls absolute http(s) URLs only: wkhtmltopdf would read anything else (<code>toc</code>, an option,
+     *            a local file) as something other than a page to render
+     * @param inFileName the file name of the PDF. Default is built from the host of the first URL
+     * @param inCookieJar or null
+     * @param inToc true to start the PDF with a table of contents
+     * @return a Blob holding the pdf
+     * @throws IOException
+     * @throws CommandNotAvailable
+     * @throws NuxeoException a RenderException ({@link RenderException.Kind#INVALID_URL}) if an URL is not an absolute
+     *             http(s) URL, or if no valid PDF was written
+     * @since 10.10
+     */
+    public Blob toPdf(String inCommandLine, List<String> inUrls, String inFileName, Blob inCookieJar, boolean inToc)
+            throws IOException, CommandNotAvailable, NuxeoException {
+
+        if (inUrls == null || inUrls.isEmpty()) {
+            throw new NuxeoException("No URL to render");
+        }
+        for (String url : inUrls) {
+            if (!isPageUrl(url)) {
+                throw new RenderException(RenderException.Kind.INVALID_URL,
+                        "Not an absolute http(s) URL: \"" + url + "\", nothing rendered");
+            }
+        }
+        if (StringUtils.isBlank(inCommandLine)) {
+            inCommandLine = inCookieJar == null ? COMMANDLINE_DEFAULT_BINDER : COMMANDLINE_DEFAULT_BINDER_AUTHENTICATED;
+        }
+        if (!CommandLineParameters.getTemplate(inCommandLine).usesParameter(CommandLineParameters.URLS)) {
+            throw new NuxeoException("The command line \"" + inCommandLine + "\" does not use "
+                    + CommandLineParameters.URLS_EXP + " and cannot render several pages");
+        }
+
+        CmdParameters params = new CmdParameters();
+        if (inCookieJar != null) {
+            params.addNamedParameter(CommandLineParameters.COOKIE_JAR, inCookieJar.getFile().getAbsolutePath());
+        }
+        List<String> objects = new ArrayList<>();
+        if (inToc) {
+            objects.add(TOC);
+        }
+        objects.addAll(inUrls);
+
+        return buildCommandLineAndRun(inCommandLine, params, computeFileName(inUrls.get(0), inFileName), false,
+                objects);
+    }
+
+    /**
+     * @param inUrl
+     * @return true if the URL is an absolute http(s) URL, the only values accepted in <code>#{urls}</code>
+     * @since 10.10
+     */
+    public static boolean isPageUrl(String inUrl) {
+        return inUrl != null && CrawlScope.toAbsolute(null, inUrl) != null && inUrl.equals(inUrl.trim());
+    }
+
+    /**
+     * Takes a PNG screenshot of the distant URL with a <code>wkhtmltoimage</code> command line. The command line must
+     * use <code>#{url}</code> and <code>#{targetFilePath}</code>, and <code>#{cookieJar}</code> for an authenticated
+     * page. The result is never cached nor pooled.
+     * <p>
+     * If <code>inCommandLine</code> is empty, the default command is called (the authenticated one when a cookie jar
+     * is passed).
+     *
+     * @param inCommandLine
+     * @param inUrl
+     * @param inFileName the file name of the image. Default is built from the host of the URL
+     * @param inCookieJar or null
+     * @return a Blob holding the PNG image
+     * @throws IOException
+     * @throws CommandNotAvailable
+     * @throws NuxeoException a RenderException if no image was written
+     * @since 10.10
+     */
+    public Blob toImage(String inCommandLine, String inUrl, String inFileName, Blob inCookieJar) throws IOException,
+            CommandNotAvailable, NuxeoException {
+
+        if (StringUtils.isBlank(inCommandLine)) {
+            inCommandLine = inCookieJar == null ? COMMANDLINE_DEFAULT_wkhtmltoimage
+                    : COMMANDLINE_DEFAULT_wkhtmltoimage_AUTHENTICATED;
+        }
+
+        Blob resultImage = Blobs.createBlobWithExtension(".png");
+        File resultFile = resultImage.getFile();
+
+        CommandTemplate template = CommandLineParameters.getTemplate(inCommandLine);
+        Map<String, String> values = new HashMap<>();
+        values.put(CommandLineParameters.COOKIE_JAR,
+                inCookieJar == null ? null : inCookieJar.getFile().getAbsolutePath());
+        values.put(CommandLineParameters.URL, inUrl);
+        values.put(CommandLineParameters.TARGET_FILE_PATH, resultFile.getAbsolutePath());
+        CommandLine cmdLine = template.toCommandLine(values);
+
+        ArchiverMetrics metrics = ArchiverMetrics.get();
+        RenderGovernor governor = getRenderGovernor();
+        long start = System.nanoTime();
+        RenderGovernor.Permit permit = governor == null ? null : governor.acquire();
+        metrics.update(ArchiverMetrics.STAGE_ADMISSION, inCommandLine, System.nanoTime() - start);
+
+        IOException exception = null;
+        int exitValue = 0;
+        metrics.renderStarted();
+        start = System.nanoTime();
+        try {
+            exitValue = runForked(cmdLine);
+        } catch (IOException e) {
+            exception = e;
+        } finally {
+            if (permit != null) {
+                permit.close();
+            }
+            metrics.renderDone();
+            metrics.update(ArchiverMetrics.STAGE_SCREENSHOT, inCommandLine, System.nanoTime() - start);
+        }
+
+        if (Screenshots.getSize(resultFile) == null) {
+            RenderException.Kind kind;
+            if (exitValue == PooledRenderer.EXIT_VALUE_TIMEOUT) {
+                kind = RenderException.Kind.TIMEOUT;
+            } else if (exception != null && StringUtils.startsWith(exception.getMessage(), "Cannot run program")) {
+                kind = RenderException.Kind.COMMAND_NOT_AVAILABLE;
+            } else {
+                kind = RenderException.diagnose(inUrl);
+            }
+            metrics.failure(kind);
+            String msg = "Failed to execute the command line [" + cmdLine.toString()
+                    + " ]. No image generated. exitValue: " + exitValue + " (" + kind + ")";
+            if (exception == null) {
+                throw new RenderException(kind, msg);
+            }
+            throw new RenderException(kind, msg, exception);
+        }
+
+        resultImage.setMimeType("image/png");
+        if (StringUtils.isBlank(inFileName) && StringUtils.isNotBlank(inUrl)) {
+            inFileName = StringUtils.removeEnd(computeFileName(inUrl, null), ".pdf") + ".png";
+        }
+        if (StringUtils.isNotBlank(inFileName)) {
+            resultImage.setFilename(inFileName);
+        }
+
+        return resultImage;
+    }
+
     /**
      * Logins to a distant website and return a Blob, a file (named "cookie jar" by wkhtmltopdf), to be used when
      * accessing an authenticated page. You will have previously contribute the <code>inCommandLine</code> with all the
@@ -286,88 +529,181 @@ public class WebpageToBlob {
             params.addNamedParameter(CommandLineParameters.URL, inUrl);
         }
 
-        return buildCommandLineAndRun(inCommandLine, params, inFileName, false);
+        // A blank URL means the URL is hard coded in the contribution (login for example): never cached
+        RenderCache cache = null;
+        String cacheKey = null;
+        long cacheTtl = 0;
+        WebpageArchiverService service = Framework.getService(WebpageArchiverService.class);
+        if (service != null && StringUtils.isNotBlank(inUrl)) {
+            cacheTtl = service.getRenderingOptions(inCommandLine).getCacheTtl();
+            cache = cacheTtl > 0 ? service.getRenderCache() : null;
+        }
+        if (cache != null) {
+            String resolvedCommand = CommandLineParameters.getTemplate(inCommandLine).toString(
+                    Collections.singletonMap(CommandLineParameters.URL, inUrl));
+            cacheKey = RenderCache.computeKey(resolvedCommand, inUrl,
+                    inCookieJar == null ? null : inCookieJar.getFile());
+            Blob cached = cache.get(cacheKey, computeFileName(inUrl, inFileName));
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        Blob pdf = buildCommandLineAndRun(inCommandLine, params, inFileName, false);
+
+        if (cache != null) {
+            cache.put(cacheKey, pdf, cacheTtl);
+        }
+
+        return pdf;
 
     }
 
     protected Blob buildCommandLineAndRun(String inCommandLine, CmdParameters inParams, String inFileName,
             boolean inUseAllParams) throws IOException, CommandNotAvailable, NuxeoException {
 
+        return buildCommandLineAndRun(inCommandLine, inParams, inFileName, inUseAllParams, null);
+    }
+
+    /*
+     * inUrls: the values of #{urls} for a multi-page render, else null
+     */
+    protected Blob buildCommandLineAndRun(String inCommandLine, CmdParameters inParams, String inFileName,
+            boolean inUseAllParams, List<String> inUrls) throws IOException, CommandNotAvailable, NuxeoException {
+
         // Create a temp. File handled by Nuxeo
         Blob resultPdf = Blobs.createBlobWithExtension(".pdf");
+        File resultFile = resultPdf.getFile();
+
+        // Login and test calls always fork: they are rare, and may use parameters we don't handle. A pooled renderer
+        // is started for one page per conversion
+        RendererPool pool = inUseAllParams || inUrls != null ? null : getRendererPool(inCommandLine);
+        RenderingOptionsDescriptor options = getRenderingOptions(inCommandLine);
 
-        // Build the full, resolved command line
-        String resolvedParameterString = CommandLineParameters.buildParameterString(inCommandLine,
-                inParams.getParameter(CommandLineParameters.COOKIE_JAR),
-                inParams.getParameter(CommandLineParameters.URL), resultPdf.getFile().getAbsolutePath());
+        // Values are set in the arguments of the compiled template: they are never parsed again, whatever they
+        // contain
+        CommandTemplate template = CommandLineParameters.getTemplate(inCommandLine);
+        Map<String, String> values = new HashMap<>();
+        values.put(CommandLineParameters.COOKIE_JAR, inParams.getParameter(CommandLineParameters.COOKIE_JAR));
+        values.put(CommandLineParameters.URL, inParams.getParameter(CommandLineParameters.URL));
+        values.put(CommandLineParameters.TARGET_FILE_PATH, resultFile.getAbsolutePath());
 
         // Mainly during test, we may have uncjecked parameters (safe because everything is hard-coded server side)
         if (inUseAllParams) {
             if (!Framework.isTestModeSet()) {
                 throw new NuxeoException("A call to buildCommandLineAndRun(..., true) is for test only.");
             }
-            Map<String, ParameterValue> allParams = inParams.getParameters();
-            String key, value;
-            for (Entry<String, ParameterValue> entry : allParams.entrySet()) {
-                key = entry.getKey();
-                value = entry.getValue().getValue();
-                if (!CommandLineParameters.isHandledParameter(key)) {
-                    resolvedParameterString = StringUtils.replace(resolvedParameterString, "#{" + key + "}", value);
+            for (Entry<String, ParameterValue> entry : inParams.getParameters().entrySet()) {
+                if (!CommandLineParameters.isHandledParameter(entry.getKey())) {
+                    values.put(entry.getKey(), entry.getValue().getValue());
                 }
             }
         }
 
-        // Get the exact command line and build the line
-        CommandLineDescriptor desc = CommandLineExecutorComponent.getCommandDescriptor(inCommandLine);
-        String line = desc.getCommand() + " " + resolvedParameterString;
-
         // Run the thing
         Exception exception = null;
 
-        CommandLine cmdLine = CommandLine.parse(line);
-        DefaultExecutor executor = new DefaultExecutor();
-        ExecuteWatchdog watchdog = new ExecuteWatchdog(timeout);
-        // We don't want a check on exit values, because a PDF can still be created with errors
-        // (can't get a font, ...)
-        executor.setExitValues(null);
-        executor.setWatchdog(watchdog);
+        CommandLine cmdLine = template.toCommandLine(values, inUrls);
+        ArchiverMetrics metrics = ArchiverMetrics.get();
+        String url = inParams.getParameter(CommandLineParameters.URL);
+        // Several pages: the host metrics and the diagnosis are for the first one only
+        String firstUrl = url;
+        if (inUrls != null) {
+            for (String object : inUrls) {
+                if (!TOC.equals(object)) {
+                    firstUrl = object;
+                    break;
+                }
+            }
+        }
         int exitValue = 0;
+
+        // Wait for our turn on this node (throws a RenderException if it does not come in time)
+        RenderGovernor governor = getRenderGovernor();
+        long start = System.nanoTime();
+        RenderGovernor.Permit permit = governor == null ? null : governor.acquire();
+        metrics.update(ArchiverMetrics.STAGE_ADMISSION, inCommandLine, System.nanoTime() - start);
+
+        metrics.renderStarted();
+        start = System.nanoTime();
         try {
-            exitValue = executor.execute(cmdLine);
+            if (pool != null) {
+                exitValue = runInPool(pool, cmdLine);
+            } else {
+                exitValue = runForked(cmdLine);
+            }
         } catch (IOException e) {
             exception = e;
+        } finally {
+            if (permit != null) {
+                permit.close();
+            }
+            long duration = System.nanoTime() - start;
+            metrics.renderDone();
+            metrics.update(ArchiverMetrics.STAGE_RENDER, inCommandLine, duration);
+            if (StringUtils.isNotBlank(url) && inUrls == null) {
+                metrics.updateHost(url, duration);
+            }
+        }
+        if (exception == null) {
+            metrics.exitValue(exitValue);
         }
 
         // Even if we had no error catched, we must check if the pdf is valid.
         // Exit value may be 1, or non zero while the pdf was created. But maybe
         // a font could not be correctly rendered, etc. Let's check if we have
         // something in the pdf and it looks valid
-        if (!pdfLooksValid(resultPdf.getFile())) {
+        start = System.nanoTime();
+        boolean valid = pdfLooksValid(resultFile);
+        metrics.update(ArchiverMetrics.STAGE_VALIDATE, inCommandLine, System.nanoTime() - start);
+        if (!valid) {
             resultPdf = null;
             String msg = "Failed to execute the command line [" + cmdLine.toString()
                     + " ]. No valid PDF generated. exitValue: " + exitValue;
 
-            if (exitValue == 143) { // On Linux: Timeout, wkhtmltopdf was SIGTERM
+            RenderException.Kind kind;
+            if (exitValue == PooledRenderer.EXIT_VALUE_TIMEOUT) { // On Linux: Timeout, wkhtmltopdf was SIGTERM
                 msg += " (time out reached. The timeout was " + timeout + "ms)";
+                kind = RenderException.Kind.TIMEOUT;
+            } else if (exitValue == PooledRenderer.EXIT_VALUE_CRASHED) {
+                kind = RenderException.Kind.CRASHED;
+            } else if (exception != null && StringUtils.startsWith(exception.getMessage(), "Cannot run program")) {
+                kind = RenderException.Kind.COMMAND_NOT_AVAILABLE;
+            } else if (exception == null && exitValue == 0 && resultFile.length() > 0) {
+                kind = RenderException.Kind.INVALID_PDF;
+            } else {
+                kind = RenderException.diagnose(firstUrl);
             }
+            msg += " (" + kind + ")";
+            metrics.failure(kind);
+
             if (exception == null) {
-                throw new NuxeoException(msg);
+                throw new RenderException(kind, msg);
             } else {
-                throw new NuxeoException(msg, exception);
+                throw new RenderException(kind, msg, exception);
             }
         }
+        if (inUrls != null && exitValue != 0) {
+            // The binder command lines ignore the load errors, so WebKit still renders the other pages: a page that
+            // could not be loaded is a blank page in a valid PDF, only the exit value tells
+            RenderException.Kind kind = RenderException.diagnose(firstUrl);
+            kind = kind == RenderException.Kind.NO_PDF ? RenderException.Kind.LOAD_FAILED : kind;
+            metrics.failure(kind);
+            throw new RenderException(kind, "Failed to execute the command line [" + cmdLine.toString()
+                    + " ]. A page could not be loaded. exitValue: " + exitValue + " (" + kind + ")");
+        }
 
-        resultPdf.setMimeType("application/pdf");
-        String url = inParams.getParameter(CommandLineParameters.URL);
-        // Url parameter can be blank (hard coded url in the command line XML for example)
-        if (StringUtils.isBlank(inFileName) && StringUtils.isNotBlank(url)) {
-            try {
-                URL urlObj = new URL(url);
-                inFileName = StringUtils.replace(urlObj.getHost(), ".", "-") + ".pdf";
-            } finally {
-                // Nothing. Default name has been set by nuxeo
-            }
+        if (options != null && options.isOptimize()) {
+            start = System.nanoTime();
+            PdfOptimizer optimizer = new PdfOptimizer(options.getImageDpi(), options.getImageQuality());
+            long saved = optimizer.optimize(resultFile).getSavedBytes();
+            metrics.update(ArchiverMetrics.STAGE_OPTIMIZE, inCommandLine, System.nanoTime() - start);
+            metrics.optimized(saved);
         }
+
+        metrics.pdfSize(resultFile.length());
+        resultPdf.setMimeType("application/pdf");
+        inFileName = computeFileName(firstUrl, inFileName);
         if (StringUtils.isNotBlank(inFileName)) {
             resultPdf.setFilename(inFileName);
         }
@@ -376,38 +712,116 @@ public class WebpageToBlob {
     }
 
     /*
-     * This call is a bit expensive (in term of CPU). But as we can't rely on the exitReturn value from wkhtmltopdf, not
-     * on just the size of the file, we must check the PDF looks ok. Using PDFBox here.
+     * Returns inFileName if set, else a name built from the host of the URL. Url parameter can be blank (hard coded url
+     * in the command line XML for example), then returns null and the default name set by nuxeo is kept.
      */
-    protected boolean pdfLooksValid(File inPdf) {
+    protected String computeFileName(String inUrl, String inFileName) throws IOException {
 
-        boolean valid = false;
+        if (StringUtils.isBlank(inFileName) && StringUtils.isNotBlank(inUrl)) {
+            URL urlObj = new URL(inUrl);
+            return StringUtils.replace(urlObj.getHost(), ".", "-") + ".pdf";
+        }
 
-        if (inPdf.exists() && inPdf.length() > 0) {
-            PDDocument pdfDoc = null;
-            try {
-                pdfDoc = PDDocument.load(inPdf);
-                if (pdfDoc.getNumberOfPages() > 0) {
-                    valid = true;
-                }
-            } catch (IOException e) {
-                // Nothing
-            } finally {
-                if (pdfDoc != null) {
-                    try {
-                        pdfDoc.close();
-                    } catch (IOException e) {
-                        // Ignore
-                    }
-                }
-            }
+        return inFileName;
+    }
+
+    /*
+     * One process for this conversion, killed by the watchdog after the timeout, and started with the memory and CPU
+     * limits if any.
+     */
+    protected int runForked(CommandLine inCmdLine) throws IOException {
+
+        DefaultExecutor executor = new DefaultExecutor();
+        ExecuteWatchdog watchdog = new ExecuteWatchdog(timeout);
+        // We don't want a check on exit values, because a PDF can still be created with errors
+        // (can't get a font, ...)
+        executor.setExitValues(null);
+        executor.setWatchdog(watchdog);
+
+        ProcessLimits limits = getProcessLimits();
+        return executor.execute(limits == null ? inCmdLine : limits.wrap(inCmdLine));
+    }
+
+    /*
+     * Falls back to a forked process when the arguments can't be sent to a pooled renderer (line break, too long).
+     */
+    protected int runInPool(RendererPool inPool, CommandLine inCmdLine) throws IOException {
+
+        List<String> args = RendererPool.toJobArguments(inCmdLine.getArguments());
+        try {
+            PooledRenderer.toArgumentsLine(args);
+        } catch (IOException e) {
+            return runForked(inCmdLine);
+        }
+
+        try {
+            return inPool.render(args, timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NuxeoException(e);
+        }
+    }
+
+    /*
+     * Returns null if the command line is not pooled, or if we are running outside of a Nuxeo server with our
+     * component deployed.
+     */
+    protected RendererPool getRendererPool(String inCommandLine) {
+
+        if (!usePool) {
+            return null;
         }
+        WebpageArchiverService service = Framework.getService(WebpageArchiverService.class);
+        return service == null ? null : service.getRendererPool(inCommandLine);
+    }
+
+    /*
+     * Null when running outside of a Nuxeo server with our component deployed: no optimization
+     */
+    protected RenderingOptionsDescriptor getRenderingOptions(String inCommandLine) {
+
+        WebpageArchiverService service = Framework.getService(WebpageArchiverService.class);
+        return service == null ? null : service.getRenderingOptions(inCommandLine);
+    }
+
+    /*
+     * Null when running outside of a Nuxeo server with our component deployed: no limit
+     */
+    protected RenderGovernor getRenderGovernor() {
+
+        WebpageArchiverService service = Framework.getService(WebpageArchiverService.class);
+        return service == null ? null : service.getRenderGovernor();
+    }
+
+    protected ProcessLimits getProcessLimits() {
+
+        WebpageArchiverService service = Framework.getService(WebpageArchiverService.class);
+        return service == null ? null : service.getProcessLimits();
+    }
+
+    /*
+     * As we can't rely on the exitReturn value from wkhtmltopdf, nor on just the size of the file, we must check the
+     * PDF looks ok. This reads only the header, trailer and page tree root (see PdfValidator), so the cost does not
+     * depend on the size of the PDF.
+     */
+    protected boolean pdfLooksValid(File inPdf) {
 
-        return valid;
+        return PdfValidator.looksValid(inPdf);
     }
 
     public void setTimeout(int newValue) {
         timeout = newValue < 1 ? TIMEOUT_DEFAULT : newValue;
     }
 
+    /**
+     * When <code>false</code>, every conversion forks its own process even if the command line is declared as pooled
+     * (see {@link RenderingOptionsDescriptor}). Default is <code>true</code>
+     *
+     * @param newValue
+     * @since 10.10
+     */
+    public void setUsePool(boolean newValue) {
+        usePool = newValue;
+    }
+
 }
\ No newline at end of file
@@ -22,13 +22,19 @@ import static org.nuxeo.ecm.core.api.CoreSession.ALLOW_VERSION_WRITE;
 
 import java.io.IOException;
 import java.io.Serializable;
-import java.util.List;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.ConcurrentUpdateException;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentRef;
 import org.nuxeo.ecm.core.api.IdRef;
 import org.nuxeo.ecm.core.api.NuxeoException;
 import org.nuxeo.ecm.core.event.Event;
@@ -36,13 +42,60 @@ import org.nuxeo.ecm.core.event.EventService;
 import org.nuxeo.ecm.core.event.impl.DocumentEventContext;
 import org.nuxeo.ecm.core.work.AbstractWork;
 import org.nuxeo.ecm.core.work.api.WorkManager;
+import org.nuxeo.ecm.core.work.api.WorkManager.Scheduling;
 import org.nuxeo.ecm.platform.commandline.executor.api.CommandNotAvailable;
 import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+import org.nuxeo.webpage.archiver.host.HostThrottle;
+import org.nuxeo.webpage.archiver.image.Screenshots;
+import org.nuxeo.webpage.archiver.login.CookieJars;
+import org.nuxeo.webpage.archiver.metrics.ArchiverMetrics;
+import org.nuxeo.webpage.archiver.pdf.PdfFingerprint;
+import org.nuxeo.webpage.archiver.pdf.PdfTextExtractor;
+import org.nuxeo.webpage.archiver.pending.PendingArchives;
+import org.nuxeo.webpage.archiver.probe.PageProbe;
 
 /**
  * A Nuxeo Worker, used asynchronously handle the conversion of a distant URL to PDF, saving this PDF in a Document.
  * <p>
  * Please, see the comments of {@link WebpageToBlob} for details about the usage of the wkhtmltopdf commandline
+ * <p>
+ * When <code>conditional</code> is set, a lightweight request is first sent to the server (see {@link PageProbe}), with
+ * the validators stored in the document at the previous archive (see {@link WebpageArchiveFacet}). If the page did not
+ * change, it is not rendered and the document is not saved. Not done for authenticated pages: the probe cannot send
+ * the session cookies.
+ * <p>
+ * The politeness limits of the distant host are enforced (see {@link HostThrottle}): when the host already has too many
+ * renders in progress, or was requested too recently, the work waits in the queue of the host, and the thread of the
+ * queue is released. It is enqueued again when it is its turn.
+ * <p>
+ * A failed rendering is not tried again right away. The failure is classified (see {@link RenderException}): transient
+ * ones (timeout, distant host not reachable, ...) are tried again in a new work, scheduled with an exponential backoff,
+ * up to {@link #MAX_ATTEMPTS} attempts. Permanent ones (unknown host, command not available, ...) fail immediately.
+ * The attempt and the time of the next one are set in the status of the work.
+ * <p>
+ * The cookie jar is not serialized with the work: it is stored in the TransientStore, and the work only holds its key
+ * (see {@link CookieJars}), so the work can run on any node of a cluster.
+ * <p>
+ * No transaction and no repository session are open while the page is rendered: the validators of the previous
+ * archive are read in a first short transaction, and the PDF is saved in a second one, reading the document again (it
+ * may have been modified, or deleted, during the rendering).
+ * <p>
+ * When <code>screenshotXPath</code> or <code>thumbnailXPath</code> is set, a screenshot is taken right after the PDF
+ * (see {@link WebpageToBlob#toImage(String, String, String, Blob)}), and the thumbnail is scaled down from it. Both are
+ * saved with the PDF, and when the thumbnail is set, the Nuxeo thumbnail computation (rasterizing the PDF) is
+ * disabled for this save. Failing to take the screenshot does not fail the archive.
+ * <p>
+ * When <code>textXPath</code> is set, the text of the PDF is extracted (see {@link PdfTextExtractor}) and saved in this
+ * field, so the fulltext of the page can be indexed from it instead of parsing the PDF again. This is an additional
+ * parse of the PDF unless the blob field is excluded from the binary fulltext in the repository configuration (see the
+ * README).
+ * <p>
+ * When <code>conditional</code> is set, the fingerprint of the content of the rendered page is also computed (see
+ * {@link PdfFingerprint}), in the same pass as the text. If it is the one stored with the previous archive, the
+ * document is not saved: no screenshot, no thumbnail, no event, no listener and no new version for a page whose PDF
+ * changed only by its creation date. Only the new validators returned by the probe, if any, are saved alone, with no
+ * version, no audit entry and no change of the modification date, so the next probe can be answered "not modified".
  * 
  * @since 7.10
  */
@@ -59,6 +112,37 @@ public class WebpageToBlobWork extends AbstractWork {
 
     public static final int MAX_ATTEMPTS = 3;
 
+    // Saving the archive when the document is modified at the same time
+    public static final int MAX_SAVE_ATTEMPTS = 3;
+
+    public static final String RETRY_BASE_DELAY_PROPERTY = "nuxeo.webpage.archiver.retry.baseDelay";
+
+    // In ms, the delay before the 2nd attempt. Doubled at each attempt
+    public static final long RETRY_BASE_DELAY_DEFAULT = 10000;
+
+    public static final long RETRY_MAX_DELAY = 300000;
+
+    public static final String THUMBNAIL_SIZE_PROPERTY = "nuxeo.webpage.archiver.thumbnail.maxSize";
+
+    public static final String TEXT_MAX_CHARS_PROPERTY = "nuxeo.webpage.archiver.text.maxChars";
+
+    // Regular expression of the volatile parts of the text, ignored by the fingerprint (see PdfFingerprint)
+    public static final String FINGERPRINT_IGNORE_PROPERTY = "nuxeo.webpage.archiver.fingerprint.ignore";
+
+    public static final String THUMBNAIL_XPATH = "thumb:thumbnail";
+
+    public static final String THUMBNAIL_FACET = "Thumbnail";
+
+    // Context data of org.nuxeo.ecm.platform.thumbnail.ThumbnailConstants, checked by the thumbnail listeners
+    public static final String DISABLE_THUMBNAIL_COMPUTATION = "disableThumbnailComputation";
+
+    // Context data of DublinCoreListener, NXAuditEventsService and VersioningService, for saving the validators alone
+    public static final String DISABLE_DUBLINCORE_LISTENER = "disableDublinCoreListener";
+
+    public static final String DISABLE_AUDIT_LOGGER = "disableAuditLogger";
+
+    public static final String DISABLE_AUTO_CHECKOUT = "DisableAutoCheckOut";
+
     protected String commandLine;
 
     protected String url;
@@ -67,10 +151,41 @@ public class WebpageToBlobWork extends AbstractWork {
 
     protected String xpath;
 
-    protected Blob cookieJar;
+    // See CookieJars
+    protected String cookieJarKey;
 
     protected int timeout;
 
+    protected boolean conditional = false;
+
+    protected String loginCommand;
+
+    protected int attempt = 1;
+
+    protected String screenshotCommand;
+
+    protected String screenshotXPath;
+
+    protected String thumbnailXPath;
+
+    protected String textXPath;
+
+    // When the work was given to the WorkManager (or will be, when scheduled later), for the queue wait metric
+    protected long queuedTime;
+
+    // For a work scheduled later, the time it is due
+    protected long notBefore;
+
+    // Woken up by the host throttle: goes before the works waiting for the host
+    protected boolean hostWoken;
+
+    // Scheduled by schedule(WebpageToBlobWork), holds the claim on its pending key until it ends, or passes it to the
+    // work scheduled later
+    protected boolean claimed;
+
+    // The request was passed to a work scheduled later, which will uncount it
+    protected transient boolean handedOver;
+
     protected static String computeIdPrefix(String repoName, String inDocId, String inUrl) {
         return repoName + ":" + inDocId + ":" + inUrl;
     }
@@ -84,59 +199,291 @@ public class WebpageToBlobWork extends AbstractWork {
         url = inUrl;
         xpath = inXPath;
         fileName = inFileName;
-        cookieJar = inCookieJar;
+        cookieJarKey = CookieJars.store(inCookieJar);
     }
 
     @Override
     public void work() {
 
+        handedOver = false;
+        try {
+            if (deferIfEarly()) {
+                return;
+            }
+            if (queuedTime > 0) {
+                ArchiverMetrics.get().update(ArchiverMetrics.STAGE_QUEUE_WAIT, commandLine,
+                        TimeUnit.MILLISECONDS.toNanos(Math.max(0, System.currentTimeMillis() - queuedTime)));
+            }
+            archive();
+        } finally {
+            WebpageArchiverService service = Framework.getService(WebpageArchiverService.class);
+            if (service != null) {
+                if (!handedOver) {
+                    service.getPendingArchives().done(getPendingKey());
+                    if (claimed) {
+                        service.getPendingArchives().release(getPendingKey());
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * A work scheduled later is enqueued before its time when the node stops (see
+     * WebpageArchiverService#scheduleLater): it then waits again for the rest of its delay
+     */
+    protected boolean deferIfEarly() {
+
+        long early = notBefore - System.currentTimeMillis();
+        WebpageArchiverService service = Framework.getService(WebpageArchiverService.class);
+        if (early <= 0 || service == null) {
+            return false;
+        }
+        log.debug("\"" + url + "\" started " + early + "ms before its time, scheduled later again");
+        WebpageToBlobWork later = copy();
+        later.setQueuedTime(queuedTime);
+        later.setNotBefore(notBefore);
+        handedOver = true;
+        service.scheduleLater(later, early);
+        setStatus("Delayed until " + Instant.ofEpochMilli(notBefore));
+        return true;
+    }
+
+    protected void archive() {
+
         Blob pdf = null;
+        Blob screenshot = null;
+        Exception failure = null;
 
-        setStatus("Extracting webpage");
         setProgress(Progress.PROGRESS_INDETERMINATE);
 
-        int i, max = MAX_ATTEMPTS;
-        for (i = 1; i <= max; ++i) {
+        // The render phase does not need the repository: release the transaction started by the WorkManager, so no
+        // DB connection is held (and no transaction can time out) while the external renderer runs
+        commitOrRollbackTransaction();
+
+        // Politeness: if the host is busy, wait for our turn in its queue instead of holding a thread of the queue
+        WebpageArchiverService service = Framework.getService(WebpageArchiverService.class);
+        HostThrottle.Permit permit = null;
+        if (service != null) {
+            permit = service.getHostThrottle().tryAcquire(url, () -> {
+                WebpageToBlobWork later = copy();
+                later.setHostWoken(true);
+                later.setQueuedTime(System.currentTimeMillis());
+                return service.scheduleLater(later, HostThrottle.WAIT_FALLBACK_DELAY);
+            }, hostWoken);
+            if (!permit.isAcquired()) {
+                log.debug("Host of \"" + url + "\" busy, waiting for its turn");
+                setStatus("Delayed, host busy");
+                handedOver = true;
+                return;
+            }
+        }
+
+        PageProbe.Result probe = null;
+        String text = null;
+        String fingerprint = null;
+        try {
+            if (conditional && cookieJarKey == null && StringUtils.isBlank(loginCommand)) {
+                setStatus("Probing webpage");
+                long start = System.nanoTime();
+                probe = probeDistantPage();
+                ArchiverMetrics.get().update(ArchiverMetrics.STAGE_PROBE, null, System.nanoTime() - start);
+                if (probe.isNotModified()) {
+                    log.debug("\"" + url + "\" not modified since last archive, not rendered");
+                    setStatus("Done, not modified");
+                    return;
+                }
+            }
+
+            setStatus("Extracting webpage, attempt " + attempt + "/" + MAX_ATTEMPTS);
+
             try {
-                initSession(); // IN 8.1, USE openSystemSession() instead
                 WebpageToBlob wptopdf = new WebpageToBlob(timeout);
-                if (cookieJar != null && StringUtils.isBlank(commandLine)) {
+                Blob cookieJar = getCookieJar();
+                if (cookieJarKey != null && StringUtils.isBlank(commandLine)) {
                     commandLine = "wkhtmlToPdf-authenticated";
                 }
-                pdf = wptopdf.toPdf(commandLine, url, fileName, cookieJar);
-                commitOrRollbackTransaction();
+                if (cookieJarKey == null && StringUtils.isNotBlank(loginCommand)) {
+                    pdf = wptopdf.toPdfWithLogin(commandLine, url, fileName, loginCommand);
+                } else {
+                    pdf = wptopdf.toPdf(commandLine, url, fileName, cookieJar);
+                }
             } catch (IOException | NuxeoException | CommandNotAvailable e) {
-                log.error("Attempt " + i + "/" + max + ": Failed to convert the \"" + url + "\" to pdf", e);
+                failure = e;
                 pdf = null;
-            } finally {
-                cleanUp(true, null);
             }
 
-            if (pdf != null) {
-                break;
+            if (pdf != null && conditional) {
+                setStatus("Computing fingerprint");
+                long start = System.nanoTime();
+                PdfFingerprint content = new PdfFingerprint(getFingerprintIgnore());
+                text = extractText(pdf, content);
+                fingerprint = content.getValue();
+                ArchiverMetrics.get().update(ArchiverMetrics.STAGE_FINGERPRINT, null, System.nanoTime() - start);
+                if (hasSameContent(fingerprint, probe)) {
+                    log.debug("\"" + url + "\" rendered with the same content as the last archive, not saved");
+                    ArchiverMetrics.get().unchanged();
+                    setStatus("Done, content unchanged");
+                    return;
+                }
+            }
+
+            // Still holding the host permit: the screenshot loads the page again
+            if (pdf != null && (StringUtils.isNotBlank(screenshotXPath) || StringUtils.isNotBlank(thumbnailXPath))) {
+                setStatus("Taking screenshot");
+                screenshot = takeScreenshot(service);
+            }
+        } finally {
+            if (permit != null) {
+                permit.close();
             }
         }
 
-        if (pdf != null) {
-            // Saving it to the document
-            startTransaction();
-            setStatus("Saving to Document");
-            initSession(); // IN 8.1, USE openSystemSession() instead
-            DocumentModel doc = session.getDocument(new IdRef(docId));
-            doc.setPropertyValue(xpath, (Serializable) pdf);
+        if (pdf == null) {
+            handleFailure(failure, service);
+            return;
+        }
 
-            // It may happen the async. job is done while, in the meantime, the user
-            // created a version
-            if (doc.isVersion()) {
-                doc.putContextData(ALLOW_VERSION_WRITE, Boolean.TRUE);
+        Blob thumbnail = null;
+        if (screenshot != null && StringUtils.isNotBlank(thumbnailXPath)) {
+            long start = System.nanoTime();
+            try {
+                thumbnail = Screenshots.toThumbnail(screenshot.getFile(),
+                        (int) getLongProperty(THUMBNAIL_SIZE_PROPERTY, Screenshots.THUMBNAIL_SIZE_DEFAULT));
+            } catch (IOException e) {
+                log.warn("Cannot compute the thumbnail of \"" + url + "\", the PDF is saved without it", e);
             }
+            ArchiverMetrics.get().update(ArchiverMetrics.STAGE_THUMBNAIL, null, System.nanoTime() - start);
+        }
 
-            session.saveDocument(doc);
-            fireWebpageArchivedEvent(doc);
+        if (StringUtils.isNotBlank(textXPath) && !conditional) {
+            setStatus("Extracting text");
+            long start = System.nanoTime();
+            text = extractText(pdf, null);
+            ArchiverMetrics.get().update(ArchiverMetrics.STAGE_TEXT, null, System.nanoTime() - start);
         }
 
-        setStatus("Done " + (pdf == null ? "with error" : "with no error"));
+        setStatus("Saving to Document");
+        long start = System.nanoTime();
+        boolean saved = saveToDocument(pdf, probe, StringUtils.isNotBlank(screenshotXPath) ? screenshot : null,
+                thumbnail, text, fingerprint);
+        ArchiverMetrics.get().update(ArchiverMetrics.STAGE_SAVE, null, System.nanoTime() - start);
 
+        setStatus(saved ? "Done with no error, attempt " + attempt + "/" + MAX_ATTEMPTS
+                : "Done, document deleted before the archive could be saved");
+
+    }
+
+    /*
+     * Short transaction. The document is read again, so what the users changed while the page was rendered is kept.
+     * If it was modified concurrently during the save itself, the save is done again. Returns false if the document
+     * was deleted in the meantime.
+     */
+    protected boolean saveToDocument(Blob inPdf, PageProbe.Result inProbe) {
+
+        return saveToDocument(inPdf, inProbe, null, null, null, null);
+    }
+
+    /*
+     * The screenshot, the thumbnail and the text are saved when not null. The fingerprint is saved when conditional
+     * (null then clears the previous one)
+     */
+    protected boolean saveToDocument(Blob inPdf, PageProbe.Result inProbe, Blob inScreenshot, Blob inThumbnail,
+            String inText, String inFingerprint) {
+
+        for (int i = 1;; i++) {
+            startTransaction();
+            openSystemSession();
+            try {
+                DocumentRef ref = new IdRef(docId);
+                if (!session.exists(ref)) {
+                    log.warn("Document " + docId + " deleted while archiving \"" + url + "\", archive not saved");
+                    return false;
+                }
+
+                DocumentModel doc = session.getDocument(ref);
+                doc.setPropertyValue(xpath, (Serializable) inPdf);
+                if (conditional || doc.hasFacet(WebpageArchiveFacet.FACET)) {
+                    // Without a probe, the validators of the previous archive do not apply anymore
+                    WebpageArchiveFacet.setArchived(doc, url, inProbe);
+                }
+                if (conditional) {
+                    WebpageArchiveFacet.setFingerprint(doc, inFingerprint);
+                }
+                if (inScreenshot != null) {
+                    doc.setPropertyValue(screenshotXPath, (Serializable) inScreenshot);
+                }
+                if (inThumbnail != null) {
+                    if (THUMBNAIL_XPATH.equals(thumbnailXPath) && !doc.hasFacet(THUMBNAIL_FACET)) {
+                        doc.addFacet(THUMBNAIL_FACET);
+                    }
+                    doc.setPropertyValue(thumbnailXPath, (Serializable) inThumbnail);
+                    // Do not rasterize the PDF again
+                    doc.putContextData(DISABLE_THUMBNAIL_COMPUTATION, Boolean.TRUE);
+                }
+                if (inText != null) {
+                    if (WebpageArchiveFacet.XPATH_TEXT.equals(textXPath) && !doc.hasFacet(WebpageArchiveFacet.FACET)) {
+                        doc.addFacet(WebpageArchiveFacet.FACET);
+                    }
+                    doc.setPropertyValue(textXPath, inText);
+                }
+
+                // It may happen the async. job is done while, in the meantime, the user
+                // created a version
+                if (doc.isVersion()) {
+                    doc.putContextData(ALLOW_VERSION_WRITE, Boolean.TRUE);
+                }
+
+                session.saveDocument(doc);
+                fireWebpageArchivedEvent(doc);
+                commitOrRollbackTransaction();
+                return true;
+
+            } catch (ConcurrentUpdateException e) {
+                TransactionHelper.setTransactionRollbackOnly();
+                if (i >= MAX_SAVE_ATTEMPTS) {
+                    throw e;
+                }
+                log.debug("Concurrent update of document " + docId + ", saving again", e);
+            } finally {
+                commitOrRollbackTransaction();
+                closeSession();
+            }
+        }
+    }
+
+    /**
+     * Schedules the work, unless the same work is already scheduled or running: then it is dropped. The check is done
+     * by claiming the pending key (see {@link PendingArchives#claim(String)}), not by the WorkManager, so only the
+     * requests actually scheduled are counted as pending.
+     *
+     * @param inWork
+     * @return false if the work was dropped
+     * @since 10.10
+     */
+    public static boolean schedule(WebpageToBlobWork inWork) {
+
+        WorkManager workManager = Framework.getService(WorkManager.class);
+        WebpageArchiverService service = Framework.getService(WebpageArchiverService.class);
+        if (service == null) {
+            workManager.schedule(inWork, Scheduling.IF_NOT_RUNNING_OR_SCHEDULED);
+            return true;
+        }
+        PendingArchives pending = service.getPendingArchives();
+        if (!pending.claim(inWork.getPendingKey())) {
+            log.debug("\"" + inWork.url + "\" already scheduled or running for document " + inWork.docId
+                    + ", request dropped");
+            return false;
+        }
+        inWork.setClaimed(true);
+        pending.added(inWork.getPendingKey());
+        inWork.setQueuedTime(System.currentTimeMillis());
+        workManager.schedule(inWork, Scheduling.ENQUEUE);
+        return true;
+    }
+
+    public String getPendingKey() {
+        return PendingArchives.computeKey(repositoryName, docId, url);
     }
 
     @Override
@@ -150,17 +497,11 @@ public class WebpageToBlobWork extends AbstractWork {
     }
 
     protected void fireWebpageArchivedEvent(DocumentModel doc) {
-        WorkManager workManager = Framework.getLocalService(WorkManager.class);
-        List<String> workIds = workManager.listWorkIds(CATEGORY_WEBPAGE_TO_BLOB, null);
-        String idPrefix = computeIdPrefix(repositoryName, docId, url);
-        int worksCount = 0;
-        for (String workId : workIds) {
-            if (workId.startsWith(idPrefix)) {
-                if (++worksCount > 1) {
-                    // another work scheduled
-                    return;
-                }
-            }
+
+        // The request of this work is still counted: more than one means another archive is pending
+        WebpageArchiverService service = Framework.getService(WebpageArchiverService.class);
+        if (service != null && service.getPendingArchives().get(getPendingKey()) > 1) {
+            return;
         }
 
         DocumentEventContext ctx = new DocumentEventContext(session, session.getPrincipal(), doc);
@@ -168,8 +509,341 @@ public class WebpageToBlobWork extends AbstractWork {
         Framework.getLocalService(EventService.class).fireEvent(event);
     }
 
+    /*
+     * With the cookie jar of the PDF render, if any. Never fails the archive: returns null if the screenshot could not
+     * be taken
+     */
+    protected Blob takeScreenshot(WebpageArchiverService inService) {
+
+        try {
+            Blob cookieJar = getCookieJar();
+            if (cookieJar == null && StringUtils.isNotBlank(loginCommand) && inService != null) {
+                // Cached by the PDF render that just ran
+                cookieJar = inService.getLoginSessions().getCookieJar(loginCommand, url, timeout);
+            }
+            return new WebpageToBlob(timeout).toImage(screenshotCommand, url, null, cookieJar);
+        } catch (IOException | NuxeoException | CommandNotAvailable e) {
+            log.warn("Cannot take the screenshot of \"" + url + "\", the PDF is saved without it", e);
+            return null;
+        }
+    }
+
+    /*
+     * The local copy of the cookie jar of the work, null if it has none. If the stored jar expired and the work has a
+     * login command, the work goes on without it and logs in again
+     */
+    protected Blob getCookieJar() throws IOException {
+
+        try {
+            return CookieJars.materialize(cookieJarKey);
+        } catch (RenderException e) {
+            if (e.getKind() != RenderException.Kind.COOKIE_JAR_EXPIRED || StringUtils.isBlank(loginCommand)) {
+                throw e;
+            }
+            log.info("Cookie jar of \"" + url + "\" expired, logging in again with " + loginCommand);
+            cookieJarKey = null;
+            return null;
+        }
+    }
+
+    /*
+     * Transient failures are tried again later, in a new work, so the thread of the queue is released and the distant
+     * host is given time to recover. Permanent ones fail now.
+     */
+    protected void handleFailure(Exception inFailure, WebpageArchiverService inService) {
+
+        RenderException.Kind kind = RenderException.classify(inFailure);
+        String msg = "Attempt " + attempt + "/" + MAX_ATTEMPTS + ": Failed to convert the \"" + url + "\" to pdf ("
+                + kind + ")";
+        if (kind.isTransient() && attempt < MAX_ATTEMPTS && inService != null) {
+            long delay = computeRetryDelay(attempt);
+            log.warn(msg + ", next attempt in " + delay + "ms", inFailure);
+            WebpageToBlobWork retry = copy();
+            retry.setAttempt(attempt + 1);
+            retry.setQueuedTime(System.currentTimeMillis() + delay);
+            retry.setNotBefore(System.currentTimeMillis() + delay);
+            handedOver = true;
+            inService.scheduleLater(retry, delay);
+            setStatus(msg + ", next attempt at " + Instant.ofEpochMilli(System.currentTimeMillis() + delay));
+        } else {
+            log.error(msg + (kind.isTransient() ? ", no more attempts" : ", not tried again"), inFailure);
+            setStatus("Done with error (" + kind + "), attempt " + attempt + "/" + MAX_ATTEMPTS);
+        }
+    }
+
+    /**
+     * Exponential backoff with jitter: half of the delay is fixed, the other half is random, so works failing together
+     * (same distant host down) do not all try again at the same time.
+     *
+     * @param inAttempt the attempt that just failed, starting at 1
+     * @return the delay in milliseconds
+     * @since 10.10
+     */
+    public static long computeRetryDelay(int inAttempt) {
+
+        long base = Math.max(1, getLongProperty(RETRY_BASE_DELAY_PROPERTY, RETRY_BASE_DELAY_DEFAULT));
+        long delay = base << Math.min(Math.max(0, inAttempt - 1), 20);
+        delay = Math.min(delay, RETRY_MAX_DELAY);
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    protected static long getLongProperty(String inName, long inDefault) {
+
+        String value = Framework.getProperty(inName);
+        try {
+            return StringUtils.isBlank(value) ? inDefault : Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return inDefault;
+        }
+    }
+
+    /*
+     * Same work, to schedule again later
+     */
+    protected WebpageToBlobWork copy() {
+
+        WebpageToBlobWork work = new WebpageToBlobWork(commandLine, url, repositoryName, docId, xpath, fileName,
+                null);
+        work.setCookieJarKey(cookieJarKey);
+        work.setTimeout(timeout);
+        work.setConditional(conditional);
+        work.setLoginCommand(loginCommand);
+        work.setAttempt(attempt);
+        work.setScreenshotCommand(screenshotCommand);
+        work.setScreenshotXPath(screenshotXPath);
+        work.setThumbnailXPath(thumbnailXPath);
+        work.setTextXPath(textXPath);
+        work.setClaimed(claimed);
+        return work;
+    }
+
+    /*
+     * Returns null if the text cannot be extracted: the PDF is then saved without it. With a fingerprint, the text is
+     * returned only if textXPath is set
+     */
+    protected String extractText(Blob inPdf, PdfFingerprint inFingerprint) {
+
+        boolean wanted = StringUtils.isNotBlank(textXPath);
+        try {
+            // With maxChars = 1, the fingerprint still reads all the pages
+            String text = new PdfTextExtractor(wanted
+                    ? (int) getLongProperty(TEXT_MAX_CHARS_PROPERTY, PdfTextExtractor.MAX_CHARS_DEFAULT)
+                    : 1).extract(inPdf.getFile(), inFingerprint);
+            return wanted ? text : null;
+        } catch (IOException | RuntimeException e) {
+            log.warn("Cannot extract the text of \"" + url + "\", the PDF is saved without it", e);
+            if (inFingerprint != null) {
+                inFingerprint.discard();
+            }
+            return null;
+        }
+    }
+
+    /*
+     * Short transaction, reading the fingerprint of the previous archive. When it is the same, the validators returned
+     * by the probe replace the stored ones: saved alone, they do not make a new version, an audit entry or an event. A
+     * concurrent update is not retried, the validators are then only refreshed at the next archive.
+     */
+    protected boolean hasSameContent(String inFingerprint, PageProbe.Result inProbe) {
+
+        if (inFingerprint == null) {
+            return false;
+        }
+        startTransaction();
+        openSystemSession();
+        try {
+            DocumentRef ref = new IdRef(docId);
+            if (!session.exists(ref)) {
+                return false;
+            }
+            DocumentModel doc = session.getDocument(ref);
+            if (!WebpageArchiveFacet.hasSameContent(doc, url, xpath, inFingerprint)) {
+                return false;
+            }
+            if (WebpageArchiveFacet.setValidators(doc, inProbe)) {
+                doc.putContextData(DISABLE_DUBLINCORE_LISTENER, Boolean.TRUE);
+                doc.putContextData(DISABLE_AUDIT_LOGGER, Boolean.TRUE);
+                doc.putContextData(DISABLE_AUTO_CHECKOUT, Boolean.TRUE);
+                if (doc.isVersion()) {
+                    doc.putContextData(ALLOW_VERSION_WRITE, Boolean.TRUE);
+                }
+                try {
+                    session.saveDocument(doc);
+                } catch (ConcurrentUpdateException e) {
+                    TransactionHelper.setTransactionRollbackOnly();
+                    log.debug("Concurrent update of document " + docId + ", validators not saved", e);
+                }
+            }
+            return true;
+        } finally {
+            commitOrRollbackTransaction();
+            closeSession();
+        }
+    }
+
+    protected static Pattern getFingerprintIgnore() {
+
+        String value = Framework.getProperty(FINGERPRINT_IGNORE_PROPERTY);
+        if (StringUtils.isBlank(value)) {
+            return null;
+        }
+        try {
+            return Pattern.compile(value.trim());
+        } catch (PatternSyntaxException e) {
+            log.warn("Invalid " + FINGERPRINT_IGNORE_PROPERTY + ", all the text is used in the fingerprint", e);
+            return null;
+        }
+    }
+
+    /*
+     * The validators are read in a short transaction, the probe itself runs outside of it
+     */
+    protected PageProbe.Result probeDistantPage() {
+
+        String etag = null;
+        String lastModified = null;
+        startTransaction();
+        openSystemSession();
+        try {
+            DocumentRef ref = new IdRef(docId);
+            if (session.exists(ref)) {
+                DocumentModel doc = session.getDocument(ref);
+                if (WebpageArchiveFacet.hasValidators(doc, url, xpath)) {
+                    etag = WebpageArchiveFacet.getEtag(doc);
+                    lastModified = WebpageArchiveFacet.getLastModified(doc);
+                }
+            }
+        } finally {
+            commitOrRollbackTransaction();
+            closeSession();
+        }
+
+        return new PageProbe(timeout).probe(url, etag, lastModified);
+    }
+
     public void setTimeout(int newValue) {
         timeout = newValue;
     }
 
+    /**
+     * @param newValue the attempt run by this work, starting at 1
+     * @since 10.10
+     */
+    public void setAttempt(int newValue) {
+        attempt = Math.max(1, newValue);
+    }
+
+    public int getAttempt() {
+        return attempt;
+    }
+
+    /**
+     * When true, the page is rendered only if it changed since the previous archive stored in the document
+     *
+     * @param newValue
+     * @since 10.10
+     */
+    public void setConditional(boolean newValue) {
+        conditional = newValue;
+    }
+
+    /**
+     * The login command line whose cached session is used to render the page, when no cookie jar is passed (see
+     * {@link org.nuxeo.webpage.archiver.login.LoginSessions})
+     *
+     * @param newValue
+     * @since 10.10
+     */
+    public void setLoginCommand(String newValue) {
+        loginCommand = newValue;
+    }
+
+    /**
+     * The key of a cookie jar already stored by {@link CookieJars#store(Blob)}, instead of passing the blob to the
+     * constructor
+     *
+     * @param newValue
+     * @since 10.10
+     */
+    public void setCookieJarKey(String newValue) {
+        cookieJarKey = newValue;
+    }
+
+    /**
+     * The <code>wkhtmltoimage</code> command line taking the screenshot. Default is <code>wkhtmlToImage</code>, or
+     * <code>wkhtmlToImage-authenticated</code> for an authenticated page
+     *
+     * @param newValue
+     * @since 10.10
+     */
+    public void setScreenshotCommand(String newValue) {
+        screenshotCommand = newValue;
+    }
+
+    /**
+     * The blob field where the screenshot is saved, null for no screenshot
+     *
+     * @param newValue
+     * @since 10.10
+     */
+    public void setScreenshotXPath(String newValue) {
+        screenshotXPath = newValue;
+    }
+
+    /**
+     * The blob field where the thumbnail is saved, for example <code>thumb:thumbnail</code>. Null for no thumbnail
+     *
+     * @param newValue
+     * @since 10.10
+     */
+    public void setThumbnailXPath(String newValue) {
+        thumbnailXPath = newValue;
+    }
+
+    /**
+     * The string field where the text of the PDF is saved, for example <code>wpa:text</code>. Null to not extract it
+     *
+     * @param newValue
+     * @since 10.10
+     */
+    public void setTextXPath(String newValue) {
+        textXPath = newValue;
+    }
+
+    /**
+     * @param newValue when the work is given to the WorkManager, in ms since the epoch
+     * @since 10.10
+     */
+    public void setQueuedTime(long newValue) {
+        queuedTime = newValue;
+    }
+
+    /**
+     * @param newValue for a work scheduled later, the time it is due, in ms since the epoch. Started before (see
+     *            {@link WebpageArchiverService#scheduleLater(org.nuxeo.ecm.core.work.api.Work, long)}), it is
+     *            scheduled later again
+     * @since 10.10
+     */
+    public void setNotBefore(long newValue) {
+        notBefore = newValue;
+    }
+
+    /**
+     * @param newValue the work was woken up by the host throttle (see
+     *            {@link HostThrottle#tryAcquire(String, java.util.function.Supplier, boolean)})
+     * @since 10.10
+     */
+    public void setHostWoken(boolean newValue) {
+        hostWoken = newValue;
+    }
+
+    /**
+     * @param newValue the work holds the claim on its pending key (see {@link PendingArchives#claim(String)}), and
+     *            releases it when it ends
+     * @since 10.10
+     */
+    public void setClaimed(boolean newValue) {
+        claimed = newValue;
+    }
+
 }
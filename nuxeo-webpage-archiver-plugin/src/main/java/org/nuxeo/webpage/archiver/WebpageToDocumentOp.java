@@ -26,10 +26,7 @@ import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
 import org.nuxeo.ecm.automation.core.annotations.Param;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.DocumentModel;
-import org.nuxeo.ecm.core.work.api.WorkManager;
-import org.nuxeo.ecm.core.work.api.WorkManager.Scheduling;
 import org.nuxeo.ecm.platform.commandline.executor.api.CommandNotAvailable;
-import org.nuxeo.runtime.api.Framework;
 
 /**
  * Asynchronously converts a URL to PDF, and stores the PDF in the input Document
@@ -37,13 +34,25 @@ import org.nuxeo.runtime.api.Framework;
  * Please, see the comments of {@link WebpageToBlob} for details about the usage of the wkhtmltopdf commandline
  * <p>
  * If access to <code>url</code> must be authenticated, a previous call to WebpageToBlob.Login must have returned Blob,
- * to pass in the <code>cookieJar</code> parameter.
+ * to pass in the <code>cookieJar</code> parameter. Or pass the name of the login command line in
+ * <code>loginCommand</code>: its cookie jar is then reused until the session expires (see
+ * {@link org.nuxeo.webpage.archiver.login.LoginSessions}).
  * <p>
  * If the command takes more than timeoutMillisecs, it is forced to terminate. Default value is 30000 ms
+ * <p>
+ * If <code>conditional</code> is true, the page is not rendered (and the document is not saved) when the server tells
+ * it did not change since the previous archive (ETag, Last-Modified), or when the rendered page has the same text. See
+ * {@link WebpageToBlobWork}.
+ * <p>
+ * If <code>screenshotXPath</code> or <code>thumbnailXPath</code> is set, a PNG screenshot of the page (taken with the
+ * <code>screenshotCommand</code> command line) and/or its thumbnail are saved in these fields with the PDF.
+ * <p>
+ * If <code>textXPath</code> is set, the text of the PDF is saved in this field. This is an additional parse of the
+ * PDF, unless the field of the PDF is excluded from the binary fulltext in the repository configuration.
  * 
  * @since 7.10
  */
-@Operation(id = WebpageToDocumentOp.ID, category = Constants.CAT_CONVERSION, label = "Webpage to Document", description = "Read the distant web page and save it as a pdf in the xpath field of input document. Default timeout is 30000ms. This is always an asynchronous operation running in a worker. When it is done, it fires the webpageArchived event. Returns the input document (unchanged)")
+@Operation(id = WebpageToDocumentOp.ID, category = Constants.CAT_CONVERSION, label = "Webpage to Document", description = "Read the distant web page and save it as a pdf in the xpath field of input document. Default timeout is 30000ms. This is always an asynchronous operation running in a worker. When it is done, it fires the webpageArchived event. If conditional is true, the page is not archived again when the server tells it did not change, or when its rendered text is the same as the previous archive. If screenshotXPath or thumbnailXPath is set, a screenshot of the page (taken with screenshotCommand, wkhtmlToImage by default) and/or its thumbnail are saved in these fields. If textXPath is set (wpa:text for example), the text of the PDF is saved in this field: an additional parse of the PDF, unless its field is excluded from the binary fulltext of the repository. For authenticated pages, pass either the cookieJar returned by WebpageToBlob.Login or the name of the login command line in loginCommand (its session is then cached and reused). Returns the input document (unchanged)")
 public class WebpageToDocumentOp {
 
     public static final String ID = "WebpageToDocument";
@@ -63,9 +72,27 @@ public class WebpageToDocumentOp {
     @Param(name = "cookieJar", required = false)
     protected Blob cookieJar;
 
+    @Param(name = "loginCommand", required = false)
+    protected String loginCommand;
+
     @Param(name = "timeout", required = false)
     protected Long timeout;
 
+    @Param(name = "conditional", required = false)
+    protected boolean conditional = false;
+
+    @Param(name = "screenshotCommand", required = false)
+    protected String screenshotCommand;
+
+    @Param(name = "screenshotXPath", required = false)
+    protected String screenshotXPath;
+
+    @Param(name = "thumbnailXPath", required = false, values = { "thumb:thumbnail" })
+    protected String thumbnailXPath;
+
+    @Param(name = "textXPath", required = false, values = { "wpa:text" })
+    protected String textXPath;
+
     @OperationMethod
     public DocumentModel run(DocumentModel inDoc) throws IOException, CommandNotAvailable {
 
@@ -74,8 +101,13 @@ public class WebpageToDocumentOp {
         if (timeout != null && timeout.longValue() != 0) {
             work.setTimeout(timeout.intValue());
         }
-        WorkManager workManager = Framework.getLocalService(WorkManager.class);
-        workManager.schedule(work, Scheduling.IF_NOT_RUNNING_OR_SCHEDULED);
+        work.setConditional(conditional);
+        work.setLoginCommand(loginCommand);
+        work.setScreenshotCommand(screenshotCommand);
+        work.setScreenshotXPath(screenshotXPath);
+        work.setThumbnailXPath(thumbnailXPath);
+        work.setTextXPath(textXPath);
+        WebpageToBlobWork.schedule(work);
 
         return inDoc;
     }
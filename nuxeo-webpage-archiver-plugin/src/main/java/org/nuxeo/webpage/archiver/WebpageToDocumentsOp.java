@@ -0,0 +1,253 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.automation.core.util.Properties;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentModelList;
+import org.nuxeo.ecm.core.api.DocumentSecurityException;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.api.security.SecurityConstants;
+import org.nuxeo.ecm.core.work.api.WorkManager;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+import org.nuxeo.webpage.archiver.login.CookieJars;
+import org.nuxeo.webpage.archiver.pending.PendingArchives;
+
+/**
+ * Asynchronously archives several documents, each one with its own URL. Instead of one work (and one transaction, one
+ * event) per document, the documents are split in batches of <code>batchSize</code>, each one handled by a
+ * {@link WebpageToDocumentsWork}.
+ * <p>
+ * The URL of each document is read:
+ * <ul>
+ * <li>In the <code>urlXPath</code> field of the input documents (default <code>wpa:url</code>, the URL of the previous
+ * archive, see {@link WebpageArchiveFacet}). Documents with no URL are ignored.</li>
+ * <li>Or, when the operation has no input, in <code>urls</code>: one <code>docId=url</code> per line</li>
+ * </ul>
+ * Other parameters are the same as {@link WebpageToDocumentOp}, and apply to all the documents.
+ * <p>
+ * The works save the archives with a system session: the documents are read here with the session of the caller, who
+ * must be allowed to write their properties. A document that cannot be read (unknown ID, no permission) or written is
+ * left out, and reported in the <code>failed</code> property of the first <code>webpagesArchived</code> event, as a
+ * document whose rendering failed (see {@link WebpageToDocumentsWork#setRejected(Map)}).
+ *
+ * @since 10.10
+ */
+@Operation(id = WebpageToDocumentsOp.ID, category = Constants.CAT_CONVERSION, label = "Webpages to Documents", description = "Read the distant web pages and save them as pdf in the xpath field of the documents. The URL is read in the urlXPath field of each input document, or, if there is no input, in the urls parameter (docId=url, one per line). This is always an asynchronous operation, running in batches of batchSize documents. Each batch renders at most parallelism pages at a time and saves the documents by groups of transactionSize, firing one webpagesArchived event per group (with the list of archived documents and the error of the failed ones). A document the caller cannot read or cannot write (WriteProperties permission) is left out and reported in the failed documents of the first event. Returns the input documents (unchanged)")
+public class WebpageToDocumentsOp {
+
+    private static final Log log = LogFactory.getLog(WebpageToDocumentsOp.class);
+
+    public static final String ID = "WebpageToDocuments";
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    @Context
+    protected CoreSession session;
+
+    @Param(name = "commandLine", required = false)
+    protected String commandLine;
+
+    @Param(name = "urlXPath", required = false)
+    protected String urlXPath = WebpageArchiveFacet.XPATH_URL;
+
+    @Param(name = "urls", required = false)
+    protected Properties urls;
+
+    @Param(name = "xpath", required = false, values = { "file:content" })
+    protected String xpath = "file:content";
+
+    @Param(name = "cookieJar", required = false)
+    protected Blob cookieJar;
+
+    @Param(name = "timeout", required = false)
+    protected Long timeout;
+
+    @Param(name = "conditional", required = false)
+    protected boolean conditional = false;
+
+    @Param(name = "batchSize", required = false)
+    protected Integer batchSize;
+
+    @Param(name = "parallelism", required = false)
+    protected Integer parallelism;
+
+    @Param(name = "transactionSize", required = false)
+    protected Integer transactionSize;
+
+    @OperationMethod
+    public DocumentModelList run(DocumentModelList inDocs) {
+
+        List<String> docIds = new ArrayList<>();
+        List<String> docUrls = new ArrayList<>();
+        Map<String, String> rejected = new LinkedHashMap<>();
+        for (DocumentModel doc : inDocs) {
+            String url = null;
+            try {
+                url = (String) doc.getPropertyValue(urlXPath);
+            } catch (NuxeoException e) {
+                // No such field for this document
+            }
+            if (StringUtils.isBlank(url)) {
+                log.warn("No URL in " + urlXPath + " for document " + doc.getId() + ", ignored");
+                continue;
+            }
+            try {
+                checkCanWrite(doc);
+            } catch (NuxeoException e) {
+                log.warn(e.getMessage());
+                rejected.put(doc.getId(), e.getMessage());
+                continue;
+            }
+            docIds.add(doc.getId());
+            docUrls.add(url.trim());
+        }
+        schedule(session.getRepositoryName(), docIds, docUrls, rejected);
+
+        return inDocs;
+    }
+
+    @OperationMethod
+    public void run() {
+
+        if (urls == null || urls.isEmpty()) {
+            throw new NuxeoException("No input documents and no urls");
+        }
+        List<String> docIds = new ArrayList<>();
+        List<String> docUrls = new ArrayList<>();
+        Map<String, String> rejected = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : urls.entrySet()) {
+            if (StringUtils.isNotBlank(entry.getValue())) {
+                String docId = entry.getKey().trim();
+                try {
+                    // Fails if the document does not exist or the caller cannot read it
+                    DocumentModel doc = session.getDocument(new IdRef(docId));
+                    checkCanWrite(doc);
+                } catch (NuxeoException e) {
+                    log.warn("Document " + docId + " left out: " + e.getMessage());
+                    rejected.put(docId, e.getMessage());
+                    continue;
+                }
+                docIds.add(docId);
+                docUrls.add(entry.getValue().trim());
+            }
+        }
+        schedule(session.getRepositoryName(), docIds, docUrls, rejected);
+    }
+
+    protected void checkCanWrite(DocumentModel inDoc) {
+
+        if (!session.hasPermission(inDoc.getRef(), SecurityConstants.WRITE_PROPERTIES)) {
+            throw new DocumentSecurityException("Privilege '" + SecurityConstants.WRITE_PROPERTIES
+                    + "' is not granted to '" + session.getPrincipal().getName() + "' on document " + inDoc.getId());
+        }
+    }
+
+    /*
+     * The works need the documents as committed by the caller: they are counted as pending and scheduled only once
+     * its transaction commits, so a rollback leaves nothing behind
+     */
+    protected void schedule(String inRepoName, List<String> inDocIds, List<String> inUrls,
+            Map<String, String> inRejected) {
+
+        if (inDocIds.isEmpty() && inRejected.isEmpty()) {
+            return;
+        }
+        if (!TransactionHelper.isTransactionActive()) {
+            scheduleNow(inRepoName, inDocIds, inUrls, inRejected);
+            return;
+        }
+        TransactionHelper.registerSynchronization(new Synchronization() {
+
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int inStatus) {
+                if (inStatus == Status.STATUS_COMMITTED) {
+                    scheduleNow(inRepoName, inDocIds, inUrls, inRejected);
+                } else {
+                    log.debug("Transaction rolled back, " + inDocIds.size() + " webpage(s) not archived");
+                }
+            }
+        });
+    }
+
+    /*
+     * The documents left out are reported by the first batch. With no document to archive, a batch is still scheduled
+     * to report them
+     */
+    protected void scheduleNow(String inRepoName, List<String> inDocIds, List<String> inUrls,
+            Map<String, String> inRejected) {
+
+        int size = batchSize == null || batchSize.intValue() <= 0 ? DEFAULT_BATCH_SIZE : batchSize.intValue();
+        WorkManager workManager = Framework.getService(WorkManager.class);
+        WebpageArchiverService service = Framework.getService(WebpageArchiverService.class);
+        if (service != null) {
+            for (int i = 0; i < inDocIds.size(); i++) {
+                service.getPendingArchives().added(PendingArchives.computeKey(inRepoName, inDocIds.get(i),
+                        inUrls.get(i)));
+            }
+        }
+        // Stored once, shared by all the batches
+        String cookieJarKey = CookieJars.store(cookieJar);
+        for (int start = 0; start == 0 || start < inDocIds.size(); start += size) {
+            int end = Math.min(start + size, inDocIds.size());
+            WebpageToDocumentsWork work = new WebpageToDocumentsWork(commandLine, inRepoName,
+                    inDocIds.subList(start, end), inUrls.subList(start, end), xpath, cookieJarKey);
+            if (timeout != null && timeout.longValue() != 0) {
+                work.setTimeout(timeout.intValue());
+            }
+            work.setConditional(conditional);
+            if (parallelism != null) {
+                work.setParallelism(parallelism.intValue());
+            }
+            if (transactionSize != null) {
+                work.setTransactionSize(transactionSize.intValue());
+            }
+            if (start == 0) {
+                work.setRejected(inRejected);
+            }
+            work.setQueuedTime(System.currentTimeMillis());
+            workManager.schedule(work);
+        }
+    }
+
+}
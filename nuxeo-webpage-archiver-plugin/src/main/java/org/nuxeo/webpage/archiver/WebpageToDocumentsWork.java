@@ -0,0 +1,573 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver;
+
+import static org.nuxeo.ecm.core.api.CoreSession.ALLOW_VERSION_WRITE;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.ConcurrentUpdateException;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.event.EventContext;
+import org.nuxeo.ecm.core.event.EventService;
+import org.nuxeo.ecm.core.event.impl.EventContextImpl;
+import org.nuxeo.ecm.core.work.AbstractWork;
+import org.nuxeo.ecm.platform.commandline.executor.api.CommandNotAvailable;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+import org.nuxeo.webpage.archiver.host.HostThrottle;
+import org.nuxeo.webpage.archiver.login.CookieJars;
+import org.nuxeo.webpage.archiver.metrics.ArchiverMetrics;
+import org.nuxeo.webpage.archiver.pending.PendingArchives;
+import org.nuxeo.webpage.archiver.probe.PageProbe;
+
+/**
+ * Archives a batch of documents, each one with its own URL, in one work (see {@link WebpageToDocumentsOp}).
+ * <p>
+ * The batch is handled by groups of <code>transactionSize</code> documents. For each group:
+ * <ul>
+ * <li>The pages are rendered in parallel, at most <code>parallelism</code> at a time, outside any transaction. The
+ * politeness limits of the hosts apply (see {@link HostThrottle})</li>
+ * <li>The PDFs are then saved in the documents in a single transaction. If this transaction has to be rolled back
+ * (concurrent update, database error), each document of the group is saved again in its own transaction, and saved
+ * again on a concurrent update (see {@link WebpageToBlobWork#MAX_SAVE_ATTEMPTS})</li>
+ * <li>And one <code>webpagesArchived</code> event is fired, with the IDs of the documents archived and the error of
+ * the ones that failed</li>
+ * </ul>
+ * A failure (rendering error, document deleted in the meantime, ...) only fails its own document, the others of the
+ * batch are still archived. The documents the operation left out are reported as failed in the event of the first
+ * group. A transient rendering failure (see {@link RenderException}) is tried again later in a
+ * {@link WebpageToBlobWork} for this document only.
+ *
+ * @since 10.10
+ */
+public class WebpageToDocumentsWork extends AbstractWork {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Log log = LogFactory.getLog(WebpageToDocumentsWork.class);
+
+    public static final String WEBPAGES_ARCHIVED_EVENT = "webpagesArchived";
+
+    /**
+     * Event property: <code>ArrayList&lt;String&gt;</code>, the IDs of the documents archived
+     */
+    public static final String EVENT_PROP_ARCHIVED = "archived";
+
+    /**
+     * Event property: <code>HashMap&lt;String, String&gt;</code>, the error message of each document in failure
+     */
+    public static final String EVENT_PROP_FAILED = "failed";
+
+    /**
+     * Event property: <code>ArrayList&lt;String&gt;</code>, the IDs of the documents whose rendering failed with a
+     * transient error, tried again later in their own work
+     */
+    public static final String EVENT_PROP_RETRIED = "retried";
+
+    public static final int DEFAULT_PARALLELISM = 2;
+
+    public static final int DEFAULT_TRANSACTION_SIZE = 20;
+
+    /**
+     * Max. time a page waits for the politeness limits of its host (see {@link HostThrottle})
+     */
+    public static final long HOST_MAX_WAIT = 300000;
+
+    protected String commandLine;
+
+    protected ArrayList<String> urls;
+
+    protected String xpath;
+
+    // See CookieJars
+    protected String cookieJarKey;
+
+    protected int timeout;
+
+    protected boolean conditional = false;
+
+    protected int parallelism = DEFAULT_PARALLELISM;
+
+    protected int transactionSize = DEFAULT_TRANSACTION_SIZE;
+
+    // When the work was given to the WorkManager, for the queue wait metric
+    protected long queuedTime;
+
+    // Documents left out by the operation (docId => error), reported with the first group
+    protected HashMap<String, String> rejected = new HashMap<>();
+
+    protected transient int archivedCount;
+
+    protected transient int notModifiedCount;
+
+    protected transient int failedCount;
+
+    protected transient int retriedCount;
+
+    /*
+     * The outcome of the rendering of one document
+     */
+    protected static class Rendition {
+
+        protected Blob pdf;
+
+        protected PageProbe.Result probe;
+
+        protected Exception failure;
+    }
+
+    /**
+     * @param inCommandLine
+     * @param inRepoName
+     * @param inDocIds
+     * @param inUrls the URL of each document, same order as <code>inDocIds</code>
+     * @param inXPath
+     * @param inCookieJarKey the cookie jar, as stored by {@link CookieJars#store(Blob)}, or null
+     */
+    public WebpageToDocumentsWork(String inCommandLine, String inRepoName, List<String> inDocIds, List<String> inUrls,
+            String inXPath, String inCookieJarKey) {
+        super();
+        if (inDocIds.size() != inUrls.size()) {
+            throw new IllegalArgumentException("One URL is expected for each document");
+        }
+        setDocuments(inRepoName, new ArrayList<>(inDocIds));
+
+        commandLine = inCommandLine;
+        urls = new ArrayList<>(inUrls);
+        xpath = inXPath;
+        cookieJarKey = inCookieJarKey;
+        if (cookieJarKey != null && StringUtils.isBlank(commandLine)) {
+            commandLine = "wkhtmlToPdf-authenticated";
+        }
+    }
+
+    @Override
+    public void work() {
+
+        int total = docIds.size();
+        archivedCount = notModifiedCount = failedCount = retriedCount = 0;
+        if (total == 0) {
+            // Only documents left out to report
+            startTransaction();
+            openSystemSession();
+            try {
+                fireWebpagesArchivedEvent(new ArrayList<>(), new HashMap<>(rejected), new ArrayList<>());
+            } finally {
+                commitOrRollbackTransaction();
+                closeSession();
+            }
+            setStatus("Done: " + rejected.size() + " failed");
+            return;
+        }
+        setProgress(new Progress(0, total));
+        if (queuedTime > 0) {
+            ArchiverMetrics.get().update(ArchiverMetrics.STAGE_QUEUE_WAIT, commandLine,
+                    TimeUnit.MILLISECONDS.toNanos(Math.max(0, System.currentTimeMillis() - queuedTime)));
+        }
+
+        // Nothing to keep open while rendering
+        commitOrRollbackTransaction();
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "webpage-archiver-batch-" + getId());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            for (int start = 0; start < total; start += transactionSize) {
+                int end = Math.min(start + transactionSize, total);
+                setStatus("Archiving " + (start + 1) + "-" + end + "/" + total);
+                archiveGroup(executor, start, end);
+                setProgress(new Progress(end, total));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        setStatus("Done: " + archivedCount + " archived, " + notModifiedCount + " not modified, " + failedCount
+                + " failed, " + retriedCount + " to try again");
+    }
+
+    protected void archiveGroup(ExecutorService inExecutor, int inStart, int inEnd) {
+
+        List<String> groupIds = docIds.subList(inStart, inEnd);
+        List<String> groupUrls = urls.subList(inStart, inEnd);
+        HashMap<String, String> failed = new HashMap<>();
+        if (inStart == 0) {
+            failed.putAll(rejected);
+        }
+
+        // Validators of the previous archives, if any
+        List<String[]> validators = new ArrayList<>();
+        for (int i = 0; i < groupIds.size(); i++) {
+            validators.add(null);
+        }
+        if (conditional && cookieJarKey == null) {
+            startTransaction();
+            openSystemSession();
+            try {
+                for (int i = 0; i < groupIds.size(); i++) {
+                    try {
+                        DocumentModel doc = session.getDocument(new IdRef(groupIds.get(i)));
+                        if (WebpageArchiveFacet.hasValidators(doc, groupUrls.get(i), xpath)) {
+                            validators.set(i, new String[] { WebpageArchiveFacet.getEtag(doc),
+                                    WebpageArchiveFacet.getLastModified(doc) });
+                        }
+                    } catch (NuxeoException e) {
+                        // Rendered anyway, the failure will be reported when saving
+                    }
+                }
+            } finally {
+                commitOrRollbackTransaction();
+                closeSession();
+            }
+        }
+
+        // Render, no transaction
+        List<Future<Rendition>> futures = new ArrayList<>();
+        for (int i = 0; i < groupIds.size(); i++) {
+            String url = groupUrls.get(i);
+            String[] docValidators = validators.get(i);
+            futures.add(inExecutor.submit(() -> render(url, docValidators)));
+        }
+        List<Rendition> renditions = new ArrayList<>();
+        for (int i = 0; i < futures.size(); i++) {
+            Rendition rendition;
+            try {
+                rendition = futures.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new NuxeoException("Interrupted while archiving " + groupUrls.get(i), e);
+            } catch (ExecutionException e) {
+                rendition = new Rendition();
+                rendition.failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+            renditions.add(rendition);
+        }
+
+        // Save, one transaction for the group
+        ArrayList<String> archived = new ArrayList<>();
+        ArrayList<String> retried = new ArrayList<>();
+        List<Integer> toSave = new ArrayList<>();
+        for (int i = 0; i < groupIds.size(); i++) {
+            String docId = groupIds.get(i);
+            Rendition rendition = renditions.get(i);
+            if (rendition.probe != null && rendition.probe.isNotModified()) {
+                notModifiedCount++;
+            } else if (rendition.pdf != null) {
+                toSave.add(i);
+            } else if (scheduleRetry(docId, groupUrls.get(i), rendition.failure)) {
+                retried.add(docId);
+            } else {
+                failed.put(docId, RenderException.classify(rendition.failure) + ": " + rendition.failure.getMessage());
+            }
+        }
+
+        long start = System.nanoTime();
+        try {
+            if (!saveGroup(groupIds, groupUrls, renditions, toSave, archived, failed, retried)) {
+                // Nothing of the group was saved: one transaction per document
+                archived.clear();
+                for (int i : toSave) {
+                    String error = saveAlone(groupIds.get(i), groupUrls.get(i), renditions.get(i));
+                    if (error == null) {
+                        archived.add(groupIds.get(i));
+                        // Failed in the transaction rolled back
+                        failed.remove(groupIds.get(i));
+                    } else {
+                        failed.put(groupIds.get(i), error);
+                    }
+                }
+                startTransaction();
+                openSystemSession();
+                try {
+                    fireWebpagesArchivedEvent(archived, failed, retried);
+                } finally {
+                    commitOrRollbackTransaction();
+                    closeSession();
+                }
+            }
+            archivedCount += archived.size();
+            failedCount += failed.size();
+            retriedCount += retried.size();
+        } finally {
+            ArchiverMetrics.get().update(ArchiverMetrics.STAGE_SAVE, null, System.nanoTime() - start);
+            releasePending(groupIds, groupUrls, retried);
+        }
+    }
+
+    /*
+     * Saves the documents in a single transaction, and fires the event in it. Returns false if the transaction was
+     * rolled back: then nothing is saved, nor added to inArchived. A failure that does not affect the transaction only
+     * fails its document.
+     */
+    protected boolean saveGroup(List<String> inDocIds, List<String> inUrls, List<Rendition> inRenditions,
+            List<Integer> inToSave, ArrayList<String> inArchived, HashMap<String, String> inFailed,
+            ArrayList<String> inRetried) {
+
+        startTransaction();
+        openSystemSession();
+        try {
+            for (int i : inToSave) {
+                String docId = inDocIds.get(i);
+                try {
+                    saveDocument(docId, inUrls.get(i), inRenditions.get(i));
+                    inArchived.add(docId);
+                } catch (ConcurrentUpdateException e) {
+                    log.debug("Concurrent update of document " + docId + ", saving the group one by one", e);
+                    TransactionHelper.setTransactionRollbackOnly();
+                    return false;
+                } catch (NuxeoException e) {
+                    if (TransactionHelper.isTransactionMarkedRollback()) {
+                        log.warn("Transaction rolled back while saving document " + docId
+                                + ", saving the group one by one", e);
+                        return false;
+                    }
+                    log.error("Cannot save the archive of " + inUrls.get(i) + " in document " + docId, e);
+                    inFailed.put(docId, e.getMessage());
+                }
+            }
+            // Errors of the database are raised here, not at commit
+            session.save();
+            if (TransactionHelper.isTransactionMarkedRollback()) {
+                // By a listener that did not raise the error
+                log.warn("Transaction marked for rollback while saving the group, saving it one by one");
+                return false;
+            }
+            fireWebpagesArchivedEvent(inArchived, inFailed, inRetried);
+            return true;
+        } catch (NuxeoException e) {
+            log.warn("Cannot save the group, saving it one by one", e);
+            TransactionHelper.setTransactionRollbackOnly();
+            return false;
+        } finally {
+            commitOrRollbackTransaction();
+            closeSession();
+        }
+    }
+
+    /*
+     * Own transaction, saved again on a concurrent update. Returns the error, null if saved
+     */
+    protected String saveAlone(String inDocId, String inUrl, Rendition inRendition) {
+
+        for (int i = 1;; i++) {
+            startTransaction();
+            openSystemSession();
+            try {
+                saveDocument(inDocId, inUrl, inRendition);
+                session.save();
+                if (TransactionHelper.isTransactionMarkedRollback()) {
+                    log.error("Transaction marked for rollback while saving the archive of " + inUrl
+                            + " in document " + inDocId);
+                    return "Transaction rolled back";
+                }
+                return null;
+            } catch (ConcurrentUpdateException e) {
+                TransactionHelper.setTransactionRollbackOnly();
+                if (i >= WebpageToBlobWork.MAX_SAVE_ATTEMPTS) {
+                    log.error("Cannot save the archive of " + inUrl + " in document " + inDocId, e);
+                    return e.getMessage();
+                }
+                log.debug("Concurrent update of document " + inDocId + ", saving again", e);
+            } catch (NuxeoException e) {
+                TransactionHelper.setTransactionRollbackOnly();
+                log.error("Cannot save the archive of " + inUrl + " in document " + inDocId, e);
+                return e.getMessage();
+            } finally {
+                commitOrRollbackTransaction();
+                closeSession();
+            }
+        }
+    }
+
+    protected void saveDocument(String inDocId, String inUrl, Rendition inRendition) {
+
+        DocumentModel doc = session.getDocument(new IdRef(inDocId));
+        doc.setPropertyValue(xpath, (Serializable) inRendition.pdf);
+        if (conditional || doc.hasFacet(WebpageArchiveFacet.FACET)) {
+            WebpageArchiveFacet.setArchived(doc, inUrl, inRendition.probe);
+        }
+        if (doc.isVersion()) {
+            doc.putContextData(ALLOW_VERSION_WRITE, Boolean.TRUE);
+        }
+        session.saveDocument(doc);
+    }
+
+    /*
+     * The requests of the group are ended, except the ones passed to a retry work
+     */
+    protected void releasePending(List<String> inDocIds, List<String> inUrls, List<String> inRetried) {
+
+        WebpageArchiverService service = Framework.getService(WebpageArchiverService.class);
+        if (service == null) {
+            return;
+        }
+        for (int i = 0; i < inDocIds.size(); i++) {
+            if (!inRetried.contains(inDocIds.get(i))) {
+                service.getPendingArchives().done(
+                        PendingArchives.computeKey(repositoryName, inDocIds.get(i), inUrls.get(i)));
+            }
+        }
+    }
+
+    protected Rendition render(String inUrl, String[] inValidators) throws InterruptedException {
+
+        Rendition rendition = new Rendition();
+
+        // These are the threads of the batch, not the ones of the queue: wait for the host
+        HostThrottle.Permit permit = null;
+        WebpageArchiverService service = Framework.getService(WebpageArchiverService.class);
+        if (service != null) {
+            permit = service.getHostThrottle().acquire(inUrl, HOST_MAX_WAIT);
+            if (!permit.isAcquired()) {
+                rendition.failure = new RenderException(RenderException.Kind.HOST_BUSY,
+                        "Host busy for more than " + HOST_MAX_WAIT + "ms");
+                return rendition;
+            }
+        }
+
+        try {
+            if (conditional && cookieJarKey == null) {
+                long start = System.nanoTime();
+                rendition.probe = new PageProbe(timeout).probe(inUrl, inValidators == null ? null : inValidators[0],
+                        inValidators == null ? null : inValidators[1]);
+                ArchiverMetrics.get().update(ArchiverMetrics.STAGE_PROBE, null, System.nanoTime() - start);
+                if (rendition.probe.isNotModified()) {
+                    return rendition;
+                }
+            }
+
+            try {
+                // One local copy per rendering, wkhtmltopdf writes it back
+                rendition.pdf = new WebpageToBlob(timeout).toPdf(commandLine, inUrl, null,
+                        CookieJars.materialize(cookieJarKey));
+            } catch (IOException | NuxeoException | CommandNotAvailable e) {
+                rendition.failure = e;
+            }
+            return rendition;
+        } finally {
+            if (permit != null) {
+                permit.close();
+            }
+        }
+    }
+
+    /*
+     * Transient failures are tried again in a single document work, scheduled with a backoff (see WebpageToBlobWork),
+     * so the batch does not wait for them. Returns false if the failure is permanent.
+     */
+    protected boolean scheduleRetry(String inDocId, String inUrl, Exception inFailure) {
+
+        RenderException.Kind kind = RenderException.classify(inFailure);
+        WebpageArchiverService service = Framework.getService(WebpageArchiverService.class);
+        if (!kind.isTransient() || service == null) {
+            log.error("Failed to convert the \"" + inUrl + "\" to pdf (" + kind + "), not tried again", inFailure);
+            return false;
+        }
+
+        long delay = WebpageToBlobWork.computeRetryDelay(1);
+        log.warn("Failed to convert the \"" + inUrl + "\" to pdf (" + kind + "), next attempt in " + delay + "ms",
+                inFailure);
+        WebpageToBlobWork retry = new WebpageToBlobWork(commandLine, inUrl, repositoryName, inDocId, xpath, null,
+                null);
+        retry.setCookieJarKey(cookieJarKey);
+        retry.setTimeout(timeout);
+        retry.setConditional(conditional);
+        retry.setAttempt(2);
+        retry.setQueuedTime(System.currentTimeMillis() + delay);
+        retry.setNotBefore(System.currentTimeMillis() + delay);
+        service.scheduleLater(retry, delay);
+        return true;
+    }
+
+    protected void fireWebpagesArchivedEvent(ArrayList<String> inArchived, HashMap<String, String> inFailed,
+            ArrayList<String> inRetried) {
+
+        if (inArchived.isEmpty() && inFailed.isEmpty() && inRetried.isEmpty()) {
+            return;
+        }
+        EventContext ctx = new EventContextImpl(session, session.getPrincipal());
+        ctx.setProperty(EVENT_PROP_ARCHIVED, inArchived);
+        ctx.setProperty(EVENT_PROP_FAILED, inFailed);
+        ctx.setProperty(EVENT_PROP_RETRIED, inRetried);
+        Framework.getService(EventService.class).fireEvent(ctx.newEvent(WEBPAGES_ARCHIVED_EVENT));
+    }
+
+    @Override
+    public String getCategory() {
+        return WebpageToBlobWork.CATEGORY_WEBPAGE_TO_BLOB;
+    }
+
+    @Override
+    public String getTitle() {
+        return "Webpage to Blob for " + docIds.size() + " document(s)";
+    }
+
+    public void setTimeout(int newValue) {
+        timeout = newValue;
+    }
+
+    public void setConditional(boolean newValue) {
+        conditional = newValue;
+    }
+
+    public void setParallelism(int newValue) {
+        parallelism = newValue > 0 ? newValue : DEFAULT_PARALLELISM;
+    }
+
+    public void setTransactionSize(int newValue) {
+        transactionSize = newValue > 0 ? newValue : DEFAULT_TRANSACTION_SIZE;
+    }
+
+    /**
+     * @param newValue when the work is given to the WorkManager, in ms since the epoch
+     * @since 10.10
+     */
+    public void setQueuedTime(long newValue) {
+        queuedTime = newValue;
+    }
+
+    /**
+     * @param newValue the documents left out by the operation (docId => error), reported as failed in the event of the
+     *            first group
+     * @since 10.10
+     */
+    public void setRejected(Map<String, String> newValue) {
+        rejected = newValue == null ? new HashMap<>() : new HashMap<>(newValue);
+    }
+
+}
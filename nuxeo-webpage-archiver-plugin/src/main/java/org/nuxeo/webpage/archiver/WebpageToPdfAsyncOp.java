@@ -0,0 +1,74 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver;
+
+import org.apache.commons.lang.StringUtils;
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Same as {@link WebpageToPdfOp}, but returns immediately the id of a job rendering the page in the background. Use
+ * {@link WebpageToPdfStatusOp} to poll the job, {@link WebpageToPdfAwaitOp} to wait for it and get the PDF.
+ * <p>
+ * The number of asynchronous renders is bounded (see {@link org.nuxeo.webpage.archiver.async.AsyncRenders}): when
+ * too many are running or waiting, the operation fails with a 503 error.
+ *
+ * @since 10.10
+ */
+@Operation(id = WebpageToPdfAsyncOp.ID, category = Constants.CAT_CONVERSION, label = "Webpage to Pdf (Asynchronous)", description = "Start reading the distant web page and saving it as a pdf in the background. Returns the id of the job, to pass to WebpageToPdf.Status and WebpageToPdf.Await. Parameters are the same as WebpageToPdf. Fails with a 503 error if too many asynchronous renders are in progress.")
+public class WebpageToPdfAsyncOp {
+
+    public static final String ID = "WebpageToPdf.Async";
+
+    @Context
+    protected CoreSession session;
+
+    @Param(name = "commandLine", required = false)
+    protected String commandLine;
+
+    @Param(name = "url", required = true)
+    protected String url;
+
+    @Param(name = "fileName", required = false)
+    protected String fileName;
+
+    @Param(name = "cookieJar", required = false)
+    protected Blob cookieJar;
+
+    @Param(name = "timeout", required = false)
+    protected Long timeout;
+
+    @OperationMethod
+    public String run() {
+
+        if (cookieJar != null && StringUtils.isBlank(commandLine)) {
+            commandLine = "wkhtmlToPdf-authenticated";
+        }
+        WebpageArchiverService service = Framework.getService(WebpageArchiverService.class);
+        return service.getAsyncRenders().submit(session.getPrincipal().getName(), commandLine, url, fileName,
+                cookieJar, timeout == null ? 0 : timeout.intValue());
+    }
+
+}
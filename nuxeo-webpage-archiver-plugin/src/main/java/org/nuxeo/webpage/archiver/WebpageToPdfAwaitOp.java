@@ -0,0 +1,74 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver;
+
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.webpage.archiver.async.AsyncRenders;
+
+/**
+ * Waits at most <code>timeout</code> ms for a job started by {@link WebpageToPdfAsyncOp} and returns its PDF. Returns
+ * null if the job is still running after the timeout (call again later), fails if the render failed.
+ * <p>
+ * The PDF can be fetched only once, and only by the user who started the job. The timeout is capped to {@link #MAX_TIMEOUT}, so a caller cannot hold a request
+ * thread as long as the synchronous {@link WebpageToPdfOp} would.
+ *
+ * @since 10.10
+ */
+@Operation(id = WebpageToPdfAwaitOp.ID, category = Constants.CAT_CONVERSION, label = "Webpage to Pdf Await", description = "Wait at most timeout ms (default 0, max 10000) for a job started by WebpageToPdf.Async and return its pdf. Returns nothing if the job is still running, fails if the render failed. The pdf can be fetched only once, and only by the user who started the job.")
+public class WebpageToPdfAwaitOp {
+
+    public static final String ID = "WebpageToPdf.Await";
+
+    public static final long MAX_TIMEOUT = 10000;
+
+    @Context
+    protected CoreSession session;
+
+    @Param(name = "jobId", required = true)
+    protected String jobId;
+
+    @Param(name = "timeout", required = false)
+    protected Long timeout;
+
+    @OperationMethod
+    public Blob run() {
+
+        AsyncRenders asyncRenders = Framework.getService(WebpageArchiverService.class).getAsyncRenders();
+        String user = session.getPrincipal().getName();
+        long maxWait = timeout == null ? 0 : Math.max(0, Math.min(timeout.longValue(), MAX_TIMEOUT));
+        try {
+            if (!asyncRenders.await(jobId, user, maxWait)) {
+                return null;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NuxeoException(e);
+        }
+        return asyncRenders.fetch(jobId, user);
+    }
+
+}
@@ -34,7 +34,9 @@ import org.nuxeo.ecm.platform.commandline.executor.api.CommandNotAvailable;
  * time, caller will have to wait.
  * <p>
  * If access to <code>url</code> must be authenticated, a previous call to WebpageToBlob.Login must have returned Blob,
- * to pass in the <code>cookieJar</code> parameter.
+ * to pass in the <code>cookieJar</code> parameter. Or pass the name of the login command line in
+ * <code>loginCommand</code>: its cookie jar is then reused until the session expires (see
+ * {@link org.nuxeo.webpage.archiver.login.LoginSessions}).
  * <p>
  * Please, see the comments of {@link WebpageToBlob} for details about the usage of the wkhtmltopdf command line
  * <p>
@@ -42,7 +44,7 @@ import org.nuxeo.ecm.platform.commandline.executor.api.CommandNotAvailable;
  * 
  * @since 7.10
  */
-@Operation(id = WebpageToPdfOp.ID, category = Constants.CAT_CONVERSION, label = "Webpage to Pdf", description = "Read the distant web page and save it as a pdf. Default commandline contribution is used if a command line is not provided. Default timeout is 30000ms. If the page requests authentication, a previous call to WebpageToBlob.Login must have returned the cookieJar blob.")
+@Operation(id = WebpageToPdfOp.ID, category = Constants.CAT_CONVERSION, label = "Webpage to Pdf", description = "Read the distant web page and save it as a pdf. Default commandline contribution is used if a command line is not provided. Default timeout is 30000ms. If the page requests authentication, a previous call to WebpageToBlob.Login must have returned the cookieJar blob, or pass the name of the login command line in loginCommand (its session is then cached and reused).")
 public class WebpageToPdfOp {
 
     public static final String ID = "WebpageToPdf";
@@ -59,6 +61,9 @@ public class WebpageToPdfOp {
     @Param(name = "cookieJar", required = false)
     protected Blob cookieJar;
 
+    @Param(name = "loginCommand", required = false)
+    protected String loginCommand;
+
     @Param(name = "timeout", required = false)
     protected Long timeout;
 
@@ -72,6 +77,9 @@ public class WebpageToPdfOp {
         if (timeout != null && timeout.longValue() != 0) {
             wptopdf.setTimeout(timeout.intValue());
         }
+        if (cookieJar == null && StringUtils.isNotBlank(loginCommand)) {
+            return wptopdf.toPdfWithLogin(commandLine, url, fileName, loginCommand);
+        }
         return wptopdf.toPdf(commandLine, url, fileName, cookieJar);
     }
 
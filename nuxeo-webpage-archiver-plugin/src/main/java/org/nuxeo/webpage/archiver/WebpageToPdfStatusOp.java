@@ -0,0 +1,59 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver;
+
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.webpage.archiver.async.AsyncRenders;
+
+/**
+ * Returns the status of a job started by {@link WebpageToPdfAsyncOp}: "running", "done", "failed" or "unknown" (no
+ * such job, already fetched, expired, or started by another user). A failed job is returned as "failed: " followed by the error.
+ *
+ * @since 10.10
+ */
+@Operation(id = WebpageToPdfStatusOp.ID, category = Constants.CAT_CONVERSION, label = "Webpage to Pdf Status", description = "Return the status of a job started by WebpageToPdf.Async: running, done, failed (followed by the error) or unknown (no such job, already fetched, expired, or started by another user).")
+public class WebpageToPdfStatusOp {
+
+    public static final String ID = "WebpageToPdf.Status";
+
+    @Context
+    protected CoreSession session;
+
+    @Param(name = "jobId", required = true)
+    protected String jobId;
+
+    @OperationMethod
+    public String run() {
+
+        AsyncRenders asyncRenders = Framework.getService(WebpageArchiverService.class).getAsyncRenders();
+        String user = session.getPrincipal().getName();
+        String status = asyncRenders.getStatus(jobId, user);
+        if (AsyncRenders.STATUS_FAILED.equals(status)) {
+            return status + ": " + asyncRenders.getError(jobId, user);
+        }
+        return status;
+    }
+
+}
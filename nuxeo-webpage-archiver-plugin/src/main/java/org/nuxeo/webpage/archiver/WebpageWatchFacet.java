@@ -0,0 +1,125 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver;
+
+import java.util.Calendar;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.StringUtils;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.webpage.archiver.watch.WebpageWatchWork;
+
+/**
+ * The <code>WebpageWatch</code> facet (schema <code>webpagewatch</code>, prefix <code>wpw</code>) asks for the URL it
+ * holds to be archived again in the document every <code>interval</code> minutes (see {@link WebpageWatchWork}).
+ * <p>
+ * The next archive is planned when the previous one is scheduled, with some randomness, so documents watched at the
+ * same time drift apart instead of being archived together forever.
+ *
+ * @since 10.10
+ */
+public class WebpageWatchFacet {
+
+    public static final String FACET = "WebpageWatch";
+
+    public static final String XPATH_URL = "wpw:url";
+
+    // In minutes
+    public static final String XPATH_INTERVAL = "wpw:interval";
+
+    public static final String XPATH_NEXT_ARCHIVE = "wpw:nextArchive";
+
+    // The blob field of the archive, file:content if empty
+    public static final String XPATH_XPATH = "wpw:xpath";
+
+    // The command line rendering the page, the default one if empty
+    public static final String XPATH_COMMAND_LINE = "wpw:commandLine";
+
+    public static final String DEFAULT_XPATH = "file:content";
+
+    // The next archive is planned at interval +/- 10%
+    public static final double JITTER = 0.1;
+
+    private WebpageWatchFacet() {
+    }
+
+    /**
+     * Starts watching the URL, adding the facet if needed. The first archive is due now. Does not save the document.
+     *
+     * @param inDoc
+     * @param inUrl
+     * @param inInterval in minutes
+     * @since 10.10
+     */
+    public static void watch(DocumentModel inDoc, String inUrl, long inInterval) {
+
+        if (!inDoc.hasFacet(FACET)) {
+            inDoc.addFacet(FACET);
+        }
+        inDoc.setPropertyValue(XPATH_URL, inUrl);
+        inDoc.setPropertyValue(XPATH_INTERVAL, Long.valueOf(inInterval));
+        inDoc.setPropertyValue(XPATH_NEXT_ARCHIVE, Calendar.getInstance());
+    }
+
+    public static String getUrl(DocumentModel inDoc) {
+        return inDoc.hasFacet(FACET) ? (String) inDoc.getPropertyValue(XPATH_URL) : null;
+    }
+
+    /**
+     * @param inDoc
+     * @return the interval in minutes, 0 if not watched
+     * @since 10.10
+     */
+    public static long getInterval(DocumentModel inDoc) {
+
+        Object value = inDoc.hasFacet(FACET) ? inDoc.getPropertyValue(XPATH_INTERVAL) : null;
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    public static String getXPath(DocumentModel inDoc) {
+        String xpath = inDoc.hasFacet(FACET) ? (String) inDoc.getPropertyValue(XPATH_XPATH) : null;
+        return StringUtils.isBlank(xpath) ? DEFAULT_XPATH : xpath;
+    }
+
+    public static String getCommandLine(DocumentModel inDoc) {
+        return inDoc.hasFacet(FACET) ? (String) inDoc.getPropertyValue(XPATH_COMMAND_LINE) : null;
+    }
+
+    public static void setNextArchive(DocumentModel inDoc, long inTime) {
+
+        Calendar next = Calendar.getInstance();
+        next.setTimeInMillis(inTime);
+        inDoc.setPropertyValue(XPATH_NEXT_ARCHIVE, next);
+    }
+
+    /**
+     * @param inNow in ms since the epoch
+     * @param inInterval in minutes, at least 1
+     * @return the time of the next archive, the interval +/- {@link #JITTER}
+     * @since 10.10
+     */
+    public static long computeNextArchive(long inNow, long inInterval) {
+
+        long interval = TimeUnit.MINUTES.toMillis(Math.max(1, inInterval));
+        long jitter = (long) (interval * JITTER);
+        return inNow + interval - jitter + ThreadLocalRandom.current().nextLong(2 * jitter + 1);
+    }
+
+}
@@ -0,0 +1,333 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.async;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.transientstore.api.TransientStore;
+import org.nuxeo.ecm.core.transientstore.api.TransientStoreService;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.webpage.archiver.RenderException;
+import org.nuxeo.webpage.archiver.WebpageToBlob;
+
+/**
+ * Renders pages to PDF in the background, so the caller gets a job id immediately instead of holding its (HTTP
+ * request) thread during the whole rendering.
+ * <p>
+ * The renders run in a bounded pool of threads: at most <code>maxConcurrent</code> at a time, and at most
+ * <code>maxQueued</code> waiting. When both are full, a new job is refused with a 503 error, the caller retries
+ * later.
+ * <p>
+ * The status of the jobs and the rendered PDFs are kept in a TransientStore, so any node of a cluster can answer the
+ * polling of a job (as long as the store is shared). The PDF is released from the store once fetched, and anyway
+ * after the TTL of the store. Waiting for a job started on the same node does not poll the store.
+ * <p>
+ * The user who started a job is stored with it: for any other user, the job does not exist (its status is
+ * {@link #STATUS_UNKNOWN}, it cannot be waited for nor fetched), so a job id seen by someone else does not give
+ * access to the PDF.
+ *
+ * @since 10.10
+ */
+public class AsyncRenders {
+
+    private static final Log log = LogFactory.getLog(AsyncRenders.class);
+
+    public static final String STATUS_RUNNING = "running";
+
+    public static final String STATUS_DONE = "done";
+
+    public static final String STATUS_FAILED = "failed";
+
+    public static final String STATUS_UNKNOWN = "unknown";
+
+    protected static final String PARAM_STATUS = "status";
+
+    protected static final String PARAM_ERROR = "error";
+
+    protected static final String PARAM_OWNER = "owner";
+
+    // When the job runs on another node
+    protected static final long POLL_INTERVAL = 200;
+
+    protected final String transientStoreName;
+
+    protected final ThreadPoolExecutor executor;
+
+    // Jobs started on this node, so await() does not poll the store
+    protected final Map<String, CountDownLatch> localJobs = new ConcurrentHashMap<>();
+
+    /**
+     * @param inTransientStoreName the store keeping the status and the PDF of the jobs
+     * @param inMaxConcurrent renders running at the same time
+     * @param inMaxQueued renders waiting for a thread
+     */
+    public AsyncRenders(String inTransientStoreName, int inMaxConcurrent, int inMaxQueued) {
+
+        transientStoreName = inTransientStoreName;
+
+        AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(inMaxConcurrent, inMaxConcurrent, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(inMaxQueued), runnable -> {
+                    Thread thread = new Thread(runnable, "webpage-archiver-async-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Starts rendering the page in the background.
+     *
+     * @param inOwner the name of the user starting the job, the only one who can then read it
+     * @param inCommandLine
+     * @param inUrl
+     * @param inFileName
+     * @param inCookieJar copied before returning, the caller can dispose of it
+     * @param inTimeout in milliseconds, 0 for the default timeout
+     * @return the id of the job
+     * @throws NuxeoException (503) if too many renders are already running or waiting
+     * @since 10.10
+     */
+    public String submit(String inOwner, String inCommandLine, String inUrl, String inFileName, Blob inCookieJar,
+            int inTimeout) {
+
+        Blob cookieJar = copyCookieJar(inCookieJar);
+
+        String jobId = UUID.randomUUID().toString();
+        TransientStore store = getStore();
+        store.putParameter(jobId, PARAM_OWNER, inOwner);
+        store.putParameter(jobId, PARAM_STATUS, STATUS_RUNNING);
+
+        CountDownLatch latch = new CountDownLatch(1);
+        localJobs.put(jobId, latch);
+        try {
+            executor.execute(() -> run(jobId, latch, inCommandLine, inUrl, inFileName, cookieJar, inTimeout));
+        } catch (RejectedExecutionException e) {
+            localJobs.remove(jobId);
+            store.remove(jobId);
+            throw new NuxeoException("Too many asynchronous renders in progress, try again later", 503);
+        }
+
+        return jobId;
+    }
+
+    protected void run(String inJobId, CountDownLatch inLatch, String inCommandLine, String inUrl, String inFileName,
+            Blob inCookieJar, int inTimeout) {
+
+        TransientStore store = getStore();
+        try {
+            Blob pdf = render(inCommandLine, inUrl, inFileName, inCookieJar, inTimeout);
+            store.putBlobs(inJobId, Collections.singletonList(pdf));
+            store.putParameter(inJobId, PARAM_STATUS, STATUS_DONE);
+        } catch (Exception e) {
+            RenderException.Kind kind = RenderException.classify(e);
+            log.warn("Asynchronous render of " + inUrl + " failed (" + kind + "): " + e.getMessage());
+            store.putParameter(inJobId, PARAM_ERROR, kind + ": " + e.getMessage());
+            store.putParameter(inJobId, PARAM_STATUS, STATUS_FAILED);
+        } finally {
+            store.setCompleted(inJobId, true);
+            localJobs.remove(inJobId);
+            inLatch.countDown();
+        }
+    }
+
+    protected Blob render(String inCommandLine, String inUrl, String inFileName, Blob inCookieJar, int inTimeout)
+            throws Exception {
+
+        WebpageToBlob wptopdf = new WebpageToBlob();
+        if (inTimeout > 0) {
+            wptopdf.setTimeout(inTimeout);
+        }
+        return wptopdf.toPdf(inCommandLine, inUrl, inFileName, inCookieJar);
+    }
+
+    /**
+     * @param inJobId
+     * @param inUser the name of the user asking
+     * @return one of the STATUS_ constants. {@link #STATUS_UNKNOWN} if the job does not exist, was already fetched,
+     *         expired or was started by another user
+     * @since 10.10
+     */
+    public String getStatus(String inJobId, String inUser) {
+
+        TransientStore store = getStore();
+        if (!exists(store, inJobId, inUser)) {
+            return STATUS_UNKNOWN;
+        }
+        Serializable status = store.getParameter(inJobId, PARAM_STATUS);
+        return status == null ? STATUS_UNKNOWN : status.toString();
+    }
+
+    /**
+     * @param inJobId
+     * @param inUser the name of the user asking
+     * @return the error of a failed job ("KIND: message"), null otherwise
+     * @since 10.10
+     */
+    public String getError(String inJobId, String inUser) {
+
+        TransientStore store = getStore();
+        if (!exists(store, inJobId, inUser)) {
+            return null;
+        }
+        Serializable error = store.getParameter(inJobId, PARAM_ERROR);
+        return error == null ? null : error.toString();
+    }
+
+    /**
+     * Waits for the job to complete, at most <code>inMaxWait</code> milliseconds.
+     *
+     * @param inJobId
+     * @param inUser the name of the user asking
+     * @param inMaxWait
+     * @return true if the job is completed (done or failed), false if it is still running or does not exist (for this
+     *         user)
+     * @throws InterruptedException
+     * @since 10.10
+     */
+    public boolean await(String inJobId, String inUser, long inMaxWait) throws InterruptedException {
+
+        TransientStore store = getStore();
+        if (!exists(store, inJobId, inUser)) {
+            return false;
+        }
+        CountDownLatch latch = localJobs.get(inJobId);
+        if (latch != null) {
+            latch.await(inMaxWait, TimeUnit.MILLISECONDS);
+            return store.isCompleted(inJobId);
+        }
+
+        long deadline = System.currentTimeMillis() + inMaxWait;
+        while (true) {
+            if (!store.exists(inJobId)) {
+                return false;
+            }
+            if (store.isCompleted(inJobId)) {
+                return true;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            Thread.sleep(Math.min(POLL_INTERVAL, remaining));
+        }
+    }
+
+    /**
+     * Returns the PDF of a completed job and releases it from the store: a job can be fetched once.
+     *
+     * @param inJobId
+     * @param inUser the name of the user asking
+     * @return the PDF, or null if the job is not completed (or does not exist for this user)
+     * @throws NuxeoException if the render failed
+     * @since 10.10
+     */
+    public Blob fetch(String inJobId, String inUser) {
+
+        TransientStore store = getStore();
+        if (!exists(store, inJobId, inUser) || !store.isCompleted(inJobId)) {
+            return null;
+        }
+
+        String status = getStatus(inJobId, inUser);
+        String error = getError(inJobId, inUser);
+        List<Blob> blobs = store.getBlobs(inJobId);
+        // The blob stays readable until the store garbage collects it
+        store.release(inJobId);
+
+        if (!STATUS_DONE.equals(status) || blobs == null || blobs.isEmpty()) {
+            throw new NuxeoException("Asynchronous render " + inJobId + " failed: " + error);
+        }
+        return blobs.get(0);
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public int getQueuedCount() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Stops the threads. The jobs still waiting are dropped, their status stays "running" until the store expires
+     * them.
+     *
+     * @since 10.10
+     */
+    public void shutdown() {
+        List<Runnable> dropped = executor.shutdownNow();
+        if (!dropped.isEmpty()) {
+            log.warn(dropped.size() + " asynchronous render(s) dropped");
+        }
+    }
+
+    /*
+     * A job started by another user does not exist for this one
+     */
+    protected static boolean exists(TransientStore inStore, String inJobId, String inUser) {
+        return inStore.exists(inJobId) && inUser != null && inUser.equals(inStore.getParameter(inJobId, PARAM_OWNER));
+    }
+
+    protected TransientStore getStore() {
+        return Framework.getService(TransientStoreService.class).getStore(transientStoreName);
+    }
+
+    /*
+     * The cookie jar of the request may be deleted once the request is done
+     */
+    protected static Blob copyCookieJar(Blob inCookieJar) {
+
+        if (inCookieJar == null) {
+            return null;
+        }
+        try {
+            Blob copy = Blobs.createBlobWithExtension(".jar");
+            if (inCookieJar.getFile() != null) {
+                Files.copy(inCookieJar.getFile().toPath(), copy.getFile().toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                inCookieJar.transferTo(copy.getFile());
+            }
+            return copy;
+        } catch (IOException e) {
+            throw new NuxeoException("Cannot copy the cookie jar", e);
+        }
+    }
+
+}
@@ -0,0 +1,393 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.blob.BlobManager;
+import org.nuxeo.ecm.core.blob.BlobManager.BlobInfo;
+import org.nuxeo.ecm.core.blob.BlobProvider;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.kv.KeyValueService;
+import org.nuxeo.runtime.kv.KeyValueStore;
+
+/**
+ * Cache of rendered PDFs, so the same page archived several times within minutes is rendered only once.
+ * <p>
+ * The key is built from the normalized URL, the command line with its resolved parameters and a hash of the cookie
+ * jar content (see {@link #computeKey(String, String, File)}). The value is the key of the PDF in the blob provider:
+ * the PDF is written to the blob provider when put in the cache, so a hit returns the already stored binary, and
+ * saving it in a document does not copy it again.
+ * <p>
+ * Entries are kept:
+ * <ul>
+ * <li>In a local LRU map, bounded in number of entries and in total size of the PDFs they reference</li>
+ * <li>In the KeyValueStore, with the TTL of the command line, so the entries are shared by all the nodes of a
+ * cluster</li>
+ * </ul>
+ * If the binary was garbage collected in the meantime, the entry is just dropped and the page rendered again.
+ *
+ * @since 10.10
+ */
+public class RenderCache {
+
+    private static final Log log = LogFactory.getLog(RenderCache.class);
+
+    protected static final String KEY_PREFIX = "webpagearchiver:render:";
+
+    protected final String blobProviderId;
+
+    protected final String keyValueStoreName;
+
+    protected final int maxEntries;
+
+    protected final long maxSize;
+
+    protected final AtomicLong hits = new AtomicLong();
+
+    protected final AtomicLong misses = new AtomicLong();
+
+    protected long size = 0;
+
+    // Access ordered, so the eldest is the least recently used
+    protected final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    protected static class Entry {
+
+        protected final String blobKey;
+
+        protected final long length;
+
+        protected final long expiration;
+
+        protected Entry(String inBlobKey, long inLength, long inExpiration) {
+            blobKey = inBlobKey;
+            length = inLength;
+            expiration = inExpiration;
+        }
+
+        protected String serialize() {
+            return blobKey + "\n" + length + "\n" + expiration;
+        }
+
+        protected static Entry deserialize(String inValue) {
+            String[] parts = StringUtils.split(inValue, "\n");
+            if (parts == null || parts.length != 3) {
+                return null;
+            }
+            try {
+                return new Entry(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @param inBlobProviderId the provider where the PDFs are written
+     * @param inKeyValueStoreName the store sharing the entries in a cluster, null for a local cache only
+     * @param inMaxEntries
+     * @param inMaxSize total size in bytes of the PDFs referenced by the local entries
+     */
+    public RenderCache(String inBlobProviderId, String inKeyValueStoreName, int inMaxEntries, long inMaxSize) {
+        blobProviderId = inBlobProviderId;
+        keyValueStoreName = inKeyValueStoreName;
+        maxEntries = inMaxEntries;
+        maxSize = inMaxSize;
+    }
+
+    /**
+     * Returns the cached PDF, or null if there is no valid entry for the key.
+     *
+     * @param inKey as returned by {@link #computeKey(String, String, File)}
+     * @param inFileName the file name to give to the returned blob
+     * @return the blob, or null
+     * @since 10.10
+     */
+    public Blob get(String inKey, String inFileName) {
+
+        long now = System.currentTimeMillis();
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(inKey);
+        }
+        if (entry == null) {
+            KeyValueStore kvStore = getKeyValueStore();
+            entry = kvStore == null ? null : Entry.deserialize(kvStore.getString(KEY_PREFIX + inKey));
+            if (entry != null && entry.expiration > now) {
+                putLocal(inKey, entry);
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (entry.expiration <= now) {
+            remove(inKey);
+            misses.incrementAndGet();
+            return null;
+        }
+
+        Blob blob = readBlob(entry, inFileName);
+        if (blob == null) {
+            log.debug("Cached PDF " + entry.blobKey + " not found in the blob provider, dropping the entry");
+            remove(inKey);
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        return blob;
+    }
+
+    /**
+     * Writes the PDF in the blob provider and caches its key for <code>inTtl</code> seconds. Failing to cache is not
+     * an error: the PDF is still returned to the caller.
+     *
+     * @param inKey as returned by {@link #computeKey(String, String, File)}
+     * @param inPdf
+     * @param inTtl in seconds
+     * @since 10.10
+     */
+    public void put(String inKey, Blob inPdf, long inTtl) {
+
+        if (inTtl <= 0) {
+            return;
+        }
+
+        String blobKey;
+        try {
+            blobKey = writeBlob(inPdf);
+        } catch (IOException e) {
+            log.warn("Cannot write the PDF in the blob provider " + blobProviderId + ", not cached", e);
+            return;
+        }
+        if (blobKey == null) {
+            return;
+        }
+
+        Entry entry = new Entry(blobKey, inPdf.getLength(), System.currentTimeMillis() + inTtl * 1000);
+        putLocal(inKey, entry);
+        KeyValueStore kvStore = getKeyValueStore();
+        if (kvStore != null) {
+            kvStore.put(KEY_PREFIX + inKey, entry.serialize(), inTtl);
+        }
+    }
+
+    public void remove(String inKey) {
+
+        synchronized (entries) {
+            Entry entry = entries.remove(inKey);
+            if (entry != null) {
+                size -= entry.length;
+            }
+        }
+        KeyValueStore kvStore = getKeyValueStore();
+        if (kvStore != null) {
+            kvStore.put(KEY_PREFIX + inKey, (String) null);
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            size = 0;
+        }
+    }
+
+    protected void putLocal(String inKey, Entry inEntry) {
+
+        synchronized (entries) {
+            Entry previous = entries.put(inKey, inEntry);
+            if (previous != null) {
+                size -= previous.length;
+            }
+            size += inEntry.length;
+
+            Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+            while ((entries.size() > maxEntries || size > maxSize) && it.hasNext()) {
+                Entry eldest = it.next().getValue();
+                it.remove();
+                size -= eldest.length;
+            }
+        }
+    }
+
+    protected Blob readBlob(Entry inEntry, String inFileName) {
+
+        BlobInfo info = new BlobInfo();
+        info.key = inEntry.blobKey;
+        info.digest = inEntry.blobKey;
+        info.length = Long.valueOf(inEntry.length);
+        info.mimeType = "application/pdf";
+        info.filename = inFileName;
+        try {
+            Blob blob = readBlob(info);
+            // Make sure the binary still exists (could have been garbage collected)
+            return blob != null && blob.getFile() != null && blob.getFile().exists() ? blob : null;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param inPdf
+     * @return the key of the PDF in the blob provider, or null if there is no provider
+     * @throws IOException
+     * @since 10.10
+     */
+    protected String writeBlob(Blob inPdf) throws IOException {
+        BlobProvider provider = getBlobProvider();
+        return provider == null ? null : provider.writeBlob(inPdf);
+    }
+
+    /**
+     * @param inInfo
+     * @return the blob, or null if there is no provider
+     * @throws IOException
+     * @since 10.10
+     */
+    protected Blob readBlob(BlobInfo inInfo) throws IOException {
+        BlobProvider provider = getBlobProvider();
+        return provider == null ? null : provider.readBlob(inInfo);
+    }
+
+    protected BlobProvider getBlobProvider() {
+        BlobManager blobManager = Framework.getService(BlobManager.class);
+        return blobManager == null ? null : blobManager.getBlobProvider(blobProviderId);
+    }
+
+    protected KeyValueStore getKeyValueStore() {
+        if (StringUtils.isBlank(keyValueStoreName)) {
+            return null;
+        }
+        KeyValueService kvService = Framework.getService(KeyValueService.class);
+        return kvService == null ? null : kvService.getKeyValueStore(keyValueStoreName);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public int getEntriesCount() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Builds the key of a rendition.
+     *
+     * @param inResolvedCommand the executable and its parameters, with the URL resolved
+     * @param inUrl the URL of the page, normalized here
+     * @param inCookieJar the cookie jar file, or null. Its content is hashed (not its path, which changes at every
+     *            login)
+     * @return the key
+     * @throws IOException if the cookie jar cannot be read
+     * @since 10.10
+     */
+    public static String computeKey(String inResolvedCommand, String inUrl, File inCookieJar) throws IOException {
+
+        MessageDigest digest = newDigest();
+        digest.update(inResolvedCommand.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) '\n');
+        digest.update(normalizeUrl(inUrl).getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) '\n');
+        if (inCookieJar != null) {
+            MessageDigest jarDigest = newDigest();
+            try (InputStream in = Files.newInputStream(inCookieJar.toPath())) {
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    jarDigest.update(buffer, 0, n);
+                }
+            }
+            digest.update(jarDigest.digest());
+        }
+
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Lower case scheme and host, no default port, no fragment. Path and query are kept as is: they are significant
+     * for the distant server.
+     *
+     * @param inUrl
+     * @return the normalized URL
+     * @since 10.10
+     */
+    public static String normalizeUrl(String inUrl) {
+
+        String url = inUrl.trim();
+        try {
+            URI uri = new URI(url);
+            if (uri.getScheme() == null || uri.getHost() == null) {
+                return url;
+            }
+            String scheme = uri.getScheme().toLowerCase(Locale.ROOT);
+            int port = uri.getPort();
+            if ("http".equals(scheme) && port == 80 || "https".equals(scheme) && port == 443) {
+                port = -1;
+            }
+            String path = StringUtils.isEmpty(uri.getRawPath()) ? "/" : uri.getRawPath();
+            return new URI(scheme, uri.getUserInfo(), uri.getHost().toLowerCase(Locale.ROOT), port, null, null,
+                    null).toString() + path + (uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery());
+        } catch (URISyntaxException e) {
+            return url;
+        }
+    }
+
+    protected static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    protected static String toHex(byte[] inBytes) {
+        StringBuilder hex = new StringBuilder(inBytes.length * 2);
+        for (byte b : inBytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.crawl;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Locale;
+
+import org.apache.commons.lang.StringUtils;
+import org.nuxeo.webpage.archiver.cache.RenderCache;
+
+/**
+ * The pages a crawl may follow from its seed URL: only <code>http</code> and <code>https</code> pages, and either
+ * <ul>
+ * <li>The URLs starting with <code>prefix</code> (normalized, see {@link RenderCache#normalizeUrl(String)}), when
+ * set</li>
+ * <li>Or, when <code>sameHost</code> is true, the URLs of the host of the seed</li>
+ * <li>Or any URL</li>
+ * </ul>
+ * Links to files that are obviously not pages (images, archives, ...) are never followed.
+ *
+ * @since 10.10
+ */
+public class CrawlScope {
+
+    protected static final String[] SKIPPED_EXTENSIONS = { ".pdf", ".png", ".jpg", ".jpeg", ".gif", ".svg", ".ico",
+            ".css", ".js", ".zip", ".gz", ".tar", ".exe", ".dmg", ".mp3", ".mp4", ".avi", ".mov", ".doc", ".docx",
+            ".xls", ".xlsx", ".ppt", ".pptx" };
+
+    protected final String host;
+
+    protected final String prefix;
+
+    /**
+     * @param inSeed the URL the crawl starts from
+     * @param inSameHost only follow the links to the host of the seed
+     * @param inPrefix only follow the links starting with this prefix, null or empty for no prefix
+     */
+    public CrawlScope(String inSeed, boolean inSameHost, String inPrefix) {
+        host = inSameHost ? getHost(inSeed) : null;
+        prefix = StringUtils.isBlank(inPrefix) ? null : RenderCache.normalizeUrl(inPrefix);
+    }
+
+    /**
+     * @param inUrl an absolute URL, as returned by {@link #toAbsolute(String, String)}
+     * @return true if the crawl can follow this URL
+     * @since 10.10
+     */
+    public boolean accepts(String inUrl) {
+
+        if (inUrl == null) {
+            return false;
+        }
+        String url = RenderCache.normalizeUrl(inUrl);
+        String lower = url.toLowerCase(Locale.ROOT);
+        if (!lower.startsWith("http://") && !lower.startsWith("https://")) {
+            return false;
+        }
+        String path = StringUtils.substringBefore(lower, "?");
+        for (String extension : SKIPPED_EXTENSIONS) {
+            if (path.endsWith(extension)) {
+                return false;
+            }
+        }
+        if (prefix != null) {
+            return url.startsWith(prefix);
+        }
+        return host == null || host.equals(getHost(url));
+    }
+
+    /**
+     * Resolves a link found in a page
+     *
+     * @param inBase the URL of the page
+     * @param inHref the link, absolute or relative
+     * @return the absolute URL, without fragment, or null if it is not a valid http(s) URL
+     * @since 10.10
+     */
+    public static String toAbsolute(String inBase, String inHref) {
+
+        if (StringUtils.isBlank(inHref)) {
+            return null;
+        }
+        try {
+            URI uri = inBase == null ? new URI(inHref.trim()) : new URI(inBase.trim()).resolve(inHref.trim());
+            String scheme = uri.getScheme() == null ? null : uri.getScheme().toLowerCase(Locale.ROOT);
+            if (!"http".equals(scheme) && !"https".equals(scheme) || uri.getHost() == null) {
+                return null;
+            }
+            return StringUtils.substringBefore(uri.toString(), "#");
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    protected static String getHost(String inUrl) {
+        try {
+            String host = new URI(inUrl.trim()).getHost();
+            return host == null ? null : host.toLowerCase(Locale.ROOT);
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.crawl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The pages still to archive by a crawl, breadth first: all the pages at depth 1 are archived before the ones at depth
+ * 2, so the budget is spent on the pages closest to the seed.
+ * <p>
+ * A URL is admitted once (see {@link VisitedUrls}), if it is in the scope of the crawl (see {@link CrawlScope}), not
+ * deeper than <code>maxDepth</code>, and while less than <code>maxPages</code> pages were admitted. The seed is at
+ * depth 0.
+ * <p>
+ * Not thread safe.
+ *
+ * @since 10.10
+ */
+public class UrlFrontier {
+
+    /**
+     * A page to archive
+     */
+    public static class Entry {
+
+        protected final String url;
+
+        protected final int depth;
+
+        public Entry(String inUrl, int inDepth) {
+            url = inUrl;
+            depth = inDepth;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public int getDepth() {
+            return depth;
+        }
+    }
+
+    protected final CrawlScope scope;
+
+    protected final int maxDepth;
+
+    protected final int maxPages;
+
+    protected final VisitedUrls visited;
+
+    protected final ArrayDeque<Entry> queue = new ArrayDeque<>();
+
+    protected int admitted = 0;
+
+    /**
+     * @param inScope
+     * @param inMaxDepth the links of the pages at this depth are not followed
+     * @param inMaxPages the budget of the crawl, seed included
+     */
+    public UrlFrontier(CrawlScope inScope, int inMaxDepth, int inMaxPages) {
+        scope = inScope;
+        maxDepth = Math.max(0, inMaxDepth);
+        maxPages = Math.max(1, inMaxPages);
+        visited = new VisitedUrls(Math.min(maxPages * 4, 1 << 20));
+    }
+
+    /**
+     * @param inUrl an absolute URL
+     * @param inDepth
+     * @return true if the URL was admitted
+     * @since 10.10
+     */
+    public boolean offer(String inUrl, int inDepth) {
+
+        if (admitted >= maxPages || inDepth > maxDepth || !scope.accepts(inUrl)) {
+            return false;
+        }
+        if (!visited.add(inUrl)) {
+            return false;
+        }
+        queue.add(new Entry(inUrl, inDepth));
+        admitted++;
+        return true;
+    }
+
+    /**
+     * @param inMax
+     * @return the next pages to archive, at most <code>inMax</code>
+     * @since 10.10
+     */
+    public List<Entry> poll(int inMax) {
+
+        List<Entry> entries = new ArrayList<>();
+        while (entries.size() < inMax && !queue.isEmpty()) {
+            entries.add(queue.poll());
+        }
+        return entries;
+    }
+
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    /**
+     * @return true if the links of a page at this depth can be followed
+     * @since 10.10
+     */
+    public boolean canFollow(int inDepth) {
+        return inDepth < maxDepth && admitted < maxPages;
+    }
+
+    public int getAdmitted() {
+        return admitted;
+    }
+
+}
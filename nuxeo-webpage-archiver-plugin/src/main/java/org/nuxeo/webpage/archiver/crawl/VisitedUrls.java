@@ -0,0 +1,161 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.crawl;
+
+import java.nio.charset.StandardCharsets;
+
+import org.nuxeo.webpage.archiver.cache.RenderCache;
+
+/**
+ * The URLs already seen by a crawl, stored as 64-bit hashes of their normalized form (see
+ * {@link RenderCache#normalizeUrl(String)}) in an open addressing table of <code>long</code>: 8 to 16 bytes per URL
+ * whatever its length, and no object per URL.
+ * <p>
+ * Two different URLs with the same hash are seen as the same one: with 64 bits, the probability stays below one in a
+ * billion for a crawl of a few hundred thousand pages. The worst case is a page not archived.
+ * <p>
+ * Not thread safe.
+ *
+ * @since 10.10
+ */
+public class VisitedUrls {
+
+    protected static final int MIN_CAPACITY = 16;
+
+    // 0 marks an empty slot: the URL hashed to 0, if any, is kept apart
+    protected long[] table;
+
+    protected boolean hasZero = false;
+
+    protected int size = 0;
+
+    public VisitedUrls() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param inExpected the expected number of URLs, the table grows anyway when needed
+     */
+    public VisitedUrls(int inExpected) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < inExpected * 2 && capacity < (1 << 30)) {
+            capacity <<= 1;
+        }
+        table = new long[capacity];
+    }
+
+    /**
+     * @param inUrl
+     * @return true if the URL was not seen yet
+     * @since 10.10
+     */
+    public boolean add(String inUrl) {
+        return addHash(hash(RenderCache.normalizeUrl(inUrl)));
+    }
+
+    public boolean contains(String inUrl) {
+
+        long hash = hash(RenderCache.normalizeUrl(inUrl));
+        if (hash == 0) {
+            return hasZero;
+        }
+        int mask = table.length - 1;
+        for (int i = index(hash, mask);; i = (i + 1) & mask) {
+            if (table[i] == 0) {
+                return false;
+            }
+            if (table[i] == hash) {
+                return true;
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    protected boolean addHash(long inHash) {
+
+        if (inHash == 0) {
+            if (hasZero) {
+                return false;
+            }
+            hasZero = true;
+            size++;
+            return true;
+        }
+        // Load factor at most 0.5
+        if ((size + 1) * 2 > table.length) {
+            grow();
+        }
+        int mask = table.length - 1;
+        for (int i = index(inHash, mask);; i = (i + 1) & mask) {
+            if (table[i] == 0) {
+                table[i] = inHash;
+                size++;
+                return true;
+            }
+            if (table[i] == inHash) {
+                return false;
+            }
+        }
+    }
+
+    protected void grow() {
+
+        long[] old = table;
+        table = new long[old.length * 2];
+        int mask = table.length - 1;
+        for (long hash : old) {
+            if (hash != 0) {
+                int i = index(hash, mask);
+                while (table[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                table[i] = hash;
+            }
+        }
+    }
+
+    protected static int index(long inHash, int inMask) {
+        // The low bits of FNV are not well distributed: mix the high ones in
+        long h = inHash ^ (inHash >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h & inMask;
+    }
+
+    /**
+     * 64-bit FNV-1a of the UTF-8 bytes
+     *
+     * @param inValue
+     * @return the hash
+     * @since 10.10
+     */
+    public static long hash(String inValue) {
+
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : inValue.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+}
@@ -0,0 +1,571 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.crawl;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.ConcurrentUpdateException;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentRef;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.event.EventContext;
+import org.nuxeo.ecm.core.event.EventService;
+import org.nuxeo.ecm.core.event.impl.EventContextImpl;
+import org.nuxeo.ecm.core.work.AbstractWork;
+import org.nuxeo.ecm.platform.commandline.executor.api.CommandNotAvailable;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+import org.nuxeo.webpage.archiver.RenderException;
+import org.nuxeo.webpage.archiver.WebpageArchiveFacet;
+import org.nuxeo.webpage.archiver.WebpageArchiverService;
+import org.nuxeo.webpage.archiver.WebpageCrawlOp;
+import org.nuxeo.webpage.archiver.WebpageToBlob;
+import org.nuxeo.webpage.archiver.WebpageToBlobWork;
+import org.nuxeo.webpage.archiver.WebpageToDocumentsWork;
+import org.nuxeo.webpage.archiver.host.HostThrottle;
+import org.nuxeo.webpage.archiver.login.CookieJars;
+import org.nuxeo.webpage.archiver.metrics.ArchiverMetrics;
+import org.nuxeo.webpage.archiver.pdf.PdfLinks;
+
+/**
+ * Archives a section of a site, starting from a seed URL and following the links of the archived pages (see
+ * {@link WebpageCrawlOp}). Each page is archived in a new child document of a folder.
+ * <p>
+ * The pages are taken from a {@link UrlFrontier}, breadth first, by groups of <code>transactionSize</code>. For each
+ * group:
+ * <ul>
+ * <li>The pages are rendered in parallel, at most <code>parallelism</code> at a time, outside any transaction. The
+ * politeness limits of the hosts apply (see {@link HostThrottle}). The links of each page are read from its PDF (see
+ * {@link PdfLinks})</li>
+ * <li>The documents are created in a single transaction, and one <code>webpagesArchived</code> event is fired (see
+ * {@link WebpageToDocumentsWork}). If this transaction is rolled back, each document is created again in its own
+ * transaction</li>
+ * <li>The links found are added to the frontier, which keeps the ones in the scope of the crawl, not seen yet, and
+ * within the depth and the budget of pages</li>
+ * </ul>
+ * A page failing to render is only logged and counted: it is not tried again, and its links are not followed. If the
+ * folder is deleted, the crawl stops.
+ *
+ * @since 10.10
+ */
+public class WebpageCrawlWork extends AbstractWork {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Log log = LogFactory.getLog(WebpageCrawlWork.class);
+
+    // WARNING: Must be the same as the one used in OSGI/Works.xml
+    public static final String CATEGORY_WEBPAGE_CRAWL = "webpageCrawl";
+
+    // The budget of a crawl cannot be more than this
+    public static final String MAX_PAGES_PROPERTY = "nuxeo.webpage.archiver.crawl.maxPages";
+
+    public static final int MAX_PAGES_DEFAULT = 1000;
+
+    public static final int DEFAULT_MAX_DEPTH = 2;
+
+    public static final int DEFAULT_PAGES = 100;
+
+    public static final int DEFAULT_PARALLELISM = 2;
+
+    public static final int DEFAULT_TRANSACTION_SIZE = 20;
+
+    public static final String DEFAULT_DOC_TYPE = "File";
+
+    public static final String DEFAULT_XPATH = "file:content";
+
+    protected static final int MAX_NAME_LENGTH = 60;
+
+    protected String commandLine;
+
+    protected String seedUrl;
+
+    protected int maxDepth = DEFAULT_MAX_DEPTH;
+
+    protected int maxPages = DEFAULT_PAGES;
+
+    protected boolean sameHost = true;
+
+    protected String prefix;
+
+    protected String docType = DEFAULT_DOC_TYPE;
+
+    protected String xpath = DEFAULT_XPATH;
+
+    // See CookieJars
+    protected String cookieJarKey;
+
+    protected int timeout;
+
+    protected int parallelism = DEFAULT_PARALLELISM;
+
+    protected int transactionSize = DEFAULT_TRANSACTION_SIZE;
+
+    // When the work was given to the WorkManager, for the queue wait metric
+    protected long queuedTime;
+
+    protected transient int archivedCount;
+
+    protected transient int failedCount;
+
+    /*
+     * The outcome of the rendering of one page
+     */
+    protected static class Page {
+
+        protected final UrlFrontier.Entry entry;
+
+        protected Blob pdf;
+
+        protected Set<String> links;
+
+        protected Exception failure;
+
+        protected Page(UrlFrontier.Entry inEntry) {
+            entry = inEntry;
+        }
+    }
+
+    /**
+     * @param inCommandLine
+     * @param inSeedUrl
+     * @param inRepoName
+     * @param inFolderId the parent of the documents created for the pages
+     * @param inCookieJarKey the cookie jar, as stored by {@link CookieJars#store(Blob)}, or null
+     */
+    public WebpageCrawlWork(String inCommandLine, String inSeedUrl, String inRepoName, String inFolderId,
+            String inCookieJarKey) {
+        super();
+        setDocument(inRepoName, inFolderId);
+
+        commandLine = inCommandLine;
+        seedUrl = inSeedUrl;
+        cookieJarKey = inCookieJarKey;
+        if (cookieJarKey != null && StringUtils.isBlank(commandLine)) {
+            commandLine = "wkhtmlToPdf-authenticated";
+        }
+    }
+
+    @Override
+    public void work() {
+
+        archivedCount = failedCount = 0;
+        if (queuedTime > 0) {
+            ArchiverMetrics.get().update(ArchiverMetrics.STAGE_QUEUE_WAIT, commandLine,
+                    TimeUnit.MILLISECONDS.toNanos(Math.max(0, System.currentTimeMillis() - queuedTime)));
+        }
+
+        // Nothing to keep open while rendering
+        commitOrRollbackTransaction();
+
+        UrlFrontier frontier = new UrlFrontier(new CrawlScope(seedUrl, sameHost, prefix), maxDepth,
+                Math.min(maxPages, getMaxPages()));
+        if (!frontier.offer(seedUrl, 0)) {
+            setStatus("Done, the seed " + seedUrl + " is not in the scope of the crawl");
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "webpage-archiver-crawl-" + getId());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            while (!frontier.isEmpty()) {
+                List<UrlFrontier.Entry> group = frontier.poll(transactionSize);
+                setStatus("Crawling " + seedUrl + ", " + (archivedCount + failedCount) + "/"
+                        + frontier.getAdmitted() + " pages");
+                List<Page> pages = renderGroup(executor, group, frontier);
+                if (!saveGroup(pages)) {
+                    setStatus("Stopped, folder " + docId + " deleted: " + archivedCount + " archived, "
+                            + failedCount + " failed");
+                    return;
+                }
+                for (Page page : pages) {
+                    if (page.links != null && frontier.canFollow(page.entry.getDepth())) {
+                        for (String link : page.links) {
+                            frontier.offer(CrawlScope.toAbsolute(page.entry.getUrl(), link),
+                                    page.entry.getDepth() + 1);
+                        }
+                    }
+                }
+                setProgress(new Progress(archivedCount + failedCount, frontier.getAdmitted()));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        setStatus("Done: " + archivedCount + " archived, " + failedCount + " failed");
+    }
+
+    /*
+     * Render, no transaction. The links are read only when they can be followed
+     */
+    protected List<Page> renderGroup(ExecutorService inExecutor, List<UrlFrontier.Entry> inGroup,
+            UrlFrontier inFrontier) {
+
+        List<Future<Page>> futures = new ArrayList<>();
+        for (UrlFrontier.Entry entry : inGroup) {
+            boolean readLinks = inFrontier.canFollow(entry.getDepth());
+            futures.add(inExecutor.submit(() -> render(entry, readLinks)));
+        }
+        List<Page> pages = new ArrayList<>();
+        for (int i = 0; i < futures.size(); i++) {
+            Page page;
+            try {
+                page = futures.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new NuxeoException("Interrupted while crawling " + inGroup.get(i).getUrl(), e);
+            } catch (ExecutionException e) {
+                page = new Page(inGroup.get(i));
+                page.failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+            pages.add(page);
+        }
+        return pages;
+    }
+
+    protected Page render(UrlFrontier.Entry inEntry, boolean inReadLinks) throws InterruptedException {
+
+        Page page = new Page(inEntry);
+
+        // These are the threads of the crawl, not the ones of the queue: wait for the host
+        HostThrottle.Permit permit = null;
+        WebpageArchiverService service = Framework.getService(WebpageArchiverService.class);
+        if (service != null) {
+            permit = service.getHostThrottle().acquire(inEntry.getUrl(), WebpageToDocumentsWork.HOST_MAX_WAIT);
+            if (!permit.isAcquired()) {
+                page.failure = new RenderException(RenderException.Kind.HOST_BUSY,
+                        "Host busy for more than " + WebpageToDocumentsWork.HOST_MAX_WAIT + "ms");
+                return page;
+            }
+        }
+
+        try {
+            page.pdf = new WebpageToBlob(timeout).toPdf(commandLine, inEntry.getUrl(), null,
+                    CookieJars.materialize(cookieJarKey));
+        } catch (IOException | NuxeoException | CommandNotAvailable e) {
+            page.failure = e;
+            return page;
+        } finally {
+            if (permit != null) {
+                permit.close();
+            }
+        }
+
+        if (inReadLinks) {
+            try {
+                page.links = new PdfLinks().extract(page.pdf.getFile());
+            } catch (IOException | RuntimeException e) {
+                log.warn("Cannot read the links of \"" + inEntry.getUrl() + "\", they are not followed", e);
+            }
+        }
+        return page;
+    }
+
+    /*
+     * The documents are created in one transaction. If it is rolled back, they are created again one by one, each in
+     * its own transaction. Returns false if the folder does not exist anymore
+     */
+    protected boolean saveGroup(List<Page> inPages) {
+
+        ArrayList<String> archived = new ArrayList<>();
+        HashMap<String, String> failed = new HashMap<>();
+        List<Page> toSave = new ArrayList<>();
+        for (Page page : inPages) {
+            if (page.pdf == null) {
+                log.error("Failed to convert the \"" + page.entry.getUrl() + "\" to pdf ("
+                        + RenderException.classify(page.failure) + "), not archived", page.failure);
+                failed.put(page.entry.getUrl(),
+                        RenderException.classify(page.failure) + ": " + page.failure.getMessage());
+            } else {
+                toSave.add(page);
+            }
+        }
+
+        long start = System.nanoTime();
+        try {
+            String parentPath = getFolderPath();
+            if (parentPath == null) {
+                log.warn("Folder " + docId + " deleted while crawling \"" + seedUrl + "\", crawl stopped");
+                return false;
+            }
+            if (!saveInOneTransaction(parentPath, toSave, archived, failed)) {
+                // Nothing of the group was saved: one transaction per page
+                archived.clear();
+                for (Page page : toSave) {
+                    String error = saveAlone(parentPath, page, archived);
+                    if (error == null) {
+                        // Failed in the transaction rolled back
+                        failed.remove(page.entry.getUrl());
+                    } else {
+                        failed.put(page.entry.getUrl(), error);
+                    }
+                }
+                startTransaction();
+                openSystemSession();
+                try {
+                    fireWebpagesArchivedEvent(archived, failed);
+                } finally {
+                    commitOrRollbackTransaction();
+                    closeSession();
+                }
+            }
+            archivedCount += archived.size();
+            failedCount += failed.size();
+            return true;
+        } finally {
+            ArchiverMetrics.get().update(ArchiverMetrics.STAGE_SAVE, null, System.nanoTime() - start);
+        }
+    }
+
+    /*
+     * Short transaction. Returns null if the folder does not exist anymore
+     */
+    protected String getFolderPath() {
+
+        startTransaction();
+        openSystemSession();
+        try {
+            DocumentRef folderRef = new IdRef(docId);
+            return session.exists(folderRef) ? session.getDocument(folderRef).getPathAsString() : null;
+        } finally {
+            commitOrRollbackTransaction();
+            closeSession();
+        }
+    }
+
+    /*
+     * Creates the documents in a single transaction, and fires the event in it. Returns false if the transaction was
+     * rolled back: then nothing is saved, nor added to inArchived. A failure that does not affect the transaction only
+     * fails its page.
+     */
+    protected boolean saveInOneTransaction(String inParentPath, List<Page> inPages, ArrayList<String> inArchived,
+            HashMap<String, String> inFailed) {
+
+        startTransaction();
+        openSystemSession();
+        try {
+            for (Page page : inPages) {
+                String url = page.entry.getUrl();
+                try {
+                    inArchived.add(createDocument(inParentPath, page));
+                } catch (ConcurrentUpdateException e) {
+                    log.debug("Concurrent update while saving " + url + ", saving the group one by one", e);
+                    TransactionHelper.setTransactionRollbackOnly();
+                    return false;
+                } catch (NuxeoException e) {
+                    if (TransactionHelper.isTransactionMarkedRollback()) {
+                        log.warn("Transaction rolled back while saving " + url + ", saving the group one by one", e);
+                        return false;
+                    }
+                    log.error("Cannot save the archive of " + url + " in folder " + docId, e);
+                    inFailed.put(url, e.getMessage());
+                }
+            }
+            // Errors of the database are raised here, not at commit
+            session.save();
+            fireWebpagesArchivedEvent(inArchived, inFailed);
+            return true;
+        } catch (NuxeoException e) {
+            log.warn("Cannot save the group, saving it one by one", e);
+            TransactionHelper.setTransactionRollbackOnly();
+            return false;
+        } finally {
+            commitOrRollbackTransaction();
+            closeSession();
+        }
+    }
+
+    /*
+     * Own transaction, saved again on a concurrent update. Returns the error, null if saved
+     */
+    protected String saveAlone(String inParentPath, Page inPage, ArrayList<String> inArchived) {
+
+        String url = inPage.entry.getUrl();
+        for (int i = 1;; i++) {
+            startTransaction();
+            openSystemSession();
+            try {
+                String id = createDocument(inParentPath, inPage);
+                session.save();
+                inArchived.add(id);
+                return null;
+            } catch (ConcurrentUpdateException e) {
+                TransactionHelper.setTransactionRollbackOnly();
+                if (i >= WebpageToBlobWork.MAX_SAVE_ATTEMPTS) {
+                    log.error("Cannot save the archive of " + url + " in folder " + docId, e);
+                    return e.getMessage();
+                }
+                log.debug("Concurrent update while saving " + url + ", saving again", e);
+            } catch (NuxeoException e) {
+                TransactionHelper.setTransactionRollbackOnly();
+                log.error("Cannot save the archive of " + url + " in folder " + docId, e);
+                return e.getMessage();
+            } finally {
+                commitOrRollbackTransaction();
+                closeSession();
+            }
+        }
+    }
+
+    /*
+     * Returns the id of the new document
+     */
+    protected String createDocument(String inParentPath, Page inPage) {
+
+        String url = inPage.entry.getUrl();
+        DocumentModel doc = session.createDocumentModel(inParentPath, computeName(url), docType);
+        doc.setPropertyValue("dc:title", url);
+        doc.setPropertyValue(xpath, (Serializable) inPage.pdf);
+        WebpageArchiveFacet.setArchived(doc, url, null);
+        return session.createDocument(doc).getId();
+    }
+
+    /*
+     * Same event as WebpageToDocumentsWork. The failures are keyed by URL, as they have no document
+     */
+    protected void fireWebpagesArchivedEvent(ArrayList<String> inArchived, HashMap<String, String> inFailed) {
+
+        if (inArchived.isEmpty() && inFailed.isEmpty()) {
+            return;
+        }
+        EventContext ctx = new EventContextImpl(session, session.getPrincipal());
+        ctx.setProperty(WebpageToDocumentsWork.EVENT_PROP_ARCHIVED, inArchived);
+        ctx.setProperty(WebpageToDocumentsWork.EVENT_PROP_FAILED, inFailed);
+        ctx.setProperty(WebpageToDocumentsWork.EVENT_PROP_RETRIED, new ArrayList<String>());
+        Framework.getService(EventService.class).fireEvent(
+                ctx.newEvent(WebpageToDocumentsWork.WEBPAGES_ARCHIVED_EVENT));
+    }
+
+    /**
+     * The name of the document of a page: its host and path, with only letters, digits and dashes. The repository
+     * makes it unique in the folder if needed
+     *
+     * @param inUrl
+     * @return the name
+     * @since 10.10
+     */
+    public static String computeName(String inUrl) {
+
+        String name = StringUtils.substringBefore(StringUtils.substringAfter(inUrl, "://"), "?");
+        name = name.toLowerCase(Locale.ROOT).replaceAll("[^a-z0-9]+", "-");
+        name = StringUtils.strip(name, "-");
+        if (name.length() > MAX_NAME_LENGTH) {
+            name = StringUtils.strip(name.substring(0, MAX_NAME_LENGTH), "-");
+        }
+        return name.isEmpty() ? "page" : name;
+    }
+
+    protected static int getMaxPages() {
+
+        String value = Framework.getProperty(MAX_PAGES_PROPERTY);
+        try {
+            int max = StringUtils.isBlank(value) ? MAX_PAGES_DEFAULT : Integer.parseInt(value.trim());
+            return max > 0 ? max : MAX_PAGES_DEFAULT;
+        } catch (NumberFormatException e) {
+            return MAX_PAGES_DEFAULT;
+        }
+    }
+
+    @Override
+    public String getCategory() {
+        return CATEGORY_WEBPAGE_CRAWL;
+    }
+
+    @Override
+    public String getTitle() {
+        return "Webpage crawl from " + seedUrl;
+    }
+
+    public void setTimeout(int newValue) {
+        timeout = newValue;
+    }
+
+    /**
+     * @param newValue the links of the pages at this depth are not followed. 0 archives only the seed
+     * @since 10.10
+     */
+    public void setMaxDepth(int newValue) {
+        maxDepth = Math.max(0, newValue);
+    }
+
+    /**
+     * @param newValue the budget of pages of the crawl, seed included. Capped by
+     *            <code>nuxeo.webpage.archiver.crawl.maxPages</code>
+     * @since 10.10
+     */
+    public void setMaxPages(int newValue) {
+        maxPages = newValue > 0 ? newValue : DEFAULT_PAGES;
+    }
+
+    public void setSameHost(boolean newValue) {
+        sameHost = newValue;
+    }
+
+    /**
+     * @param newValue only the links starting with this prefix are followed, null or empty for no prefix
+     * @since 10.10
+     */
+    public void setPrefix(String newValue) {
+        prefix = newValue;
+    }
+
+    public void setDocType(String newValue) {
+        docType = StringUtils.isBlank(newValue) ? DEFAULT_DOC_TYPE : newValue;
+    }
+
+    public void setXPath(String newValue) {
+        xpath = StringUtils.isBlank(newValue) ? DEFAULT_XPATH : newValue;
+    }
+
+    public void setParallelism(int newValue) {
+        parallelism = newValue > 0 ? newValue : DEFAULT_PARALLELISM;
+    }
+
+    public void setTransactionSize(int newValue) {
+        transactionSize = newValue > 0 ? newValue : DEFAULT_TRANSACTION_SIZE;
+    }
+
+    /**
+     * @param newValue when the work is given to the WorkManager, in ms since the epoch
+     * @since 10.10
+     */
+    public void setQueuedTime(long newValue) {
+        queuedTime = newValue;
+    }
+
+}
@@ -0,0 +1,157 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.governor;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.exec.CommandLine;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Memory and CPU time limits of the renderer processes, applied by starting them through <code>prlimit</code>, or
+ * through <code>sh -c 'ulimit ...; exec ...'</code> when prlimit is not installed.
+ * <p>
+ * <ul>
+ * <li>The memory limit is a limit of the address space (<code>RLIMIT_AS</code>): WebKit reserves much more than it
+ * uses, so it must be generous (1 GB or more)</li>
+ * <li>The CPU time limit (<code>RLIMIT_CPU</code>) is only applied to the processes running one conversion: it is
+ * cumulated over the life of the process, so it would end a pooled renderer after a number of conversions</li>
+ * </ul>
+ * A process going over a limit is killed by the system, which is handled as any renderer failure.
+ *
+ * @since 10.10
+ */
+public class ProcessLimits {
+
+    protected static final String[] PRLIMIT_PATHS = { "/usr/bin/prlimit", "/bin/prlimit" };
+
+    protected static volatile String prlimit;
+
+    protected final long maxMemoryMB;
+
+    protected final long maxCpuSeconds;
+
+    /**
+     * @param inMaxMemoryMB 0 for no limit
+     * @param inMaxCpuSeconds 0 for no limit
+     */
+    public ProcessLimits(long inMaxMemoryMB, long inMaxCpuSeconds) {
+        maxMemoryMB = Math.max(0, inMaxMemoryMB);
+        maxCpuSeconds = Math.max(0, inMaxCpuSeconds);
+    }
+
+    public boolean isEnabled() {
+        return maxMemoryMB > 0 || maxCpuSeconds > 0;
+    }
+
+    /**
+     * @param inCmdLine a command line running one conversion
+     * @return the command line starting it with its limits, or <code>inCmdLine</code> if there is no limit
+     * @since 10.10
+     */
+    public CommandLine wrap(CommandLine inCmdLine) {
+
+        if (!isEnabled()) {
+            return inCmdLine;
+        }
+        List<String> command = new ArrayList<>();
+        command.add(inCmdLine.getExecutable());
+        command.addAll(Arrays.asList(inCmdLine.getArguments()));
+        List<String> wrapped = wrap(command, true);
+
+        CommandLine cmdLine = new CommandLine(wrapped.get(0));
+        for (String arg : wrapped.subList(1, wrapped.size())) {
+            cmdLine.addArgument(arg, false);
+        }
+        return cmdLine;
+    }
+
+    /**
+     * @param inCommand the executable and its arguments
+     * @param inOneConversion false for a long-lived process (no CPU time limit)
+     * @return the command starting it with its limits
+     * @since 10.10
+     */
+    public List<String> wrap(List<String> inCommand, boolean inOneConversion) {
+
+        long cpu = inOneConversion ? maxCpuSeconds : 0;
+        if (maxMemoryMB <= 0 && cpu <= 0) {
+            return inCommand;
+        }
+
+        List<String> wrapped = new ArrayList<>();
+        String prlimitPath = getPrlimit();
+        if (StringUtils.isNotEmpty(prlimitPath)) {
+            wrapped.add(prlimitPath);
+            if (maxMemoryMB > 0) {
+                wrapped.add("--as=" + maxMemoryMB * 1024 * 1024);
+            }
+            if (cpu > 0) {
+                wrapped.add("--cpu=" + cpu);
+            }
+            wrapped.add("--");
+        } else {
+            StringBuilder script = new StringBuilder();
+            if (maxMemoryMB > 0) {
+                script.append("ulimit -v ").append(maxMemoryMB * 1024).append(" && ");
+            }
+            if (cpu > 0) {
+                script.append("ulimit -t ").append(cpu).append(" && ");
+            }
+            // $0 is the executable, $@ its arguments: nothing is parsed by the shell
+            script.append("exec \"$0\" \"$@\"");
+            wrapped.add("sh");
+            wrapped.add("-c");
+            wrapped.add(script.toString());
+        }
+        wrapped.addAll(inCommand);
+
+        return wrapped;
+    }
+
+    /*
+     * Empty string if not installed
+     */
+    protected static String getPrlimit() {
+
+        if (prlimit == null) {
+            String found = "";
+            for (String path : PRLIMIT_PATHS) {
+                if (new File(path).canExecute()) {
+                    found = path;
+                    break;
+                }
+            }
+            prlimit = found;
+        }
+        return prlimit;
+    }
+
+    public long getMaxMemoryMB() {
+        return maxMemoryMB;
+    }
+
+    public long getMaxCpuSeconds() {
+        return maxCpuSeconds;
+    }
+
+}
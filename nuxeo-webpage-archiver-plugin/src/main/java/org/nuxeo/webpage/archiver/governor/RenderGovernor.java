@@ -0,0 +1,112 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.governor;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.webpage.archiver.RenderException;
+
+/**
+ * Node-wide limit of the renderer processes running at the same time, whoever starts them: the workers of the
+ * <code>webpageToBlob</code> queue, the synchronous operations, the asynchronous renders and the logins.
+ * <p>
+ * A render waits for a slot at most <code>maxWait</code> ms, in arrival order (fair semaphore). After this delay it is
+ * rejected with a {@link RenderException.Kind#OVERLOADED} exception (HTTP status 503): a worker tries again later, a
+ * synchronous caller gets the error.
+ *
+ * @since 10.10
+ */
+public class RenderGovernor {
+
+    protected final int maxRenders;
+
+    protected final long maxWait;
+
+    protected final Semaphore slots;
+
+    protected final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Slot for one render, to close when the render is done
+     */
+    public class Permit implements AutoCloseable {
+
+        protected boolean closed;
+
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                slots.release();
+            }
+        }
+    }
+
+    /**
+     * @param inMaxRenders renders running at the same time
+     * @param inMaxWait in ms, how long a render can wait for a slot
+     */
+    public RenderGovernor(int inMaxRenders, long inMaxWait) {
+        maxRenders = Math.max(1, inMaxRenders);
+        maxWait = Math.max(0, inMaxWait);
+        slots = new Semaphore(maxRenders, true);
+    }
+
+    /**
+     * Waits for a slot.
+     *
+     * @return the permit, to close when the render is done
+     * @throws RenderException if no slot was available in time
+     * @since 10.10
+     */
+    public Permit acquire() throws RenderException {
+
+        try {
+            if (!slots.tryAcquire(maxWait, TimeUnit.MILLISECONDS)) {
+                rejected.incrementAndGet();
+                throw new RenderException(RenderException.Kind.OVERLOADED, "Too many renders in progress on this node ("
+                        + maxRenders + "), no slot available after " + maxWait + "ms", 503);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NuxeoException(e);
+        }
+        return new Permit();
+    }
+
+    public int getMaxRenders() {
+        return maxRenders;
+    }
+
+    public int getActiveCount() {
+        return maxRenders - slots.availablePermits();
+    }
+
+    public int getWaitingCount() {
+        return slots.getQueueLength();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+}
@@ -0,0 +1,514 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.host;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import org.nuxeo.webpage.archiver.HostLimitDescriptor;
+
+/**
+ * Enforces the politeness limits of each distant host (see {@link HostLimitDescriptor}): max. number of renders in
+ * progress at the same time, min. delay between the start of two renders.
+ * <p>
+ * A caller first gets a {@link Permit}. If it is not acquired, the caller should try again after
+ * {@link Permit#getDelay()}. Once acquired, the permit must be closed when the render is done.
+ * <p>
+ * The workers do not poll: they give a {@link Waiter} (see {@link #tryAcquire(String, Supplier, boolean)}) and release
+ * the thread of the queue. The waiters of a host are kept in a FIFO queue, and woken up one at a time when a slot is
+ * released, or when the min. delay since the previous render is elapsed. A woken up caller tries again before the
+ * ones waiting, so a backlog of works for a slow host starts in order, without being enqueued again every second.
+ * The callers that have their own threads block in {@link #acquire(String, long)}, queued the same way.
+ * <p>
+ * Renders of a URL with no host (local file, ...) are not limited.
+ *
+ * @since 10.10
+ */
+public class HostThrottle {
+
+    /**
+     * Delay before trying again when all the slots of a host are used
+     */
+    public static final long BUSY_RETRY_DELAY = 1000;
+
+    /**
+     * Delay after which a waiter tries again by itself, in case it is not woken up (slot released on another node,
+     * ...)
+     */
+    public static final long WAIT_FALLBACK_DELAY = 60000;
+
+    /**
+     * Max. time for a woken up waiter to try again, before the next one is woken up
+     */
+    public static final long WOKEN_TIMEOUT = 60000;
+
+    protected static final Set<String> SECOND_LEVEL_LABELS = new HashSet<>(
+            Arrays.asList("ac", "co", "com", "edu", "go", "gov", "ne", "net", "or", "org"));
+
+    protected final List<HostLimitDescriptor> limits;
+
+    protected final HostLimitDescriptor anyHost;
+
+    protected final Map<String, HostLimitDescriptor> limitsByHost = new ConcurrentHashMap<>();
+
+    // Guarded by itself
+    protected final Map<String, HostState> states = new HashMap<>();
+
+    protected static class HostState {
+
+        protected final int maxConcurrent;
+
+        protected int inFlight;
+
+        protected long nextStart;
+
+        protected final Deque<Waiter> waiting = new ArrayDeque<>();
+
+        // A woken up waiter has not tried again yet
+        protected boolean woken;
+
+        protected long wokenDeadline;
+
+        protected HostState(int inMaxConcurrent) {
+            maxConcurrent = inMaxConcurrent;
+        }
+
+        protected boolean hasFreeSlot() {
+            return maxConcurrent == 0 || inFlight < maxConcurrent;
+        }
+
+        protected boolean isIdle(long inNow) {
+            return inFlight <= 0 && nextStart <= inNow && waiting.isEmpty() && !woken;
+        }
+    }
+
+    /**
+     * A caller waiting for a slot of a host
+     */
+    public interface Waiter {
+
+        /**
+         * @return false if the caller does not wait anymore (it tried again by itself)
+         */
+        boolean isWaiting();
+
+        /**
+         * It is the turn of the caller, who should try again after the delay. Called with no lock held.
+         *
+         * @param inDelay in ms, until the min. delay since the previous render is elapsed
+         */
+        void wake(long inDelay);
+    }
+
+    protected static class Wake {
+
+        protected final Waiter waiter;
+
+        protected final long delay;
+
+        protected Wake(Waiter inWaiter, long inDelay) {
+            waiter = inWaiter;
+            delay = inDelay;
+        }
+
+        protected void run() {
+            waiter.wake(delay);
+        }
+    }
+
+    /**
+     * Permit to render a URL. Closing it releases the slot (no-op if it was not acquired)
+     */
+    public class Permit implements AutoCloseable {
+
+        protected final String key;
+
+        protected final long delay;
+
+        protected boolean closed;
+
+        protected Permit(String inKey, long inDelay) {
+            key = inKey;
+            delay = inDelay;
+        }
+
+        public boolean isAcquired() {
+            return delay == 0;
+        }
+
+        /**
+         * @return the delay in milliseconds before trying again, 0 if the permit is acquired
+         */
+        public long getDelay() {
+            return delay;
+        }
+
+        @Override
+        public void close() {
+            if (key == null || !isAcquired()) {
+                return;
+            }
+            Wake wake = null;
+            synchronized (states) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                HostState state = states.get(key);
+                if (state != null) {
+                    long now = System.currentTimeMillis();
+                    state.inFlight--;
+                    wake = wakeNext(state, now);
+                    if (state.isIdle(now)) {
+                        states.remove(key);
+                    }
+                }
+            }
+            if (wake != null) {
+                wake.run();
+            }
+        }
+    }
+
+    public HostThrottle(Collection<HostLimitDescriptor> inLimits) {
+
+        limits = new ArrayList<>(inLimits);
+        HostLimitDescriptor any = null;
+        for (HostLimitDescriptor desc : limits) {
+            if (HostLimitDescriptor.ANY_HOST.equals(desc.getHost())) {
+                any = desc;
+            }
+        }
+        anyHost = any == null ? new HostLimitDescriptor(HostLimitDescriptor.ANY_HOST, 0, 0) : any;
+    }
+
+    /**
+     * Tries to get a slot for rendering the URL, without waiting.
+     *
+     * @param inUrl
+     * @return the permit, acquired or not
+     * @since 10.10
+     */
+    public Permit tryAcquire(String inUrl) {
+        return tryAcquire(inUrl, null, false);
+    }
+
+    /**
+     * Tries to get a slot for rendering the URL, without waiting. If there is none, a waiter is created (with the lock
+     * held: it must not call this throttle) and queued, and woken up when it is its turn. It must then call this
+     * method again, with <code>inWoken</code> set.
+     * <p>
+     * The callers already waiting go first: with no waiter, the permit is not acquired while others wait, and its
+     * delay is {@link #BUSY_RETRY_DELAY}.
+     *
+     * @param inUrl
+     * @param inWaiter creates the waiter, null to not be queued
+     * @param inWoken the caller was woken up: it goes before the ones waiting, and first in the queue if there is
+     *            still no slot
+     * @return the permit, acquired or not. Its delay is {@link #WAIT_FALLBACK_DELAY} if the waiter was queued
+     * @since 10.10
+     */
+    public Permit tryAcquire(String inUrl, Supplier<Waiter> inWaiter, boolean inWoken) {
+
+        String host = getHost(inUrl);
+        if (host == null) {
+            return new Permit(null, 0);
+        }
+
+        HostLimitDescriptor limit = getLimit(host);
+        if (limit.getMaxConcurrent() == 0 && limit.getMinDelay() == 0) {
+            return new Permit(null, 0);
+        }
+
+        String key = limit.isByDomain() ? getRegistrableDomain(host) : host;
+        long now = System.currentTimeMillis();
+        Permit permit;
+        Wake wake;
+        synchronized (states) {
+            HostState state = states.computeIfAbsent(key, k -> new HostState(limit.getMaxConcurrent()));
+            if (inWoken || state.woken && state.wokenDeadline <= now) {
+                // Back, or lost (ran on another node, ...)
+                state.woken = false;
+            }
+            boolean first = inWoken || state.waiting.isEmpty() && !state.woken;
+            if (first && state.hasFreeSlot() && state.nextStart <= now) {
+                state.inFlight++;
+                state.nextStart = now + limit.getMinDelay();
+                permit = new Permit(key, 0);
+            } else if (inWaiter != null) {
+                if (inWoken) {
+                    state.waiting.addFirst(inWaiter.get());
+                } else {
+                    state.waiting.addLast(inWaiter.get());
+                }
+                permit = new Permit(key, WAIT_FALLBACK_DELAY);
+            } else if (!state.hasFreeSlot() || !first) {
+                permit = new Permit(key, Math.max(BUSY_RETRY_DELAY, state.nextStart - now));
+            } else {
+                permit = new Permit(key, state.nextStart - now);
+            }
+            wake = wakeNext(state, now);
+        }
+        if (wake != null) {
+            wake.run();
+        }
+        return permit;
+    }
+
+    /*
+     * Wakes up the first waiter if it can start (now or after the min. delay), and none is already woken up. Returns
+     * the wake up to run once the lock is released, or null
+     */
+    protected Wake wakeNext(HostState inState, long inNow) {
+
+        if (inState.woken || !inState.hasFreeSlot()) {
+            return null;
+        }
+        Waiter waiter;
+        while ((waiter = inState.waiting.pollFirst()) != null) {
+            if (waiter.isWaiting()) {
+                long delay = Math.max(0, inState.nextStart - inNow);
+                inState.woken = true;
+                inState.wokenDeadline = inNow + delay + WOKEN_TIMEOUT;
+                return new Wake(waiter, delay);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param inUrl
+     * @return the number of callers waiting in the queue of the host of the URL
+     * @since 10.10
+     */
+    public int getWaitingCount(String inUrl) {
+
+        String host = getHost(inUrl);
+        if (host == null) {
+            return 0;
+        }
+        HostLimitDescriptor limit = getLimit(host);
+        synchronized (states) {
+            HostState state = states.get(limit.isByDomain() ? getRegistrableDomain(host) : host);
+            return state == null ? 0 : state.waiting.size();
+        }
+    }
+
+    /*
+     * A thread blocked in acquire(String, long): completed with the delay when woken up
+     */
+    protected static class BlockingWaiter implements Waiter {
+
+        protected final CompletableFuture<Long> turn = new CompletableFuture<>();
+
+        @Override
+        public boolean isWaiting() {
+            return !turn.isDone();
+        }
+
+        @Override
+        public void wake(long inDelay) {
+            turn.complete(inDelay);
+        }
+
+        /*
+         * Returns the delay, or null if not woken up in time: then the waiter is not waiting anymore
+         */
+        protected Long await(long inTimeout) throws InterruptedException {
+            if (inTimeout > 0) {
+                try {
+                    return turn.get(inTimeout, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    // Unless woken up in the meantime, see below
+                } catch (ExecutionException e) {
+                    // Never completed exceptionally
+                    throw new IllegalStateException(e);
+                }
+            }
+            return turn.cancel(false) ? null : turn.join();
+        }
+    }
+
+    /**
+     * Waits for a slot, at most <code>inMaxWait</code> milliseconds. For callers that have their own threads (batches)
+     * or a user waiting for the result.
+     * <p>
+     * The caller is queued with the waiters of the host (see {@link #tryAcquire(String, Supplier, boolean)}) and its
+     * thread is blocked until it is woken up, in order. It tries again by itself after {@link #WAIT_FALLBACK_DELAY},
+     * in case it is not.
+     *
+     * @param inUrl
+     * @param inMaxWait
+     * @return the permit, not acquired if the max wait was reached
+     * @throws InterruptedException
+     * @since 10.10
+     */
+    public Permit acquire(String inUrl, long inMaxWait) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + inMaxWait;
+        boolean woken = false;
+        while (true) {
+            BlockingWaiter waiter = new BlockingWaiter();
+            Permit permit = tryAcquire(inUrl, () -> waiter, woken);
+            if (permit.isAcquired()) {
+                return permit;
+            }
+            Long delay;
+            try {
+                delay = waiter.await(Math.min(permit.getDelay(), deadline - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                passTurn(inUrl, waiter);
+                throw e;
+            }
+            woken = delay != null;
+            if (!woken) {
+                if (System.currentTimeMillis() >= deadline) {
+                    return permit;
+                }
+                // Not woken up (slot released on another node, ...): tries again, queued again if still busy
+                continue;
+            }
+            if (System.currentTimeMillis() + delay.longValue() > deadline) {
+                passTurn(inUrl, waiter);
+                return permit;
+            }
+            if (delay.longValue() > 0) {
+                try {
+                    Thread.sleep(delay.longValue());
+                } catch (InterruptedException e) {
+                    passTurn(inUrl, waiter);
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /*
+     * The waiter will not try again. If it was woken up, the next one is woken up, instead of waiting for
+     * WOKEN_TIMEOUT
+     */
+    protected void passTurn(String inUrl, BlockingWaiter inWaiter) {
+
+        if (inWaiter.turn.cancel(false)) {
+            // Was not woken up
+            return;
+        }
+        String host = getHost(inUrl);
+        HostLimitDescriptor limit = getLimit(host);
+        String key = limit.isByDomain() ? getRegistrableDomain(host) : host;
+        Wake wake = null;
+        synchronized (states) {
+            HostState state = states.get(key);
+            if (state != null && state.woken) {
+                long now = System.currentTimeMillis();
+                state.woken = false;
+                wake = wakeNext(state, now);
+                if (state.isIdle(now)) {
+                    states.remove(key);
+                }
+            }
+        }
+        if (wake != null) {
+            wake.run();
+        }
+    }
+
+    /**
+     * Returns the limits for the host: exact match first, then the most specific <code>*.domain</code>, then
+     * <code>*</code>
+     */
+    protected HostLimitDescriptor getLimit(String inHost) {
+
+        return limitsByHost.computeIfAbsent(inHost, host -> {
+            HostLimitDescriptor best = null;
+            for (HostLimitDescriptor desc : limits) {
+                if (HostLimitDescriptor.ANY_HOST.equals(desc.getHost()) || !desc.matches(host)) {
+                    continue;
+                }
+                if (desc.getHost().equals(host)) {
+                    return desc;
+                }
+                if (best == null || desc.getHost().length() > best.getHost().length()) {
+                    best = desc;
+                }
+            }
+            return best == null ? anyHost : best;
+        });
+    }
+
+    /**
+     * @param inUrl
+     * @return the lower case host of the URL, or null if there is none
+     * @since 10.10
+     */
+    public static String getHost(String inUrl) {
+
+        try {
+            String host = new URI(inUrl.trim()).getHost();
+            return host == null ? null : host.toLowerCase(Locale.ROOT);
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Approximation of the registrable domain, without the Public Suffix List: the last two labels, or the last three
+     * ones when the public suffix looks like a second level one under a country code ("example.co.uk",
+     * "example.com.au"). IP addresses are returned as is.
+     *
+     * @param inHost lower case host
+     * @return the domain
+     * @since 10.10
+     */
+    public static String getRegistrableDomain(String inHost) {
+
+        if (inHost.indexOf(':') >= 0 || inHost.matches("[0-9.]+")) {
+            return inHost;
+        }
+        String[] labels = inHost.split("\\.");
+        if (labels.length <= 2) {
+            return inHost;
+        }
+        int n = labels.length;
+        int count = labels[n - 1].length() == 2 && SECOND_LEVEL_LABELS.contains(labels[n - 2]) ? 3 : 2;
+        StringBuilder domain = new StringBuilder();
+        for (int i = n - count; i < n; i++) {
+            domain.append(domain.length() == 0 ? "" : ".").append(labels[i]);
+        }
+        return domain.toString();
+    }
+
+}
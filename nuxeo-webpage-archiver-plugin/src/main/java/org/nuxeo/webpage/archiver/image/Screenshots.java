@@ -0,0 +1,128 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.image;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+
+/**
+ * Checks and scales down the screenshots taken by <code>wkhtmltoimage</code>, with Java2D: the thumbnail of an
+ * archived page is computed from its screenshot, without rasterizing the PDF again.
+ *
+ * @since 10.10
+ */
+public class Screenshots {
+
+    public static final int THUMBNAIL_SIZE_DEFAULT = 350;
+
+    private Screenshots() {
+    }
+
+    /**
+     * Reads only the header of the image.
+     *
+     * @param inImage
+     * @return the size of the image, or null if it is not an image (or does not exist)
+     * @since 10.10
+     */
+    public static Dimension getSize(File inImage) {
+
+        if (inImage == null || !inImage.isFile() || inImage.length() == 0) {
+            return null;
+        }
+        try (ImageInputStream in = ImageIO.createImageInputStream(inImage)) {
+            Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+            if (readers == null || !readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Scales the image down so its largest side is at most <code>inMaxSize</code> pixels. Halves the size until close
+     * to the target, so the result is not aliased.
+     *
+     * @param inImage
+     * @param inMaxSize
+     * @return a PNG blob
+     * @throws IOException if the image cannot be read or the thumbnail written
+     * @since 10.10
+     */
+    public static Blob toThumbnail(File inImage, int inMaxSize) throws IOException {
+
+        BufferedImage image = ImageIO.read(inImage);
+        if (image == null) {
+            throw new IOException("Not an image: " + inImage);
+        }
+        int maxSize = inMaxSize > 0 ? inMaxSize : THUMBNAIL_SIZE_DEFAULT;
+        double scale = Math.min(1, (double) maxSize / Math.max(image.getWidth(), image.getHeight()));
+        int targetWidth = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int targetHeight = Math.max(1, (int) Math.round(image.getHeight() * scale));
+
+        BufferedImage scaled = image;
+        do {
+            int width = Math.max(targetWidth, scaled.getWidth() / 2);
+            int height = Math.max(targetHeight, scaled.getHeight() / 2);
+            scaled = resize(scaled, width, height);
+        } while (scaled.getWidth() > targetWidth || scaled.getHeight() > targetHeight);
+
+        Blob thumbnail = Blobs.createBlobWithExtension(".png");
+        if (!ImageIO.write(scaled, "png", thumbnail.getFile())) {
+            throw new IOException("No PNG writer");
+        }
+        thumbnail.setMimeType("image/png");
+        return thumbnail;
+    }
+
+    protected static BufferedImage resize(BufferedImage inImage, int inWidth, int inHeight) {
+
+        BufferedImage resized = new BufferedImage(inWidth, inHeight, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = resized.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(inImage, 0, 0, inWidth, inHeight, null);
+        } finally {
+            graphics.dispose();
+        }
+        return resized;
+    }
+
+}
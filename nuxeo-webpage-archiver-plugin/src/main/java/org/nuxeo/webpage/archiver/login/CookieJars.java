@@ -0,0 +1,102 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.login;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.transientstore.api.TransientStore;
+import org.nuxeo.ecm.core.transientstore.api.TransientStoreService;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.webpage.archiver.RenderException;
+import org.nuxeo.webpage.archiver.WebpageArchiverComponent;
+
+/**
+ * Keeps the cookie jars passed to the works out of their serialized state: the jar is stored in the TransientStore of
+ * the plug-in (shared by the nodes of a cluster), the work only holds its key, and the node running the work copies
+ * it to a local file when it needs it.
+ * <p>
+ * A stored jar is not removed when a work is done (other works of the same call, or retries, may still use it): it
+ * expires with the TTL of its own store, one day by default, far longer than a queue wait (see
+ * <code>OSGI-INF/transientstore.xml</code>). A work with a login command does not fail when its jar expired: it logs
+ * in again instead.
+ *
+ * @since 10.10
+ */
+public class CookieJars {
+
+    protected static final String KEY_PREFIX = "cookiejar:";
+
+    private CookieJars() {
+    }
+
+    /**
+     * Stores the cookie jar.
+     *
+     * @param inCookieJar
+     * @return the key to pass to {@link #materialize(String)}, null if <code>inCookieJar</code> is null
+     * @since 10.10
+     */
+    public static String store(Blob inCookieJar) {
+
+        if (inCookieJar == null) {
+            return null;
+        }
+        String key = KEY_PREFIX + UUID.randomUUID().toString();
+        TransientStore store = getStore();
+        store.putBlobs(key, Collections.singletonList(inCookieJar));
+        store.setCompleted(key, true);
+        return key;
+    }
+
+    /**
+     * Copies the stored cookie jar to a local temporary file, owned by the caller (wkhtmltopdf writes it back).
+     *
+     * @param inKey as returned by {@link #store(Blob)}, can be null
+     * @return the local cookie jar, null if <code>inKey</code> is null
+     * @throws RenderException ({@link RenderException.Kind#COOKIE_JAR_EXPIRED}) if the jar is not in the store anymore
+     * @throws IOException
+     * @since 10.10
+     */
+    public static Blob materialize(String inKey) throws IOException {
+
+        if (inKey == null) {
+            return null;
+        }
+        List<Blob> blobs = getStore().getBlobs(inKey);
+        if (blobs == null || blobs.isEmpty() || blobs.get(0) == null) {
+            throw new RenderException(RenderException.Kind.COOKIE_JAR_EXPIRED,
+                    "The cookie jar " + inKey + " expired, login again");
+        }
+
+        Blob local = Blobs.createBlobWithExtension(".jar");
+        blobs.get(0).transferTo(local.getFile());
+        return local;
+    }
+
+    protected static TransientStore getStore() {
+        return Framework.getService(TransientStoreService.class).getStore(
+                WebpageArchiverComponent.COOKIE_JARS_TRANSIENT_STORE);
+    }
+
+}
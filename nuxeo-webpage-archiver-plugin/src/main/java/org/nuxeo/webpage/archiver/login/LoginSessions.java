@@ -0,0 +1,314 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.login;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.platform.commandline.executor.api.CommandNotAvailable;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.webpage.archiver.RenderingOptionsDescriptor;
+import org.nuxeo.webpage.archiver.WebpageArchiverService;
+import org.nuxeo.webpage.archiver.WebpageToBlob;
+import org.nuxeo.webpage.archiver.metrics.ArchiverMetrics;
+
+/**
+ * Cache of the cookie jars returned by the login command lines, so authenticated pages can be archived without
+ * running the login before each of them.
+ * <p>
+ * A cookie jar is kept in a local file, per login command, during the <code>sessionTtl</code> of the command (see
+ * {@link RenderingOptionsDescriptor}, default <code>nuxeo.webpage.archiver.login.sessionTtl</code> seconds, 1800 by
+ * default). Then the login runs again. When the command declares a <code>loginPage</code>, the page to render is
+ * first requested (<code>HEAD</code>, no redirect followed) with the cookies of the jar: a 401, or a redirection to
+ * the login page, means the distant session expired before the TTL, and the login runs again.
+ * <p>
+ * The login runs once at a time per command: threads needing the same expired session wait for the one logging in,
+ * and all use its cookie jar.
+ * <p>
+ * Each caller gets its own copy of the cookie jar, since wkhtmltopdf writes the jar back when it exits.
+ *
+ * @since 10.10
+ */
+public class LoginSessions {
+
+    private static final Log log = LogFactory.getLog(LoginSessions.class);
+
+    public static final String SESSION_TTL_PROPERTY = "nuxeo.webpage.archiver.login.sessionTtl";
+
+    // In seconds
+    public static final long SESSION_TTL_DEFAULT = 1800;
+
+    protected static final int CHECK_TIMEOUT = 10000;
+
+    protected final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+    protected final AtomicLong logins = new AtomicLong();
+
+    protected static class Session {
+
+        protected Blob cookieJar;
+
+        protected long expiration;
+
+        // Incremented at each login, so a stale session is refreshed only once
+        protected long generation;
+    }
+
+    /**
+     * Returns a copy of the cookie jar of the login command, logging in first if there is no valid session.
+     *
+     * @param inLoginCommand
+     * @param inUrl the page about to be rendered, checked for a redirection to the login page. Can be null
+     * @param inTimeout of the login, in milliseconds, 0 for the default
+     * @return the cookie jar, owned by the caller
+     * @throws IOException
+     * @throws CommandNotAvailable
+     * @throws NuxeoException if the login fails
+     * @since 10.10
+     */
+    public Blob getCookieJar(String inLoginCommand, String inUrl, int inTimeout)
+            throws IOException, CommandNotAvailable, NuxeoException {
+
+        Session session = sessions.computeIfAbsent(inLoginCommand, command -> new Session());
+        RenderingOptionsDescriptor options = getOptions(inLoginCommand);
+
+        Blob jar;
+        long generation;
+        synchronized (session) {
+            if (session.cookieJar == null || session.expiration <= System.currentTimeMillis()) {
+                login(inLoginCommand, session, options, inTimeout);
+            }
+            jar = session.cookieJar;
+            generation = session.generation;
+        }
+
+        Pattern loginPage = compileLoginPage(options);
+        if (loginPage != null && StringUtils.isNotBlank(inUrl)
+                && isLoginRedirect(inUrl, jar.getFile(), loginPage, CHECK_TIMEOUT)) {
+            synchronized (session) {
+                // Another thread may have detected it and logged in already
+                if (session.generation == generation) {
+                    log.debug("Session of " + inLoginCommand + " expired, logging in again");
+                    login(inLoginCommand, session, options, inTimeout);
+                }
+                jar = session.cookieJar;
+            }
+        }
+
+        return copyCookieJar(jar);
+    }
+
+    /**
+     * Drops the session of the command, the next call logs in again
+     *
+     * @param inLoginCommand
+     * @since 10.10
+     */
+    public void invalidate(String inLoginCommand) {
+
+        Session session = sessions.get(inLoginCommand);
+        if (session != null) {
+            synchronized (session) {
+                session.expiration = 0;
+            }
+        }
+    }
+
+    public void clear() {
+        sessions.clear();
+    }
+
+    /**
+     * @return the number of logins run since the start
+     * @since 10.10
+     */
+    public long getLoginCount() {
+        return logins.get();
+    }
+
+    /*
+     * Must be called while holding the lock of the session
+     */
+    protected void login(String inLoginCommand, Session inSession, RenderingOptionsDescriptor inOptions,
+            int inTimeout) throws IOException, CommandNotAvailable, NuxeoException {
+
+        long ttl = getSessionTtl(inOptions);
+        long start = System.nanoTime();
+        Blob jar = runLogin(inLoginCommand, inTimeout);
+        ArchiverMetrics.get().update(ArchiverMetrics.STAGE_LOGIN, inLoginCommand, System.nanoTime() - start);
+        logins.incrementAndGet();
+        // Keeping the blob keeps its temporary file
+        inSession.cookieJar = jar;
+        inSession.expiration = System.currentTimeMillis() + ttl * 1000;
+        inSession.generation++;
+    }
+
+    protected Blob runLogin(String inLoginCommand, int inTimeout)
+            throws IOException, CommandNotAvailable, NuxeoException {
+        return new WebpageToBlob(inTimeout).login(inLoginCommand);
+    }
+
+    protected RenderingOptionsDescriptor getOptions(String inLoginCommand) {
+        WebpageArchiverService service = Framework.getService(WebpageArchiverService.class);
+        return service == null ? new RenderingOptionsDescriptor(inLoginCommand)
+                : service.getRenderingOptions(inLoginCommand);
+    }
+
+    /*
+     * In seconds
+     */
+    protected long getSessionTtl(RenderingOptionsDescriptor inOptions) {
+
+        if (inOptions.getSessionTtl() > 0) {
+            return inOptions.getSessionTtl();
+        }
+        String value = Framework.getProperty(SESSION_TTL_PROPERTY);
+        try {
+            return StringUtils.isBlank(value) ? SESSION_TTL_DEFAULT : Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return SESSION_TTL_DEFAULT;
+        }
+    }
+
+    protected static Pattern compileLoginPage(RenderingOptionsDescriptor inOptions) {
+
+        if (StringUtils.isBlank(inOptions.getLoginPage())) {
+            return null;
+        }
+        try {
+            return Pattern.compile(inOptions.getLoginPage().trim());
+        } catch (PatternSyntaxException e) {
+            log.warn("Invalid loginPage for " + inOptions.getCommand() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    protected Blob copyCookieJar(Blob inCookieJar) throws IOException {
+
+        Blob copy = Blobs.createBlobWithExtension(".jar");
+        Files.copy(inCookieJar.getFile().toPath(), copy.getFile().toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return copy;
+    }
+
+    /**
+     * Tells if the page, requested with the cookies of the jar, answers 401 or redirects to the login page. Any error
+     * returns false: the page is rendered as usual.
+     *
+     * @param inUrl
+     * @param inCookieJar
+     * @param inLoginPage matched against the Location of a redirection
+     * @param inTimeout in milliseconds
+     * @return true if the session expired
+     * @since 10.10
+     */
+    public static boolean isLoginRedirect(String inUrl, File inCookieJar, Pattern inLoginPage, int inTimeout) {
+
+        HttpURLConnection http = null;
+        try {
+            URL url = new URL(inUrl);
+            URLConnection connection = url.openConnection();
+            if (!(connection instanceof HttpURLConnection)) {
+                return false;
+            }
+            http = (HttpURLConnection) connection;
+            http.setRequestMethod("HEAD");
+            http.setInstanceFollowRedirects(false);
+            http.setConnectTimeout(inTimeout);
+            http.setReadTimeout(inTimeout);
+            http.setUseCaches(false);
+            String cookies = buildCookieHeader(Files.readAllLines(inCookieJar.toPath(), StandardCharsets.UTF_8),
+                    url.getHost());
+            if (!cookies.isEmpty()) {
+                http.setRequestProperty("Cookie", cookies);
+            }
+
+            int code = http.getResponseCode();
+            if (code == HttpURLConnection.HTTP_UNAUTHORIZED) {
+                return true;
+            }
+            String location = http.getHeaderField("Location");
+            return code >= 300 && code < 400 && location != null
+                    && inLoginPage.matcher(new URL(url, location).toString()).matches();
+        } catch (IOException | IllegalArgumentException e) {
+            log.debug("Cannot check the session on " + inUrl, e);
+            return false;
+        } finally {
+            if (http != null) {
+                http.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Builds the value of a <code>Cookie</code> header from the lines of a wkhtmltopdf cookie jar (one
+     * <code>name=value; attributes...</code> cookie per line), keeping the cookies of the host.
+     *
+     * @param inJarLines
+     * @param inHost
+     * @return the header value, empty if no cookie applies
+     * @since 10.10
+     */
+    public static String buildCookieHeader(List<String> inJarLines, String inHost) {
+
+        String host = inHost.toLowerCase(Locale.ROOT);
+        StringBuilder header = new StringBuilder();
+        for (String line : inJarLines) {
+            String[] parts = StringUtils.split(line, ';');
+            if (parts == null || parts.length == 0 || !parts[0].contains("=")) {
+                continue;
+            }
+            boolean applies = true;
+            for (int i = 1; i < parts.length; i++) {
+                String attribute = parts[i].trim();
+                if (attribute.toLowerCase(Locale.ROOT).startsWith("domain=")) {
+                    String domain = StringUtils.removeStart(attribute.substring(7).trim().toLowerCase(Locale.ROOT),
+                            ".");
+                    applies = host.equals(domain) || host.endsWith("." + domain);
+                }
+            }
+            if (applies) {
+                if (header.length() > 0) {
+                    header.append("; ");
+                }
+                header.append(parts[0].trim());
+            }
+        }
+        return header.toString();
+    }
+
+}
@@ -0,0 +1,286 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.metrics;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang.StringUtils;
+import org.nuxeo.webpage.archiver.CommandLineParameters;
+import org.nuxeo.webpage.archiver.RenderException;
+import org.nuxeo.webpage.archiver.host.HostThrottle;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+
+/**
+ * Metrics of the archive pipeline, registered in the Nuxeo metric registry (so reported wherever the other Nuxeo
+ * metrics are: JMX, Graphite, ...). All names start with <code>nuxeo.webpagearchiver.</code>:
+ * <ul>
+ * <li><code>stage.&lt;stage&gt;</code> timers, one per stage (see the <code>STAGE_</code> constants), and
+ * <code>stage.&lt;stage&gt;.&lt;commandLine&gt;</code> for the stages run by a command line. The name comes from the
+ * caller, so only the command line contributions get their own timer, the other names share
+ * <code>stage.&lt;stage&gt;.other</code></li>
+ * <li><code>exit.&lt;value&gt;</code> counters of the exit values of the renderer (0, 1, 2, 143 for a timeout, -1 for
+ * a crash, <code>other</code>), and <code>timeouts</code></li>
+ * <li><code>failures.&lt;kind&gt;</code> counters (see {@link RenderException.Kind})</li>
+ * <li><code>pdfSize</code> histogram, in bytes, and <code>optimize.savedBytes</code> counter (see
+ * {@link org.nuxeo.webpage.archiver.pdf.PdfOptimizer})</li>
+ * <li><code>unchanged</code> counter of the pages rendered with the same content as their previous archive, and not
+ * saved (see {@link org.nuxeo.webpage.archiver.pdf.PdfFingerprint})</li>
+ * <li><code>inFlight</code> gauge, the renders in progress on the node, and the gauges of the service (cache,
+ * asynchronous renders)</li>
+ * <li><code>host.&lt;host&gt;</code> timers of the renders per distant host, only when enabled (see
+ * {@link #configure(boolean, int)}). At most <code>maxHosts</code> hosts get their own timer, the others share
+ * <code>host.other</code>.</li>
+ * </ul>
+ * The renderer is a single process loading the page and writing the PDF: these two steps cannot be timed separately,
+ * they are both in the <code>render</code> stage.
+ *
+ * @since 10.10
+ */
+public class ArchiverMetrics {
+
+    public static final String PREFIX = "nuxeo.webpagearchiver";
+
+    // The registry of org.nuxeo.runtime.metrics.MetricsService
+    public static final String REGISTRY_NAME = "org.nuxeo.runtime.metrics.MetricsService";
+
+    /** Time between scheduling a work and its start */
+    public static final String STAGE_QUEUE_WAIT = "queueWait";
+
+    /** Conditional request (see PageProbe) */
+    public static final String STAGE_PROBE = "probe";
+
+    /** Login command, when the session is not cached (see LoginSessions) */
+    public static final String STAGE_LOGIN = "login";
+
+    /** Waiting for a slot of the RenderGovernor */
+    public static final String STAGE_ADMISSION = "admission";
+
+    /** Start of a pooled renderer process */
+    public static final String STAGE_PROCESS_START = "processStart";
+
+    /** The renderer loading the page and writing the PDF */
+    public static final String STAGE_RENDER = "render";
+
+    /** Screenshot of the page, by wkhtmltoimage */
+    public static final String STAGE_SCREENSHOT = "screenshot";
+
+    /** Thumbnail computed from the screenshot */
+    public static final String STAGE_THUMBNAIL = "thumbnail";
+
+    /** Extracting the text of the PDF (see PdfTextExtractor) */
+    public static final String STAGE_TEXT = "text";
+
+    /** Extracting and hashing the text of the PDF, to skip saving an unchanged page (see PdfFingerprint) */
+    public static final String STAGE_FINGERPRINT = "fingerprint";
+
+    /** Checking the PDF (see PdfValidator) */
+    public static final String STAGE_VALIDATE = "validate";
+
+    /** Making the PDF smaller (see PdfOptimizer) */
+    public static final String STAGE_OPTIMIZE = "optimize";
+
+    /** Saving the document(s) */
+    public static final String STAGE_SAVE = "save";
+
+    public static final int MAX_HOSTS_DEFAULT = 50;
+
+    protected static final String OTHER = "other";
+
+    protected static volatile ArchiverMetrics instance;
+
+    protected final MetricRegistry registry;
+
+    protected final AtomicInteger inFlight = new AtomicInteger();
+
+    protected volatile boolean perHost = false;
+
+    protected volatile int maxHosts = MAX_HOSTS_DEFAULT;
+
+    protected final Set<String> hosts = ConcurrentHashMap.newKeySet();
+
+    public ArchiverMetrics(MetricRegistry inRegistry) {
+        registry = inRegistry;
+        registerGauge("inFlight", inFlight::get);
+    }
+
+    /**
+     * @return the metrics of the node, registered in the Nuxeo metric registry
+     * @since 10.10
+     */
+    public static ArchiverMetrics get() {
+
+        if (instance == null) {
+            synchronized (ArchiverMetrics.class) {
+                if (instance == null) {
+                    instance = new ArchiverMetrics(SharedMetricRegistries.getOrCreate(REGISTRY_NAME));
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @param inPerHost true to time the renders per distant host
+     * @param inMaxHosts hosts getting their own timer, to bound the number of metrics
+     * @since 10.10
+     */
+    public void configure(boolean inPerHost, int inMaxHosts) {
+        perHost = inPerHost;
+        maxHosts = inMaxHosts > 0 ? inMaxHosts : MAX_HOSTS_DEFAULT;
+    }
+
+    /**
+     * Records the duration of a stage.
+     *
+     * @param inStage one of the STAGE_ constants
+     * @param inCommandLine the command line running the stage, or null. Counted in <code>other</code> if it is not a
+     *            command line contribution
+     * @param inNanos
+     * @since 10.10
+     */
+    public void update(String inStage, String inCommandLine, long inNanos) {
+
+        registry.timer(MetricRegistry.name(PREFIX, "stage", inStage)).update(inNanos, TimeUnit.NANOSECONDS);
+        if (StringUtils.isNotBlank(inCommandLine)) {
+            String commandLine = CommandLineParameters.isKnown(inCommandLine) ? sanitize(inCommandLine) : OTHER;
+            registry.timer(MetricRegistry.name(PREFIX, "stage", inStage, commandLine))
+                    .update(inNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Records the duration of a render for the host of the URL, if enabled.
+     *
+     * @param inUrl
+     * @param inNanos
+     * @since 10.10
+     */
+    public void updateHost(String inUrl, long inNanos) {
+
+        if (!perHost) {
+            return;
+        }
+        String host = HostThrottle.getHost(inUrl);
+        if (host == null) {
+            return;
+        }
+        host = sanitize(host);
+        if (!hosts.contains(host)) {
+            // Approximate under contention, never far above maxHosts
+            if (hosts.size() >= maxHosts) {
+                host = OTHER;
+            } else {
+                hosts.add(host);
+            }
+        }
+        registry.timer(MetricRegistry.name(PREFIX, "host", host)).update(inNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Counts an exit value of the renderer
+     *
+     * @param inExitValue
+     * @since 10.10
+     */
+    public void exitValue(int inExitValue) {
+
+        String name;
+        switch (inExitValue) {
+        case 0:
+        case 1:
+        case 2:
+        case 143:
+            name = String.valueOf(inExitValue);
+            break;
+        case -1:
+            name = "crashed";
+            break;
+        default:
+            name = OTHER;
+        }
+        registry.counter(MetricRegistry.name(PREFIX, "exit", name)).inc();
+        if (inExitValue == 143) {
+            registry.counter(MetricRegistry.name(PREFIX, "timeouts")).inc();
+        }
+    }
+
+    public void failure(RenderException.Kind inKind) {
+        registry.counter(MetricRegistry.name(PREFIX, "failures", inKind.name())).inc();
+    }
+
+    public void pdfSize(long inBytes) {
+        registry.histogram(MetricRegistry.name(PREFIX, "pdfSize")).update(inBytes);
+    }
+
+    public void optimized(long inSavedBytes) {
+        registry.counter(MetricRegistry.name(PREFIX, "optimize", "savedBytes")).inc(inSavedBytes);
+    }
+
+    public void unchanged() {
+        registry.counter(MetricRegistry.name(PREFIX, "unchanged")).inc();
+    }
+
+    public void renderStarted() {
+        inFlight.incrementAndGet();
+    }
+
+    public void renderDone() {
+        inFlight.decrementAndGet();
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Registers a gauge, replacing the one already registered with this name (after a restart of the service)
+     *
+     * @param inName the name, without the prefix
+     * @param inGauge
+     * @since 10.10
+     */
+    public <T> void registerGauge(String inName, Gauge<T> inGauge) {
+
+        String name = MetricRegistry.name(PREFIX, inName);
+        registry.remove(name);
+        registry.register(name, inGauge);
+    }
+
+    public void removeGauge(String inName) {
+        registry.remove(MetricRegistry.name(PREFIX, inName));
+    }
+
+    public MetricRegistry getRegistry() {
+        return registry;
+    }
+
+    /*
+     * The dots would be read as levels by Graphite
+     */
+    protected static String sanitize(String inName) {
+        return inName.trim().replaceAll("[^A-Za-z0-9_-]", "_");
+    }
+
+}
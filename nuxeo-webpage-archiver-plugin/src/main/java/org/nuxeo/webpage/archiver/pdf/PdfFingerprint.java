@@ -0,0 +1,153 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.pdf;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Fingerprint of the content of a rendered page, telling if it changed since the previous archive even when the PDF
+ * bytes differ (the renderer writes the creation date, a random document ID, ... in each PDF).
+ * <p>
+ * Only the text of the pages is hashed, after normalization: the parts matching the <code>ignore</code> pattern (a date
+ * printed in the footer, a visit counter, ...) are removed, and the white spaces are collapsed, so a change of layout
+ * alone does not change the fingerprint. The PDF metadata are not part of the text.
+ * <p>
+ * The text is added page by page (see {@link PdfTextExtractor#extract(File, PdfFingerprint)}), so the whole text is
+ * never held in memory. A page with no text at all has no fingerprint ({@link #getValue()} returns null): its content
+ * cannot be compared.
+ *
+ * @since 10.10
+ */
+public class PdfFingerprint {
+
+    protected static final Pattern WHITE_SPACES = Pattern.compile("\\s+");
+
+    protected final Pattern ignore;
+
+    protected final MessageDigest digest;
+
+    protected boolean hasText = false;
+
+    protected boolean discarded = false;
+
+    protected String value;
+
+    public PdfFingerprint() {
+        this(null);
+    }
+
+    /**
+     * @param inIgnore the volatile parts of the text, not hashed. Null to hash all the text
+     */
+    public PdfFingerprint(Pattern inIgnore) {
+        ignore = inIgnore;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Adds the text of the next page
+     *
+     * @param inText
+     * @since 10.10
+     */
+    public void add(String inText) {
+
+        if (value != null) {
+            throw new IllegalStateException("Fingerprint already computed");
+        }
+        String text = normalize(inText, ignore);
+        if (!text.isEmpty()) {
+            digest.update(text.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+            hasText = true;
+        }
+    }
+
+    /**
+     * @return the hex SHA-256 of the normalized text, null if there was no text
+     * @since 10.10
+     */
+    public String getValue() {
+
+        if (!hasText || discarded) {
+            return null;
+        }
+        if (value == null) {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            value = hex.toString();
+        }
+        return value;
+    }
+
+    /**
+     * Drops the fingerprint, when the text could not be read up to the end: {@link #getValue()} then returns null
+     *
+     * @since 10.10
+     */
+    public void discard() {
+        discarded = true;
+    }
+
+    /**
+     * @param inText
+     * @param inIgnore the parts to remove, or null
+     * @return the text without the ignored parts, with its white spaces collapsed
+     * @since 10.10
+     */
+    public static String normalize(String inText, Pattern inIgnore) {
+
+        if (StringUtils.isEmpty(inText)) {
+            return "";
+        }
+        String text = inIgnore == null ? inText : inIgnore.matcher(inText).replaceAll(" ");
+        return WHITE_SPACES.matcher(text).replaceAll(" ").trim();
+    }
+
+    /**
+     * Computes the fingerprint of a PDF
+     *
+     * @param inPdf
+     * @param inIgnore the volatile parts of the text, or null
+     * @return the fingerprint, null if the PDF has no text
+     * @throws IOException if the PDF cannot be read
+     * @since 10.10
+     */
+    public static String compute(File inPdf, Pattern inIgnore) throws IOException {
+
+        PdfFingerprint fingerprint = new PdfFingerprint(inIgnore);
+        // Only the fingerprint needs the text
+        new PdfTextExtractor(1).extract(inPdf, fingerprint);
+        return fingerprint.getValue();
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.pdf;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.interactive.action.type.PDAction;
+import org.apache.pdfbox.pdmodel.interactive.action.type.PDActionURI;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotation;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotationLink;
+
+/**
+ * Reads the links of a rendered page from its PDF: wkhtmltopdf keeps each link to another page as a link annotation
+ * with a URI action (unless <code>--disable-external-links</code> is passed). The page does not need to be downloaded
+ * and parsed again to find them, and only the links actually displayed are found.
+ * <p>
+ * Links inside the page (anchors) are "go to" actions, and are ignored.
+ *
+ * @since 10.10
+ */
+public class PdfLinks {
+
+    public static final int MAX_LINKS_DEFAULT = 1000;
+
+    protected final int maxLinks;
+
+    public PdfLinks() {
+        this(MAX_LINKS_DEFAULT);
+    }
+
+    /**
+     * @param inMaxLinks the links after this number are ignored
+     */
+    public PdfLinks(int inMaxLinks) {
+        maxLinks = inMaxLinks > 0 ? inMaxLinks : MAX_LINKS_DEFAULT;
+    }
+
+    /**
+     * @param inPdf
+     * @return the URIs of the links, in the order of the pages, without duplicates
+     * @throws IOException if the PDF cannot be read
+     * @since 10.10
+     */
+    public Set<String> extract(File inPdf) throws IOException {
+
+        Set<String> links = new LinkedHashSet<>();
+        File scratch = File.createTempFile("nxwpa-links-", ".tmp");
+        try (org.apache.pdfbox.io.RandomAccessFile buffer = new org.apache.pdfbox.io.RandomAccessFile(scratch, "rw")) {
+            PDDocument doc = PDDocument.load(inPdf, buffer);
+            try {
+                @SuppressWarnings("unchecked")
+                List<PDPage> pages = doc.getDocumentCatalog().getAllPages();
+                for (PDPage page : pages) {
+                    for (PDAnnotation annotation : page.getAnnotations()) {
+                        if (!(annotation instanceof PDAnnotationLink)) {
+                            continue;
+                        }
+                        PDAction action = ((PDAnnotationLink) annotation).getAction();
+                        if (action instanceof PDActionURI) {
+                            String uri = ((PDActionURI) action).getURI();
+                            if (uri != null && !uri.trim().isEmpty()) {
+                                links.add(uri.trim());
+                                if (links.size() >= maxLinks) {
+                                    return links;
+                                }
+                            }
+                        }
+                    }
+                }
+            } finally {
+                doc.close();
+            }
+        } finally {
+            scratch.delete();
+        }
+        return links;
+    }
+
+}
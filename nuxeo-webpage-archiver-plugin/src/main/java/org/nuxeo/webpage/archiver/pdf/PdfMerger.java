@@ -0,0 +1,68 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.pdf;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.pdfbox.exceptions.COSVisitorException;
+import org.apache.pdfbox.util.PDFMergerUtility;
+
+/**
+ * Concatenates PDFs, in the order of the list, into one file. The outlines (bookmarks) of each PDF are kept.
+ * <p>
+ * The sources are parsed with a scratch file instead of the heap, so the memory used does not depend on their size,
+ * and the result is written directly to its file.
+ *
+ * @since 10.10
+ */
+public class PdfMerger {
+
+    private PdfMerger() {
+    }
+
+    /**
+     * @param inSources at least one PDF
+     * @param inTarget the file to write, replaced if it exists
+     * @throws IOException if a source cannot be read, or the target written
+     * @since 10.10
+     */
+    public static void merge(List<File> inSources, File inTarget) throws IOException {
+
+        if (inSources.isEmpty()) {
+            throw new IllegalArgumentException("Nothing to merge");
+        }
+        PDFMergerUtility merger = new PDFMergerUtility();
+        for (File source : inSources) {
+            merger.addSource(source);
+        }
+        merger.setDestinationFileName(inTarget.getAbsolutePath());
+
+        File scratch = File.createTempFile("nxwpa-merge-", ".tmp");
+        try (org.apache.pdfbox.io.RandomAccessFile buffer = new org.apache.pdfbox.io.RandomAccessFile(scratch, "rw")) {
+            merger.mergeDocumentsNonSeq(buffer);
+        } catch (COSVisitorException e) {
+            throw new IOException("Cannot write " + inTarget, e);
+        } finally {
+            scratch.delete();
+        }
+    }
+
+}
@@ -0,0 +1,477 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.pdf;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.exceptions.COSVisitorException;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.graphics.xobject.PDJpeg;
+import org.apache.pdfbox.pdmodel.graphics.xobject.PDXObject;
+import org.apache.pdfbox.pdmodel.graphics.xobject.PDXObjectImage;
+
+/**
+ * Makes a rendered PDF smaller, for the command lines declaring <code>optimize="true"</code> (see
+ * {@link org.nuxeo.webpage.archiver.RenderingOptionsDescriptor}):
+ * <ul>
+ * <li>Identical images and embedded font files are stored once: the duplicates are replaced by references to the
+ * first one, and are not written again</li>
+ * <li>Images with more pixels than needed to print the page at the target DPI are downsampled, and re-encoded as JPEG.
+ * An image is assumed to never be drawn larger than the page. Images with a transparency mask, and images already in
+ * JPEG at the right size, are left as is</li>
+ * </ul>
+ * The PDF is loaded with a scratch file instead of the heap, and the images are decoded one at a time (the ones above
+ * <code>maxPixels</code> are skipped), so the memory used does not depend on the size of the PDF.
+ * <p>
+ * The optimized PDF replaces the original only if it is smaller and still looks valid. Any error keeps the original:
+ * optimizing is never a reason to fail an archive.
+ * <p>
+ * PDFBox 1.8 writes classic cross-reference tables, so objects are not packed in compressed object streams. The
+ * content streams are already compressed by wkhtmltopdf.
+ *
+ * @since 10.10
+ */
+public class PdfOptimizer {
+
+    private static final Log log = LogFactory.getLog(PdfOptimizer.class);
+
+    public static final int DPI_DEFAULT = 150;
+
+    public static final float QUALITY_DEFAULT = 0.75f;
+
+    // About 100MB once decoded
+    public static final long MAX_PIXELS_DEFAULT = 25_000_000L;
+
+    // A re-encoded image replaces the original only if it saves at least 10%
+    protected static final double MIN_GAIN = 0.9;
+
+    protected static final COSName FORM = COSName.getPDFName("Form");
+
+    protected static final COSName RESOURCES = COSName.getPDFName("Resources");
+
+    protected static final COSName DESCENDANT_FONTS = COSName.getPDFName("DescendantFonts");
+
+    protected static final COSName[] FONT_FILES = { COSName.FONT_FILE, COSName.FONT_FILE2, COSName.FONT_FILE3 };
+
+    /**
+     * Sizes before and after, and what was changed
+     */
+    public static class Result {
+
+        protected final long sizeBefore;
+
+        protected final long sizeAfter;
+
+        protected final int imagesResampled;
+
+        protected final int duplicatesRemoved;
+
+        public Result(long inSizeBefore, long inSizeAfter, int inImagesResampled, int inDuplicatesRemoved) {
+            sizeBefore = inSizeBefore;
+            sizeAfter = inSizeAfter;
+            imagesResampled = inImagesResampled;
+            duplicatesRemoved = inDuplicatesRemoved;
+        }
+
+        public long getSizeBefore() {
+            return sizeBefore;
+        }
+
+        public long getSizeAfter() {
+            return sizeAfter;
+        }
+
+        public long getSavedBytes() {
+            return sizeBefore - sizeAfter;
+        }
+
+        public int getImagesResampled() {
+            return imagesResampled;
+        }
+
+        public int getDuplicatesRemoved() {
+            return duplicatesRemoved;
+        }
+    }
+
+    /*
+     * State of one optimization
+     */
+    protected static class Pass {
+
+        protected final PDDocument doc;
+
+        // Largest size of an image, in pixels, at the target DPI. 0 when not downsampling
+        protected int maxWidth;
+
+        protected int maxHeight;
+
+        protected final Set<COSDictionary> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        // Each stream met and the reference to use for it
+        protected final Map<COSStream, COSBase> references = new IdentityHashMap<>();
+
+        // Content hash => first reference with this content
+        protected final Map<String, COSBase> canonicals = new HashMap<>();
+
+        protected int imagesResampled;
+
+        protected int duplicatesRemoved;
+
+        protected Pass(PDDocument inDoc) {
+            doc = inDoc;
+        }
+    }
+
+    protected final int dpi;
+
+    protected final float quality;
+
+    protected final long maxPixels;
+
+    /**
+     * @param inDpi target resolution of the images, 0 to only remove the duplicates
+     * @param inQuality JPEG quality of the re-encoded images, from 0 to 1
+     */
+    public PdfOptimizer(int inDpi, float inQuality) {
+        this(inDpi, inQuality, MAX_PIXELS_DEFAULT);
+    }
+
+    public PdfOptimizer(int inDpi, float inQuality, long inMaxPixels) {
+        dpi = Math.max(0, inDpi);
+        quality = inQuality > 0 && inQuality <= 1 ? inQuality : QUALITY_DEFAULT;
+        maxPixels = inMaxPixels;
+    }
+
+    /**
+     * Optimizes the PDF in place. Never fails: on error, the PDF is left as is.
+     *
+     * @param inPdf
+     * @return the result, never null
+     * @since 10.10
+     */
+    public Result optimize(File inPdf) {
+
+        long before = inPdf.length();
+        File scratch = null;
+        File optimized = null;
+        try {
+            scratch = File.createTempFile("nxwpa-optimizer-", ".tmp");
+            optimized = File.createTempFile("nxwpa-optimized-", ".pdf");
+
+            Pass pass;
+            try (org.apache.pdfbox.io.RandomAccessFile buffer = new org.apache.pdfbox.io.RandomAccessFile(scratch,
+                    "rw")) {
+                PDDocument doc = PDDocument.load(inPdf, buffer);
+                try {
+                    pass = new Pass(doc);
+                    optimize(pass);
+                    doc.save(optimized);
+                } finally {
+                    doc.close();
+                }
+            }
+
+            long after = optimized.length();
+            if (after <= 0 || after >= before || !PdfValidator.looksValid(optimized)) {
+                return new Result(before, before, 0, 0);
+            }
+            Files.move(optimized.toPath(), inPdf.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            if (log.isDebugEnabled()) {
+                log.debug("Optimized " + inPdf + ": " + before + " => " + after + " bytes, " + pass.imagesResampled
+                        + " image(s) resampled, " + pass.duplicatesRemoved + " duplicate(s) removed");
+            }
+            return new Result(before, after, pass.imagesResampled, pass.duplicatesRemoved);
+
+        } catch (IOException | COSVisitorException | RuntimeException e) {
+            log.warn("Cannot optimize " + inPdf + ", the PDF is kept as rendered", e);
+            return new Result(before, before, 0, 0);
+        } finally {
+            if (scratch != null) {
+                scratch.delete();
+            }
+            if (optimized != null) {
+                optimized.delete();
+            }
+        }
+    }
+
+    protected void optimize(Pass inPass) throws IOException {
+
+        List<?> pages = inPass.doc.getDocumentCatalog().getAllPages();
+        if (dpi > 0) {
+            float width = 0;
+            float height = 0;
+            for (Object page : pages) {
+                PDRectangle box = ((PDPage) page).findMediaBox();
+                if (box != null) {
+                    width = Math.max(width, box.getWidth());
+                    height = Math.max(height, box.getHeight());
+                }
+            }
+            inPass.maxWidth = (int) Math.ceil(width / 72 * dpi);
+            inPass.maxHeight = (int) Math.ceil(height / 72 * dpi);
+        }
+
+        for (Object page : pages) {
+            PDResources resources = ((PDPage) page).findResources();
+            if (resources != null) {
+                optimizeResources(inPass, resources.getCOSDictionary());
+            }
+        }
+    }
+
+    protected void optimizeResources(Pass inPass, COSDictionary inResources) throws IOException {
+
+        if (!inPass.visited.add(inResources)) {
+            return;
+        }
+
+        COSDictionary xobjects = asDictionary(inResources.getDictionaryObject(COSName.XOBJECT));
+        if (xobjects != null) {
+            for (COSName name : new ArrayList<>(xobjects.keySet())) {
+                COSBase object = xobjects.getDictionaryObject(name);
+                if (!(object instanceof COSStream)) {
+                    continue;
+                }
+                COSStream stream = (COSStream) object;
+                COSBase subtype = stream.getDictionaryObject(COSName.SUBTYPE);
+                if (COSName.IMAGE.equals(subtype)) {
+                    // Deduplicate first, so each distinct image is resampled once
+                    if (!deduplicate(inPass, xobjects, name, stream)) {
+                        resample(inPass, stream);
+                    }
+                } else if (FORM.equals(subtype)) {
+                    COSDictionary formResources = asDictionary(stream.getDictionaryObject(RESOURCES));
+                    if (formResources != null) {
+                        optimizeResources(inPass, formResources);
+                    }
+                }
+            }
+        }
+
+        COSDictionary fonts = asDictionary(inResources.getDictionaryObject(COSName.FONT));
+        if (fonts != null) {
+            for (COSName name : fonts.keySet()) {
+                COSDictionary font = asDictionary(fonts.getDictionaryObject(name));
+                if (font == null) {
+                    continue;
+                }
+                deduplicateFontFiles(inPass, asDictionary(font.getDictionaryObject(COSName.FONT_DESC)));
+                COSBase descendants = font.getDictionaryObject(DESCENDANT_FONTS);
+                if (descendants instanceof COSArray) {
+                    for (int i = 0; i < ((COSArray) descendants).size(); i++) {
+                        COSDictionary descendant = asDictionary(((COSArray) descendants).getObject(i));
+                        if (descendant != null) {
+                            deduplicateFontFiles(inPass,
+                                    asDictionary(descendant.getDictionaryObject(COSName.FONT_DESC)));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    protected void deduplicateFontFiles(Pass inPass, COSDictionary inDescriptor) throws IOException {
+
+        if (inDescriptor == null) {
+            return;
+        }
+        for (COSName key : FONT_FILES) {
+            COSBase object = inDescriptor.getDictionaryObject(key);
+            if (object instanceof COSStream) {
+                deduplicate(inPass, inDescriptor, key, (COSStream) object);
+            }
+        }
+    }
+
+    /*
+     * Points the entry to the first stream with the same dictionary and data. Returns true if the stream was a
+     * duplicate (or was already met)
+     */
+    protected boolean deduplicate(Pass inPass, COSDictionary inParent, COSName inKey, COSStream inStream)
+            throws IOException {
+
+        COSBase reference = inParent.getItem(inKey);
+        COSBase canonical = inPass.references.get(inStream);
+        if (canonical == null) {
+            // Only indirect objects can be shared
+            canonical = reference instanceof COSObject ? inPass.canonicals.get(hash(inStream)) : null;
+            if (canonical == null) {
+                canonical = reference;
+                if (reference instanceof COSObject) {
+                    inPass.canonicals.put(hash(inStream), reference);
+                }
+                inPass.references.put(inStream, canonical);
+                return false;
+            }
+            inPass.references.put(inStream, canonical);
+            inPass.duplicatesRemoved++;
+        }
+        if (canonical != reference) {
+            inParent.setItem(inKey, canonical);
+        }
+        return true;
+    }
+
+    protected void resample(Pass inPass, COSStream inStream) throws IOException {
+
+        if (inPass.maxWidth <= 0 || inPass.maxHeight <= 0) {
+            return;
+        }
+        PDXObject xobject = PDXObject.createXObject(inStream);
+        if (!(xobject instanceof PDXObjectImage)) {
+            return;
+        }
+        PDXObjectImage image = (PDXObjectImage) xobject;
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (width <= 0 || height <= 0 || (long) width * height > maxPixels) {
+            return;
+        }
+        // A JPEG has no alpha channel
+        if (image.getImageMask() || inStream.getDictionaryObject(COSName.SMASK) != null
+                || inStream.getDictionaryObject(COSName.MASK) != null || image.getBitsPerComponent() != 8) {
+            return;
+        }
+        double scale = Math.min(1, Math.min((double) inPass.maxWidth / width, (double) inPass.maxHeight / height));
+        if (scale >= 1 && xobject instanceof PDJpeg) {
+            return;
+        }
+
+        BufferedImage source = image.getRGBImage();
+        if (source == null) {
+            return;
+        }
+        int targetWidth = Math.max(1, (int) Math.round(width * scale));
+        int targetHeight = Math.max(1, (int) Math.round(height * scale));
+        BufferedImage target = new BufferedImage(targetWidth, targetHeight, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = target.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(source, 0, 0, targetWidth, targetHeight, null);
+        } finally {
+            graphics.dispose();
+        }
+        source = null;
+
+        PDJpeg jpeg = new PDJpeg(inPass.doc, target, quality);
+        COSStream encoded = jpeg.getCOSStream();
+        if (encoded.getFilteredLength() < inStream.getFilteredLength() * MIN_GAIN) {
+            // Same object: all the references now point to the new image
+            inStream.replaceWithStream(encoded);
+            inPass.imagesResampled++;
+        }
+    }
+
+    /*
+     * The dictionary (sorted, without the length) and the encoded data
+     */
+    protected static String hash(COSStream inStream) throws IOException {
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        Map<String, String> entries = new TreeMap<>();
+        for (Map.Entry<COSName, COSBase> entry : inStream.entrySet()) {
+            if (!COSName.LENGTH.equals(entry.getKey())) {
+                entries.put(entry.getKey().getName(), describe(entry.getValue()));
+            }
+        }
+        digest.update(entries.toString().getBytes(StandardCharsets.UTF_8));
+
+        try (InputStream in = inStream.getFilteredStream()) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /*
+     * Indirect objects by their number: two references to the same color space or mask are equal
+     */
+    protected static String describe(COSBase inValue) {
+
+        if (inValue instanceof COSObject) {
+            COSObject object = (COSObject) inValue;
+            return object.getObjectNumber().intValue() + " " + object.getGenerationNumber().intValue() + " R";
+        }
+        if (inValue instanceof COSArray) {
+            StringBuilder sb = new StringBuilder("[");
+            for (int i = 0; i < ((COSArray) inValue).size(); i++) {
+                sb.append(describe(((COSArray) inValue).get(i))).append(' ');
+            }
+            return sb.append(']').toString();
+        }
+        if (inValue instanceof COSDictionary) {
+            Map<String, String> entries = new TreeMap<>();
+            for (Map.Entry<COSName, COSBase> entry : ((COSDictionary) inValue).entrySet()) {
+                entries.put(entry.getKey().getName(), describe(entry.getValue()));
+            }
+            return entries.toString();
+        }
+        return String.valueOf(inValue);
+    }
+
+    protected static COSDictionary asDictionary(COSBase inObject) {
+        return inObject instanceof COSDictionary ? (COSDictionary) inObject : null;
+    }
+
+}
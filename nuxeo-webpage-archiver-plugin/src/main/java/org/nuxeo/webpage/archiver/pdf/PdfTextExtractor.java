@@ -0,0 +1,105 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.pdf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.util.PDFTextStripper;
+
+/**
+ * Extracts the text of a rendered PDF, to store it in a text field of the archive document instead of letting the
+ * binary fulltext extraction parse the PDF again.
+ * <p>
+ * The PDF is loaded with a scratch file instead of the heap, and the text is extracted page by page: the extraction
+ * stops as soon as <code>maxChars</code> characters are read, so the memory used depends neither on the size of the PDF
+ * nor on the number of its pages.
+ * <p>
+ * The same pass can feed a {@link PdfFingerprint}: all the pages are then read, the text after <code>maxChars</code>
+ * being only added to the fingerprint.
+ *
+ * @since 10.10
+ */
+public class PdfTextExtractor {
+
+    public static final int MAX_CHARS_DEFAULT = 1000000;
+
+    protected final int maxChars;
+
+    public PdfTextExtractor() {
+        this(MAX_CHARS_DEFAULT);
+    }
+
+    /**
+     * @param inMaxChars the text is truncated after this number of characters
+     */
+    public PdfTextExtractor(int inMaxChars) {
+        maxChars = inMaxChars > 0 ? inMaxChars : MAX_CHARS_DEFAULT;
+    }
+
+    /**
+     * @param inPdf
+     * @return the text, at most <code>maxChars</code> characters
+     * @throws IOException if the PDF cannot be read
+     * @since 10.10
+     */
+    public String extract(File inPdf) throws IOException {
+        return extract(inPdf, null);
+    }
+
+    /**
+     * @param inPdf
+     * @param inFingerprint receives the text of every page, or null
+     * @return the text, at most <code>maxChars</code> characters
+     * @throws IOException if the PDF cannot be read
+     * @since 10.10
+     */
+    public String extract(File inPdf, PdfFingerprint inFingerprint) throws IOException {
+
+        File scratch = File.createTempFile("nxwpa-text-", ".tmp");
+        try (org.apache.pdfbox.io.RandomAccessFile buffer = new org.apache.pdfbox.io.RandomAccessFile(scratch, "rw")) {
+            PDDocument doc = PDDocument.load(inPdf, buffer);
+            try {
+                StringBuilder text = new StringBuilder();
+                PDFTextStripper stripper = new PDFTextStripper();
+                int pages = doc.getNumberOfPages();
+                for (int page = 1; page <= pages && (text.length() < maxChars || inFingerprint != null); page++) {
+                    stripper.setStartPage(page);
+                    stripper.setEndPage(page);
+                    StringWriter pageText = new StringWriter();
+                    stripper.writeText(doc, pageText);
+                    if (inFingerprint != null) {
+                        inFingerprint.add(pageText.toString());
+                    }
+                    if (text.length() < maxChars) {
+                        text.append(pageText.getBuffer());
+                    }
+                }
+                return text.length() > maxChars ? text.substring(0, maxChars) : text.toString();
+            } finally {
+                doc.close();
+            }
+        } finally {
+            scratch.delete();
+        }
+    }
+
+}
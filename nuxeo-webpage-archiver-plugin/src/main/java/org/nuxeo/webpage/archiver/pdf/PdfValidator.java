@@ -0,0 +1,342 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.pdf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+/**
+ * Checks a PDF looks valid (at least one page) at a cost that does not depend on the size of the file.
+ * <p>
+ * The check is layered, each step reading only a few KB with random access:
+ * <ol>
+ * <li>The <code>%PDF-</code> header, in the first 1024 bytes</li>
+ * <li>The <code>startxref</code> offset and <code>%%EOF</code> marker, in the last bytes. A truncated file (process
+ * killed while writing) fails here</li>
+ * <li>The page count: trailer <code>/Root</code> =&gt; catalog <code>/Pages</code> =&gt; page tree <code>/Count</code>,
+ * following the classic cross-reference tables (and their <code>/Prev</code> sections)</li>
+ * </ol>
+ * When the structure cannot be read this way (cross-reference streams, indirect count, unexpected syntax), it falls
+ * back to a PDFBox parse, using a scratch file instead of the heap.
+ * <p>
+ * wkhtmltopdf always writes classic cross-reference tables, so the fallback should be rare.
+ *
+ * @since 10.10
+ */
+public class PdfValidator {
+
+    private static final Log log = LogFactory.getLog(PdfValidator.class);
+
+    public static final int NOT_A_PDF = -1;
+
+    // The structure could not be read without a full parser
+    protected static final int AMBIGUOUS = -2;
+
+    protected static final int HEADER_SCAN = 1024;
+
+    protected static final int TAIL_SCAN = 2048;
+
+    protected static final int TRAILER_SCAN = 4096;
+
+    // The page tree root lists all its kids before /Count, so it can be long. We stop before that anyway.
+    protected static final int MAX_OBJECT_SCAN = 512 * 1024;
+
+    protected static final int MAX_XREF_SECTIONS = 16;
+
+    protected static final int XREF_ENTRY_LENGTH = 20;
+
+    protected static final Pattern STARTXREF = Pattern.compile("startxref\\s+(\\d+)\\s+%%EOF");
+
+    protected static final Pattern SUBSECTION = Pattern.compile("(\\d+)\\s+(\\d+)");
+
+    protected static final Pattern XREF_ENTRY = Pattern.compile("(\\d{10}) (\\d{5}) ([nf])");
+
+    protected static final Pattern ROOT = Pattern.compile("/Root\\s+(\\d+)\\s+\\d+\\s+R");
+
+    protected static final Pattern PREV = Pattern.compile("/Prev\\s+(\\d+)");
+
+    protected static final Pattern PAGES = Pattern.compile("/Pages\\s+(\\d+)\\s+\\d+\\s+R");
+
+    protected static final Pattern COUNT = Pattern.compile("/Count\\s+(\\d+)(\\s+\\d+\\s+R)?");
+
+    private PdfValidator() {
+    }
+
+    /**
+     * @param inPdf
+     * @return true if the file is a PDF with at least one page
+     * @since 10.10
+     */
+    public static boolean looksValid(File inPdf) {
+        return getPageCount(inPdf) > 0;
+    }
+
+    /**
+     * @param inPdf
+     * @return the number of pages, or {@link #NOT_A_PDF}
+     * @since 10.10
+     */
+    public static int getPageCount(File inPdf) {
+
+        if (inPdf == null || !inPdf.exists() || inPdf.length() == 0) {
+            return NOT_A_PDF;
+        }
+
+        int count;
+        try (RandomAccessFile raf = new RandomAccessFile(inPdf, "r")) {
+            count = readPageCount(raf);
+        } catch (IOException e) {
+            return NOT_A_PDF;
+        }
+
+        if (count == AMBIGUOUS) {
+            log.debug("Cannot read the page count of " + inPdf + " from its structure, parsing it");
+            count = countPagesWithPdfBox(inPdf);
+        }
+
+        return count;
+    }
+
+    protected static int readPageCount(RandomAccessFile inRaf) throws IOException {
+
+        long length = inRaf.length();
+
+        if (readString(inRaf, 0, HEADER_SCAN).indexOf("%PDF-") < 0) {
+            return NOT_A_PDF;
+        }
+
+        long tailStart = Math.max(0, length - TAIL_SCAN);
+        String tail = readString(inRaf, tailStart, (int) (length - tailStart));
+        int startxrefPos = tail.lastIndexOf("startxref");
+        if (startxrefPos < 0 || tail.lastIndexOf("%%EOF") < startxrefPos) {
+            return NOT_A_PDF;
+        }
+        Matcher m = STARTXREF.matcher(tail);
+        if (!m.find(startxrefPos)) {
+            return NOT_A_PDF;
+        }
+        long xrefOffset = Long.parseLong(m.group(1));
+        if (xrefOffset >= length) {
+            return NOT_A_PDF;
+        }
+
+        // From here, anything unexpected is not an error, just something we don't handle
+        try {
+            return readPageCount(inRaf, xrefOffset);
+        } catch (IOException | RuntimeException e) {
+            return AMBIGUOUS;
+        }
+    }
+
+    protected static int readPageCount(RandomAccessFile inRaf, long inXrefOffset) throws IOException {
+
+        // Sections, the most recent first: {first object number, count, position of the first entry}
+        List<long[]> subsections = new ArrayList<>();
+        int root = -1;
+        long offset = inXrefOffset;
+        for (int i = 0; offset >= 0; i++) {
+            if (i >= MAX_XREF_SECTIONS) {
+                return AMBIGUOUS;
+            }
+            String trailer = readXrefSection(inRaf, offset, subsections);
+            if (trailer == null) {
+                return AMBIGUOUS;
+            }
+            if (root < 0) {
+                Matcher m = ROOT.matcher(trailer);
+                if (!m.find()) {
+                    return AMBIGUOUS;
+                }
+                root = Integer.parseInt(m.group(1));
+            }
+            Matcher m = PREV.matcher(trailer);
+            offset = m.find() ? Long.parseLong(m.group(1)) : -1;
+        }
+
+        String catalog = readObject(inRaf, findObjectOffset(inRaf, subsections, root), root);
+        Matcher m = catalog == null ? null : PAGES.matcher(catalog);
+        if (m == null || !m.find()) {
+            return AMBIGUOUS;
+        }
+        int pagesObj = Integer.parseInt(m.group(1));
+
+        String pages = readObject(inRaf, findObjectOffset(inRaf, subsections, pagesObj), pagesObj);
+        m = pages == null ? null : COUNT.matcher(pages);
+        if (m == null || !m.find() || m.group(2) != null) {
+            return AMBIGUOUS;
+        }
+
+        return Integer.parseInt(m.group(1));
+    }
+
+    /*
+     * Reads the subsections of a classic "xref" table and returns the trailer dictionary (as a string). Returns null if
+     * this is not a classic table (cross-reference stream)
+     */
+    protected static String readXrefSection(RandomAccessFile inRaf, long inOffset, List<long[]> outSubsections)
+            throws IOException {
+
+        inRaf.seek(inOffset);
+        String line = readNonEmptyLine(inRaf);
+        if (line == null || !line.startsWith("xref")) {
+            return null;
+        }
+
+        while ((line = readNonEmptyLine(inRaf)) != null) {
+            if (line.startsWith("trailer")) {
+                String trailer = line + readString(inRaf, inRaf.getFilePointer(), TRAILER_SCAN);
+                int end = trailer.indexOf("startxref");
+                return end < 0 ? trailer : trailer.substring(0, end);
+            }
+            Matcher m = SUBSECTION.matcher(line);
+            if (!m.matches()) {
+                return null;
+            }
+            long first = Long.parseLong(m.group(1));
+            long count = Long.parseLong(m.group(2));
+            long entriesPos = inRaf.getFilePointer();
+            outSubsections.add(new long[] { first, count, entriesPos });
+            inRaf.seek(entriesPos + count * XREF_ENTRY_LENGTH);
+        }
+
+        return null;
+    }
+
+    protected static long findObjectOffset(RandomAccessFile inRaf, List<long[]> inSubsections, int inObjectNumber)
+            throws IOException {
+
+        for (long[] subsection : inSubsections) {
+            if (inObjectNumber >= subsection[0] && inObjectNumber < subsection[0] + subsection[1]) {
+                long pos = subsection[2] + (inObjectNumber - subsection[0]) * XREF_ENTRY_LENGTH;
+                Matcher m = XREF_ENTRY.matcher(readString(inRaf, pos, XREF_ENTRY_LENGTH));
+                if (!m.lookingAt() || !"n".equals(m.group(3))) {
+                    return -1;
+                }
+                return Long.parseLong(m.group(1));
+            }
+        }
+
+        return -1;
+    }
+
+    /*
+     * Returns the content of the object, up to "endobj" or "stream", or null if it is not at this offset
+     */
+    protected static String readObject(RandomAccessFile inRaf, long inOffset, int inObjectNumber) throws IOException {
+
+        if (inOffset < 0 || inOffset >= inRaf.length()) {
+            return null;
+        }
+
+        StringBuilder content = new StringBuilder();
+        long pos = inOffset;
+        int end = -1;
+        while (end < 0 && content.length() < MAX_OBJECT_SCAN && pos < inRaf.length()) {
+            String chunk = readString(inRaf, pos, 8192);
+            pos += chunk.length();
+            // Search from a bit before, the keyword could be split between two chunks
+            int from = Math.max(0, content.length() - 8);
+            content.append(chunk);
+            end = indexOfAny(content, from, "endobj", "stream");
+        }
+
+        if (end < 0) {
+            return null;
+        }
+        String object = content.substring(0, end);
+        if (!object.trim().matches("(?s)" + inObjectNumber + "\\s+\\d+\\s+obj\\b.*")) {
+            return null;
+        }
+
+        return object;
+    }
+
+    protected static int indexOfAny(StringBuilder inStr, int inFrom, String... inKeywords) {
+
+        int result = -1;
+        for (String keyword : inKeywords) {
+            int i = inStr.indexOf(keyword, inFrom);
+            if (i > -1 && (result < 0 || i < result)) {
+                result = i;
+            }
+        }
+        return result;
+    }
+
+    protected static String readNonEmptyLine(RandomAccessFile inRaf) throws IOException {
+
+        String line;
+        do {
+            line = inRaf.readLine();
+        } while (line != null && line.trim().isEmpty());
+
+        return line == null ? null : line.trim();
+    }
+
+    protected static String readString(RandomAccessFile inRaf, long inPos, int inMaxLength) throws IOException {
+
+        int length = (int) Math.min(inMaxLength, inRaf.length() - inPos);
+        if (length <= 0) {
+            return "";
+        }
+        byte[] bytes = new byte[length];
+        inRaf.seek(inPos);
+        inRaf.readFully(bytes);
+
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    /*
+     * Last resort. Non sequential parsing: reads only the objects needed to get the page count, and the COS objects go
+     * to a scratch file, not the heap.
+     */
+    protected static int countPagesWithPdfBox(File inPdf) {
+
+        File scratch = null;
+        try {
+            scratch = File.createTempFile("pdfvalidator-", ".tmp");
+            try (org.apache.pdfbox.io.RandomAccessFile scratchFile = new org.apache.pdfbox.io.RandomAccessFile(
+                    scratch, "rw")) {
+                PDDocument pdfDoc = PDDocument.loadNonSeq(inPdf, scratchFile);
+                try {
+                    return pdfDoc.getNumberOfPages();
+                } finally {
+                    pdfDoc.close();
+                }
+            }
+        } catch (IOException e) {
+            return NOT_A_PDF;
+        } finally {
+            if (scratch != null) {
+                scratch.delete();
+            }
+        }
+    }
+
+}
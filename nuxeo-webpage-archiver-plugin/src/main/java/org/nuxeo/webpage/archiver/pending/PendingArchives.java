@@ -0,0 +1,182 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.pending;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.lang.StringUtils;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.kv.KeyValueService;
+import org.nuxeo.runtime.kv.KeyValueStore;
+
+/**
+ * Number of archive requests pending for each (repository, document, URL), so a work can tell in constant time if
+ * another archive of the same page is pending for its document, whatever the number of works queued.
+ * <p>
+ * A request is counted when its work is accepted, and uncounted when it ends (archive saved, not modified, failed
+ * for good). A work scheduled again later (retry, busy host) still holds its request. A duplicate request is not
+ * counted: the work that {@link #claim(String) claimed} the key drops it, so the WorkManager never has to.
+ * <p>
+ * Counters and claims are kept:
+ * <ul>
+ * <li>In the KeyValueStore, so they are shared by all the nodes of a cluster. A counter expires {@link #TTL} seconds
+ * after it was created, whatever the requests counted since, so one left behind by a node that was killed does not
+ * stay forever. A claim expires after {@link #CLAIM_TTL} seconds: then a duplicate is only rendered twice</li>
+ * <li>Or, if no store is configured, in memory</li>
+ * </ul>
+ *
+ * @since 10.10
+ */
+public class PendingArchives {
+
+    protected static final String KEY_PREFIX = "webpagearchiver:pending:";
+
+    protected static final String CLAIM_PREFIX = "webpagearchiver:claimed:";
+
+    // One day
+    public static final long TTL = 86400;
+
+    // One hour
+    public static final long CLAIM_TTL = 3600;
+
+    protected final String keyValueStoreName;
+
+    protected final Map<String, Long> counters = new ConcurrentHashMap<>();
+
+    // Key => time the claim expires
+    protected final Map<String, Long> claims = new ConcurrentHashMap<>();
+
+    /**
+     * @param inKeyValueStoreName the store sharing the counters in a cluster, null or empty to keep them in memory
+     */
+    public PendingArchives(String inKeyValueStoreName) {
+        keyValueStoreName = inKeyValueStoreName;
+    }
+
+    public static String computeKey(String inRepoName, String inDocId, String inUrl) {
+        return inRepoName + ":" + inDocId + ":" + inUrl;
+    }
+
+    /**
+     * Counts a new request.
+     *
+     * @param inKey as returned by {@link #computeKey(String, String, String)}
+     * @return the number of requests pending for the key, including this one
+     * @since 10.10
+     */
+    public long added(String inKey) {
+
+        KeyValueStore kvStore = getKeyValueStore();
+        if (kvStore == null) {
+            return counters.merge(inKey, 1L, Long::sum);
+        }
+        long count = kvStore.addAndGet(KEY_PREFIX + inKey, 1);
+        if (count == 1) {
+            // Only when created: refreshed at each request, a counter that leaked would never expire
+            kvStore.setTTL(KEY_PREFIX + inKey, TTL);
+        }
+        return count;
+    }
+
+    /**
+     * Uncounts a request that ended.
+     *
+     * @param inKey as returned by {@link #computeKey(String, String, String)}
+     * @return the number of requests still pending for the key
+     * @since 10.10
+     */
+    public long done(String inKey) {
+
+        KeyValueStore kvStore = getKeyValueStore();
+        if (kvStore == null) {
+            Long count = counters.computeIfPresent(inKey, (k, v) -> v <= 1 ? null : v - 1);
+            return count == null ? 0 : count.longValue();
+        }
+        long count = kvStore.addAndGet(KEY_PREFIX + inKey, -1);
+        if (count < 0) {
+            // Counted before the store was cleared, or expired
+            count = kvStore.addAndGet(KEY_PREFIX + inKey, -count);
+        }
+        return count;
+    }
+
+    /**
+     * @param inKey as returned by {@link #computeKey(String, String, String)}
+     * @return the number of requests pending for the key
+     * @since 10.10
+     */
+    public long get(String inKey) {
+
+        KeyValueStore kvStore = getKeyValueStore();
+        if (kvStore == null) {
+            Long count = counters.get(inKey);
+            return count == null ? 0 : count.longValue();
+        }
+        Long count = kvStore.getLong(KEY_PREFIX + inKey);
+        return count == null ? 0 : Math.max(0, count.longValue());
+    }
+
+    /**
+     * Claims the key for a work about to be scheduled, so the same request made again while the work is scheduled or
+     * running is dropped before being counted.
+     *
+     * @param inKey as returned by {@link #computeKey(String, String, String)}
+     * @return false if the key is already claimed
+     * @since 10.10
+     */
+    public boolean claim(String inKey) {
+
+        KeyValueStore kvStore = getKeyValueStore();
+        if (kvStore == null) {
+            long now = System.currentTimeMillis();
+            Long expires = claims.get(inKey);
+            if (expires != null && expires.longValue() <= now) {
+                claims.remove(inKey, expires);
+            }
+            return claims.putIfAbsent(inKey, now + CLAIM_TTL * 1000) == null;
+        }
+        return kvStore.compareAndSet(CLAIM_PREFIX + inKey, null, "1", CLAIM_TTL);
+    }
+
+    /**
+     * Releases a key claimed by {@link #claim(String)}, when its work ends.
+     *
+     * @param inKey as returned by {@link #computeKey(String, String, String)}
+     * @since 10.10
+     */
+    public void release(String inKey) {
+
+        KeyValueStore kvStore = getKeyValueStore();
+        if (kvStore == null) {
+            claims.remove(inKey);
+        } else {
+            kvStore.put(CLAIM_PREFIX + inKey, (String) null);
+        }
+    }
+
+    protected KeyValueStore getKeyValueStore() {
+        if (StringUtils.isBlank(keyValueStoreName)) {
+            return null;
+        }
+        KeyValueService kvService = Framework.getService(KeyValueService.class);
+        return kvService == null ? null : kvService.getKeyValueStore(keyValueStoreName);
+    }
+
+}
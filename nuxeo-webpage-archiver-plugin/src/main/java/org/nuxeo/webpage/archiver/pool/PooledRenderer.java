@@ -0,0 +1,289 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.pool;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.webpage.archiver.governor.ProcessLimits;
+
+/**
+ * One long-lived <code>wkhtmltopdf --read-args-from-stdin</code> process.
+ * <p>
+ * In this mode, wkhtmltopdf reads one line of arguments at a time on stdin and runs a full conversion for each line,
+ * so Qt/WebKit and fontconfig are initialized only once. There is no explicit acknowledgment, so the job arguments are
+ * sent without <code>-q</code>: wkhtmltopdf then reports on stderr, ending each conversion with either "Done" or "Exit
+ * with code N...". Output is drained continuously by a reader thread, so there is no risk of blocking on a full buffer
+ * (which is why <code>-q</code> is required when forking).
+ * <p>
+ * A conversion may print both lines ("Done", then "Exit with code 1 due to network error..."). The reader counts the
+ * conversions in the output: consecutive terminal lines belong to the same conversion, and each result is tagged
+ * with its number, so a late line of a conversion is never taken as the result of the next one. A result for a
+ * conversion that was not sent makes the renderer unusable.
+ *
+ * @since 10.10
+ */
+public class PooledRenderer {
+
+    private static final Log log = LogFactory.getLog(PooledRenderer.class);
+
+    public static final String READ_ARGS_FROM_STDIN = "--read-args-from-stdin";
+
+    // Same value as when the watchdog of a forked process SIGTERMs it, so callers handle both the same way
+    public static final int EXIT_VALUE_TIMEOUT = 143;
+
+    // Returned when the process died during the conversion
+    public static final int EXIT_VALUE_CRASHED = -1;
+
+    // wkhtmltopdf reads each line in a 20400 bytes buffer
+    public static final int MAX_LINE_LENGTH = 20000;
+
+    protected static final String DONE = "Done";
+
+    protected static final String EXIT_WITH_CODE = "Exit with code ";
+
+    protected final Process process;
+
+    protected final Writer stdin;
+
+    protected final BlockingQueue<JobResult> results = new LinkedBlockingQueue<>();
+
+    // Conversions sent to the process. Written by the caller, read by the reader thread
+    protected volatile int jobsCount = 0;
+
+    // Conversions ended in the output, and whether the last non empty line was a terminal one. Reader thread only
+    protected int outputJobs = 0;
+
+    protected boolean afterTerminalLine = false;
+
+    protected volatile boolean broken = false;
+
+    protected static class JobResult {
+
+        protected final int job;
+
+        protected final int exitValue;
+
+        protected JobResult(int inJob, int inExitValue) {
+            job = inJob;
+            exitValue = inExitValue;
+        }
+    }
+
+    public PooledRenderer(String inExecutable) throws IOException {
+        this(inExecutable, null);
+    }
+
+    /**
+     * @param inExecutable
+     * @param inLimits applied to the process (no CPU time limit, see {@link ProcessLimits}), or null
+     * @throws IOException
+     * @since 10.10
+     */
+    public PooledRenderer(String inExecutable, ProcessLimits inLimits) throws IOException {
+
+        List<String> command = Arrays.asList(inExecutable, READ_ARGS_FROM_STDIN);
+        ProcessBuilder builder = new ProcessBuilder(inLimits == null ? command : inLimits.wrap(command, false));
+        // wkhtmltopdf writes nothing on stdout when the target is a file
+        builder.redirectErrorStream(true);
+        process = builder.start();
+        stdin = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+
+        Thread reader = new Thread(this::readOutput, "wkhtmltopdf-pool-" + inExecutable);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    protected void readOutput() {
+
+        try (InputStream in = new BufferedInputStream(process.getInputStream())) {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1) {
+                // Progress bars are refreshed with \r
+                if (c == '\n' || c == '\r') {
+                    handleLine(line.toString().trim());
+                    line.setLength(0);
+                } else if (line.length() < 1024) {
+                    line.append((char) c);
+                }
+            }
+        } catch (IOException e) {
+            // Process destroyed
+        }
+
+        broken = true;
+        // Whatever the conversion waiting, if any
+        results.offer(new JobResult(Integer.MAX_VALUE, EXIT_VALUE_CRASHED));
+    }
+
+    protected void handleLine(String inLine) {
+
+        int exitValue;
+        if (DONE.equals(inLine)) {
+            exitValue = 0;
+        } else if (inLine.startsWith(EXIT_WITH_CODE)) {
+            String code = inLine.substring(EXIT_WITH_CODE.length());
+            int end = 0;
+            while (end < code.length() && Character.isDigit(code.charAt(end))) {
+                end++;
+            }
+            try {
+                exitValue = Integer.parseInt(code.substring(0, end));
+            } catch (NumberFormatException e) {
+                exitValue = 1;
+            }
+        } else {
+            if (!inLine.isEmpty()) {
+                afterTerminalLine = false;
+                if (log.isTraceEnabled()) {
+                    log.trace(inLine);
+                }
+            }
+            return;
+        }
+
+        if (afterTerminalLine) {
+            // Second terminal line of the same conversion: its caller already has its result
+            log.debug("Conversion " + outputJobs + " also reported: " + inLine);
+            return;
+        }
+        afterTerminalLine = true;
+        outputJobs++;
+        if (outputJobs > jobsCount) {
+            log.warn("Unexpected result from the pooled renderer, it will be recycled: " + inLine);
+            broken = true;
+            return;
+        }
+        results.offer(new JobResult(outputJobs, exitValue));
+    }
+
+    /**
+     * Runs one conversion and waits for it, at most <code>inTimeout</code> ms. On timeout, the process is destroyed
+     * and {@link #EXIT_VALUE_TIMEOUT} is returned.
+     *
+     * @param inArgs the arguments of the conversion, without the executable
+     * @param inTimeout
+     * @return the exit value reported by wkhtmltopdf for this conversion
+     * @throws IOException
+     * @throws InterruptedException
+     * @since 10.10
+     */
+    public int render(List<String> inArgs, int inTimeout) throws IOException, InterruptedException {
+
+        int job = jobsCount + 1;
+        // Before sending the line, so the reader never sees the end of a conversion it does not know about
+        jobsCount = job;
+
+        try {
+            stdin.write(toArgumentsLine(inArgs));
+            stdin.write('\n');
+            stdin.flush();
+        } catch (IOException e) {
+            broken = true;
+            throw e;
+        }
+
+        long deadline = System.currentTimeMillis() + inTimeout;
+        while (true) {
+            JobResult result = results.poll(Math.max(0, deadline - System.currentTimeMillis()),
+                    TimeUnit.MILLISECONDS);
+            if (result == null) {
+                destroy();
+                return EXIT_VALUE_TIMEOUT;
+            }
+            if (result.job < job) {
+                // Never answer with the result of an earlier conversion
+                continue;
+            }
+            if (result.exitValue == EXIT_VALUE_CRASHED) {
+                broken = true;
+            }
+            return result.exitValue;
+        }
+    }
+
+    /**
+     * Quotes each argument the way wkhtmltopdf parses the lines read on stdin: double quotes, with backslash escaping
+     * <code>"</code> and <code>\</code>
+     *
+     * @param inArgs
+     * @return the line, without line separator
+     * @throws IOException if an argument contains a line break, or if the line is too long to be read by wkhtmltopdf
+     * @since 10.10
+     */
+    public static String toArgumentsLine(List<String> inArgs) throws IOException {
+
+        StringBuilder line = new StringBuilder();
+        for (String arg : inArgs) {
+            if (arg.indexOf('\n') > -1 || arg.indexOf('\r') > -1) {
+                throw new IOException("Cannot send an argument containing a line break to a pooled renderer");
+            }
+            if (line.length() > 0) {
+                line.append(' ');
+            }
+            line.append('"');
+            for (int i = 0; i < arg.length(); i++) {
+                char c = arg.charAt(i);
+                if (c == '"' || c == '\\') {
+                    line.append('\\');
+                }
+                line.append(c);
+            }
+            line.append('"');
+        }
+
+        if (line.length() > MAX_LINE_LENGTH) {
+            throw new IOException("Arguments too long for a pooled renderer");
+        }
+
+        return line.toString();
+    }
+
+    public boolean isUsable() {
+        return !broken && process.isAlive();
+    }
+
+    public int getJobsCount() {
+        return jobsCount;
+    }
+
+    public void destroy() {
+
+        broken = true;
+        try {
+            stdin.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        process.destroy();
+    }
+
+}
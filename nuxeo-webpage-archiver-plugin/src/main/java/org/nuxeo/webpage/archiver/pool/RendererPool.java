@@ -0,0 +1,172 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.pool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.webpage.archiver.governor.ProcessLimits;
+import org.nuxeo.webpage.archiver.metrics.ArchiverMetrics;
+
+/**
+ * Keeps up to <code>size</code> warm {@link PooledRenderer} processes for one executable.
+ * <p>
+ * Processes are started on demand and then kept for the next conversions. A process is recycled (destroyed, and
+ * replaced at next demand) when it crashed, when a conversion timed out, or after <code>maxJobsPerProcess</code>
+ * conversions, so a leak in WebKit cannot grow forever.
+ * <p>
+ * When all the processes are busy, callers wait for one to be available, at most the timeout of their conversion.
+ *
+ * @since 10.10
+ */
+public class RendererPool {
+
+    private static final Log log = LogFactory.getLog(RendererPool.class);
+
+    protected final String executable;
+
+    protected final ProcessLimits limits;
+
+    protected final int size;
+
+    protected final int maxJobsPerProcess;
+
+    protected final BlockingQueue<PooledRenderer> idle = new LinkedBlockingQueue<>();
+
+    protected final Semaphore slots;
+
+    protected volatile boolean shutdown = false;
+
+    public RendererPool(String inExecutable, int inSize, int inMaxJobsPerProcess) {
+        this(inExecutable, inSize, inMaxJobsPerProcess, null);
+    }
+
+    /**
+     * @param inExecutable
+     * @param inSize
+     * @param inMaxJobsPerProcess
+     * @param inLimits applied to each process, or null
+     * @since 10.10
+     */
+    public RendererPool(String inExecutable, int inSize, int inMaxJobsPerProcess, ProcessLimits inLimits) {
+        executable = inExecutable;
+        limits = inLimits;
+        size = inSize;
+        maxJobsPerProcess = inMaxJobsPerProcess;
+        slots = new Semaphore(inSize, true);
+    }
+
+    /**
+     * Runs the conversion in a warm process.
+     *
+     * @param inArgs the arguments, without the executable (see {@link #toJobArguments(String[])})
+     * @param inTimeout in ms, for waiting for a process and running the conversion together
+     * @return the exit value reported for this conversion ({@link PooledRenderer#EXIT_VALUE_TIMEOUT} on timeout)
+     * @throws IOException if no process could be started or be sent the arguments
+     * @throws InterruptedException
+     * @since 10.10
+     */
+    public int render(List<String> inArgs, int inTimeout) throws IOException, InterruptedException {
+
+        if (shutdown) {
+            throw new IOException("The renderer pool for " + executable + " is shut down");
+        }
+
+        long deadline = System.currentTimeMillis() + inTimeout;
+        if (!slots.tryAcquire(inTimeout, TimeUnit.MILLISECONDS)) {
+            return PooledRenderer.EXIT_VALUE_TIMEOUT;
+        }
+
+        PooledRenderer renderer = null;
+        try {
+            renderer = idle.poll();
+            if (renderer != null && !renderer.isUsable()) {
+                renderer.destroy();
+                renderer = null;
+            }
+            if (renderer == null) {
+                long start = System.nanoTime();
+                renderer = new PooledRenderer(executable, limits);
+                ArchiverMetrics.get().update(ArchiverMetrics.STAGE_PROCESS_START, null, System.nanoTime() - start);
+            }
+            // What is left of the timeout after waiting for a process and starting it
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return PooledRenderer.EXIT_VALUE_TIMEOUT;
+            }
+            return renderer.render(inArgs, (int) left);
+        } finally {
+            if (renderer != null) {
+                if (!shutdown && renderer.isUsable() && renderer.getJobsCount() < maxJobsPerProcess) {
+                    idle.offer(renderer);
+                } else {
+                    renderer.destroy();
+                }
+            }
+            slots.release();
+        }
+    }
+
+    /**
+     * Converts the arguments of a forked command line to the arguments of a pooled conversion: removes the
+     * <code>-q</code> switch (see {@link PooledRenderer})
+     *
+     * @param inArgs as returned by <code>CommandLine.getArguments()</code>, for arguments added with no quoting (see
+     *            {@link org.nuxeo.webpage.archiver.CommandTemplate#toCommandLine(java.util.Map)})
+     * @return the arguments
+     * @since 10.10
+     */
+    public static List<String> toJobArguments(String[] inArgs) {
+
+        List<String> args = new ArrayList<>(inArgs.length);
+        for (String arg : inArgs) {
+            if (!"-q".equals(arg) && !"--quiet".equals(arg)) {
+                args.add(arg);
+            }
+        }
+
+        return args;
+    }
+
+    public String getExecutable() {
+        return executable;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public void shutdown() {
+
+        shutdown = true;
+        PooledRenderer renderer;
+        while ((renderer = idle.poll()) != null) {
+            renderer.destroy();
+        }
+        log.debug("Renderer pool for " + executable + " shut down");
+    }
+
+}
@@ -0,0 +1,202 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.probe;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Lightweight pre-flight request telling if a page changed since it was last archived, so the (costly) rendering can
+ * be skipped.
+ * <p>
+ * A <code>HEAD</code> request is sent with the validators stored at the previous archive (<code>If-None-Match</code>
+ * and <code>If-Modified-Since</code>). The page is considered as unchanged if the server answers 304, or if it ignores
+ * the conditional headers but returns the same validators. If the server does not support <code>HEAD</code> (405,
+ * 501), a <code>GET</code> is sent instead and the connection closed without reading the body.
+ * <p>
+ * Any other answer or error is {@link Status#UNKNOWN}: the caller renders the page as usual, wkhtmltopdf will report
+ * the error if any.
+ *
+ * @since 10.10
+ */
+public class PageProbe {
+
+    private static final Log log = LogFactory.getLog(PageProbe.class);
+
+    public static final int DEFAULT_TIMEOUT = 10000;
+
+    public enum Status {
+        NOT_MODIFIED, MODIFIED, UNKNOWN
+    }
+
+    /**
+     * The outcome of a probe, with the validators returned by the server (to store with the new archive)
+     */
+    public static class Result {
+
+        protected final Status status;
+
+        protected final String etag;
+
+        protected final String lastModified;
+
+        public Result(Status inStatus, String inEtag, String inLastModified) {
+            status = inStatus;
+            etag = inEtag;
+            lastModified = inLastModified;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public boolean isNotModified() {
+            return status == Status.NOT_MODIFIED;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+    }
+
+    protected int timeout = DEFAULT_TIMEOUT;
+
+    public PageProbe() {
+    }
+
+    public PageProbe(int inTimeout) {
+        timeout = inTimeout > 0 ? inTimeout : DEFAULT_TIMEOUT;
+    }
+
+    /**
+     * Probes the page.
+     *
+     * @param inUrl
+     * @param inEtag the ETag stored at the previous archive, or null
+     * @param inLastModified the Last-Modified stored at the previous archive, or null
+     * @return the result, never null
+     * @since 10.10
+     */
+    public Result probe(String inUrl, String inEtag, String inLastModified) {
+
+        try {
+            Result result = send(inUrl, "HEAD", inEtag, inLastModified);
+            if (result == null) {
+                result = send(inUrl, "GET", inEtag, inLastModified);
+            }
+            return result == null ? new Result(Status.UNKNOWN, null, null) : result;
+        } catch (IOException | IllegalArgumentException e) {
+            log.debug("Cannot probe " + inUrl + ", the page will be rendered", e);
+            return new Result(Status.UNKNOWN, null, null);
+        }
+    }
+
+    /*
+     * Returns null if the method is not supported by the server
+     */
+    protected Result send(String inUrl, String inMethod, String inEtag, String inLastModified) throws IOException {
+
+        URLConnection connection = new URL(inUrl).openConnection();
+        if (!(connection instanceof HttpURLConnection)) {
+            return new Result(Status.UNKNOWN, null, null);
+        }
+
+        HttpURLConnection http = (HttpURLConnection) connection;
+        try {
+            http.setRequestMethod(inMethod);
+            http.setConnectTimeout(timeout);
+            http.setReadTimeout(timeout);
+            http.setUseCaches(false);
+            boolean conditional = false;
+            if (StringUtils.isNotBlank(inEtag)) {
+                http.setRequestProperty("If-None-Match", inEtag);
+                conditional = true;
+            }
+            if (StringUtils.isNotBlank(inLastModified)) {
+                http.setRequestProperty("If-Modified-Since", inLastModified);
+                conditional = true;
+            }
+
+            int code = http.getResponseCode();
+            String etag = http.getHeaderField("ETag");
+            String lastModified = http.getHeaderField("Last-Modified");
+
+            if (code == HttpURLConnection.HTTP_BAD_METHOD || code == HttpURLConnection.HTTP_NOT_IMPLEMENTED) {
+                return "HEAD".equals(inMethod) ? null : new Result(Status.UNKNOWN, null, null);
+            }
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                // A 304 may not repeat the validators: keep the ones we have
+                return conditional
+                        ? new Result(Status.NOT_MODIFIED, StringUtils.defaultIfBlank(etag, inEtag),
+                                StringUtils.defaultIfBlank(lastModified, inLastModified))
+                        : new Result(Status.UNKNOWN, null, null);
+            }
+            if (code < 200 || code >= 300) {
+                return new Result(Status.UNKNOWN, null, null);
+            }
+
+            // The server ignored the conditional headers: compare ourselves. The ETag wins when there is one
+            boolean same;
+            if (StringUtils.isNotBlank(etag) || StringUtils.isNotBlank(inEtag)) {
+                same = StringUtils.isNotBlank(inEtag) && sameEtag(etag, inEtag);
+            } else {
+                same = StringUtils.isNotBlank(inLastModified)
+                        && inLastModified.trim().equals(StringUtils.trim(lastModified));
+            }
+            return new Result(same ? Status.NOT_MODIFIED : Status.MODIFIED, etag, lastModified);
+
+        } finally {
+            if ("GET".equals(inMethod)) {
+                // Do not read the body, and do not let the connection be reused with a pending body
+                try {
+                    InputStream in = http.getErrorStream();
+                    if (in != null) {
+                        in.close();
+                    }
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+            http.disconnect();
+        }
+    }
+
+    /*
+     * Weak comparison (RFC 7232): W/"x" and "x" match
+     */
+    protected static boolean sameEtag(String inEtag1, String inEtag2) {
+
+        if (inEtag1 == null || inEtag2 == null) {
+            return false;
+        }
+        return StringUtils.removeStart(inEtag1.trim(), "W/").equals(StringUtils.removeStart(inEtag2.trim(), "W/"));
+    }
+
+}
@@ -0,0 +1,59 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.watch;
+
+import org.nuxeo.ecm.core.api.repository.RepositoryManager;
+import org.nuxeo.ecm.core.event.Event;
+import org.nuxeo.ecm.core.event.EventListener;
+import org.nuxeo.ecm.core.work.api.WorkManager;
+import org.nuxeo.ecm.core.work.api.WorkManager.Scheduling;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Receives the <code>webpageWatchCheck</code> event fired every minute by the scheduler (see OSGI-INF/watch.xml) and
+ * schedules one {@link WebpageWatchWork} per repository. A run still waiting in the queue is not scheduled again.
+ * <p>
+ * Set <code>nuxeo.webpage.archiver.watch.enabled</code> to <code>false</code> to stop the archives of the watched
+ * documents (on a node of a cluster, for example).
+ *
+ * @since 10.10
+ */
+public class WebpageWatchListener implements EventListener {
+
+    public static final String EVENT = "webpageWatchCheck";
+
+    public static final String ENABLED_PROPERTY = "nuxeo.webpage.archiver.watch.enabled";
+
+    @Override
+    public void handleEvent(Event event) {
+
+        if (!Boolean.parseBoolean(Framework.getProperty(ENABLED_PROPERTY, "true"))) {
+            return;
+        }
+        RepositoryManager repositoryManager = Framework.getService(RepositoryManager.class);
+        WorkManager workManager = Framework.getService(WorkManager.class);
+        if (repositoryManager == null || workManager == null) {
+            return;
+        }
+        for (String repositoryName : repositoryManager.getRepositoryNames()) {
+            workManager.schedule(new WebpageWatchWork(repositoryName), Scheduling.IF_NOT_SCHEDULED);
+        }
+    }
+
+}
@@ -0,0 +1,257 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.watch;
+
+import java.io.Serializable;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.work.AbstractWork;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+import org.nuxeo.webpage.archiver.WebpageArchiverService;
+import org.nuxeo.webpage.archiver.WebpageToBlobWork;
+import org.nuxeo.webpage.archiver.WebpageWatchFacet;
+import org.nuxeo.webpage.archiver.pending.PendingArchives;
+
+/**
+ * Schedules the archives of the watched documents that are due (see {@link WebpageWatchFacet}), in one repository.
+ * Run every minute (see {@link WebpageWatchListener}).
+ * <p>
+ * The due documents are read oldest due first. Each one is then handled in its own transaction: its work is queued,
+ * then its next archive is planned. A document that cannot be saved does not roll back the others: it is logged and
+ * its next archive is pushed back by {@link #FAILURE_DELAY}, so it does not stay first in the line. If the node stops
+ * between the two, the document is still due and is archived at the next run, not an interval later.
+ * <p>
+ * At most <code>nuxeo.webpage.archiver.watch.maxPerMinute</code> archives are scheduled per run, the others stay due
+ * for the next run. The works are spread evenly over the minute, with some randomness, instead of all being queued at
+ * once: the renderers get a flat load, whatever the number of documents due at the same time.
+ * <p>
+ * The archives are conditional (see {@link WebpageToBlobWork#setConditional(boolean)}): a page that did not change is
+ * not rendered again.
+ *
+ * @since 10.10
+ */
+public class WebpageWatchWork extends AbstractWork {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Log log = LogFactory.getLog(WebpageWatchWork.class);
+
+    // WARNING: Must be the same as the one used in OSGI/Works.xml
+    public static final String CATEGORY_WEBPAGE_WATCH = "webpageWatch";
+
+    public static final String MAX_PER_MINUTE_PROPERTY = "nuxeo.webpage.archiver.watch.maxPerMinute";
+
+    public static final int MAX_PER_MINUTE_DEFAULT = 60;
+
+    public static final long PERIOD = TimeUnit.MINUTES.toMillis(1);
+
+    // A document that could not be handled is tried again after this delay
+    public static final long FAILURE_DELAY = TimeUnit.MINUTES.toMillis(10);
+
+    protected static final String QUERY = "SELECT ecm:uuid FROM Document WHERE ecm:mixinType = '"
+            + WebpageWatchFacet.FACET + "' AND " + WebpageWatchFacet.XPATH_INTERVAL + " > 0 AND ("
+            + WebpageWatchFacet.XPATH_NEXT_ARCHIVE + " IS NULL OR " + WebpageWatchFacet.XPATH_NEXT_ARCHIVE
+            + " <= TIMESTAMP '%s') AND ecm:isVersion = 0 AND ecm:isProxy = 0 AND ecm:isTrashed = 0 ORDER BY "
+            + WebpageWatchFacet.XPATH_NEXT_ARCHIVE;
+
+    public WebpageWatchWork(String inRepositoryName) {
+        super(CATEGORY_WEBPAGE_WATCH + ":" + inRepositoryName);
+        repositoryName = inRepositoryName;
+    }
+
+    @Override
+    public void work() {
+
+        int max = getMaxPerMinute();
+        long now = System.currentTimeMillis();
+        String query = String.format(QUERY, new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date(now)));
+
+        List<String> ids = new ArrayList<>();
+        openSystemSession();
+        try {
+            for (Map<String, Serializable> row : session.queryProjection(query, max, 0)) {
+                ids.add((String) row.get("ecm:uuid"));
+            }
+        } finally {
+            commitOrRollbackTransaction();
+            closeSession();
+        }
+
+        int scheduled = 0;
+        for (int i = 0; i < ids.size(); i++) {
+            if (plan(ids.get(i), now, computeDelay(i, ids.size(), PERIOD))) {
+                scheduled++;
+            }
+        }
+        if (scheduled > 0) {
+            log.debug(scheduled + " watched webpage(s) to archive in " + repositoryName);
+        }
+        setStatus("Done, " + scheduled + " archive(s) scheduled");
+    }
+
+    /*
+     * Queues the work of the document, then plans its next archive. Returns true if the work was queued (false if the
+     * URL is missing, the document could not be read, or an archive of the page is already scheduled or running for
+     * it: its next archive is then planned as usual)
+     */
+    protected boolean plan(String inDocId, long inNow, long inDelay) {
+
+        boolean queued = false;
+        try {
+            startTransaction();
+            openSystemSession();
+            try {
+                DocumentModel doc = session.getDocument(new IdRef(inDocId));
+                String url = WebpageWatchFacet.getUrl(doc);
+                if (StringUtils.isNotBlank(url)) {
+                    WebpageToBlobWork work = new WebpageToBlobWork(WebpageWatchFacet.getCommandLine(doc), url,
+                            repositoryName, doc.getId(), WebpageWatchFacet.getXPath(doc), null, null);
+                    work.setConditional(true);
+                    queued = schedule(work, inDelay);
+                }
+                WebpageWatchFacet.setNextArchive(doc,
+                        WebpageWatchFacet.computeNextArchive(inNow, WebpageWatchFacet.getInterval(doc)));
+                session.saveDocument(doc);
+                session.save();
+            } catch (NuxeoException e) {
+                TransactionHelper.setTransactionRollbackOnly();
+                throw e;
+            } finally {
+                try {
+                    commitOrRollbackTransaction();
+                } finally {
+                    closeSession();
+                }
+            }
+        } catch (NuxeoException e) {
+            log.warn("Cannot plan the next archive of watched document " + inDocId
+                    + (queued ? ", archive scheduled" : ", archive skipped"), e);
+            postpone(inDocId, queued ? -1 : inNow + FAILURE_DELAY);
+        }
+        return queued;
+    }
+
+    /*
+     * Own transaction. With a negative time, the next archive is planned as usual
+     */
+    protected void postpone(String inDocId, long inNextArchive) {
+
+        try {
+            startTransaction();
+            openSystemSession();
+            try {
+                DocumentModel doc = session.getDocument(new IdRef(inDocId));
+                WebpageWatchFacet.setNextArchive(doc, inNextArchive >= 0 ? inNextArchive
+                        : WebpageWatchFacet.computeNextArchive(System.currentTimeMillis(),
+                                WebpageWatchFacet.getInterval(doc)));
+                session.saveDocument(doc);
+                session.save();
+            } catch (NuxeoException e) {
+                TransactionHelper.setTransactionRollbackOnly();
+                throw e;
+            } finally {
+                try {
+                    commitOrRollbackTransaction();
+                } finally {
+                    closeSession();
+                }
+            }
+        } catch (NuxeoException e) {
+            log.warn("Cannot postpone watched document " + inDocId + ", still due", e);
+        }
+    }
+
+    /*
+     * Returns false if the work was dropped, an archive of the page being already scheduled or running for the document
+     */
+    protected boolean schedule(WebpageToBlobWork inWork, long inDelay) {
+
+        WebpageArchiverService service = Framework.getService(WebpageArchiverService.class);
+        if (inDelay == 0 || service == null) {
+            return WebpageToBlobWork.schedule(inWork);
+        }
+        // Claimed and counted now, as WebpageToBlobWork.schedule would
+        PendingArchives pending = service.getPendingArchives();
+        if (!pending.claim(inWork.getPendingKey())) {
+            log.debug("Archive " + inWork.getPendingKey() + " already scheduled or running, watched document skipped");
+            return false;
+        }
+        inWork.setClaimed(true);
+        pending.added(inWork.getPendingKey());
+        long due = System.currentTimeMillis() + inDelay;
+        inWork.setQueuedTime(due);
+        inWork.setNotBefore(due);
+        service.scheduleLater(inWork, inDelay);
+        return true;
+    }
+
+    /**
+     * Spreads <code>inCount</code> works evenly over the period: the work <code>inIndex</code> starts at a random time
+     * in its own slot of <code>inPeriod / inCount</code> ms. The first one starts right away.
+     *
+     * @param inIndex
+     * @param inCount
+     * @param inPeriod
+     * @return the delay in ms
+     * @since 10.10
+     */
+    public static long computeDelay(int inIndex, int inCount, long inPeriod) {
+
+        if (inIndex <= 0 || inCount <= 1) {
+            return 0;
+        }
+        long slot = inPeriod / inCount;
+        return inIndex * slot + ThreadLocalRandom.current().nextLong(slot + 1);
+    }
+
+    protected static int getMaxPerMinute() {
+
+        String value = Framework.getProperty(MAX_PER_MINUTE_PROPERTY);
+        try {
+            int max = StringUtils.isBlank(value) ? MAX_PER_MINUTE_DEFAULT : Integer.parseInt(value.trim());
+            return max > 0 ? max : MAX_PER_MINUTE_DEFAULT;
+        } catch (NumberFormatException e) {
+            return MAX_PER_MINUTE_DEFAULT;
+        }
+    }
+
+    @Override
+    public String getCategory() {
+        return CATEGORY_WEBPAGE_WATCH;
+    }
+
+    @Override
+    public String getTitle() {
+        return "Webpage watch for " + repositoryName;
+    }
+
+}
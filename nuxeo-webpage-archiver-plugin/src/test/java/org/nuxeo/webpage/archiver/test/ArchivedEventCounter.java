@@ -0,0 +1,61 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.nuxeo.ecm.core.event.Event;
+import org.nuxeo.ecm.core.event.EventListener;
+import org.nuxeo.ecm.core.event.impl.DocumentEventContext;
+
+/**
+ * Records when the <code>webpageArchived</code> event is fired for each document (see
+ * <code>stubrenderer-test.xml</code>)
+ *
+ * @since 10.10
+ */
+public class ArchivedEventCounter implements EventListener {
+
+    protected static final Map<String, List<Long>> EVENTS = new ConcurrentHashMap<>();
+
+    @Override
+    public void handleEvent(Event inEvent) {
+
+        if (inEvent.getContext() instanceof DocumentEventContext) {
+            String docId = ((DocumentEventContext) inEvent.getContext()).getSourceDocument().getId();
+            EVENTS.computeIfAbsent(docId, k -> new CopyOnWriteArrayList<>()).add(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * @param inDocId
+     * @return the times (ms) the event was fired for the document, in order
+     */
+    public static List<Long> getEvents(String inDocId) {
+        return EVENTS.getOrDefault(inDocId, new CopyOnWriteArrayList<>());
+    }
+
+    public static void clear() {
+        EVENTS.clear();
+    }
+
+}
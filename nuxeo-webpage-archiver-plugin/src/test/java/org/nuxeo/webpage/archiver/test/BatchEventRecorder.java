@@ -0,0 +1,78 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.test;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.nuxeo.ecm.core.event.Event;
+import org.nuxeo.ecm.core.event.EventListener;
+import org.nuxeo.webpage.archiver.WebpageToDocumentsWork;
+
+/**
+ * Records the properties of the <code>webpagesArchived</code> events, in the order they are fired (see
+ * <code>batch-test.xml</code>)
+ *
+ * @since 10.10
+ */
+public class BatchEventRecorder implements EventListener {
+
+    /**
+     * The properties of one event
+     */
+    public static class Archived {
+
+        public final List<String> archived;
+
+        public final Map<String, String> failed;
+
+        public final List<String> retried;
+
+        protected Archived(List<String> inArchived, Map<String, String> inFailed, List<String> inRetried) {
+            archived = inArchived;
+            failed = inFailed;
+            retried = inRetried;
+        }
+    }
+
+    protected static final List<Archived> EVENTS = new CopyOnWriteArrayList<>();
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void handleEvent(Event inEvent) {
+
+        Map<String, Serializable> props = inEvent.getContext().getProperties();
+        EVENTS.add(new Archived(new ArrayList<>((List<String>) props.get(WebpageToDocumentsWork.EVENT_PROP_ARCHIVED)),
+                new HashMap<>((Map<String, String>) props.get(WebpageToDocumentsWork.EVENT_PROP_FAILED)),
+                new ArrayList<>((List<String>) props.get(WebpageToDocumentsWork.EVENT_PROP_RETRIED))));
+    }
+
+    public static List<Archived> getEvents() {
+        return new ArrayList<>(EVENTS);
+    }
+
+    public static void clear() {
+        EVENTS.clear();
+    }
+
+}
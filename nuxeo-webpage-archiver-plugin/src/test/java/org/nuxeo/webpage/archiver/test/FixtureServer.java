@@ -0,0 +1,200 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.test;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embedded HTTP server serving fixture pages on the loopback interface, so tests do not depend on distant sites.
+ * <p>
+ * Every page is described by the query of its URL (see {@link #url(String, long, int, int)}):
+ * <ul>
+ * <li><code>latency</code>: in ms, waited before answering</li>
+ * <li><code>size</code>: in bytes, size of the HTML returned</li>
+ * <li><code>status</code>: HTTP status returned instead of 200</li>
+ * <li><code>failEvery</code>: every Nth request of the page is answered with a 503</li>
+ * <li><code>reset=true</code>: the connection is closed with no answer</li>
+ * <li><code>version</code>: part of the ETag, to simulate a page that changed</li>
+ * </ul>
+ * The version can also be changed for a path (see {@link #setVersion(String, String)}), to simulate a page whose ETag
+ * changed while its URL and its content did not.
+ * Pages return an ETag and answer 304 to a matching <code>If-None-Match</code>.
+ *
+ * @since 10.10
+ */
+public class FixtureServer implements Closeable {
+
+    protected final HttpServer server;
+
+    protected final ExecutorService executor;
+
+    protected final AtomicLong requests = new AtomicLong();
+
+    protected final AtomicLong notModified = new AtomicLong();
+
+    protected final AtomicLong failures = new AtomicLong();
+
+    protected final Map<String, AtomicLong> requestsPerPath = new ConcurrentHashMap<>();
+
+    protected final Map<String, String> versions = new ConcurrentHashMap<>();
+
+    public FixtureServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 50);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * @param inPath starting with a "/"
+     * @param inLatency in ms
+     * @param inSize in bytes
+     * @param inFailEvery 0 for no failure
+     * @return the URL of the page
+     */
+    public String url(String inPath, long inLatency, int inSize, int inFailEvery) {
+        return "http://" + server.getAddress().getAddress().getHostAddress() + ":" + server.getAddress().getPort()
+                + inPath + "?latency=" + inLatency + "&size=" + inSize + "&failEvery=" + inFailEvery;
+    }
+
+    /**
+     * @param inPath starting with a "/"
+     * @param inVersion replaces the <code>version</code> of the query in the ETag of the page
+     */
+    public void setVersion(String inPath, String inVersion) {
+        versions.put(inPath, inVersion);
+    }
+
+    public String getHost() {
+        return server.getAddress().getAddress().getHostAddress();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getNotModified() {
+        return notModified.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    protected void handle(HttpExchange inExchange) throws IOException {
+
+        requests.incrementAndGet();
+        try {
+            Map<String, String> query = parseQuery(inExchange.getRequestURI().getRawQuery());
+            long latency = Long.parseLong(query.getOrDefault("latency", "0"));
+            int size = Integer.parseInt(query.getOrDefault("size", "1024"));
+            int status = Integer.parseInt(query.getOrDefault("status", "200"));
+            int failEvery = Integer.parseInt(query.getOrDefault("failEvery", "0"));
+            String path = inExchange.getRequestURI().getPath();
+
+            if (latency > 0) {
+                Thread.sleep(latency);
+            }
+            if ("true".equals(query.get("reset"))) {
+                failures.incrementAndGet();
+                return;
+            }
+            long count = requestsPerPath.computeIfAbsent(path, k -> new AtomicLong()).incrementAndGet();
+            if (failEvery > 0 && count % failEvery == 0) {
+                status = 503;
+            }
+            if (status != 200) {
+                failures.incrementAndGet();
+                inExchange.sendResponseHeaders(status, -1);
+                return;
+            }
+
+            String etag = "\"" + path + "-" + size + "-" + versions.getOrDefault(path, query.getOrDefault("version", "1")) + "\"";
+            inExchange.getResponseHeaders().set("ETag", etag);
+            if (etag.equals(inExchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                notModified.incrementAndGet();
+                inExchange.sendResponseHeaders(304, -1);
+                return;
+            }
+
+            inExchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
+            if ("HEAD".equals(inExchange.getRequestMethod())) {
+                inExchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            byte[] body = buildPage(path, size);
+            inExchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = inExchange.getResponseBody()) {
+                out.write(body);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            inExchange.close();
+        }
+    }
+
+    /*
+     * Same content for the same path and size
+     */
+    protected static byte[] buildPage(String inPath, int inSize) {
+
+        StringBuilder html = new StringBuilder("<html><head><title>").append(inPath).append("</title></head><body>");
+        for (int i = 0; html.length() < inSize - 14; i++) {
+            html.append("<p>Paragraph ").append(i).append(" of ").append(inPath).append("</p>");
+        }
+        html.append("</body></html>");
+        return html.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    protected static Map<String, String> parseQuery(String inQuery) {
+
+        Map<String, String> params = new HashMap<>();
+        if (StringUtils.isNotBlank(inQuery)) {
+            for (String param : StringUtils.split(inQuery, "&")) {
+                params.put(StringUtils.substringBefore(param, "="), StringUtils.substringAfter(param, "="));
+            }
+        }
+        return params;
+    }
+
+}
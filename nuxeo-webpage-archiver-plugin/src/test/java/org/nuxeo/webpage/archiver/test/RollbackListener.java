@@ -0,0 +1,50 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.test;
+
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.event.Event;
+import org.nuxeo.ecm.core.event.EventListener;
+import org.nuxeo.ecm.core.event.impl.DocumentEventContext;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Rolls back the transaction saving a document titled {@link #TITLE} (see <code>batch-test.xml</code>), as a database
+ * error would
+ *
+ * @since 10.10
+ */
+public class RollbackListener implements EventListener {
+
+    public static final String TITLE = "rollback";
+
+    @Override
+    public void handleEvent(Event inEvent) {
+
+        if (inEvent.getContext() instanceof DocumentEventContext) {
+            DocumentModel doc = ((DocumentEventContext) inEvent.getContext()).getSourceDocument();
+            if (TITLE.equals(doc.getTitle())) {
+                TransactionHelper.setTransactionRollbackOnly();
+                throw new NuxeoException("Rolled back for the test");
+            }
+        }
+    }
+
+}
@@ -0,0 +1,188 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.pdfbox.exceptions.COSVisitorException;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.edit.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+
+/**
+ * A shell script standing for wkhtmltopdf, declared as the <code>wkhtmlToPdf-stub</code> (one page) and
+ * <code>wkhtmlToPdf-stub-binder</code> (<code>#{urls}</code>) command lines in <code>stubrenderer-test.xml</code>. It
+ * writes the same valid PDF for every URL after a fixed delay, so conversions are deterministic and do not need
+ * WebKit. A process rendering several URLs writes the PDF once, with the pages of one URL.
+ * <p>
+ * For a URL containing <code>invalid=true</code>, it writes a file that is not a PDF. When <code>fetch</code> is set
+ * and curl is installed, it also downloads the page, so the latency and the failures of the {@link FixtureServer} are
+ * part of the conversion. A page that cannot be downloaded fails the process with no PDF, or, with
+ * <code>--load-error-handling ignore</code>, as wkhtmltopdf does, still writes the PDF and exits with 1. Every URL and
+ * every process is logged, see {@link #getRenders()} and {@link #getProcesses()}.
+ * <p>
+ * Needs <code>/bin/sh</code>.
+ *
+ * @since 10.10
+ */
+public class StubWkhtmltopdf {
+
+    public static final String COMMAND = "wkhtmlToPdf-stub";
+
+    public static final String BINDER_COMMAND = "wkhtmlToPdf-stub-binder";
+
+    // Must match the path in stubrenderer-test.xml
+    public static final File DIR = new File(System.getProperty("java.io.tmpdir"), "nuxeo-webpage-archiver-stub");
+
+    public static final File SCRIPT = new File(DIR, "wkhtmltopdf.sh");
+
+    protected static final File TEMPLATE = new File(DIR, "template.pdf");
+
+    protected static final File LOG = new File(DIR, "renders.log");
+
+    protected static final File PROCESSES_LOG = new File(DIR, "processes.log");
+
+    private StubWkhtmltopdf() {
+    }
+
+    public static boolean isAvailable() {
+        return new File("/bin/sh").canExecute();
+    }
+
+    /**
+     * @return true if curl is in the path, so the script can download the pages when <code>fetch</code> is set
+     */
+    public static boolean canFetch() {
+        String path = System.getenv("PATH");
+        if (path == null) {
+            return false;
+        }
+        for (String dir : path.split(File.pathSeparator)) {
+            if (new File(dir, "curl").canExecute()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes the script, its PDF and an empty log.
+     *
+     * @param inDelay in ms, for each conversion
+     * @param inPages of the PDF
+     * @param inFetch
+     * @throws IOException
+     */
+    public static void install(long inDelay, int inPages, boolean inFetch) throws IOException {
+
+        if (!DIR.isDirectory() && !DIR.mkdirs()) {
+            throw new IOException("Cannot create " + DIR);
+        }
+        createPdf(TEMPLATE, inPages);
+        Files.write(LOG.toPath(), new byte[0]);
+        Files.write(PROCESSES_LOG.toPath(), new byte[0]);
+
+        String script = "#!/bin/sh\n" //
+                + "ignore=; prev=\n" //
+                + "for arg; do\n" //
+                + "  target=\"$arg\"\n" //
+                + "  case \"$prev $arg\" in '--load-error-handling ignore') ignore=1;; esac\n" //
+                + "  prev=\"$arg\"\n" //
+                + "done\n" //
+                + "pages=0; invalid=; failed=\n" //
+                + "for url; do\n" //
+                + "  case \"$url\" in http://*|https://*) ;; *) continue;; esac\n" //
+                + "  pages=$((pages + 1))\n" //
+                + "  echo \"$url\" >> '" + LOG.getAbsolutePath() + "'\n" //
+                + "  sleep " + String.format(Locale.ROOT, "%.3f", inDelay / 1000.0) + "\n" //
+                + "  case \"$url\" in *invalid=true*) invalid=1;; esac\n" //
+                + (inFetch ? "  if command -v curl > /dev/null; then curl -sf -o /dev/null \"$url\" || failed=1; fi\n"
+                        : "") //
+                + "done\n" //
+                + "echo \"$pages\" >> '" + PROCESSES_LOG.getAbsolutePath() + "'\n" //
+                + "if [ -n \"$invalid\" ]; then echo 'Not a PDF' > \"$target\"; exit 0; fi\n" //
+                + "if [ -n \"$failed\" ] && [ -z \"$ignore\" ]; then exit 1; fi\n" //
+                + "cp '" + TEMPLATE.getAbsolutePath() + "' \"$target\"\n" //
+                + "if [ -n \"$failed\" ]; then exit 1; fi\n";
+        Files.write(SCRIPT.toPath(), script.getBytes(StandardCharsets.UTF_8));
+        if (!SCRIPT.setExecutable(true)) {
+            throw new IOException("Cannot make " + SCRIPT + " executable");
+        }
+    }
+
+    /**
+     * @return the number of conversions for each URL since the script was installed
+     * @throws IOException
+     */
+    public static Map<String, Integer> getRenders() throws IOException {
+
+        Map<String, Integer> renders = new HashMap<>();
+        List<String> lines = Files.readAllLines(LOG.toPath(), StandardCharsets.UTF_8);
+        for (String line : lines) {
+            renders.merge(line, 1, Integer::sum);
+        }
+        return renders;
+    }
+
+    /**
+     * @return the number of URLs rendered by each process since the script was installed, in order
+     * @throws IOException
+     */
+    public static List<Integer> getProcesses() throws IOException {
+
+        List<Integer> processes = new ArrayList<>();
+        for (String line : Files.readAllLines(PROCESSES_LOG.toPath(), StandardCharsets.UTF_8)) {
+            processes.add(Integer.valueOf(line.trim()));
+        }
+        return processes;
+    }
+
+    protected static void createPdf(File inFile, int inPages) throws IOException {
+
+        PDDocument doc = new PDDocument();
+        try {
+            for (int p = 0; p < inPages; p++) {
+                PDPage page = new PDPage();
+                doc.addPage(page);
+                PDPageContentStream content = new PDPageContentStream(doc, page);
+                content.beginText();
+                content.setFont(PDType1Font.HELVETICA, 12);
+                content.moveTextPositionByAmount(40, 750);
+                content.drawString("Stub rendition, page " + (p + 1));
+                content.endText();
+                content.close();
+            }
+            doc.save(inFile);
+        } catch (COSVisitorException e) {
+            throw new IOException(e);
+        } finally {
+            doc.close();
+        }
+    }
+
+}
@@ -0,0 +1,355 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.automation.AutomationService;
+import org.nuxeo.ecm.automation.OperationContext;
+import org.nuxeo.ecm.automation.test.AutomationFeature;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.work.api.WorkManager;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.test.runner.Deploy;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.LocalDeploy;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+import org.nuxeo.webpage.archiver.WebpageArchiveFacet;
+import org.nuxeo.webpage.archiver.WebpageArchiverService;
+import org.nuxeo.webpage.archiver.WebpageToBlobWork;
+import org.nuxeo.webpage.archiver.WebpageToDocumentOp;
+import org.nuxeo.webpage.archiver.pdf.PdfValidator;
+import org.nuxeo.webpage.archiver.pending.PendingArchives;
+
+/**
+ * Drives <code>WebpageToDocument</code> with no network and no wkhtmltopdf: pages are served by a
+ * {@link FixtureServer}, conversions are done by {@link StubWkhtmltopdf}. Several requests are sent for each document,
+ * interleaved, then the same documents are archived again with nothing changed on the server.
+ * <p>
+ * Logs (INFO, in <code>target/trace.log</code>) the throughput, the p50/p99 latency (from the first request for a
+ * document to its <code>webpageArchived</code> event) and checks that:
+ * <ul>
+ * <li>Every document has a valid PDF, was rendered once and got exactly one event after its last request: the requests
+ * made while its archive is scheduled or running are dropped, the later ones find the page not modified. With
+ * failures, a retry can overlap a new request: then a document gets at most one render and one event per request</li>
+ * <li>A document whose rendition is not a PDF got no PDF and no event</li>
+ * <li>No request is still counted as pending</li>
+ * <li>The second pass renders nothing (the pages did not change), unless failures were requested</li>
+ * </ul>
+ * <code>testSmallLoad</code> always runs. <code>testLoad</code> is long and its figures depend on the machine, so it
+ * runs only when asked:
+ *
+ * <pre>
+ * mvn test -Dtest=TestArchiveLoad -Dnuxeo.webpage.archiver.load=true
+ * </pre>
+ *
+ * Optional (with their default values): <code>-Dnuxeo.webpage.archiver.load.threads=4</code> (threads of the
+ * webpageToBlob queue), <code>.documents=200</code>, <code>.requests=3</code> (per document),
+ * <code>.renderDelay=50</code> (ms), <code>.latency=20</code> (ms, of the fixture pages), <code>.size=50000</code>
+ * (bytes), <code>.failEvery=0</code> (every Nth request of a page fails, needs curl), <code>.invalid=5</code>
+ * (documents whose rendition is not a PDF)
+ *
+ * @since 10.10
+ */
+@RunWith(FeaturesRunner.class)
+@Features({ AutomationFeature.class })
+@Deploy({ "nuxeo-webpage-archiver", "org.nuxeo.ecm.platform.commandline.executor" })
+@LocalDeploy({ "nuxeo-webpage-archiver-test:stubrenderer-test.xml" })
+public class TestArchiveLoad {
+
+    private static final Log log = LogFactory.getLog(TestArchiveLoad.class);
+
+    protected static final String LOAD_PROPERTY = "nuxeo.webpage.archiver.load";
+
+    protected static final long MAX_WAIT = 600000;
+
+    @Inject
+    CoreSession session;
+
+    @Inject
+    AutomationService automationService;
+
+    @Inject
+    WorkManager workManager;
+
+    protected FixtureServer server;
+
+    protected static class Scenario {
+
+        int documents;
+
+        int requests;
+
+        long renderDelay;
+
+        long latency;
+
+        int size;
+
+        int failEvery;
+
+        int invalid;
+
+        protected static Scenario fromProperties() {
+            Scenario scenario = new Scenario();
+            scenario.documents = Integer.getInteger(LOAD_PROPERTY + ".documents", 200);
+            scenario.requests = Integer.getInteger(LOAD_PROPERTY + ".requests", 3);
+            scenario.renderDelay = Long.getLong(LOAD_PROPERTY + ".renderDelay", 50);
+            scenario.latency = Long.getLong(LOAD_PROPERTY + ".latency", 20);
+            scenario.size = Integer.getInteger(LOAD_PROPERTY + ".size", 50000);
+            scenario.failEvery = Integer.getInteger(LOAD_PROPERTY + ".failEvery", 0);
+            scenario.invalid = Integer.getInteger(LOAD_PROPERTY + ".invalid", 5);
+            return scenario;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+
+        Assume.assumeTrue("/bin/sh is not available, skipping test", StubWkhtmltopdf.isAvailable());
+
+        server = new FixtureServer();
+        ArchivedEventCounter.clear();
+        // Failed fetches are tried again quickly
+        Framework.getProperties().setProperty(WebpageToBlobWork.RETRY_BASE_DELAY_PROPERTY, "100");
+    }
+
+    @After
+    public void cleanup() {
+        if (server != null) {
+            server.close();
+        }
+        Framework.getProperties().remove(WebpageToBlobWork.RETRY_BASE_DELAY_PROPERTY);
+    }
+
+    @Test
+    public void testSmallLoad() throws Exception {
+
+        Scenario scenario = new Scenario();
+        scenario.documents = 6;
+        scenario.requests = 3;
+        scenario.renderDelay = 20;
+        scenario.latency = 5;
+        scenario.size = 5000;
+        scenario.invalid = 1;
+        run(scenario);
+    }
+
+    @Test
+    public void testLoad() throws Exception {
+
+        Assume.assumeTrue("Load test not requested, skipping", Boolean.getBoolean(LOAD_PROPERTY));
+        run(Scenario.fromProperties());
+    }
+
+    @Test
+    public void testNewValidatorsOfSameContentAreSaved() throws Exception {
+
+        StubWkhtmltopdf.install(0, 1, false);
+        DocumentModel doc = session.createDocumentModel("/", "page", "File");
+        doc = session.createDocument(doc);
+        TransactionHelper.commitOrRollbackTransaction();
+        TransactionHelper.startTransaction();
+        String url = server.url("/page", 0, 5000, 0);
+        List<DocumentModel> docs = Collections.singletonList(doc);
+        Map<String, String> urls = Collections.singletonMap(doc.getId(), url);
+
+        archive(doc, url);
+        awaitArchives(docs, urls);
+        TransactionHelper.commitOrRollbackTransaction();
+        TransactionHelper.startTransaction();
+        doc = session.getDocument(doc.getRef());
+        assertEquals("\"/page-5000-1\"", WebpageArchiveFacet.getEtag(doc));
+        Calendar modified = (Calendar) doc.getPropertyValue("dc:modified");
+
+        // New ETag, same content: rendered, not saved, but the new ETag is stored
+        server.setVersion("/page", "2");
+        archive(doc, url);
+        awaitArchives(docs, urls);
+        TransactionHelper.commitOrRollbackTransaction();
+        TransactionHelper.startTransaction();
+        doc = session.getDocument(doc.getRef());
+        assertEquals("\"/page-5000-2\"", WebpageArchiveFacet.getEtag(doc));
+        assertEquals(modified, doc.getPropertyValue("dc:modified"));
+        assertEquals(2, StubWkhtmltopdf.getRenders().get(url).intValue());
+        assertEquals(1, ArchivedEventCounter.getEvents(doc.getId()).size());
+
+        // So the next probe gets a "not modified"
+        long notModified = server.getNotModified();
+        archive(doc, url);
+        awaitArchives(docs, urls);
+        assertEquals(notModified + 1, server.getNotModified());
+        assertEquals(2, StubWkhtmltopdf.getRenders().get(url).intValue());
+    }
+
+    protected void run(Scenario inScenario) throws Exception {
+
+        StubWkhtmltopdf.install(inScenario.renderDelay, 3, inScenario.failEvery > 0);
+
+        List<DocumentModel> docs = new ArrayList<>();
+        Map<String, String> urls = new HashMap<>();
+        for (int i = 0; i < inScenario.documents; i++) {
+            DocumentModel doc = session.createDocumentModel("/", "page-" + i, "File");
+            doc = session.createDocument(doc);
+            String url = server.url("/page-" + i, inScenario.latency, inScenario.size, inScenario.failEvery);
+            if (i < inScenario.invalid) {
+                url += "&invalid=true";
+            }
+            docs.add(doc);
+            urls.put(doc.getId(), url);
+        }
+        TransactionHelper.commitOrRollbackTransaction();
+        TransactionHelper.startTransaction();
+
+        // First pass: interleaved requests for the same documents
+        Map<String, Long> firstRequest = new HashMap<>();
+        long start = System.currentTimeMillis();
+        for (int r = 0; r < inScenario.requests; r++) {
+            for (DocumentModel doc : docs) {
+                firstRequest.putIfAbsent(doc.getId(), System.currentTimeMillis());
+                archive(doc, urls.get(doc.getId()));
+            }
+        }
+        awaitArchives(docs, urls);
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+
+        TransactionHelper.commitOrRollbackTransaction();
+        TransactionHelper.startTransaction();
+
+        Map<String, Integer> renders = StubWkhtmltopdf.getRenders();
+        List<Long> latencies = new ArrayList<>();
+        int totalRenders = 0;
+        int totalEvents = 0;
+        for (int i = 0; i < docs.size(); i++) {
+            DocumentModel doc = session.getDocument(docs.get(i).getRef());
+            String url = urls.get(doc.getId());
+            int docRenders = renders.getOrDefault(url, 0);
+            List<Long> events = ArchivedEventCounter.getEvents(doc.getId());
+            Blob pdf = (Blob) doc.getPropertyValue("file:content");
+            totalRenders += docRenders;
+            totalEvents += events.size();
+
+            assertTrue(url + " not rendered", docRenders >= 1);
+            if (i < inScenario.invalid) {
+                assertNull(url + " is not a PDF, must not be saved", pdf);
+                assertEquals(url + " is not a PDF, no event expected", 0, events.size());
+            } else {
+                assertNotNull(url + " not saved", pdf);
+                assertTrue(url + " saved an invalid PDF", PdfValidator.looksValid(pdf.getFile()));
+                if (inScenario.failEvery == 0) {
+                    assertEquals(url + " requests not coalesced", 1, docRenders);
+                    assertEquals(url + " events", 1, events.size());
+                } else {
+                    assertTrue(url + " got no event", events.size() >= 1);
+                    assertTrue(url + " got " + events.size() + " events", events.size() <= inScenario.requests);
+                }
+                latencies.add(events.get(events.size() - 1) - firstRequest.get(doc.getId()));
+            }
+        }
+
+        // Second pass: nothing changed on the server, nothing is rendered
+        long notModifiedBefore = server.getNotModified();
+        for (DocumentModel doc : docs.subList(inScenario.invalid, docs.size())) {
+            archive(doc, urls.get(doc.getId()));
+        }
+        awaitArchives(docs, urls);
+        int rendersAfter = 0;
+        for (int count : StubWkhtmltopdf.getRenders().values()) {
+            rendersAfter += count;
+        }
+        long notModified = server.getNotModified() - notModifiedBefore;
+        if (inScenario.failEvery == 0) {
+            // Else a failed probe renders the page again
+            assertEquals("Pages not modified were rendered again", totalRenders, rendersAfter);
+        }
+
+        Collections.sort(latencies);
+        int archived = docs.size() - inScenario.invalid;
+        log.info(String.format(
+                "%d documents x %d requests, %s queue threads: %.2f archives/s, latency p50 %dms, p99 %dms, "
+                        + "%d renders for %d requests, %d events, %d server requests (%d failed), "
+                        + "second pass: %d not modified",
+                inScenario.documents, inScenario.requests,
+                Framework.getProperty(LOAD_PROPERTY + ".threads", "4"), archived / (elapsed / 1000.0),
+                percentile(latencies, 50), percentile(latencies, 99), totalRenders,
+                inScenario.documents * inScenario.requests, totalEvents, server.getRequests(), server.getFailures(),
+                notModified));
+    }
+
+    protected void archive(DocumentModel inDoc, String inUrl) throws Exception {
+
+        OperationContext ctx = new OperationContext(session);
+        ctx.setInput(inDoc);
+        Map<String, Object> params = new HashMap<>();
+        params.put("commandLine", StubWkhtmltopdf.COMMAND);
+        params.put("url", inUrl);
+        params.put("conditional", Boolean.TRUE);
+        automationService.run(ctx, WebpageToDocumentOp.ID, params);
+    }
+
+    /*
+     * The WorkManager does not know the works waiting for a retry or for their host: wait until no request is pending
+     */
+    protected void awaitArchives(List<DocumentModel> inDocs, Map<String, String> inUrls) throws Exception {
+
+        PendingArchives pending = Framework.getService(WebpageArchiverService.class).getPendingArchives();
+        long deadline = System.currentTimeMillis() + MAX_WAIT;
+        for (DocumentModel doc : inDocs) {
+            String key = PendingArchives.computeKey(doc.getRepositoryName(), doc.getId(), inUrls.get(doc.getId()));
+            while (pending.get(key) > 0) {
+                assertTrue("Archives still pending after " + MAX_WAIT + "ms", System.currentTimeMillis() < deadline);
+                workManager.awaitCompletion(100, TimeUnit.MILLISECONDS);
+            }
+        }
+        assertTrue(workManager.awaitCompletion(Math.max(1, deadline - System.currentTimeMillis()),
+                TimeUnit.MILLISECONDS));
+    }
+
+    protected static long percentile(List<Long> inSorted, int inPercentile) {
+        if (inSorted.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.ceil(inPercentile / 100.0 * inSorted.size()) - 1;
+        return inSorted.get(Math.max(0, Math.min(index, inSorted.size() - 1)));
+    }
+
+}
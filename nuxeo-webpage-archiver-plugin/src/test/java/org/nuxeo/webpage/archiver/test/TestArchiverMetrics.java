@@ -0,0 +1,126 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.nuxeo.webpage.archiver.CommandLineParameters;
+import org.nuxeo.webpage.archiver.CommandTemplate;
+import org.nuxeo.webpage.archiver.RenderException;
+import org.nuxeo.webpage.archiver.metrics.ArchiverMetrics;
+
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Uses its own registry, not the shared one
+ *
+ * @since 10.10
+ */
+public class TestArchiverMetrics {
+
+    protected static String name(String... inNames) {
+        return MetricRegistry.name(ArchiverMetrics.PREFIX, inNames);
+    }
+
+    @Test
+    public void testStages() {
+
+        MetricRegistry registry = new MetricRegistry();
+        ArchiverMetrics metrics = new ArchiverMetrics(registry);
+        CommandLineParameters.register(new CommandTemplate("wkhtmlToPdf", "wkhtmltopdf", "#{url} #{targetFilePath}"));
+        CommandLineParameters.register(
+                new CommandTemplate("wkhtmlToPdf-authenticated", "wkhtmltopdf", "#{url} #{targetFilePath}"));
+
+        try {
+            metrics.update(ArchiverMetrics.STAGE_RENDER, "wkhtmlToPdf", TimeUnit.MILLISECONDS.toNanos(1200));
+            metrics.update(ArchiverMetrics.STAGE_RENDER, "wkhtmlToPdf-authenticated",
+                    TimeUnit.MILLISECONDS.toNanos(800));
+            metrics.update(ArchiverMetrics.STAGE_SAVE, null, TimeUnit.MILLISECONDS.toNanos(20));
+            // Names coming from the callers, not contributions: all in the same timer
+            metrics.update(ArchiverMetrics.STAGE_QUEUE_WAIT, "unknown-1", 1000);
+            metrics.update(ArchiverMetrics.STAGE_QUEUE_WAIT, "unknown-2", 1000);
+        } finally {
+            CommandLineParameters.clear();
+        }
+
+        assertEquals(2, registry.timer(name("stage", "render")).getCount());
+        assertEquals(1, registry.timer(name("stage", "render", "wkhtmlToPdf")).getCount());
+        assertEquals(1, registry.timer(name("stage", "render", "wkhtmlToPdf-authenticated")).getCount());
+        assertEquals(1, registry.timer(name("stage", "save")).getCount());
+        assertEquals(2, registry.timer(name("stage", "queueWait")).getCount());
+        assertEquals(2, registry.timer(name("stage", "queueWait", "other")).getCount());
+        assertFalse(registry.getTimers().containsKey(name("stage", "queueWait", "unknown-1")));
+    }
+
+    @Test
+    public void testCounters() {
+
+        MetricRegistry registry = new MetricRegistry();
+        ArchiverMetrics metrics = new ArchiverMetrics(registry);
+
+        metrics.exitValue(0);
+        metrics.exitValue(143);
+        metrics.exitValue(143);
+        metrics.exitValue(-1);
+        metrics.exitValue(77);
+        metrics.failure(RenderException.Kind.TIMEOUT);
+        metrics.pdfSize(1024);
+
+        assertEquals(1, registry.counter(name("exit", "0")).getCount());
+        assertEquals(2, registry.counter(name("exit", "143")).getCount());
+        assertEquals(2, registry.counter(name("timeouts")).getCount());
+        assertEquals(1, registry.counter(name("exit", "crashed")).getCount());
+        assertEquals(1, registry.counter(name("exit", "other")).getCount());
+        assertEquals(1, registry.counter(name("failures", "TIMEOUT")).getCount());
+        assertEquals(1, registry.histogram(name("pdfSize")).getCount());
+
+        metrics.renderStarted();
+        assertEquals(1, registry.getGauges().get(name("inFlight")).getValue());
+        metrics.renderDone();
+        assertEquals(0, registry.getGauges().get(name("inFlight")).getValue());
+    }
+
+    @Test
+    public void testHostsAreBounded() {
+
+        MetricRegistry registry = new MetricRegistry();
+        ArchiverMetrics metrics = new ArchiverMetrics(registry);
+
+        // Disabled by default
+        metrics.updateHost("http://www.site.com/page.html", 1000);
+        assertTrue(registry.getTimers().isEmpty());
+
+        metrics.configure(true, 2);
+        metrics.updateHost("http://www.site1.com/page.html", 1000);
+        metrics.updateHost("http://www.site2.com/page.html", 1000);
+        metrics.updateHost("http://www.site3.com/page.html", 1000);
+        metrics.updateHost("http://www.site1.com/other.html", 1000);
+
+        assertEquals(2, registry.timer(name("host", "www_site1_com")).getCount());
+        assertEquals(1, registry.timer(name("host", "www_site2_com")).getCount());
+        assertEquals(1, registry.timer(name("host", "other")).getCount());
+        assertFalse(registry.getTimers().containsKey(name("host", "www_site3_com")));
+    }
+
+}
@@ -0,0 +1,200 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Test;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.api.impl.blob.StringBlob;
+import org.nuxeo.ecm.core.transientstore.api.TransientStore;
+import org.nuxeo.webpage.archiver.RenderException;
+import org.nuxeo.webpage.archiver.async.AsyncRenders;
+
+/**
+ * No wkhtmltopdf and no TransientStoreService here: the render is simulated, and the store is an in memory map
+ *
+ * @since 10.10
+ */
+public class TestAsyncRenders {
+
+    protected static final String USER = "jdoe";
+
+    protected CountDownLatch renderGate = new CountDownLatch(1);
+
+    protected TestableAsyncRenders asyncRenders;
+
+    protected class TestableAsyncRenders extends AsyncRenders {
+
+        protected final Map<String, Object> entries = new ConcurrentHashMap<>();
+
+        protected final TransientStore store = (TransientStore) Proxy.newProxyInstance(
+                TransientStore.class.getClassLoader(), new Class<?>[] { TransientStore.class },
+                (proxy, method, args) -> {
+                    String key = args == null ? null : (String) args[0];
+                    switch (method.getName()) {
+                    case "exists":
+                        return entries.keySet().stream().anyMatch(k -> k.startsWith(key + "/"));
+                    case "putParameter":
+                        entries.put(key + "/" + args[1], args[2]);
+                        return null;
+                    case "getParameter":
+                        return entries.get(key + "/" + args[1]);
+                    case "putBlobs":
+                        entries.put(key + "/blobs", args[1]);
+                        return null;
+                    case "getBlobs":
+                        return entries.get(key + "/blobs");
+                    case "isCompleted":
+                        return Boolean.TRUE.equals(entries.get(key + "/completed"));
+                    case "setCompleted":
+                        entries.put(key + "/completed", args[1]);
+                        return null;
+                    case "release":
+                    case "remove":
+                        entries.keySet().removeIf(k -> k.startsWith(key + "/"));
+                        return null;
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+
+        protected TestableAsyncRenders(int inMaxConcurrent, int inMaxQueued) {
+            super("test", inMaxConcurrent, inMaxQueued);
+        }
+
+        @Override
+        protected Blob render(String inCommandLine, String inUrl, String inFileName, Blob inCookieJar, int inTimeout)
+                throws Exception {
+
+            renderGate.await();
+            if (inUrl.contains("fail")) {
+                throw new RenderException(RenderException.Kind.UNKNOWN_HOST, "Unknown host");
+            }
+            return new StringBlob("%PDF-1.4", "application/pdf");
+        }
+
+        @Override
+        protected TransientStore getStore() {
+            return store;
+        }
+    }
+
+    @After
+    public void cleanup() {
+        renderGate.countDown();
+        if (asyncRenders != null) {
+            asyncRenders.shutdown();
+        }
+    }
+
+    @Test
+    public void testSubmitAwaitFetch() throws Exception {
+
+        asyncRenders = new TestableAsyncRenders(2, 10);
+
+        long start = System.currentTimeMillis();
+        String jobId = asyncRenders.submit(USER, null, "http://www.site.com", "page.pdf", null, 0);
+        // Returned before the render even started
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertEquals(AsyncRenders.STATUS_RUNNING, asyncRenders.getStatus(jobId, USER));
+
+        assertFalse(asyncRenders.await(jobId, USER, 50));
+        assertNull(asyncRenders.fetch(jobId, USER));
+
+        renderGate.countDown();
+        assertTrue(asyncRenders.await(jobId, USER, 5000));
+        assertEquals(AsyncRenders.STATUS_DONE, asyncRenders.getStatus(jobId, USER));
+
+        Blob pdf = asyncRenders.fetch(jobId, USER);
+        assertEquals("%PDF-1.4", pdf.getString());
+        // Fetched once
+        assertEquals(AsyncRenders.STATUS_UNKNOWN, asyncRenders.getStatus(jobId, USER));
+        assertNull(asyncRenders.fetch(jobId, USER));
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+
+        asyncRenders = new TestableAsyncRenders(1, 1);
+        renderGate.countDown();
+
+        String jobId = asyncRenders.submit(USER, null, "http://fail.site.com", null, null, 0);
+        assertTrue(asyncRenders.await(jobId, USER, 5000));
+        assertEquals(AsyncRenders.STATUS_FAILED, asyncRenders.getStatus(jobId, USER));
+        assertTrue(asyncRenders.getError(jobId, USER).startsWith("UNKNOWN_HOST"));
+        try {
+            asyncRenders.fetch(jobId, USER);
+            fail("The render failed");
+        } catch (NuxeoException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testOtherUser() throws Exception {
+
+        asyncRenders = new TestableAsyncRenders(1, 1);
+        renderGate.countDown();
+
+        String jobId = asyncRenders.submit(USER, null, "http://www.site.com", "page.pdf", null, 0);
+        assertTrue(asyncRenders.await(jobId, USER, 5000));
+
+        // For another user, the job does not exist
+        assertEquals(AsyncRenders.STATUS_UNKNOWN, asyncRenders.getStatus(jobId, "other"));
+        assertFalse(asyncRenders.await(jobId, "other", 0));
+        assertNull(asyncRenders.fetch(jobId, "other"));
+        assertNull(asyncRenders.fetch(jobId, null));
+
+        // Still there for its owner
+        assertEquals(AsyncRenders.STATUS_DONE, asyncRenders.getStatus(jobId, USER));
+        assertEquals("%PDF-1.4", asyncRenders.fetch(jobId, USER).getString());
+    }
+
+    @Test
+    public void testBounded() throws Exception {
+
+        asyncRenders = new TestableAsyncRenders(1, 1);
+
+        String running = asyncRenders.submit(USER, null, "http://www.site.com/1", null, null, 0);
+        String queued = asyncRenders.submit(USER, null, "http://www.site.com/2", null, null, 0);
+        try {
+            asyncRenders.submit(USER, null, "http://www.site.com/3", null, null, 0);
+            fail("Should be refused: one render running, one queued");
+        } catch (NuxeoException e) {
+            // Expected
+        }
+
+        renderGate.countDown();
+        assertTrue(asyncRenders.await(running, USER, 5000));
+        assertTrue(asyncRenders.await(queued, USER, 5000));
+    }
+
+}
@@ -0,0 +1,157 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.exec.CommandLine;
+import org.junit.Test;
+import org.nuxeo.webpage.archiver.CommandLineParameters;
+import org.nuxeo.webpage.archiver.CommandTemplate;
+import org.nuxeo.webpage.archiver.RenderException;
+import org.nuxeo.webpage.archiver.WebpageToBlob;
+
+/**
+ * @since 10.10
+ */
+public class TestCommandTemplate {
+
+    protected static final String PARAMS = "-q --cookie-jar \"#{cookieJar}\" --load-error-handling ignore "
+            + "'#{url}' \"#{targetFilePath}\"";
+
+    protected static Map<String, String> values(String inCookieJar, String inUrl, String inTarget) {
+        Map<String, String> values = new HashMap<>();
+        values.put(CommandLineParameters.COOKIE_JAR, inCookieJar);
+        values.put(CommandLineParameters.URL, inUrl);
+        values.put(CommandLineParameters.TARGET_FILE_PATH, inTarget);
+        return values;
+    }
+
+    @Test
+    public void testArguments() {
+
+        CommandTemplate template = new CommandTemplate("test", "wkhtmltopdf", PARAMS);
+        assertTrue(template.isHandledParametersQuoted());
+
+        String[] args = template.toArguments(values("/tmp/jar.txt", "https://www.nuxeo.com", "/tmp/out.pdf"));
+        assertArrayEquals(new String[] { "-q", "--cookie-jar", "/tmp/jar.txt", "--load-error-handling", "ignore",
+                "https://www.nuxeo.com", "/tmp/out.pdf" }, args);
+    }
+
+    @Test
+    public void testValuesAreNeverSplitNorUnquoted() {
+
+        CommandTemplate template = new CommandTemplate("test", "wkhtmltopdf", PARAMS);
+        String url = "https://www.nuxeo.com/a page?q=\"it's\" --disable-javascript";
+        String target = "/tmp/my dir/out.pdf";
+
+        CommandLine cmdLine = template.toCommandLine(values("/tmp/jar.txt", url, target));
+        String[] args = cmdLine.getArguments();
+        assertEquals("wkhtmltopdf", cmdLine.getExecutable());
+        assertEquals(7, args.length);
+        assertEquals(url, args[5]);
+        assertEquals(target, args[6]);
+    }
+
+    @Test
+    public void testMissingValuesAreKept() {
+
+        CommandTemplate template = new CommandTemplate("test", "wkhtmltopdf", PARAMS);
+        String[] args = template.toArguments(values(null, "", "/tmp/out.pdf"));
+        assertEquals("#{cookieJar}", args[2]);
+        assertEquals("#{url}", args[5]);
+    }
+
+    @Test
+    public void testPartsAndOtherParameters() {
+
+        CommandTemplate template = new CommandTemplate("test", "wkhtmltopdf",
+                "--post #{loginVar} #{loginValue} --title=\"Archive of #{url}\" \"\" \"#{targetFilePath}\"");
+        Map<String, String> values = values(null, "http://a.com", "/tmp/out.pdf");
+        values.put("loginVar", "user");
+        values.put("loginValue", "john doe");
+
+        assertArrayEquals(new String[] { "--post", "user", "john doe", "--title=Archive of http://a.com", "",
+                "/tmp/out.pdf" }, template.toArguments(values));
+        // #{url} is part of a quoted argument, not quoted alone
+        assertFalse(template.isHandledParametersQuoted());
+    }
+
+    @Test
+    public void testUnquotedParameter() {
+
+        CommandTemplate template = new CommandTemplate("test", "wkhtmltopdf", "-q #{url} \"#{targetFilePath}\"");
+        assertFalse(template.isHandledParametersQuoted());
+        assertArrayEquals(new String[] { "-q", "http://a.com", "/tmp/out.pdf" },
+                template.toArguments(values(null, "http://a.com", "/tmp/out.pdf")));
+    }
+
+    @Test
+    public void testUrlsArgument() {
+
+        CommandTemplate template = new CommandTemplate("test", "wkhtmltopdf", "-q \"#{urls}\" \"#{targetFilePath}\"");
+        assertTrue(template.isHandledParametersQuoted());
+        assertTrue(template.usesParameter(CommandLineParameters.URLS));
+        assertFalse(template.usesParameter(CommandLineParameters.URL));
+
+        // One argument per URL, whatever they contain
+        assertArrayEquals(new String[] { "-q", "toc", "http://a.com/x y", "http://b.com", "/tmp/out.pdf" },
+                template.toArguments(values(null, null, "/tmp/out.pdf"),
+                        Arrays.asList("toc", "http://a.com/x y", "http://b.com")));
+        // No list: left as is
+        assertArrayEquals(new String[] { "-q", "#{urls}", "/tmp/out.pdf" },
+                template.toArguments(values(null, null, "/tmp/out.pdf")));
+
+        assertFalse(new CommandTemplate("test", "wkhtmltopdf", "-q #{urls} \"#{targetFilePath}\"")
+                .isHandledParametersQuoted());
+    }
+
+    @Test
+    public void testOnlyPageUrlsAreExpanded() throws Exception {
+
+        assertTrue(WebpageToBlob.isPageUrl("http://a.com"));
+        assertTrue(WebpageToBlob.isPageUrl("https://b.com/page?x=1"));
+        // Would be read by wkhtmltopdf as a table of contents, a cover, an option or a local file
+        for (String url : new String[] { null, "", "toc", "cover", "-q", "--enable-local-file-access", "page.html",
+                "file:///etc/passwd", " http://a.com" }) {
+            assertFalse(url, WebpageToBlob.isPageUrl(url));
+        }
+
+        try {
+            new WebpageToBlob(1000).toPdf(null, Arrays.asList("http://a.com", "--allow", "/"), null, null, false);
+            fail("An option passed as URL was not rejected");
+        } catch (RenderException e) {
+            assertEquals(RenderException.Kind.INVALID_URL, e.getKind());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnbalancedQuotes() {
+        new CommandTemplate("test", "wkhtmltopdf", "-q \"#{url} \"#{targetFilePath}\"");
+    }
+
+}
@@ -0,0 +1,235 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.nuxeo.webpage.archiver.HostLimitDescriptor;
+import org.nuxeo.webpage.archiver.host.HostThrottle;
+import org.nuxeo.webpage.archiver.host.HostThrottle.Permit;
+
+/**
+ * @since 10.10
+ */
+public class TestHostThrottle {
+
+    @Test
+    public void testMaxConcurrent() {
+
+        HostThrottle throttle = new HostThrottle(Arrays.asList(new HostLimitDescriptor("*", 2, 0)));
+
+        Permit p1 = throttle.tryAcquire("http://slow.site.com/page1.html");
+        Permit p2 = throttle.tryAcquire("http://SLOW.site.com/page2.html");
+        Permit p3 = throttle.tryAcquire("http://slow.site.com/page3.html");
+        assertTrue(p1.isAcquired());
+        assertTrue(p2.isAcquired());
+        assertFalse(p3.isAcquired());
+        assertEquals(HostThrottle.BUSY_RETRY_DELAY, p3.getDelay());
+
+        // Other hosts are not impacted
+        assertTrue(throttle.tryAcquire("http://fast.site.com/").isAcquired());
+
+        p1.close();
+        p1.close(); // No effect
+        assertTrue(throttle.tryAcquire("http://slow.site.com/page3.html").isAcquired());
+        assertFalse(throttle.tryAcquire("http://slow.site.com/page4.html").isAcquired());
+    }
+
+    protected static class TestWaiter implements HostThrottle.Waiter {
+
+        protected final List<Long> wakes = new ArrayList<>();
+
+        @Override
+        public boolean isWaiting() {
+            return wakes.isEmpty();
+        }
+
+        @Override
+        public void wake(long inDelay) {
+            wakes.add(inDelay);
+        }
+    }
+
+    @Test
+    public void testWaitersAreWokenInOrder() {
+
+        HostThrottle throttle = new HostThrottle(Arrays.asList(new HostLimitDescriptor("*", 1, 0)));
+        String url = "http://slow.site.com/page.html";
+
+        Permit p1 = throttle.tryAcquire(url);
+        assertTrue(p1.isAcquired());
+
+        TestWaiter w1 = new TestWaiter();
+        TestWaiter w2 = new TestWaiter();
+        Permit p2 = throttle.tryAcquire(url, () -> w1, false);
+        assertFalse(p2.isAcquired());
+        assertEquals(HostThrottle.WAIT_FALLBACK_DELAY, p2.getDelay());
+        assertFalse(throttle.tryAcquire(url, () -> w2, false).isAcquired());
+        assertEquals(2, throttle.getWaitingCount(url));
+
+        // Only the first one is woken up, and the others cannot take its turn
+        p1.close();
+        assertEquals(Arrays.asList(0L), w1.wakes);
+        assertTrue(w2.wakes.isEmpty());
+        assertFalse(throttle.tryAcquire(url).isAcquired());
+
+        Permit p3 = throttle.tryAcquire(url, () -> new TestWaiter(), true);
+        assertTrue(p3.isAcquired());
+        assertTrue(w2.wakes.isEmpty());
+        p3.close();
+        assertEquals(Arrays.asList(0L), w2.wakes);
+        assertEquals(0, throttle.getWaitingCount(url));
+    }
+
+    @Test
+    public void testBlockedCallersGetSlotsInOrder() throws Exception {
+
+        HostThrottle throttle = new HostThrottle(Arrays.asList(new HostLimitDescriptor("*", 1, 0)));
+        String url = "http://slow.site.com/page.html";
+
+        Permit permit = throttle.tryAcquire(url);
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            int index = i;
+            Thread thread = new Thread(() -> {
+                try (Permit p = throttle.acquire(url, 10000)) {
+                    if (p.isAcquired()) {
+                        order.add(index);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            thread.start();
+            threads.add(thread);
+            // Queued before the next one starts
+            long deadline = System.currentTimeMillis() + 5000;
+            while (throttle.getWaitingCount(url) < i + 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(i + 1, throttle.getWaitingCount(url));
+        }
+
+        permit.close();
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+        assertEquals(Arrays.asList(0, 1, 2), order);
+    }
+
+    @Test
+    public void testBlockedCallerGivingUpDoesNotBlockTheOthers() throws Exception {
+
+        HostThrottle throttle = new HostThrottle(Arrays.asList(new HostLimitDescriptor("*", 1, 0)));
+        String url = "http://slow.site.com/page.html";
+
+        Permit permit = throttle.tryAcquire(url);
+        long start = System.currentTimeMillis();
+        assertFalse(throttle.acquire(url, 50).isAcquired());
+        assertTrue(System.currentTimeMillis() - start >= 50);
+
+        AtomicReference<Long> acquiredAt = new AtomicReference<>();
+        Thread thread = new Thread(() -> {
+            try (Permit p = throttle.acquire(url, 10000)) {
+                if (p.isAcquired()) {
+                    acquiredAt.set(System.currentTimeMillis());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        thread.start();
+        Thread.sleep(50);
+        long released = System.currentTimeMillis();
+        permit.close();
+        thread.join(5000);
+
+        // Woken up when the slot is released, not after WAIT_FALLBACK_DELAY
+        assertTrue(acquiredAt.get() != null && acquiredAt.get() - released < 1000);
+    }
+
+    @Test
+    public void testBlockedCallerWaitsForTheMinDelay() throws Exception {
+
+        HostThrottle throttle = new HostThrottle(Arrays.asList(new HostLimitDescriptor("*", 0, 200)));
+        String url = "http://slow.site.com/page.html";
+
+        long start = System.currentTimeMillis();
+        assertTrue(throttle.tryAcquire(url).isAcquired());
+        assertTrue(throttle.acquire(url, 5000).isAcquired());
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue(elapsed >= 150 && elapsed < 1000);
+    }
+
+    @Test
+    public void testMinDelayAndMostSpecificMatch() {
+
+        HostThrottle throttle = new HostThrottle(Arrays.asList(new HostLimitDescriptor("*", 0, 0),
+                new HostLimitDescriptor("*.site.com", 0, 60000), new HostLimitDescriptor("www.site.com", 0, 0)));
+
+        assertTrue(throttle.tryAcquire("http://a.site.com/").isAcquired());
+        Permit permit = throttle.tryAcquire("http://a.site.com/other");
+        assertFalse(permit.isAcquired());
+        assertTrue(permit.getDelay() > 50000);
+
+        // Exact host wins over the domain
+        assertTrue(throttle.tryAcquire("http://www.site.com/").isAcquired());
+        assertTrue(throttle.tryAcquire("http://www.site.com/").isAcquired());
+
+        // Not limited
+        assertTrue(throttle.tryAcquire("file:///tmp/page.html").isAcquired());
+        assertTrue(throttle.tryAcquire("http://other.com/").isAcquired());
+        assertTrue(throttle.tryAcquire("http://other.com/").isAcquired());
+    }
+
+    @Test
+    public void testByDomain() throws Exception {
+
+        HostLimitDescriptor limit = new HostLimitDescriptor("*", 1, 0) {
+            @Override
+            public boolean isByDomain() {
+                return true;
+            }
+        };
+        HostThrottle throttle = new HostThrottle(Arrays.asList(limit));
+
+        Permit permit = throttle.tryAcquire("http://www.example.co.uk/");
+        assertTrue(permit.isAcquired());
+        assertFalse(throttle.tryAcquire("http://static.example.co.uk/").isAcquired());
+        assertFalse(throttle.acquire("http://static.example.co.uk/", 10).isAcquired());
+        permit.close();
+        assertTrue(throttle.acquire("http://static.example.co.uk/", 10).isAcquired());
+
+        assertEquals("example.com", HostThrottle.getRegistrableDomain("a.b.example.com"));
+        assertEquals("example.com.au", HostThrottle.getRegistrableDomain("www.example.com.au"));
+        assertEquals("abc.fr", HostThrottle.getRegistrableDomain("www.abc.fr"));
+        assertEquals("10.0.0.1", HostThrottle.getRegistrableDomain("10.0.0.1"));
+    }
+
+}
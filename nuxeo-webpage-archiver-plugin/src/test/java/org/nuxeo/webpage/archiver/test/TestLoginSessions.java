@@ -0,0 +1,194 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.webpage.archiver.RenderingOptionsDescriptor;
+import org.nuxeo.webpage.archiver.login.LoginSessions;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The login is simulated (it writes a cookie jar), the authenticated site is a local embedded HTTP server redirecting
+ * to its login page when the session cookie is not the current one.
+ *
+ * @since 10.10
+ */
+public class TestLoginSessions {
+
+    protected static final String LOGIN_COMMAND = "wkhtmlToPdf-login-test";
+
+    protected HttpServer server;
+
+    protected String baseUrl;
+
+    // The only session accepted by the server
+    protected volatile String validSession;
+
+    protected TestableLoginSessions sessions;
+
+    protected class TestableLoginSessions extends LoginSessions {
+
+        @Override
+        protected Blob runLogin(String inLoginCommand, int inTimeout) throws IOException {
+
+            String session = "s" + (getLoginCount() + 1);
+            File jar = File.createTempFile("test-", ".jar");
+            jar.deleteOnExit();
+            Files.write(jar.toPath(), Arrays.asList("other=1; domain=.elsewhere.com; path=/",
+                    "session=" + session + "; domain=127.0.0.1; path=/"), StandardCharsets.UTF_8);
+            validSession = session;
+            return new FileBlob(jar);
+        }
+
+        @Override
+        protected RenderingOptionsDescriptor getOptions(String inLoginCommand) {
+            return new RenderingOptionsDescriptor(inLoginCommand) {
+                {
+                    sessionTtl = 3600L;
+                    loginPage = ".*/login.*";
+                }
+            };
+        }
+
+        @Override
+        protected Blob copyCookieJar(Blob inCookieJar) throws IOException {
+            File copy = File.createTempFile("test-", ".jar");
+            copy.deleteOnExit();
+            Files.copy(inCookieJar.getFile().toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return new FileBlob(copy);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/page", exchange -> {
+            String cookie = exchange.getRequestHeaders().getFirst("Cookie");
+            if (cookie != null && cookie.equals("session=" + validSession)) {
+                exchange.sendResponseHeaders(200, -1);
+            } else {
+                exchange.getResponseHeaders().add("Location", "/login?from=page");
+                exchange.sendResponseHeaders(302, -1);
+            }
+            exchange.close();
+        });
+        server.setExecutor(Executors.newFixedThreadPool(4));
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+
+        sessions = new TestableLoginSessions();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testSessionIsReused() throws Exception {
+
+        Blob jar1 = sessions.getCookieJar(LOGIN_COMMAND, baseUrl + "/page", 0);
+        Blob jar2 = sessions.getCookieJar(LOGIN_COMMAND, baseUrl + "/page", 0);
+        assertEquals(1, sessions.getLoginCount());
+        // Each caller has its own copy
+        assertFalse(jar1.getFile().equals(jar2.getFile()));
+        assertEquals(jar1.getString(), jar2.getString());
+
+        sessions.invalidate(LOGIN_COMMAND);
+        sessions.getCookieJar(LOGIN_COMMAND, baseUrl + "/page", 0);
+        assertEquals(2, sessions.getLoginCount());
+    }
+
+    @Test
+    public void testExpiredSessionRefreshedOnce() throws Exception {
+
+        sessions.getCookieJar(LOGIN_COMMAND, baseUrl + "/page", 0);
+        assertEquals(1, sessions.getLoginCount());
+
+        // The distant session expires before the TTL: the page redirects to the login page
+        validSession = "expired";
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Callable<Blob>> calls = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                calls.add(() -> sessions.getCookieJar(LOGIN_COMMAND, baseUrl + "/page", 0));
+            }
+            for (Future<Blob> future : executor.invokeAll(calls)) {
+                assertTrue(future.get().getString().contains("session=s2"));
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        assertEquals(2, sessions.getLoginCount());
+    }
+
+    @Test
+    public void testLoginRedirect() throws Exception {
+
+        File jar = File.createTempFile("test-", ".jar");
+        jar.deleteOnExit();
+        Files.write(jar.toPath(), Arrays.asList("session=abc; path=/"), StandardCharsets.UTF_8);
+        Pattern loginPage = Pattern.compile(".*/login.*");
+
+        validSession = "abc";
+        assertFalse(LoginSessions.isLoginRedirect(baseUrl + "/page", jar, loginPage, 5000));
+        validSession = "other";
+        assertTrue(LoginSessions.isLoginRedirect(baseUrl + "/page", jar, loginPage, 5000));
+        // Redirected elsewhere than the login page
+        assertFalse(LoginSessions.isLoginRedirect(baseUrl + "/page", jar, Pattern.compile(".*/signin.*"), 5000));
+    }
+
+    @Test
+    public void testCookieHeader() {
+
+        List<String> lines = Arrays.asList("a=1; domain=.site.com; path=/", "b=2; path=/; HttpOnly",
+                "c=3; domain=other.com; path=/", "", "d=4; Domain=www.site.com");
+        assertEquals("a=1; b=2; d=4", LoginSessions.buildCookieHeader(lines, "www.site.com"));
+        assertEquals("a=1; b=2", LoginSessions.buildCookieHeader(lines, "site.com"));
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.webpage.archiver.probe.PageProbe;
+import org.nuxeo.webpage.archiver.probe.PageProbe.Result;
+import org.nuxeo.webpage.archiver.probe.PageProbe.Status;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Probes pages served by a local embedded HTTP server.
+ *
+ * @since 10.10
+ */
+public class TestPageProbe {
+
+    protected static final String ETAG = "\"abc123\"";
+
+    protected static final String LAST_MODIFIED = "Wed, 21 Oct 2015 07:28:00 GMT";
+
+    protected HttpServer server;
+
+    protected String baseUrl;
+
+    @Before
+    public void setUp() throws Exception {
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        // Honors the conditional headers
+        server.createContext("/conditional", exchange -> {
+            String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+            exchange.getResponseHeaders().add("ETag", ETAG);
+            exchange.getResponseHeaders().add("Last-Modified", LAST_MODIFIED);
+            if (ETAG.equals(ifNoneMatch)) {
+                reply(exchange, 304);
+            } else {
+                reply(exchange, 200);
+            }
+        });
+        // Ignores them, only sends a Last-Modified
+        server.createContext("/lastModifiedOnly", exchange -> {
+            exchange.getResponseHeaders().add("Last-Modified", LAST_MODIFIED);
+            reply(exchange, 200);
+        });
+        // No HEAD
+        server.createContext("/noHead", exchange -> {
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                reply(exchange, 405);
+            } else {
+                exchange.getResponseHeaders().add("ETag", ETAG);
+                reply(exchange, 200);
+            }
+        });
+        server.createContext("/error", exchange -> reply(exchange, 500));
+        server.start();
+
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void cleanup() {
+        server.stop(0);
+    }
+
+    protected static void reply(HttpExchange inExchange, int inCode) throws IOException {
+
+        byte[] body = "<html><body>Hello</body></html>".getBytes(StandardCharsets.UTF_8);
+        boolean noBody = inCode == 304 || "HEAD".equals(inExchange.getRequestMethod());
+        inExchange.sendResponseHeaders(inCode, noBody ? -1 : body.length);
+        if (!noBody) {
+            try (OutputStream out = inExchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+        inExchange.close();
+    }
+
+    @Test
+    public void testNotModified() {
+
+        Result result = new PageProbe().probe(baseUrl + "/conditional", ETAG, LAST_MODIFIED);
+        assertEquals(Status.NOT_MODIFIED, result.getStatus());
+        assertEquals(ETAG, result.getEtag());
+    }
+
+    @Test
+    public void testModified() {
+
+        // First archive: no validators yet, the ones returned are stored
+        Result result = new PageProbe().probe(baseUrl + "/conditional", null, null);
+        assertEquals(Status.MODIFIED, result.getStatus());
+        assertEquals(ETAG, result.getEtag());
+        assertEquals(LAST_MODIFIED, result.getLastModified());
+
+        result = new PageProbe().probe(baseUrl + "/conditional", "\"old\"", null);
+        assertEquals(Status.MODIFIED, result.getStatus());
+    }
+
+    @Test
+    public void testSameValidatorsWithout304() {
+
+        Result result = new PageProbe().probe(baseUrl + "/lastModifiedOnly", null, LAST_MODIFIED);
+        assertEquals(Status.NOT_MODIFIED, result.getStatus());
+
+        result = new PageProbe().probe(baseUrl + "/lastModifiedOnly", null, "Thu, 01 Jan 2015 00:00:00 GMT");
+        assertEquals(Status.MODIFIED, result.getStatus());
+    }
+
+    @Test
+    public void testFallbackOnGet() {
+
+        Result result = new PageProbe().probe(baseUrl + "/noHead", "W/" + ETAG, null);
+        assertEquals(Status.NOT_MODIFIED, result.getStatus());
+    }
+
+    @Test
+    public void testUnknownOnError() {
+
+        assertEquals(Status.UNKNOWN, new PageProbe().probe(baseUrl + "/error", ETAG, null).getStatus());
+        assertEquals(Status.UNKNOWN, new PageProbe(500).probe("http://127.0.0.1:1/nothing", ETAG, null).getStatus());
+        assertEquals(Status.UNKNOWN, new PageProbe().probe("not a url", ETAG, null).getStatus());
+    }
+
+}
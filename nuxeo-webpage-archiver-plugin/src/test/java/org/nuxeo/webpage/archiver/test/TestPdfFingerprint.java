@@ -0,0 +1,124 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.util.Calendar;
+import java.util.regex.Pattern;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.edit.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.webpage.archiver.pdf.PdfFingerprint;
+
+/**
+ * No Nuxeo runtime needed, the fingerprint only deals with files.
+ *
+ * @since 10.10
+ */
+public class TestPdfFingerprint {
+
+    protected File pdf1;
+
+    protected File pdf2;
+
+    @Before
+    public void setUp() throws Exception {
+        pdf1 = File.createTempFile("test-fingerprint-", ".pdf");
+        pdf2 = File.createTempFile("test-fingerprint-", ".pdf");
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        pdf1.delete();
+        pdf2.delete();
+    }
+
+    /*
+     * Each line is drawn at its own position, and the PDF gets its own creation date, as a new render would
+     */
+    protected void createPdf(File inFile, int inYear, String... inLines) throws Exception {
+
+        PDDocument doc = new PDDocument();
+        try {
+            Calendar created = Calendar.getInstance();
+            created.set(Calendar.YEAR, inYear);
+            doc.getDocumentInformation().setCreationDate(created);
+            PDPage page = new PDPage();
+            doc.addPage(page);
+            if (inLines.length > 0) {
+                PDPageContentStream content = new PDPageContentStream(doc, page);
+                try {
+                    content.beginText();
+                    content.setFont(PDType1Font.HELVETICA, 12);
+                    content.moveTextPositionByAmount(72, 700);
+                    for (String line : inLines) {
+                        content.drawString(line);
+                        content.moveTextPositionByAmount(0, -20);
+                    }
+                    content.endText();
+                } finally {
+                    content.close();
+                }
+            }
+            doc.save(inFile);
+        } finally {
+            doc.close();
+        }
+    }
+
+    @Test
+    public void testSameTextSameFingerprint() throws Exception {
+
+        createPdf(pdf1, 2017, "Archived page", "Some content");
+        createPdf(pdf2, 2018, "Archived page", "Some content");
+        String fingerprint = PdfFingerprint.compute(pdf1, null);
+        assertNotNull(fingerprint);
+        assertEquals(fingerprint, PdfFingerprint.compute(pdf2, null));
+
+        createPdf(pdf2, 2018, "Archived page", "Some other content");
+        assertNotEquals(fingerprint, PdfFingerprint.compute(pdf2, null));
+    }
+
+    @Test
+    public void testIgnoredPartsAndNoText() throws Exception {
+
+        Pattern ignore = Pattern.compile("Printed on \\d{4}-\\d{2}-\\d{2}");
+        createPdf(pdf1, 2017, "Archived page", "Printed on 2017-01-01");
+        createPdf(pdf2, 2018, "Archived page", "Printed on 2018-02-02");
+        assertNotEquals(PdfFingerprint.compute(pdf1, null), PdfFingerprint.compute(pdf2, null));
+        assertEquals(PdfFingerprint.compute(pdf1, ignore), PdfFingerprint.compute(pdf2, ignore));
+
+        assertEquals("a b c", PdfFingerprint.normalize("  a\n\tb   c ", null));
+
+        // Nothing to compare
+        createPdf(pdf1, 2017);
+        assertNull(PdfFingerprint.compute(pdf1, null));
+    }
+
+}
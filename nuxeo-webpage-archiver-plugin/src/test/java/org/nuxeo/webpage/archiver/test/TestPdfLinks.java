@@ -0,0 +1,91 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.interactive.action.type.PDActionURI;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotationLink;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.webpage.archiver.pdf.PdfLinks;
+
+/**
+ * No Nuxeo runtime needed, the links are read from the file.
+ *
+ * @since 10.10
+ */
+public class TestPdfLinks {
+
+    protected File pdf;
+
+    @Before
+    public void setUp() throws Exception {
+        pdf = File.createTempFile("test-links-", ".pdf");
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        pdf.delete();
+    }
+
+    protected void createPdf(String[]... inPages) throws Exception {
+
+        PDDocument doc = new PDDocument();
+        try {
+            for (String[] uris : inPages) {
+                PDPage page = new PDPage();
+                doc.addPage(page);
+                for (String uri : uris) {
+                    PDActionURI action = new PDActionURI();
+                    action.setURI(uri);
+                    PDAnnotationLink link = new PDAnnotationLink();
+                    link.setAction(action);
+                    link.setRectangle(new PDRectangle(100, 20));
+                    page.getAnnotations().add(link);
+                }
+            }
+            doc.save(pdf);
+        } finally {
+            doc.close();
+        }
+    }
+
+    @Test
+    public void testShouldReadLinksOfAllPages() throws Exception {
+
+        createPdf(new String[] { "https://www.example.com/a", "https://www.example.com/b" },
+                new String[] { "https://www.example.com/a", "https://www.example.com/c" });
+        List<String> links = new ArrayList<>(new PdfLinks().extract(pdf));
+        assertEquals(3, links.size());
+        assertEquals("https://www.example.com/a", links.get(0));
+        assertEquals("https://www.example.com/c", links.get(2));
+
+        assertEquals(2, new PdfLinks(2).extract(pdf).size());
+    }
+
+}
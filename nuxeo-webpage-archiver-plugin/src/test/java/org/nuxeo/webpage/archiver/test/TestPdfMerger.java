@@ -0,0 +1,101 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.edit.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.junit.After;
+import org.junit.Test;
+import org.nuxeo.webpage.archiver.pdf.PdfMerger;
+import org.nuxeo.webpage.archiver.pdf.PdfTextExtractor;
+
+/**
+ * No Nuxeo runtime needed, the merger only deals with files.
+ *
+ * @since 10.10
+ */
+public class TestPdfMerger {
+
+    protected List<File> files = new ArrayList<>();
+
+    @After
+    public void cleanup() throws Exception {
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    protected File createPdf(String inName, int inPages) throws Exception {
+
+        File file = File.createTempFile("test-merge-", ".pdf");
+        files.add(file);
+        PDDocument doc = new PDDocument();
+        try {
+            for (int i = 1; i <= inPages; i++) {
+                PDPage page = new PDPage();
+                doc.addPage(page);
+                PDPageContentStream content = new PDPageContentStream(doc, page);
+                try {
+                    content.beginText();
+                    content.setFont(PDType1Font.HELVETICA, 12);
+                    content.moveTextPositionByAmount(72, 700);
+                    content.drawString(inName + " page " + i);
+                    content.endText();
+                } finally {
+                    content.close();
+                }
+            }
+            doc.save(file);
+        } finally {
+            doc.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void testShouldConcatenateInOrder() throws Exception {
+
+        File first = createPdf("First", 2);
+        File second = createPdf("Second", 1);
+        File target = File.createTempFile("test-merge-", ".pdf");
+        files.add(target);
+
+        PdfMerger.merge(Arrays.asList(first, second), target);
+
+        PDDocument doc = PDDocument.load(target);
+        try {
+            assertEquals(3, doc.getNumberOfPages());
+        } finally {
+            doc.close();
+        }
+        String text = new PdfTextExtractor().extract(target);
+        assertTrue(text.indexOf("First page 2") < text.indexOf("Second page 1"));
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.edit.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.graphics.xobject.PDPixelMap;
+import org.apache.pdfbox.pdmodel.graphics.xobject.PDXObjectImage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.webpage.archiver.pdf.PdfOptimizer;
+import org.nuxeo.webpage.archiver.pdf.PdfValidator;
+
+/**
+ * No Nuxeo runtime needed, the optimizer only deals with files.
+ *
+ * @since 10.10
+ */
+public class TestPdfOptimizer {
+
+    protected File pdf;
+
+    @Before
+    public void setUp() throws Exception {
+        pdf = File.createTempFile("test-optimizer-", ".pdf");
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        pdf.delete();
+    }
+
+    /*
+     * Each page gets its own copy of the same image, drawn on the whole page
+     */
+    protected void createPdf(int inPages, int inImageWidth, int inImageHeight) throws Exception {
+
+        BufferedImage image = new BufferedImage(inImageWidth, inImageHeight, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < inImageHeight; y++) {
+            for (int x = 0; x < inImageWidth; x++) {
+                int red = x * 255 / inImageWidth;
+                int green = y * 255 / inImageHeight;
+                image.setRGB(x, y, (red << 16) | (green << 8) | ((x ^ y) & 0xFF));
+            }
+        }
+
+        PDDocument doc = new PDDocument();
+        try {
+            for (int i = 0; i < inPages; i++) {
+                PDPage page = new PDPage();
+                doc.addPage(page);
+                PDXObjectImage xobject = new PDPixelMap(doc, image);
+                PDPageContentStream content = new PDPageContentStream(doc, page);
+                try {
+                    content.drawXObject(xobject, 0, 0, page.getMediaBox().getWidth(), page.getMediaBox().getHeight());
+                } finally {
+                    content.close();
+                }
+            }
+            doc.save(pdf);
+        } finally {
+            doc.close();
+        }
+    }
+
+    @Test
+    public void testShouldDownsampleAndDeduplicate() throws Exception {
+
+        createPdf(3, 2400, 3000);
+        long before = pdf.length();
+
+        PdfOptimizer.Result result = new PdfOptimizer(100, 0.75f).optimize(pdf);
+        assertEquals(before, result.getSizeBefore());
+        assertEquals(pdf.length(), result.getSizeAfter());
+        assertTrue(result.getSavedBytes() > before / 2);
+        assertEquals(1, result.getImagesResampled());
+        assertEquals(2, result.getDuplicatesRemoved());
+        assertEquals(3, PdfValidator.getPageCount(pdf));
+
+        // Letter size at 100 DPI, all the pages share the same image
+        PDDocument doc = PDDocument.load(pdf);
+        try {
+            PDXObjectImage first = null;
+            for (Object page : doc.getDocumentCatalog().getAllPages()) {
+                Map<String, PDXObjectImage> images = ((PDPage) page).findResources().getImages();
+                assertEquals(1, images.size());
+                PDXObjectImage image = images.values().iterator().next();
+                assertTrue(image.getWidth() <= 850);
+                assertTrue(image.getHeight() <= 1100);
+                if (first == null) {
+                    first = image;
+                } else {
+                    assertTrue(first.getCOSStream() == image.getCOSStream());
+                }
+            }
+        } finally {
+            doc.close();
+        }
+    }
+
+    @Test
+    public void testShouldOnlyDeduplicateWhenNoDpi() throws Exception {
+
+        createPdf(2, 200, 200);
+
+        PdfOptimizer.Result result = new PdfOptimizer(0, 0.75f).optimize(pdf);
+        assertEquals(0, result.getImagesResampled());
+        assertEquals(1, result.getDuplicatesRemoved());
+        assertTrue(result.getSavedBytes() > 0);
+        assertEquals(2, PdfValidator.getPageCount(pdf));
+    }
+
+    @Test
+    public void testShouldKeepTheFileOnError() throws Exception {
+
+        byte[] content = "<html><body>Not found</body></html>".getBytes(StandardCharsets.UTF_8);
+        Files.write(pdf.toPath(), content);
+
+        PdfOptimizer.Result result = new PdfOptimizer(150, 0.75f).optimize(pdf);
+        assertEquals(0, result.getSavedBytes());
+        assertArrayEquals(content, Files.readAllBytes(pdf.toPath()));
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.edit.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.webpage.archiver.pdf.PdfTextExtractor;
+
+/**
+ * No Nuxeo runtime needed, the extractor only deals with files.
+ *
+ * @since 10.10
+ */
+public class TestPdfTextExtractor {
+
+    protected File pdf;
+
+    @Before
+    public void setUp() throws Exception {
+        pdf = File.createTempFile("test-text-", ".pdf");
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        pdf.delete();
+    }
+
+    protected void createPdf(int inPages) throws Exception {
+
+        PDDocument doc = new PDDocument();
+        try {
+            for (int i = 1; i <= inPages; i++) {
+                PDPage page = new PDPage();
+                doc.addPage(page);
+                PDPageContentStream content = new PDPageContentStream(doc, page);
+                try {
+                    content.beginText();
+                    content.setFont(PDType1Font.HELVETICA, 12);
+                    content.moveTextPositionByAmount(72, 700);
+                    content.drawString("Archived page " + i);
+                    content.endText();
+                } finally {
+                    content.close();
+                }
+            }
+            doc.save(pdf);
+        } finally {
+            doc.close();
+        }
+    }
+
+    @Test
+    public void testShouldExtractAllPages() throws Exception {
+
+        createPdf(3);
+        String text = new PdfTextExtractor().extract(pdf);
+        assertTrue(text.contains("Archived page 1"));
+        assertTrue(text.contains("Archived page 2"));
+        assertTrue(text.contains("Archived page 3"));
+    }
+
+    @Test
+    public void testShouldStopAtMaxChars() throws Exception {
+
+        createPdf(20);
+        String text = new PdfTextExtractor(40).extract(pdf);
+        assertEquals(40, text.length());
+        assertTrue(text.startsWith("Archived page 1"));
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.webpage.archiver.pdf.PdfValidator;
+
+/**
+ * No Nuxeo runtime needed, the validator only deals with files.
+ *
+ * @since 10.10
+ */
+public class TestPdfValidator {
+
+    protected File pdf;
+
+    @Before
+    public void setUp() throws Exception {
+        pdf = File.createTempFile("test-validator-", ".pdf");
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        pdf.delete();
+    }
+
+    protected void createPdf(int inPages) throws Exception {
+
+        PDDocument doc = new PDDocument();
+        try {
+            for (int i = 0; i < inPages; i++) {
+                doc.addPage(new PDPage());
+            }
+            doc.save(pdf);
+        } finally {
+            doc.close();
+        }
+    }
+
+    @Test
+    public void testPageCountFromStructure() throws Exception {
+
+        createPdf(1);
+        assertEquals(1, PdfValidator.getPageCount(pdf));
+        assertTrue(PdfValidator.looksValid(pdf));
+
+        createPdf(37);
+        assertEquals(37, PdfValidator.getPageCount(pdf));
+    }
+
+    @Test
+    public void testShouldFailOnTruncatedPdf() throws Exception {
+
+        createPdf(3);
+        try (RandomAccessFile raf = new RandomAccessFile(pdf, "rw")) {
+            raf.setLength(raf.length() / 2);
+        }
+        assertFalse(PdfValidator.looksValid(pdf));
+    }
+
+    @Test
+    public void testShouldFailOnNotAPdf() throws Exception {
+
+        Files.write(pdf.toPath(), "<html><body>Not found</body></html>".getBytes(StandardCharsets.UTF_8));
+        assertEquals(PdfValidator.NOT_A_PDF, PdfValidator.getPageCount(pdf));
+
+        assertFalse(PdfValidator.looksValid(new File(pdf.getAbsolutePath() + ".doesNotExist")));
+    }
+
+    @Test
+    public void testFallbackOnIndirectCount() throws Exception {
+
+        // The /Count is an indirect object: not read from the structure, PDFBox takes over
+        writePdf("<< /Type /Catalog /Pages 2 0 R >>", "<< /Type /Pages /Kids [3 0 R] /Count 4 0 R >>",
+                "<< /Type /Page /Parent 2 0 R /MediaBox [0 0 612 792] >>", "1");
+
+        assertEquals(1, PdfValidator.getPageCount(pdf));
+    }
+
+    /*
+     * Objects are numbered from 1, in the order received
+     */
+    protected void writePdf(String... inObjects) throws Exception {
+
+        StringBuilder content = new StringBuilder("%PDF-1.4\n");
+        StringBuilder xref = new StringBuilder("xref\n0 " + (inObjects.length + 1) + "\n0000000000 65535 f\r\n");
+        for (int i = 0; i < inObjects.length; i++) {
+            xref.append(String.format("%010d 00000 n\r\n", content.length()));
+            content.append(i + 1).append(" 0 obj\n").append(inObjects[i]).append("\nendobj\n");
+        }
+        int startxref = content.length();
+        content.append(xref);
+        content.append("trailer\n<< /Root 1 0 R /Size ").append(inObjects.length + 1).append(" >>\n");
+        content.append("startxref\n").append(startxref).append("\n%%EOF\n");
+
+        Files.write(pdf.toPath(), content.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.nuxeo.webpage.archiver.pending.PendingArchives;
+
+/**
+ * In memory counters (no KeyValueStore)
+ *
+ * @since 10.10
+ */
+public class TestPendingArchives {
+
+    @Test
+    public void testCounters() {
+
+        PendingArchives pending = new PendingArchives(null);
+        String key = PendingArchives.computeKey("test", "1234", "http://www.site.com/page.html");
+        String other = PendingArchives.computeKey("test", "1234", "http://www.site.com/other.html");
+
+        assertEquals(0, pending.get(key));
+        assertEquals(1, pending.added(key));
+        assertEquals(2, pending.added(key));
+        assertEquals(1, pending.added(other));
+
+        assertEquals(1, pending.done(key));
+        assertEquals(1, pending.get(key));
+        assertEquals(0, pending.done(key));
+        // Never negative
+        assertEquals(0, pending.done(key));
+        assertEquals(0, pending.get(key));
+
+        assertEquals(1, pending.get(other));
+    }
+
+    @Test
+    public void testClaims() {
+
+        PendingArchives pending = new PendingArchives(null);
+        String key = PendingArchives.computeKey("test", "1234", "http://www.site.com/page.html");
+        String other = PendingArchives.computeKey("test", "1234", "http://www.site.com/other.html");
+
+        assertTrue(pending.claim(key));
+        // Same request while the work is scheduled or running: dropped
+        assertFalse(pending.claim(key));
+        assertTrue(pending.claim(other));
+
+        pending.release(key);
+        assertTrue(pending.claim(key));
+    }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.webpage.archiver.pool.PooledRenderer;
+
+/**
+ * A shell script answering like <code>wkhtmltopdf --read-args-from-stdin</code>: one conversion per line, ended by
+ * "Done" and, for a network error, "Exit with code 1..." on the next line.
+ * <p>
+ * Needs <code>/bin/sh</code>.
+ *
+ * @since 10.10
+ */
+public class TestPooledRenderer {
+
+    protected static final String SCRIPT = "#!/bin/sh\n" //
+            + "while read -r line; do\n" //
+            + "  echo 'Loading pages (1/6)' >&2\n" //
+            + "  case \"$line\" in *slow*) sleep 0.5;; esac\n" //
+            + "  echo 'Done' >&2\n" //
+            + "  case \"$line\" in *fail*) echo 'Exit with code 1 due to network error: HostNotFoundError' >&2;; esac\n" //
+            + "  case \"$line\" in *twice*) echo 'Loading pages (1/6)' >&2; echo 'Done' >&2;; esac\n" //
+            + "done\n";
+
+    protected File script;
+
+    protected PooledRenderer renderer;
+
+    @Before
+    public void setUp() throws Exception {
+        Assume.assumeTrue("/bin/sh is not available, skipping test", new File("/bin/sh").canExecute());
+        script = File.createTempFile("pooled-", ".sh");
+        Files.write(script.toPath(), SCRIPT.getBytes(StandardCharsets.UTF_8));
+        assertTrue(script.setExecutable(true));
+        renderer = new PooledRenderer(script.getAbsolutePath());
+    }
+
+    @After
+    public void tearDown() {
+        if (renderer != null) {
+            renderer.destroy();
+        }
+        if (script != null) {
+            script.delete();
+        }
+    }
+
+    @Test
+    public void testLateExitLineIsNotTheNextResult() throws Exception {
+
+        assertEquals(0, renderer.render(Collections.singletonList("fail"), 5000));
+
+        // The "Exit with code 1" of the previous conversion must not end this one before its "Done"
+        long start = System.currentTimeMillis();
+        assertEquals(0, renderer.render(Collections.singletonList("slow"), 5000));
+        assertTrue(System.currentTimeMillis() - start >= 400);
+
+        assertEquals(0, renderer.render(Collections.singletonList("ok"), 5000));
+        assertTrue(renderer.isUsable());
+        assertEquals(3, renderer.getJobsCount());
+    }
+
+    @Test
+    public void testUnexpectedResultRecyclesTheRenderer() throws Exception {
+
+        assertEquals(0, renderer.render(Collections.singletonList("twice"), 5000));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (renderer.isUsable() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(renderer.isUsable());
+    }
+
+}
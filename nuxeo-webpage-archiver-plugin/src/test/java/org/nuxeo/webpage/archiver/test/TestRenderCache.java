@@ -0,0 +1,203 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.ecm.core.blob.BlobManager.BlobInfo;
+import org.nuxeo.runtime.kv.KeyValueStore;
+import org.nuxeo.runtime.kv.MemKeyValueStore;
+import org.nuxeo.webpage.archiver.cache.RenderCache;
+
+/**
+ * The cache with the PDFs written in a temporary folder instead of a blob provider, and a KeyValueStore in memory
+ *
+ * @since 10.10
+ */
+public class TestRenderCache {
+
+    protected File dir;
+
+    protected KeyValueStore kvStore;
+
+    protected class TestCache extends RenderCache {
+
+        protected final AtomicInteger count = new AtomicInteger();
+
+        protected final boolean shared;
+
+        public TestCache(boolean inShared, int inMaxEntries, long inMaxSize) {
+            super("test", inShared ? "test" : null, inMaxEntries, inMaxSize);
+            shared = inShared;
+        }
+
+        @Override
+        protected String writeBlob(Blob inPdf) throws IOException {
+            String key = "blob-" + count.incrementAndGet();
+            FileUtils.copyFile(inPdf.getFile(), new File(dir, key));
+            return key;
+        }
+
+        @Override
+        protected Blob readBlob(BlobInfo inInfo) throws IOException {
+            Blob blob = new FileBlob(new File(dir, inInfo.key), inInfo.mimeType);
+            blob.setFilename(inInfo.filename);
+            return blob;
+        }
+
+        @Override
+        protected KeyValueStore getKeyValueStore() {
+            return shared ? kvStore : null;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("render-cache-").toFile();
+        kvStore = new MemKeyValueStore();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    protected Blob newPdf(int inLength) throws IOException {
+        File file = File.createTempFile("pdf-", ".pdf", dir);
+        Files.write(file.toPath(), new byte[inLength]);
+        return new FileBlob(file, "application/pdf");
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws Exception {
+
+        RenderCache cache = new TestCache(false, 2, Long.MAX_VALUE);
+        cache.put("a", newPdf(10), 60);
+        cache.put("b", newPdf(10), 60);
+        // "a" is now more recently used than "b"
+        assertNotNull(cache.get("a", "a.pdf"));
+
+        cache.put("c", newPdf(10), 60);
+        assertEquals(2, cache.getEntriesCount());
+        assertNull(cache.get("b", "b.pdf"));
+        assertNotNull(cache.get("a", "a.pdf"));
+        assertNotNull(cache.get("c", "c.pdf"));
+    }
+
+    @Test
+    public void testSizeIsBounded() throws Exception {
+
+        RenderCache cache = new TestCache(false, 100, 250);
+        cache.put("a", newPdf(100), 60);
+        cache.put("b", newPdf(100), 60);
+        assertEquals(2, cache.getEntriesCount());
+
+        cache.put("c", newPdf(100), 60);
+        assertEquals(2, cache.getEntriesCount());
+        assertNull(cache.get("a", "a.pdf"));
+        assertNotNull(cache.get("b", "b.pdf"));
+        assertNotNull(cache.get("c", "c.pdf"));
+
+        // Larger than the whole cache: not kept
+        cache.put("d", newPdf(300), 60);
+        assertEquals(0, cache.getEntriesCount());
+        assertNull(cache.get("d", "d.pdf"));
+
+        // Replacing an entry does not count its previous size
+        cache.put("e", newPdf(200), 60);
+        cache.put("e", newPdf(200), 60);
+        assertEquals(1, cache.getEntriesCount());
+        assertNotNull(cache.get("e", "e.pdf"));
+    }
+
+    @Test
+    public void testEntryExpires() throws Exception {
+
+        RenderCache cache = new TestCache(true, 100, Long.MAX_VALUE);
+        cache.put("a", newPdf(10), 1);
+        assertNotNull(cache.get("a", "a.pdf"));
+
+        Thread.sleep(1100);
+        assertNull(cache.get("a", "a.pdf"));
+        assertEquals(0, cache.getEntriesCount());
+
+        // No TTL: not cached at all
+        cache.put("b", newPdf(10), 0);
+        assertEquals(0, cache.getEntriesCount());
+        assertNull(cache.get("b", "b.pdf"));
+    }
+
+    @Test
+    public void testSharedEntry() throws Exception {
+
+        RenderCache cache = new TestCache(true, 100, Long.MAX_VALUE);
+        cache.put("a", newPdf(10), 60);
+        cache.put("b", newPdf(10), 60);
+
+        // As seen from another node
+        RenderCache other = new TestCache(true, 100, Long.MAX_VALUE);
+        assertEquals(0, other.getEntriesCount());
+        Blob blob = other.get("a", "a.pdf");
+        assertNotNull(blob);
+        assertEquals("a.pdf", blob.getFilename());
+        assertEquals(10, blob.getLength());
+        // Kept locally from now on
+        assertEquals(1, other.getEntriesCount());
+
+        // The binary was garbage collected: the entry is dropped everywhere
+        assertTrue(new File(dir, "blob-2").delete());
+        assertNull(other.get("b", "b.pdf"));
+        assertEquals(1, other.getEntriesCount());
+        assertNull(kvStore.getString("webpagearchiver:render:b"));
+        assertNotNull(kvStore.getString("webpagearchiver:render:a"));
+    }
+
+    @Test
+    public void testCounters() throws Exception {
+
+        RenderCache cache = new TestCache(false, 100, Long.MAX_VALUE);
+        assertNull(cache.get("a", "a.pdf"));
+        cache.put("a", newPdf(10), 60);
+        assertNotNull(cache.get("a", "a.pdf"));
+        assertNotNull(cache.get("a", "a.pdf"));
+        assertNull(cache.get("b", "b.pdf"));
+
+        cache.remove("a");
+        assertNull(cache.get("a", "a.pdf"));
+
+        assertEquals(2, cache.getHits());
+        assertEquals(3, cache.getMisses());
+        assertEquals(0, cache.getEntriesCount());
+    }
+
+}
@@ -0,0 +1,75 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.ServerSocket;
+
+import org.junit.Test;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.webpage.archiver.RenderException;
+import org.nuxeo.webpage.archiver.RenderException.Kind;
+
+/**
+ * @since 10.10
+ */
+public class TestRenderException {
+
+    @Test
+    public void testClassify() {
+
+        assertEquals(Kind.TIMEOUT, RenderException.classify(new RenderException(Kind.TIMEOUT, "timeout")));
+        assertEquals(Kind.INVALID_URL, RenderException.classify(new MalformedURLException("no protocol")));
+        assertEquals(Kind.NO_PDF, RenderException.classify(new IOException("pipe closed")));
+        assertEquals(Kind.NO_PDF, RenderException.classify(new NuxeoException("interrupted")));
+
+        assertTrue(Kind.TIMEOUT.isTransient());
+        assertTrue(Kind.CONNECTION_FAILED.isTransient());
+        assertFalse(Kind.UNKNOWN_HOST.isTransient());
+        assertFalse(Kind.COMMAND_NOT_AVAILABLE.isTransient());
+    }
+
+    @Test
+    public void testDiagnose() throws Exception {
+
+        // Reachable
+        try (ServerSocket server = new ServerSocket(0)) {
+            assertEquals(Kind.NO_PDF, RenderException.diagnose("http://127.0.0.1:" + server.getLocalPort() + "/"));
+        }
+
+        // Nobody listening anymore
+        int port;
+        try (ServerSocket server = new ServerSocket(0)) {
+            port = server.getLocalPort();
+        }
+        assertEquals(Kind.CONNECTION_FAILED, RenderException.diagnose("http://127.0.0.1:" + port + "/page.html"));
+
+        // .invalid is reserved, never resolved
+        assertEquals(Kind.UNKNOWN_HOST, RenderException.diagnose("http://no.such.host.invalid/"));
+
+        assertEquals(Kind.NO_PDF, RenderException.diagnose("file:///tmp/page.html"));
+        assertEquals(Kind.INVALID_URL, RenderException.diagnose("http://bad url/"));
+    }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assume;
+import org.junit.Test;
+import org.nuxeo.webpage.archiver.RenderException;
+import org.nuxeo.webpage.archiver.governor.ProcessLimits;
+import org.nuxeo.webpage.archiver.governor.RenderGovernor;
+
+/**
+ * @since 10.10
+ */
+public class TestRenderGovernor {
+
+    @Test
+    public void testAdmission() throws Exception {
+
+        RenderGovernor governor = new RenderGovernor(2, 100);
+        RenderGovernor.Permit first = governor.acquire();
+        RenderGovernor.Permit second = governor.acquire();
+        assertEquals(2, governor.getActiveCount());
+
+        long start = System.currentTimeMillis();
+        try {
+            governor.acquire();
+            fail("Expected the render to be rejected");
+        } catch (RenderException e) {
+            assertEquals(RenderException.Kind.OVERLOADED, e.getKind());
+            assertTrue(e.isTransient());
+            assertTrue(System.currentTimeMillis() - start >= 100);
+        }
+        assertEquals(1, governor.getRejectedCount());
+
+        first.close();
+        // Closing twice releases only one slot
+        first.close();
+        assertEquals(1, governor.getActiveCount());
+        governor.acquire().close();
+        second.close();
+        assertEquals(0, governor.getActiveCount());
+    }
+
+    @Test
+    public void testWaitingRenderGetsTheSlot() throws Exception {
+
+        RenderGovernor governor = new RenderGovernor(1, 5000);
+        RenderGovernor.Permit permit = governor.acquire();
+        Thread releaser = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            permit.close();
+        });
+        releaser.start();
+        try (RenderGovernor.Permit next = governor.acquire()) {
+            assertEquals(1, governor.getActiveCount());
+        }
+        releaser.join();
+        assertEquals(0, governor.getRejectedCount());
+    }
+
+    @Test
+    public void testProcessLimits() throws Exception {
+
+        List<String> command = Arrays.asList("echo", "a \"b\" $HOME");
+        assertEquals(command, new ProcessLimits(0, 0).wrap(command, true));
+        // No CPU limit for long-lived processes
+        assertEquals(command, new ProcessLimits(0, 60).wrap(command, false));
+
+        List<String> wrapped = new ProcessLimits(2048, 60).wrap(command, true);
+        assertEquals(command, wrapped.subList(wrapped.size() - 2, wrapped.size()));
+
+        Assume.assumeTrue("No shell, skipping", StubWkhtmltopdf.isAvailable());
+        Process process = new ProcessBuilder(wrapped).redirectErrorStream(true).start();
+        try (InputStream in = process.getInputStream()) {
+            assertEquals("a \"b\" $HOME", IOUtils.toString(in, StandardCharsets.UTF_8).trim());
+        }
+        assertEquals(0, process.waitFor());
+    }
+
+}
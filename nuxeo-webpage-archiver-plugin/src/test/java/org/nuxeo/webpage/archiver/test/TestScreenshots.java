@@ -0,0 +1,96 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.webpage.archiver.image.Screenshots;
+
+/**
+ * No Nuxeo runtime needed, the screenshots are only files.
+ *
+ * @since 10.10
+ */
+public class TestScreenshots {
+
+    protected File image;
+
+    @Before
+    public void setUp() throws Exception {
+        image = File.createTempFile("test-screenshot-", ".png");
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        image.delete();
+    }
+
+    @Test
+    public void testShouldScaleDown() throws Exception {
+
+        BufferedImage screenshot = new BufferedImage(1280, 1600, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 1600; y += 16) {
+            for (int x = 0; x < 1280; x++) {
+                screenshot.setRGB(x, y, 0xFF0000);
+            }
+        }
+        ImageIO.write(screenshot, "png", image);
+
+        Dimension size = Screenshots.getSize(image);
+        assertEquals(new Dimension(1280, 1600), size);
+
+        Blob thumbnail = Screenshots.toThumbnail(image, 350);
+        try {
+            assertEquals("image/png", thumbnail.getMimeType());
+            assertEquals(new Dimension(280, 350), Screenshots.getSize(thumbnail.getFile()));
+        } finally {
+            thumbnail.getFile().delete();
+        }
+
+        // Never scaled up
+        thumbnail = Screenshots.toThumbnail(image, 4000);
+        try {
+            assertEquals(size, Screenshots.getSize(thumbnail.getFile()));
+        } finally {
+            thumbnail.getFile().delete();
+        }
+    }
+
+    @Test
+    public void testShouldDetectNotAnImage() throws Exception {
+
+        Files.write(image.toPath(), "<html><body>Not found</body></html>".getBytes(StandardCharsets.UTF_8));
+        assertNull(Screenshots.getSize(image));
+        assertNull(Screenshots.getSize(new File(image.getAbsolutePath() + ".doesNotExist")));
+    }
+
+}
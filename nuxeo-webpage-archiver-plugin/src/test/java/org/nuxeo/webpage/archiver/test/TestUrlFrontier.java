@@ -0,0 +1,112 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+import org.nuxeo.webpage.archiver.crawl.CrawlScope;
+import org.nuxeo.webpage.archiver.crawl.UrlFrontier;
+import org.nuxeo.webpage.archiver.crawl.VisitedUrls;
+import org.nuxeo.webpage.archiver.crawl.WebpageCrawlWork;
+
+/**
+ * The crawl planning only, no page is rendered.
+ *
+ * @since 10.10
+ */
+public class TestUrlFrontier {
+
+    protected static final String SEED = "https://www.example.com/docs/index.html";
+
+    @Test
+    public void testVisitedUrls() {
+
+        VisitedUrls visited = new VisitedUrls(2);
+        assertTrue(visited.add("https://www.example.com/a"));
+        // Same URL once normalized
+        assertFalse(visited.add("HTTPS://WWW.EXAMPLE.COM:443/a#section"));
+        assertTrue(visited.contains("https://www.example.com/a"));
+        assertFalse(visited.contains("https://www.example.com/b"));
+
+        // Grows as needed
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(visited.add("https://www.example.com/page" + i));
+        }
+        assertEquals(10001, visited.size());
+        assertTrue(visited.contains("https://www.example.com/page5000"));
+    }
+
+    @Test
+    public void testScope() {
+
+        CrawlScope sameHost = new CrawlScope(SEED, true, null);
+        assertTrue(sameHost.accepts("https://www.example.com/blog"));
+        assertFalse(sameHost.accepts("https://other.example.com/blog"));
+        assertFalse(sameHost.accepts("https://www.example.com/logo.png"));
+        assertFalse(sameHost.accepts("mailto:someone@example.com"));
+
+        CrawlScope prefix = new CrawlScope(SEED, true, "https://www.example.com/docs/");
+        assertTrue(prefix.accepts("https://www.example.com/docs/install"));
+        assertFalse(prefix.accepts("https://www.example.com/blog"));
+
+        assertTrue(new CrawlScope(SEED, false, null).accepts("https://other.org/"));
+
+        assertEquals("https://www.example.com/docs/install",
+                CrawlScope.toAbsolute(SEED, "install#requirements"));
+        assertEquals("https://www.example.com/blog", CrawlScope.toAbsolute(SEED, "/blog"));
+        assertNull(CrawlScope.toAbsolute(SEED, "javascript:void(0)"));
+    }
+
+    @Test
+    public void testFrontierDepthAndBudget() {
+
+        UrlFrontier frontier = new UrlFrontier(new CrawlScope(SEED, true, null), 1, 3);
+        assertTrue(frontier.offer(SEED, 0));
+        assertFalse(frontier.offer(SEED, 1));
+        assertFalse(frontier.offer("https://www.example.com/deep", 2));
+        assertTrue(frontier.offer("https://www.example.com/a", 1));
+        assertFalse(frontier.offer("https://other.com/a", 1));
+        assertTrue(frontier.canFollow(0));
+        assertFalse(frontier.canFollow(1));
+        assertTrue(frontier.offer("https://www.example.com/b", 1));
+        // Budget spent
+        assertFalse(frontier.offer("https://www.example.com/c", 1));
+        assertEquals(3, frontier.getAdmitted());
+
+        List<UrlFrontier.Entry> entries = frontier.poll(2);
+        assertEquals(2, entries.size());
+        assertEquals(SEED, entries.get(0).getUrl());
+        assertEquals(0, entries.get(0).getDepth());
+        assertEquals(1, frontier.poll(10).size());
+        assertTrue(frontier.isEmpty());
+    }
+
+    @Test
+    public void testDocumentName() {
+        assertEquals("www-example-com-docs-index-html", WebpageCrawlWork.computeName(SEED + "?lang=en"));
+        assertEquals("page", WebpageCrawlWork.computeName("https://"));
+    }
+
+}
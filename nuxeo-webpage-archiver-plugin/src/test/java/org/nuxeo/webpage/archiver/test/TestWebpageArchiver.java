@@ -18,6 +18,7 @@ package org.nuxeo.webpage.archiver.test;
 
 import static org.junit.Assert.*;
 
+import java.awt.Dimension;
 import java.io.File;
 import java.io.FileInputStream;
 import java.util.Properties;
@@ -40,12 +41,15 @@ import org.nuxeo.ecm.automation.test.AutomationFeature;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.platform.commandline.executor.api.CommandLineExecutorService;
+import org.nuxeo.runtime.api.Framework;
 import org.nuxeo.runtime.test.runner.Deploy;
 import org.nuxeo.runtime.test.runner.Features;
 import org.nuxeo.runtime.test.runner.FeaturesRunner;
 import org.nuxeo.runtime.test.runner.LocalDeploy;
 import org.nuxeo.webpage.archiver.WebpageToBlob;
 import org.nuxeo.webpage.archiver.WebpageToPdfOp;
+import org.nuxeo.webpage.archiver.image.Screenshots;
 
 /**
  * To test the "url to pdf for pages requiring authentication", and because we cannot hard-code logins and credentials
@@ -145,6 +149,23 @@ public class TestWebpageArchiver {
         assertTrue(Utils.hasText(result, DEFAULT_TEST_URL_TEXT_CHECK));
     }
 
+    @Test
+    public void testUrlToImage() throws Exception {
+
+        CommandLineExecutorService cles = Framework.getService(CommandLineExecutorService.class);
+        Assume.assumeTrue("wkhtmltoimage is not available, skipping test",
+                cles.getCommandAvailability(WebpageToBlob.COMMANDLINE_DEFAULT_wkhtmltoimage).isAvailable());
+
+        Blob result = new WebpageToBlob().toImage(null, DEFAULT_TEST_URL, null, null);
+        assertNotNull(result);
+        assertEquals("image/png", result.getMimeType());
+        assertEquals("en-wikipedia-org.png", result.getFilename());
+
+        Dimension size = Screenshots.getSize(result.getFile());
+        assertNotNull(size);
+        assertEquals(1280, size.width);
+    }
+
     /*
      * Unfortunately, the tests used to be against a nuxeo demo, but since the changes and WebUI and all, the login
      * button _value_ changed, has a space in it "Log In" instead of "Log+In" and it breaks all the thing. But we are
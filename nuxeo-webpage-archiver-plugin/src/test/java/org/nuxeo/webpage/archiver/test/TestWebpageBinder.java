@@ -0,0 +1,151 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.automation.test.AutomationFeature;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.runtime.test.runner.Deploy;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.LocalDeploy;
+import org.nuxeo.webpage.archiver.RenderException;
+import org.nuxeo.webpage.archiver.WebpageBinder;
+
+/**
+ * Binders rendered by {@link StubWkhtmltopdf} (one page per process), from pages of a {@link FixtureServer}. A page
+ * answering 404 makes the stub exit with 1 after writing the PDF, as wkhtmltopdf does with
+ * <code>--load-error-handling ignore</code>.
+ *
+ * @since 10.10
+ */
+@RunWith(FeaturesRunner.class)
+@Features({ AutomationFeature.class })
+@Deploy({ "nuxeo-webpage-archiver", "org.nuxeo.ecm.platform.commandline.executor" })
+@LocalDeploy({ "nuxeo-webpage-archiver-test:stubrenderer-test.xml" })
+public class TestWebpageBinder {
+
+    protected FixtureServer server;
+
+    @Before
+    public void setUp() throws Exception {
+
+        Assume.assumeTrue("/bin/sh is not available, skipping test", StubWkhtmltopdf.isAvailable());
+        StubWkhtmltopdf.install(0, 1, true);
+        server = new FixtureServer();
+    }
+
+    @After
+    public void cleanup() {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    protected String page(int inIndex) {
+        return server.url("/page-" + inIndex, 0, 1024, 0);
+    }
+
+    protected static int countPages(Blob inPdf) throws Exception {
+        try (PDDocument doc = PDDocument.load(inPdf.getFile())) {
+            return doc.getNumberOfPages();
+        }
+    }
+
+    @Test
+    public void testChunks() throws Exception {
+
+        List<String> urls = Arrays.asList(page(0), page(1), page(2), page(3), page(4));
+        WebpageBinder binder = new WebpageBinder();
+        binder.setChunkSize(2);
+        WebpageBinder.Result result = binder.bind(StubWkhtmltopdf.BINDER_COMMAND, urls, "binder.pdf", null);
+
+        assertTrue(result.getFailures().isEmpty());
+        assertEquals("binder.pdf", result.getPdf().getFilename());
+        // One page per process
+        assertEquals(3, countPages(result.getPdf()));
+        assertEquals(Arrays.asList(2, 2, 1), StubWkhtmltopdf.getProcesses());
+        Map<String, Integer> renders = StubWkhtmltopdf.getRenders();
+        for (String url : urls) {
+            assertEquals(url, Integer.valueOf(1), renders.get(url));
+        }
+    }
+
+    @Test
+    public void testFailingPageIsLeftOut() throws Exception {
+
+        Assume.assumeTrue("curl is not available, skipping test", StubWkhtmltopdf.canFetch());
+
+        String missing = server.url("/missing", 0, 1024, 0) + "&status=404";
+        List<String> urls = Arrays.asList("toc", page(0), missing, page(1));
+        WebpageBinder binder = new WebpageBinder();
+        binder.setChunkSize(3);
+        WebpageBinder.Result result = binder.bind(StubWkhtmltopdf.BINDER_COMMAND, urls, null, null);
+
+        // Not a URL: left out before rendering. The chunk exits with 1, its pages are rendered one by one
+        assertEquals(Arrays.asList("toc", missing), Arrays.asList(result.getFailures().keySet().toArray()));
+        assertTrue(result.getFailures().get(missing).contains(RenderException.Kind.LOAD_FAILED.name()));
+        assertEquals(2, countPages(result.getPdf()));
+        assertEquals(Arrays.asList(3, 1, 1, 1), StubWkhtmltopdf.getProcesses());
+        Map<String, Integer> renders = StubWkhtmltopdf.getRenders();
+        assertEquals(Integer.valueOf(2), renders.get(page(0)));
+        assertEquals(Integer.valueOf(2), renders.get(missing));
+        assertEquals(Integer.valueOf(2), renders.get(page(1)));
+    }
+
+    @Test
+    public void testFailOnError() throws Exception {
+
+        Assume.assumeTrue("curl is not available, skipping test", StubWkhtmltopdf.canFetch());
+
+        String missing = server.url("/missing", 0, 1024, 0) + "&status=404";
+        WebpageBinder binder = new WebpageBinder();
+        binder.setFailOnError(true);
+        try {
+            binder.bind(StubWkhtmltopdf.BINDER_COMMAND, Arrays.asList(page(0), missing), null, null);
+            fail("A page could not be loaded, the binder must fail");
+        } catch (RenderException e) {
+            assertEquals(RenderException.Kind.LOAD_FAILED, e.getKind());
+        }
+
+        // Alone, no page at all can be rendered
+        binder.setFailOnError(false);
+        try {
+            binder.bind(StubWkhtmltopdf.BINDER_COMMAND, Collections.singletonList(missing), null, null);
+            fail("No page could be rendered, the binder must fail");
+        } catch (RenderException e) {
+            assertEquals(RenderException.Kind.LOAD_FAILED, e.getKind());
+        }
+    }
+
+}
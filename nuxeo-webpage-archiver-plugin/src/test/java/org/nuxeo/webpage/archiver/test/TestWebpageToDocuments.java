@@ -0,0 +1,272 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.automation.AutomationService;
+import org.nuxeo.ecm.automation.OperationContext;
+import org.nuxeo.ecm.automation.core.util.Properties;
+import org.nuxeo.ecm.automation.test.AutomationFeature;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.CloseableCoreSession;
+import org.nuxeo.ecm.core.api.CoreInstance;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.impl.DocumentModelListImpl;
+import org.nuxeo.ecm.core.api.security.ACE;
+import org.nuxeo.ecm.core.api.security.ACP;
+import org.nuxeo.ecm.core.api.security.SecurityConstants;
+import org.nuxeo.ecm.core.api.security.impl.ACPImpl;
+import org.nuxeo.ecm.core.work.api.WorkManager;
+import org.nuxeo.runtime.test.runner.Deploy;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.LocalDeploy;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+import org.nuxeo.webpage.archiver.WebpageToDocumentsOp;
+import org.nuxeo.webpage.archiver.pdf.PdfValidator;
+
+/**
+ * <code>WebpageToDocuments</code> and its works, with pages of a {@link FixtureServer} rendered by
+ * {@link StubWkhtmltopdf}. The <code>webpagesArchived</code> events are recorded by {@link BatchEventRecorder}, and
+ * the transaction saving a document titled {@link RollbackListener#TITLE} is rolled back.
+ *
+ * @since 10.10
+ */
+@RunWith(FeaturesRunner.class)
+@Features({ AutomationFeature.class })
+@Deploy({ "nuxeo-webpage-archiver", "org.nuxeo.ecm.platform.commandline.executor" })
+@LocalDeploy({ "nuxeo-webpage-archiver-test:stubrenderer-test.xml", "nuxeo-webpage-archiver-test:batch-test.xml" })
+public class TestWebpageToDocuments {
+
+    protected static final long MAX_WAIT = 60000;
+
+    // Valid, but no such document
+    protected static final String UNKNOWN_ID = "00000000-0000-0000-0000-000000000000";
+
+    @Inject
+    CoreSession session;
+
+    @Inject
+    AutomationService automationService;
+
+    @Inject
+    WorkManager workManager;
+
+    protected FixtureServer server;
+
+    @Before
+    public void setUp() throws Exception {
+
+        Assume.assumeTrue("/bin/sh is not available, skipping test", StubWkhtmltopdf.isAvailable());
+        StubWkhtmltopdf.install(0, 1, false);
+        server = new FixtureServer();
+        BatchEventRecorder.clear();
+    }
+
+    @After
+    public void cleanup() {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    protected List<DocumentModel> createDocuments(String... inTitles) {
+
+        List<DocumentModel> docs = new ArrayList<>();
+        for (String title : inTitles) {
+            DocumentModel doc = session.createDocumentModel("/", title, "File");
+            doc.setPropertyValue("dc:title", title);
+            doc.setPropertyValue("dc:source", server.url("/" + title, 0, 1024, 0));
+            docs.add(session.createDocument(doc));
+        }
+        session.save();
+        return docs;
+    }
+
+    protected static Properties toUrls(List<DocumentModel> inDocs) {
+
+        Map<String, String> urls = new LinkedHashMap<>();
+        for (DocumentModel doc : inDocs) {
+            urls.put(doc.getId(), (String) doc.getPropertyValue("dc:source"));
+        }
+        return new Properties(urls);
+    }
+
+    protected void archive(CoreSession inSession, Object inInput, Map<String, Object> inParams) throws Exception {
+
+        OperationContext ctx = new OperationContext(inSession);
+        if (inInput != null) {
+            ctx.setInput(inInput);
+        }
+        Map<String, Object> params = new HashMap<>(inParams);
+        params.put("commandLine", StubWkhtmltopdf.COMMAND);
+        automationService.run(ctx, WebpageToDocumentsOp.ID, params);
+    }
+
+    /*
+     * The works are scheduled when the transaction of the operation commits
+     */
+    protected void awaitArchives() throws Exception {
+
+        TransactionHelper.commitOrRollbackTransaction();
+        TransactionHelper.startTransaction();
+        assertTrue(workManager.awaitCompletion(MAX_WAIT, TimeUnit.MILLISECONDS));
+    }
+
+    protected Blob getPdf(DocumentModel inDoc) {
+        return (Blob) session.getDocument(inDoc.getRef()).getPropertyValue("file:content");
+    }
+
+    protected void grant(DocumentModel inDoc, String inUser, String inPermission) {
+
+        ACP acp = new ACPImpl();
+        acp.getOrCreateACL().add(new ACE(inUser, inPermission, true));
+        session.setACP(inDoc.getRef(), acp, true);
+        session.save();
+    }
+
+    @Test
+    public void testGroups() throws Exception {
+
+        List<DocumentModel> docs = createDocuments("page-0", "page-1", "page-2", "page-3", "page-4");
+        Map<String, Object> params = new HashMap<>();
+        params.put("urls", toUrls(docs));
+        params.put("transactionSize", 2);
+        archive(session, null, params);
+        awaitArchives();
+
+        // One work, one event per group of transactionSize documents, in order
+        List<BatchEventRecorder.Archived> events = BatchEventRecorder.getEvents();
+        assertEquals(3, events.size());
+        Set<String> archived = new HashSet<>();
+        for (int i = 0; i < events.size(); i++) {
+            BatchEventRecorder.Archived event = events.get(i);
+            assertEquals(i < 2 ? 2 : 1, event.archived.size());
+            assertTrue(event.failed.isEmpty());
+            assertTrue(event.retried.isEmpty());
+            archived.addAll(event.archived);
+        }
+        assertEquals(5, archived.size());
+        for (DocumentModel doc : docs) {
+            assertTrue(archived.contains(doc.getId()));
+            Blob pdf = getPdf(doc);
+            assertNotNull(pdf);
+            assertTrue(PdfValidator.looksValid(pdf.getFile()));
+        }
+    }
+
+    @Test
+    public void testGroupRolledBackIsSavedOneByOne() throws Exception {
+
+        List<DocumentModel> docs = createDocuments("page-0", RollbackListener.TITLE, "page-2");
+        Map<String, Object> params = new HashMap<>();
+        params.put("urls", toUrls(docs));
+        params.put("transactionSize", 3);
+        archive(session, null, params);
+        awaitArchives();
+
+        // No event for the transaction rolled back, one for the documents saved alone
+        List<BatchEventRecorder.Archived> events = BatchEventRecorder.getEvents();
+        assertEquals(1, events.size());
+        assertEquals(new HashSet<>(Arrays.asList(docs.get(0).getId(), docs.get(2).getId())),
+                new HashSet<>(events.get(0).archived));
+        assertEquals(Collections.singleton(docs.get(1).getId()), events.get(0).failed.keySet());
+        assertNotNull(getPdf(docs.get(0)));
+        assertNull(getPdf(docs.get(1)));
+        assertNotNull(getPdf(docs.get(2)));
+    }
+
+    @Test
+    public void testDocumentsLeftOutAreReported() throws Exception {
+
+        List<DocumentModel> docs = createDocuments("writable", "readOnly", "hidden");
+        grant(docs.get(0), "jdoe", SecurityConstants.READ_WRITE);
+        grant(docs.get(1), "jdoe", SecurityConstants.READ);
+        Properties urls = toUrls(docs);
+        urls.put(UNKNOWN_ID, server.url("/unknown", 0, 1024, 0));
+        // Seen by the session of jdoe
+        TransactionHelper.commitOrRollbackTransaction();
+        TransactionHelper.startTransaction();
+
+        try (CloseableCoreSession jdoeSession = CoreInstance.openCoreSession(session.getRepositoryName(), "jdoe")) {
+            Map<String, Object> params = new HashMap<>();
+            params.put("urls", urls);
+            archive(jdoeSession, null, params);
+        }
+        awaitArchives();
+
+        // Not readable, not writable or unknown: left out, the others are archived
+        List<BatchEventRecorder.Archived> events = BatchEventRecorder.getEvents();
+        assertEquals(1, events.size());
+        assertEquals(Collections.singletonList(docs.get(0).getId()), events.get(0).archived);
+        assertEquals(new HashSet<>(Arrays.asList(docs.get(1).getId(), docs.get(2).getId(), UNKNOWN_ID)),
+                events.get(0).failed.keySet());
+        assertNotNull(getPdf(docs.get(0)));
+        assertNull(getPdf(docs.get(1)));
+        assertNull(getPdf(docs.get(2)));
+    }
+
+    @Test
+    public void testOnlyDocumentsLeftOut() throws Exception {
+
+        List<DocumentModel> docs = createDocuments("readOnly");
+        grant(docs.get(0), "jdoe", SecurityConstants.READ);
+        TransactionHelper.commitOrRollbackTransaction();
+        TransactionHelper.startTransaction();
+
+        try (CloseableCoreSession jdoeSession = CoreInstance.openCoreSession(session.getRepositoryName(), "jdoe")) {
+            Map<String, Object> params = new HashMap<>();
+            params.put("urlXPath", "dc:source");
+            archive(jdoeSession, new DocumentModelListImpl(
+                    Collections.singletonList(jdoeSession.getDocument(docs.get(0).getRef()))), params);
+        }
+        awaitArchives();
+
+        // Still reported, by a work with nothing to archive
+        List<BatchEventRecorder.Archived> events = BatchEventRecorder.getEvents();
+        assertEquals(1, events.size());
+        assertTrue(events.get(0).archived.isEmpty());
+        assertEquals(Collections.singleton(docs.get(0).getId()), events.get(0).failed.keySet());
+        assertNull(getPdf(docs.get(0)));
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.webpage.archiver.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.nuxeo.webpage.archiver.WebpageWatchFacet;
+import org.nuxeo.webpage.archiver.watch.WebpageWatchWork;
+
+/**
+ * Checks the planning of the watched pages: the jitter of the next archive and the spread of the works over a minute.
+ *
+ * @since 10.10
+ */
+public class TestWebpageWatch {
+
+    @Test
+    public void testNextArchiveHasJitter() {
+
+        long now = System.currentTimeMillis();
+        long interval = TimeUnit.MINUTES.toMillis(60);
+        Set<Long> seen = new HashSet<>();
+        for (int i = 0; i < 200; i++) {
+            long next = WebpageWatchFacet.computeNextArchive(now, 60);
+            assertTrue(next >= now + interval * 0.9);
+            assertTrue(next <= now + interval * 1.1);
+            seen.add(next);
+        }
+        // Not all at the same time
+        assertTrue(seen.size() > 1);
+
+        // At least one minute, whatever the interval
+        assertTrue(WebpageWatchFacet.computeNextArchive(now, 0) > now);
+    }
+
+    @Test
+    public void testWorksAreSpreadOverThePeriod() {
+
+        long period = 60000;
+        int count = 10;
+        long slot = period / count;
+
+        assertEquals(0, WebpageWatchWork.computeDelay(0, count, period));
+        assertEquals(0, WebpageWatchWork.computeDelay(0, 1, period));
+        for (int i = 1; i < count; i++) {
+            long delay = WebpageWatchWork.computeDelay(i, count, period);
+            // Each work in its own slot
+            assertTrue(delay >= i * slot);
+            assertTrue(delay <= (i + 1) * slot);
+            assertTrue(delay <= period);
+        }
+    }
+
+}